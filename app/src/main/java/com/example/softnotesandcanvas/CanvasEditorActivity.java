@@ -1,7 +1,6 @@
 package com.example.softnotesandcanvas;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Toast;
@@ -16,10 +15,6 @@ import com.example.softnotesandcanvas.viewmodel.NoteViewModel;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-
 public class CanvasEditorActivity extends AppCompatActivity {
 
     private ActivityCanvasEditorBinding binding;
@@ -41,13 +36,23 @@ public class CanvasEditorActivity extends AppCompatActivity {
 
         noteViewModel = new ViewModelProvider(this).get(NoteViewModel.class);
         mAuth = FirebaseAuth.getInstance();
+        FirebaseUser user = mAuth.getCurrentUser();
+        if (user != null) {
+            noteViewModel.keepInSync(this, user.getUid());
+        }
 
-        if (getIntent().hasExtra("EXISTING_NOTE")) {
-            currentNote = (Note) getIntent().getSerializableExtra("EXISTING_NOTE");
+        if (getIntent().hasExtra(NoteEditorActivity.EXTRA_NOTE_ID)) {
             isNewNote = false;
-            binding.noteTitleCanvas.setText(currentNote.title);
             getSupportActionBar().setTitle("Edit Canvas");
-            loadCanvas();
+            String noteId = getIntent().getStringExtra(NoteEditorActivity.EXTRA_NOTE_ID);
+            noteViewModel.getNote(noteId).observe(this, note -> {
+                if (note == null || currentNote != null) {
+                    return;
+                }
+                currentNote = note;
+                binding.noteTitleCanvas.setText(currentNote.title);
+                loadCanvas();
+            });
         } else {
             currentNote = new Note();
             currentNote.type = Note.TYPE_CANVAS; // Set the type
@@ -66,21 +71,21 @@ public class CanvasEditorActivity extends AppCompatActivity {
     }
 
     private void loadCanvas() {
-        if (currentNote.canvasImagePath != null && !currentNote.canvasImagePath.isEmpty()) {
-            try {
-                File file = new File(currentNote.canvasImagePath);
-                if (file.exists()) {
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
-                    binding.canvasView.loadBitmap(bitmap);
-                }
-            } catch (Exception e) {
-                Log.e("CanvasEditor", "Error loading bitmap", e);
+        // Downloaded first if the drawing was made on another device
+        noteViewModel.getCanvas(currentNote).observe(this, bitmap -> {
+            if (bitmap != null) {
+                binding.canvasView.loadBitmap(bitmap);
+            } else if (currentNote.canvasHash != null || currentNote.canvasImagePath != null) {
                 Toast.makeText(this, "Error loading drawing", Toast.LENGTH_SHORT).show();
             }
-        }
+        });
     }
 
     private void saveCanvasNote() {
+        if (currentNote == null) {
+            // The existing note never finished loading; nothing to save
+            return;
+        }
         FirebaseUser user = mAuth.getCurrentUser();
         if (user == null) {
             Toast.makeText(this, "You must be signed in to save", Toast.LENGTH_SHORT).show();
@@ -99,63 +104,41 @@ public class CanvasEditorActivity extends AppCompatActivity {
             return;
         }
 
-        // 2. Save Bitmap to a file
-        String filePath = saveBitmapToFile(bitmap);
-        if (filePath == null) {
-            Toast.makeText(this, "Error saving drawing", Toast.LENGTH_SHORT).show();
-            return;
-        }
+        // 2. Copy its pixels; the repository stores them as tiles
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
 
         // 3. Create/Update Note object
         String deviceId = DeviceUtil.getDeviceId(this);
         currentNote.title = title;
-        currentNote.canvasImagePath = filePath; // Store the file path
         currentNote.content = null; // Canvas notes have no text content
         currentNote.type = Note.TYPE_CANVAS;
 
         if (isNewNote) {
             // We create the new note manually
             currentNote = new Note(); // Use default constructor
-            currentNote.id = java.util.UUID.randomUUID().toString();
+            currentNote.id = com.example.softnotesandcanvas.db.NoteIds.newId();
             currentNote.userId = user.getUid();
             currentNote.title = title;
-            currentNote.canvasImagePath = filePath;
             currentNote.type = Note.TYPE_CANVAS;
             currentNote.content = null;
-            currentNote.createdAt = new java.util.Date();
+            currentNote.createdAt = System.currentTimeMillis();
             currentNote.updatedAt = currentNote.createdAt;
             currentNote.lastEditedByDeviceId = deviceId;
             currentNote.isDeleted = false;
             currentNote.isTrashed = false;
-            currentNote.syncStatus = com.example.softnotesandcanvas.db.SyncStatus.SYNCING;
 
-            noteViewModel.insert(currentNote); // This now works
+            noteViewModel.saveCanvas(currentNote, pixels, width, height, true);
         } else {
             currentNote.lastEditedByDeviceId = deviceId;
-            noteViewModel.update(currentNote);
+            noteViewModel.saveCanvas(currentNote, pixels, width, height, false);
         }
 
         Toast.makeText(this, "Canvas saved", Toast.LENGTH_SHORT).show();
     }
 
-    private String saveBitmapToFile(Bitmap bitmap) {
-        // Create a unique filename
-        String fileName = "canvas_" + System.currentTimeMillis() + ".png";
-        // Get the app's internal files directory
-        File directory = getFilesDir();
-        File file = new File(directory, fileName);
-
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
-            fos.flush();
-            // Return the absolute path to the saved file
-            return file.getAbsolutePath();
-        } catch (IOException e) {
-            Log.e("CanvasEditor", "Error saving bitmap to file", e);
-            return null;
-        }
-    }
-
     @Override
     public boolean onSupportNavigateUp() {
         onBackPressed();
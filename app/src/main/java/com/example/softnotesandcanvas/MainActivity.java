@@ -22,13 +22,14 @@ import androidx.core.view.GravityCompat;
 import androidx.drawerlayout.widget.DrawerLayout;
 import com.google.android.material.navigation.NavigationView;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.paging.LoadState;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.softnotesandcanvas.databinding.ActivityMainBinding;
-import com.example.softnotesandcanvas.db.AppDatabase;
 import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteListItem;
 import com.example.softnotesandcanvas.ui.NoteAdapter;
 import com.example.softnotesandcanvas.viewmodel.NoteViewModel;
 // ADDED: Import for new ThemeHelper class
@@ -37,8 +38,7 @@ import com.google.android.material.snackbar.Snackbar;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import kotlin.Unit;
 
 // --- ADD THESE IMPORTS for the dialog ---
 import android.app.Dialog;
@@ -52,7 +52,6 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
 
     private ActivityMainBinding binding;
     private FirebaseAuth mAuth;
-    private AppDatabase mDb;
 
     private NoteViewModel noteViewModel;
     private NoteAdapter noteAdapter;
@@ -124,15 +123,31 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
         toggle.syncState();
 
         mAuth = FirebaseAuth.getInstance();
-        mDb = AppDatabase.getInstance(getApplicationContext());
 
         // RecyclerView setup
         noteAdapter = new NoteAdapter(this);
         binding.recyclerView.setLayoutManager(new LinearLayoutManager(this));
         binding.recyclerView.setAdapter(noteAdapter);
+        noteAdapter.addLoadStateListener(loadStates -> {
+            boolean loaded = loadStates.getRefresh() instanceof LoadState.NotLoading;
+            binding.emptyView.setVisibility(loaded && noteAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            return Unit.INSTANCE;
+        });
 
         // ViewModel setup
         noteViewModel = new ViewModelProvider(this).get(NoteViewModel.class);
+        FirebaseUser signedIn = mAuth.getCurrentUser();
+        if (signedIn != null) {
+            // Without a user, onStart sends us to sign-in
+            noteViewModel.keepInSync(this, signedIn.getUid());
+        }
+        // Registered once; each observer is active while the activity is started
+        noteViewModel.getSearchSnippets().observe(this, noteAdapter::setSnippets);
+        noteViewModel.getUnsyncedStatuses().observe(this, noteAdapter::setSyncStatuses);
+        // The spinner stays up while the first download fills the list
+        noteViewModel.getBootstrapProgress().observe(this, progress ->
+                binding.swipeRefresh.setRefreshing(progress.running));
+        noteViewModel.getNotes().observe(this, notes -> noteAdapter.submitData(getLifecycle(), notes));
 
         // ✅ NEW: Set up Filter Toggle Listener
         binding.filterToggleGroup.addOnButtonCheckedListener((group, checkedId, isChecked) -> {
@@ -174,15 +189,18 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
                 // Get the note at the swiped position
-                Note noteToTrash = noteAdapter.getCurrentList().get(viewHolder.getAdapterPosition());
-                noteViewModel.trash(noteToTrash);
+                NoteListItem noteToTrash = noteAdapter.peek(viewHolder.getAdapterPosition());
+                if (noteToTrash == null) {
+                    return;
+                }
+                noteViewModel.trash(noteToTrash.id);
                 // Show a snackbar with an undo option
                 Snackbar.make(binding.getRoot(), "Note moved to trash", Snackbar.LENGTH_LONG)
                         .setAction("Undo", v -> {
                             // To "undo" a soft delete, we'd need a method in the repository
                             // to set isDeleted = false. For now, we'll just re-insert it
                             // as a new note for simplicity.
-                            noteViewModel.restore(noteToTrash);
+                            noteViewModel.restore(noteToTrash.id);
                         }).show();
             }
         }).attachToRecyclerView(binding.recyclerView);
@@ -296,17 +314,17 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
 
     // --- MODIFY THIS METHOD to handle different note types ---
     @Override
-    public void onItemClick(Note note) {
+    public void onItemClick(NoteListItem note) {
         Intent intent;
         // Check the note type to open the correct editor
-        if (note.type != null && note.type.equals(Note.TYPE_CANVAS)) {
-            // We will create CanvasEditorActivity soon
+        if (note.isCanvas()) {
             intent = new Intent(this, CanvasEditorActivity.class);
         } else {
             // Default to text editor for old notes (where type is null) or new text notes
             intent = new Intent(this, NoteEditorActivity.class);
         }
-        intent.putExtra("EXISTING_NOTE", note); // Pass the entire note object
+        // The list only holds a projection; the editor loads the full note by id
+        intent.putExtra(NoteEditorActivity.EXTRA_NOTE_ID, note.id);
         startActivity(intent);
     }
     // --- END OF MODIFICATION ---
@@ -318,12 +336,8 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
         if (currentUser == null) {
             goToAuthActivity();
         } else {
-            // Load notes and then start observing
+            // The observers from onCreate pick up the user's notes
             noteViewModel.loadNotesForUser(currentUser.getUid());
-            noteViewModel.getNotes().observe(this, notes -> {
-                noteAdapter.submitList(notes);
-                binding.emptyView.setVisibility((notes == null || notes.isEmpty()) ? android.view.View.VISIBLE : android.view.View.GONE);
-            });
         }
     }
 
@@ -339,6 +353,28 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
             signOutAndClearData();
             return true;
         }
+        if (item.getItemId() == R.id.action_sync_now) {
+            noteViewModel.syncNow();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_search_substring || item.getItemId() == R.id.action_search_fuzzy) {
+            // The two modes are exclusive; unchecking both returns to ranked search
+            boolean checked = !item.isChecked();
+            item.setChecked(checked);
+            int otherId = item.getItemId() == R.id.action_search_substring
+                    ? R.id.action_search_fuzzy : R.id.action_search_substring;
+            MenuItem other = binding.toolbar.getMenu().findItem(otherId);
+            if (checked && other != null) {
+                other.setChecked(false);
+            }
+            NoteViewModel.SearchMode mode = NoteViewModel.SearchMode.RANKED;
+            if (checked) {
+                mode = item.getItemId() == R.id.action_search_substring
+                        ? NoteViewModel.SearchMode.SUBSTRING : NoteViewModel.SearchMode.FUZZY;
+            }
+            noteViewModel.setSearchMode(mode);
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
@@ -347,12 +383,12 @@ public class MainActivity extends AppCompatActivity implements NoteAdapter.OnIte
 
         // Stop observing before clearing data
         noteViewModel.getNotes().removeObservers(this);
+        noteViewModel.getSearchSnippets().removeObservers(this);
+        noteViewModel.getUnsyncedStatuses().removeObservers(this);
+        noteViewModel.getBootstrapProgress().removeObservers(this);
 
-        // Clear local data
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
-            mDb.noteDao().nukeTable();
-        });
+        // Clear local data; also stops the listener, so nothing of this user comes back
+        noteViewModel.clearAll();
 
         goToAuthActivity();
     }
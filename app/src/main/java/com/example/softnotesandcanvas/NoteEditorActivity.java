@@ -27,10 +27,11 @@ import com.example.softnotesandcanvas.viewmodel.NoteViewModel;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
-import java.util.Date;
-
 public class NoteEditorActivity extends AppCompatActivity {
 
+    /** Intent extra holding the id of the note to open, shared by both editors. */
+    public static final String EXTRA_NOTE_ID = "EXISTING_NOTE_ID";
+
     private ActivityNoteEditorBinding binding;
     private NoteViewModel noteViewModel;
     private Note currentNote;
@@ -60,24 +61,20 @@ public class NoteEditorActivity extends AppCompatActivity {
         }
         // This ensures the ViewModel knows the user's UID for save/update operations
         noteViewModel.loadNotesForUser(user.getUid());
+        // Shares the list's listener rather than attaching another
+        noteViewModel.keepInSync(this, user.getUid());
 
-        if (getIntent().hasExtra("EXISTING_NOTE")) {
-            currentNote = (Note) getIntent().getSerializableExtra("EXISTING_NOTE");
+        if (getIntent().hasExtra(EXTRA_NOTE_ID)) {
             isNewNote = false;
-            binding.noteTitle.setText(currentNote.title);
-
-            // Load content as HTML
-            if (currentNote.content != null) {
-                binding.noteContent.setText(Html.fromHtml(currentNote.content, Html.FROM_HTML_MODE_LEGACY));
-            }
-
             getSupportActionBar().setTitle("Edit Note");
-            // Hide formatting bar for canvas notes (though they shouldn't open here)
-            if (currentNote.type != null && currentNote.type.equals(Note.TYPE_CANVAS)) {
-                binding.formattingToolbar.setVisibility(View.GONE);
-                binding.noteContent.setHint("This is a canvas note and cannot be edited as text.");
-                binding.noteContent.setEnabled(false);
-            }
+            // The list only passes the id; load the full note (with content) once
+            String noteId = getIntent().getStringExtra(EXTRA_NOTE_ID);
+            noteViewModel.getNote(noteId).observe(this, note -> {
+                if (note == null || currentNote != null) {
+                    return;
+                }
+                showNote(note);
+            });
         } else {
             // It's a new note, check the type from MainActivity's FAB dialog
             String noteType = getIntent().getStringExtra("noteType");
@@ -95,6 +92,23 @@ public class NoteEditorActivity extends AppCompatActivity {
         setupFormattingToolbar();
     }
 
+    private void showNote(Note note) {
+        currentNote = note;
+        binding.noteTitle.setText(currentNote.title);
+
+        // Load content as HTML
+        if (currentNote.content != null) {
+            binding.noteContent.setText(Html.fromHtml(currentNote.content, Html.FROM_HTML_MODE_LEGACY));
+        }
+
+        // Hide formatting bar for canvas notes (though they shouldn't open here)
+        if (currentNote.type != null && currentNote.type.equals(Note.TYPE_CANVAS)) {
+            binding.formattingToolbar.setVisibility(View.GONE);
+            binding.noteContent.setHint("This is a canvas note and cannot be edited as text.");
+            binding.noteContent.setEnabled(false);
+        }
+    }
+
     private void setupFormattingToolbar() {
         binding.buttonBold.setOnClickListener(v -> applyStyle(new StyleSpan(Typeface.BOLD)));
         binding.buttonItalic.setOnClickListener(v -> applyStyle(new StyleSpan(Typeface.ITALIC)));
@@ -146,6 +160,11 @@ public class NoteEditorActivity extends AppCompatActivity {
             return;
         }
 
+        if (currentNote == null) {
+            // The existing note never finished loading; nothing to save
+            return;
+        }
+
         // Only save if it's a text note
         if (currentNote.type.equals(Note.TYPE_TEXT)) {
             String title = binding.noteTitle.getText().toString().trim();
@@ -177,7 +196,7 @@ public class NoteEditorActivity extends AppCompatActivity {
                 noteViewModel.insert(currentNote); //
             } else {
                 currentNote.lastEditedByDeviceId = deviceId;
-                currentNote.updatedAt = new Date(); // Update timestamp
+                currentNote.updatedAt = System.currentTimeMillis(); // Update timestamp
                 noteViewModel.update(currentNote);
             }
             Toast.makeText(this, "Note saved", Toast.LENGTH_SHORT).show();
@@ -198,8 +217,8 @@ public class NoteEditorActivity extends AppCompatActivity {
         }
         if (item.getItemId() == R.id.action_delete) {
             // We should trash the note
-            if (!isNewNote) {
-                noteViewModel.trash(currentNote);
+            if (!isNewNote && currentNote != null) {
+                noteViewModel.trash(currentNote.id);
                 Toast.makeText(this, "Note moved to trash", Toast.LENGTH_SHORT).show();
                 finish(); // Close the editor
             } else {
@@ -6,18 +6,21 @@ import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.paging.LoadState;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.softnotesandcanvas.databinding.ActivityTrashBinding;
-import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteListItem;
 import com.example.softnotesandcanvas.ui.NoteAdapter;
 import com.example.softnotesandcanvas.viewmodel.NoteViewModel;
 import com.google.android.material.snackbar.Snackbar;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
+import kotlin.Unit;
+
 public class TrashActivity extends AppCompatActivity {
 
     private ActivityTrashBinding binding;
@@ -48,6 +51,11 @@ public class TrashActivity extends AppCompatActivity {
         });
         binding.recyclerViewTrash.setLayoutManager(new LinearLayoutManager(this));
         binding.recyclerViewTrash.setAdapter(noteAdapter);
+        noteAdapter.addLoadStateListener(loadStates -> {
+            boolean loaded = loadStates.getRefresh() instanceof LoadState.NotLoading;
+            binding.emptyViewTrash.setVisibility(loaded && noteAdapter.getItemCount() == 0 ? android.view.View.VISIBLE : android.view.View.GONE);
+            return Unit.INSTANCE;
+        });
 
         // ViewModel setup
         noteViewModel = new ViewModelProvider(this).get(NoteViewModel.class);
@@ -64,11 +72,14 @@ public class TrashActivity extends AppCompatActivity {
 
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
-                Note note = noteAdapter.getCurrentList().get(viewHolder.getAdapterPosition());
+                NoteListItem note = noteAdapter.peek(viewHolder.getAdapterPosition());
+                if (note == null) {
+                    return;
+                }
 
                 if (direction == ItemTouchHelper.LEFT) {
                     // Swipe Left: Restore
-                    noteViewModel.restore(note);
+                    noteViewModel.restore(note.id);
                     Snackbar.make(binding.getRoot(), "Note restored", Snackbar.LENGTH_SHORT).show();
                 } else if (direction == ItemTouchHelper.RIGHT) {
                     // Swipe Right: Delete Permanently (with confirmation)
@@ -76,7 +87,7 @@ public class TrashActivity extends AppCompatActivity {
                             .setTitle("Delete Note")
                             .setMessage("Are you sure you want to permanently delete this note? This action cannot be undone.")
                             .setPositiveButton("Delete", (dialog, which) -> {
-                                noteViewModel.deletePermanently(note);
+                                noteViewModel.deletePermanently(note.id);
                                 Snackbar.make(binding.getRoot(), "Note permanently deleted", Snackbar.LENGTH_SHORT).show();
                             })
                             .setNegativeButton("Cancel", (dialog, which) -> {
@@ -97,10 +108,9 @@ public class TrashActivity extends AppCompatActivity {
         FirebaseUser currentUser = mAuth.getCurrentUser();
         if (currentUser != null) {
             // This will now correctly get notes that are trashed but not permanently deleted
-            noteViewModel.getTrashedNotes(currentUser.getUid()).observe(this, trashedNotes -> {
-                noteAdapter.submitList(trashedNotes);
-                binding.emptyViewTrash.setVisibility((trashedNotes == null || trashedNotes.isEmpty()) ? android.view.View.VISIBLE : android.view.View.GONE);
-            });
+            noteViewModel.keepInSync(this, currentUser.getUid());
+            noteViewModel.getTrashedNotes(currentUser.getUid())
+                    .observe(this, trashedNotes -> noteAdapter.submitData(getLifecycle(), trashedNotes));
         }
     }
 
@@ -1,6 +1,7 @@
 package com.example.softnotesandcanvas.db;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.room.Database;
 import androidx.room.Room;
@@ -15,7 +16,7 @@ import androidx.sqlite.db.SupportSQLiteDatabase; // <-- Import this
  * It follows a singleton pattern to ensure only one instance of the
  * database exists at any time.
  */
-@Database(entities = {Note.class}, version = 2, exportSchema = false)
+@Database(entities = {Note.class, NoteFts.class, NoteTrigram.class, NoteSyncState.class, NoteBody.class, SyncOutboxEntry.class, SyncCursor.class, NoteText.class, CanvasBlob.class, CanvasTile.class}, version = 19, exportSchema = false)
 @TypeConverters({Converters.class})
 public abstract class AppDatabase extends RoomDatabase {
 
@@ -36,6 +37,335 @@ public abstract class AppDatabase extends RoomDatabase {
             database.execSQL("ALTER TABLE notes ADD COLUMN canvasImagePath TEXT DEFAULT NULL");
         }
     };
+
+    /**
+     * Adds the notes_fts full-text index, its triggers, and backfills it
+     * with the plain text of every existing note.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `notes_fts` USING FTS4("
+                    + "`title` TEXT, `body` TEXT, tokenize=unicode61, prefix=`2,3`)");
+            NoteFts.createTriggers(database);
+            try (Cursor cursor = database.query("SELECT rowid, title, content FROM notes")) {
+                while (cursor.moveToNext()) {
+                    database.execSQL("INSERT INTO notes_fts (rowid, title, body) VALUES (?, ?, ?)",
+                            new Object[]{cursor.getLong(0), cursor.getString(1), HtmlText.toPlainText(cursor.getString(2))});
+                }
+            }
+        }
+    };
+
+    /**
+     * Adds the note_trigrams posting table used for infix search and
+     * indexes every active note.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `note_trigrams` (`trigram` TEXT NOT NULL, "
+                    + "`note_id` TEXT NOT NULL, PRIMARY KEY(`trigram`, `note_id`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_note_trigrams_note_id` ON `note_trigrams` (`note_id`)");
+            NoteTrigram.createTriggers(database);
+            try (Cursor cursor = database.query("SELECT id, title, content FROM notes WHERE is_trashed = 0 AND isDeleted = 0")) {
+                while (cursor.moveToNext()) {
+                    String noteId = cursor.getString(0);
+                    for (String gram : Trigrams.ofNote(cursor.getString(1), cursor.getString(2))) {
+                        database.execSQL("INSERT OR IGNORE INTO note_trigrams (trigram, note_id) VALUES (?, ?)",
+                                new Object[]{gram, noteId});
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Adds the plain-text preview column used by the note lists and fills
+     * it in for existing notes.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE notes ADD COLUMN preview TEXT DEFAULT NULL");
+            try (Cursor cursor = database.query("SELECT rowid, content FROM notes WHERE content IS NOT NULL")) {
+                while (cursor.moveToNext()) {
+                    String preview = HtmlText.preview(HtmlText.toPlainText(cursor.getString(1)), Note.PREVIEW_LENGTH);
+                    database.execSQL("UPDATE notes SET preview = ? WHERE rowid = ?",
+                            new Object[]{preview, cursor.getLong(0)});
+                }
+            }
+        }
+    };
+
+    /**
+     * Rebuilds notes in the compact layout: an INTEGER PRIMARY KEY rowid with
+     * a unique index on the external id, integer-coded type and syncStatus,
+     * and NOT NULL epoch-millis timestamps. Existing rowids are carried over
+     * as local_id so notes_fts rows stay attached to their notes, and the
+     * existing string ids (Firestore document ids) are kept as they are.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `notes_new` ("
+                    + "`local_id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `id` TEXT NOT NULL, "
+                    + "`userId` TEXT, `title` TEXT, `content` TEXT, `preview` TEXT, "
+                    + "`type` INTEGER NOT NULL DEFAULT " + Note.TYPE_CODE_TEXT + ", `canvasImagePath` TEXT, "
+                    + "`createdAt` INTEGER NOT NULL, `updatedAt` INTEGER NOT NULL, `lastEditedByDeviceId` TEXT, "
+                    + "`isDeleted` INTEGER NOT NULL, `syncStatus` INTEGER, `is_trashed` INTEGER NOT NULL DEFAULT 0)");
+            database.execSQL("INSERT INTO notes_new (local_id, id, userId, title, content, preview, type, "
+                    + "canvasImagePath, createdAt, updatedAt, lastEditedByDeviceId, isDeleted, syncStatus, is_trashed) "
+                    + "SELECT rowid, id, userId, title, content, preview, "
+                    + "CASE type WHEN '" + Note.TYPE_CANVAS + "' THEN " + Note.TYPE_CODE_CANVAS + " ELSE " + Note.TYPE_CODE_TEXT + " END, "
+                    + "canvasImagePath, IFNULL(createdAt, 0), IFNULL(updatedAt, 0), lastEditedByDeviceId, isDeleted, "
+                    + "CASE syncStatus WHEN 'SYNCING' THEN " + SyncStatus.CODE_SYNCING
+                    + " WHEN 'OFFLINE' THEN " + SyncStatus.CODE_OFFLINE
+                    + " WHEN 'CONFLICT' THEN " + SyncStatus.CODE_CONFLICT
+                    + " ELSE " + SyncStatus.CODE_SYNCED + " END, "
+                    + "is_trashed FROM notes");
+            // Dropping the old table also drops its triggers
+            database.execSQL("DROP TABLE notes");
+            database.execSQL("ALTER TABLE notes_new RENAME TO notes");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_notes_id` ON `notes` (`id`)");
+            NoteFts.createTriggers(database);
+            NoteTrigram.createTriggers(database);
+        }
+    };
+
+    /**
+     * Adds composite indexes matching the list, type-filter and sync-status
+     * access patterns, so those queries no longer scan notes or sort in a temp B-tree.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_userId_is_trashed_isDeleted_updatedAt_id` "
+                    + "ON `notes` (`userId`, `is_trashed`, `isDeleted`, `updatedAt`, `id`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_userId_is_trashed_isDeleted_type_updatedAt_id` "
+                    + "ON `notes` (`userId`, `is_trashed`, `isDeleted`, `type`, `updatedAt`, `id`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_syncStatus_id` ON `notes` (`syncStatus`, `id`)");
+        }
+    };
+
+    /**
+     * Moves sync bookkeeping into note_sync_state and rebuilds notes without
+     * its syncStatus column (and that column's index), keeping local_id so
+     * the FTS rows stay attached. SYNCED notes record their current version
+     * as the last synced one.
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `note_sync_state` (`note_id` TEXT NOT NULL, "
+                    + "`status` INTEGER NOT NULL, `attempts` INTEGER NOT NULL DEFAULT 0, `last_error` TEXT, "
+                    + "`last_synced_version` INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(`note_id`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_note_sync_state_status_note_id` "
+                    + "ON `note_sync_state` (`status`, `note_id`)");
+            database.execSQL("INSERT INTO note_sync_state (note_id, status, attempts, last_synced_version) "
+                    + "SELECT id, IFNULL(syncStatus, " + SyncStatus.CODE_SYNCED + "), 0, "
+                    + "CASE WHEN IFNULL(syncStatus, " + SyncStatus.CODE_SYNCED + ") = " + SyncStatus.CODE_SYNCED
+                    + " THEN updatedAt ELSE 0 END FROM notes");
+
+            database.execSQL("CREATE TABLE IF NOT EXISTS `notes_new` ("
+                    + "`local_id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `id` TEXT NOT NULL, "
+                    + "`userId` TEXT, `title` TEXT, `content` TEXT, `preview` TEXT, "
+                    + "`type` INTEGER NOT NULL DEFAULT " + Note.TYPE_CODE_TEXT + ", `canvasImagePath` TEXT, "
+                    + "`createdAt` INTEGER NOT NULL, `updatedAt` INTEGER NOT NULL, `lastEditedByDeviceId` TEXT, "
+                    + "`isDeleted` INTEGER NOT NULL, `is_trashed` INTEGER NOT NULL DEFAULT 0)");
+            database.execSQL("INSERT INTO notes_new (local_id, id, userId, title, content, preview, type, "
+                    + "canvasImagePath, createdAt, updatedAt, lastEditedByDeviceId, isDeleted, is_trashed) "
+                    + "SELECT local_id, id, userId, title, content, preview, type, "
+                    + "canvasImagePath, createdAt, updatedAt, lastEditedByDeviceId, isDeleted, is_trashed FROM notes");
+            // Dropping the old table also drops its indexes and triggers
+            database.execSQL("DROP TABLE notes");
+            database.execSQL("ALTER TABLE notes_new RENAME TO notes");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_notes_id` ON `notes` (`id`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_userId_is_trashed_isDeleted_updatedAt_id` "
+                    + "ON `notes` (`userId`, `is_trashed`, `isDeleted`, `updatedAt`, `id`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_userId_is_trashed_isDeleted_type_updatedAt_id` "
+                    + "ON `notes` (`userId`, `is_trashed`, `isDeleted`, `type`, `updatedAt`, `id`)");
+            NoteFts.createTriggers(database);
+            NoteTrigram.createTriggers(database);
+        }
+    };
+
+    /**
+     * Adds the content length and hash columns and the note_bodies table,
+     * and moves bodies over Note.INLINE_CONTENT_LIMIT out of the notes rows.
+     * The copy runs in SQL so no large row passes through a cursor. Hashes
+     * are filled in the next time each note is written.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE notes ADD COLUMN content_length INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE notes ADD COLUMN content_hash TEXT DEFAULT NULL");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `note_bodies` (`note_id` TEXT NOT NULL, "
+                    + "`content` TEXT, PRIMARY KEY(`note_id`))");
+            database.execSQL("UPDATE notes SET content_length = IFNULL(length(content), 0)");
+            database.execSQL("INSERT OR REPLACE INTO note_bodies (note_id, content) "
+                    + "SELECT id, content FROM notes WHERE content_length > " + Note.INLINE_CONTENT_LIMIT);
+            database.execSQL("UPDATE notes SET content = NULL WHERE content_length > " + Note.INLINE_CONTENT_LIMIT);
+            NoteBody.createTriggers(database);
+        }
+    };
+
+    /**
+     * Adds the sync_outbox table and queues every note that was still
+     * waiting for upload, replacing the per-note WorkManager jobs.
+     */
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sync_outbox` (`seq` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`note_id` TEXT NOT NULL, `enqueued_at` INTEGER NOT NULL)");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_sync_outbox_note_id` ON `sync_outbox` (`note_id`)");
+            database.execSQL("INSERT OR REPLACE INTO sync_outbox (note_id, enqueued_at) "
+                    + "SELECT note_id, " + System.currentTimeMillis() + " FROM note_sync_state "
+                    + "WHERE status = " + SyncStatus.CODE_SYNCING);
+        }
+    };
+
+    /**
+     * Migration from version 10 to 11: adds the dirty field flags to the outbox.
+     * Entries queued before then have no record of what changed, so they are
+     * uploaded in full.
+     */
+    static final Migration MIGRATION_10_11 = new Migration(10, 11) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `sync_outbox` ADD COLUMN `dirty_fields` INTEGER NOT NULL DEFAULT " + NoteFields.ALL);
+        }
+    };
+
+    /**
+     * Migration from version 11 to 12: adds the per-user pull cursor.
+     * No cursor means a full first pull, as before.
+     */
+    static final Migration MIGRATION_11_12 = new Migration(11, 12) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sync_cursor` (`user_id` TEXT NOT NULL, "
+                    + "`updated_at` INTEGER NOT NULL, `note_id` TEXT NOT NULL, PRIMARY KEY(`user_id`))");
+        }
+    };
+
+    /**
+     * Migration from version 12 to 13: adds the hybrid logical clock stamp.
+     * Existing edits get the stamp of their updatedAt, and synced versions
+     * move to the same scale.
+     */
+    static final Migration MIGRATION_12_13 = new Migration(12, 13) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `notes` ADD COLUMN `hlc` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("UPDATE notes SET hlc = updatedAt << " + Hlc.COUNTER_BITS);
+            database.execSQL("UPDATE note_sync_state SET last_synced_version = last_synced_version << " + Hlc.COUNTER_BITS);
+        }
+    };
+
+    /**
+     * Migration from version 13 to 14: adds the text CRDTs. Notes start
+     * without one, so their next content upload writes a checkpoint.
+     */
+    static final Migration MIGRATION_13_14 = new Migration(13, 14) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `note_text` (`note_id` TEXT NOT NULL, "
+                    + "`base` INTEGER NOT NULL, `state` TEXT NOT NULL, `acked` INTEGER NOT NULL DEFAULT 0, "
+                    + "`log_bytes` INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(`note_id`))");
+            NoteText.createTriggers(database);
+        }
+    };
+
+    /**
+     * Migration from version 14 to 15: adds canvas hashes and the blob
+     * store's bookkeeping. Existing canvases keep their local path until
+     * they are next saved.
+     */
+    static final Migration MIGRATION_14_15 = new Migration(14, 15) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `notes` ADD COLUMN `canvas_hash` TEXT");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_canvas_hash` ON `notes` (`canvas_hash`)");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `canvas_blobs` (`hash` TEXT NOT NULL, `size` INTEGER NOT NULL, "
+                    + "`remote` INTEGER NOT NULL DEFAULT 0, `uploaded_bytes` INTEGER NOT NULL DEFAULT 0, "
+                    + "`last_used` INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(`hash`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_canvas_blobs_remote_last_used` "
+                    + "ON `canvas_blobs` (`remote`, `last_used`)");
+        }
+    };
+
+    /**
+     * Migration from version 15 to 16: adds the tiles of tiled canvases.
+     * Canvases saved whole keep working and are tiled when next saved.
+     */
+    static final Migration MIGRATION_15_16 = new Migration(15, 16) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `canvas_tiles` (`canvas_hash` TEXT NOT NULL, "
+                    + "`tile_hash` TEXT NOT NULL, PRIMARY KEY(`canvas_hash`, `tile_hash`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_canvas_tiles_tile_hash` ON `canvas_tiles` (`tile_hash`)");
+        }
+    };
+
+    /**
+     * Migration from version 16 to 17: adds what the outbox needs to
+     * coalesce writes. Entries already queued count as first queued long
+     * ago, so they go up on the next drain.
+     */
+    static final Migration MIGRATION_16_17 = new Migration(16, 17) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `sync_outbox` ADD COLUMN `first_enqueued_at` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `sync_outbox` ADD COLUMN `edits` INTEGER NOT NULL DEFAULT 1");
+            database.execSQL("ALTER TABLE `sync_outbox` ADD COLUMN `priority` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    /**
+     * Migration from version 17 to 18: the pull cursor moves from the
+     * writer's updatedAt to the server's syncedAt. Positions in the old
+     * order mean nothing in the new one, so cursors are dropped and each
+     * account downloads its notes again once.
+     */
+    static final Migration MIGRATION_17_18 = new Migration(17, 18) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("DROP TABLE IF EXISTS `sync_cursor`");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sync_cursor` (`user_id` TEXT NOT NULL, "
+                    + "`synced_at` INTEGER NOT NULL, `note_id` TEXT NOT NULL, PRIMARY KEY(`user_id`))");
+        }
+    };
+
+    /**
+     * Migration from version 18 to 19: outbox entries record the bytes of
+     * drawing they were queued with, which fixes their upload lane. Entries
+     * already queued get what they have left to send now.
+     */
+    static final Migration MIGRATION_18_19 = new Migration(18, 19) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `sync_outbox` ADD COLUMN `canvas_bytes` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("UPDATE sync_outbox SET canvas_bytes = "
+                    + NoteDao.UNSENT_CANVAS_BYTES.replace(":noteId", "sync_outbox.note_id"));
+        }
+    };
+
+    /**
+     * Creates objects Room does not manage itself (the index triggers) on a fresh install.
+     */
+    public static final Callback CALLBACK = new Callback() {
+        @Override
+        public void onCreate(SupportSQLiteDatabase db) {
+            NoteFts.createTriggers(db);
+            NoteTrigram.createTriggers(db);
+            NoteBody.createTriggers(db);
+            NoteText.createTriggers(db);
+        }
+    };
+
     private static final String DATABASE_NAME = "notes_database";
 
     /**
@@ -59,7 +389,8 @@ public abstract class AppDatabase extends RoomDatabase {
                             // a proper database migration strategy.
                             // For development, this just wipes and rebuilds the
                             // database on a version schema change.
-                            .addMigrations(MIGRATION_1_2)
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10, MIGRATION_10_11, MIGRATION_11_12, MIGRATION_12_13, MIGRATION_13_14, MIGRATION_14_15, MIGRATION_15_16, MIGRATION_16_17, MIGRATION_17_18, MIGRATION_18_19)
+                            .addCallback(CALLBACK)
                             .build();
                 }
             }
@@ -0,0 +1,52 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A canvas PNG on this device, see {@link CanvasBlobStore}. There is a row
+ * exactly while the file is on disk. References are not stored here: the
+ * notes whose canvas_hash names the blob are its references.
+ */
+@Entity(tableName = "canvas_blobs",
+        indices = {@Index(value = {"remote", "last_used"})})
+public class CanvasBlob {
+
+    /** Hex SHA-256 of the file, which is also its name. */
+    @NonNull
+    @PrimaryKey
+    @ColumnInfo(name = "hash")
+    public String hash = "";
+
+    @ColumnInfo(name = "size")
+    public long size;
+
+    /**
+     * True once the server has the blob, uploaded from here or downloaded.
+     * Such blobs are a cache and may be evicted; the others are the only
+     * copy.
+     */
+    @ColumnInfo(name = "remote", defaultValue = "0")
+    public boolean remote;
+
+    /** Bytes of an unfinished upload the server has acknowledged, in whole chunks. */
+    @ColumnInfo(name = "uploaded_bytes", defaultValue = "0")
+    public long uploadedBytes;
+
+    /** When the blob was last written or opened, in epoch millis. */
+    @ColumnInfo(name = "last_used", defaultValue = "0")
+    public long lastUsed;
+
+    public CanvasBlob() {
+    }
+
+    public CanvasBlob(@NonNull String hash, long size, boolean remote, long lastUsed) {
+        this.hash = hash;
+        this.size = size;
+        this.remote = remote;
+        this.lastUsed = lastUsed;
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.softnotesandcanvas.db;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Canvas blobs on this device: the tiles and manifests of tiled canvases
+ * (see {@link CanvasTiles}), and PNGs saved before canvases were tiled.
+ * They are content-addressed: each file is named by the
+ * hex SHA-256 of its bytes, under two levels of directories taken from the
+ * start of the hash (blobs/ab/cd/abcd…), so no directory grows large.
+ * Saving an unchanged drawing writes nothing, and notes with the same
+ * drawing share one file.
+ * <p>
+ * Bookkeeping is in canvas_blobs (see {@link CanvasBlob}). A blob's
+ * references are the notes whose canvas_hash names it, directly or as a
+ * tile listed in canvas_tiles, counted through indexes rather than stored; notes are written with INSERT
+ * OR REPLACE, which skips delete triggers, so a stored count could drift.
+ * Blobs that lose their last reference are deleted by
+ * {@link #collectGarbage}.
+ * <p>
+ * Blobs the server also has are a cache, bounded by the budget given to
+ * the constructor: past it, the least recently used ones are deleted and
+ * downloaded again when next needed. Blobs only this device has are never
+ * evicted.
+ * <p>
+ * Methods other than {@link #fileFor} use the database or the disk, so
+ * they must not run on the main thread.
+ */
+public class CanvasBlobStore {
+
+    private static final String TAG = "CanvasBlobStore";
+    /** Cache budget of the app's store. */
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    /**
+     * How long an unreferenced blob is kept, so a drawing saved just
+     * before its note is not collected in between.
+     */
+    public static final long GARBAGE_GRACE_MILLIS = 60 * 60 * 1000;
+    private static final int EVICTION_PAGE = 16;
+    private static final String DIRECTORY = "blobs";
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    private static volatile CanvasBlobStore INSTANCE;
+
+    private final File root;
+    private final NoteDao noteDao;
+    private final long cacheBytes;
+
+    /**
+     * @param root Directory the store owns.
+     * @param cacheBytes Budget for blobs the server also has.
+     */
+    public CanvasBlobStore(File root, NoteDao noteDao, long cacheBytes) {
+        this.root = root;
+        this.noteDao = noteDao;
+        this.cacheBytes = cacheBytes;
+    }
+
+    /** The app's store, in the files directory. */
+    public static CanvasBlobStore getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (CanvasBlobStore.class) {
+                if (INSTANCE == null) {
+                    Context app = context.getApplicationContext();
+                    INSTANCE = new CanvasBlobStore(new File(app.getFilesDir(), DIRECTORY),
+                            AppDatabase.getInstance(app).noteDao(), DEFAULT_CACHE_BYTES);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Where the blob is or would be. Does not check that it exists, so it
+     * is safe on the main thread (e.g. to bind a preview).
+     */
+    @NonNull
+    public File fileFor(@NonNull String hash) {
+        return new File(new File(new File(root, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+    /**
+     * Stores a blob. If the same bytes are already stored, nothing is
+     * written.
+     *
+     * @return The blob's hash.
+     */
+    @NonNull
+    public String put(@NonNull byte[] data) throws IOException {
+        String hash = NoteBody.toHex(digest().digest(data));
+        long now = System.currentTimeMillis();
+        CanvasBlob existing = noteDao.getCanvasBlob(hash);
+        if (existing != null && fileFor(hash).exists()) {
+            noteDao.touchCanvasBlob(hash, now);
+            return hash;
+        }
+        File temp = newTempFile(hash);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        moveIntoPlace(temp, hash);
+        noteDao.upsertCanvasBlob(new CanvasBlob(hash, data.length, false, now));
+        return hash;
+    }
+
+    /**
+     * Stores a drawing as tiles and their manifest. Tiles the last save
+     * left unchanged are already stored, so only the edited ones are
+     * written.
+     *
+     * @param pixels ARGB, row by row.
+     * @return The manifest's hash, for Note.canvasHash.
+     */
+    @NonNull
+    public String putCanvas(@NonNull int[] pixels, int width, int height) throws IOException {
+        int size = CanvasTiles.TILE_SIZE;
+        List<String> hashes = new ArrayList<>();
+        for (int top = 0; top < height; top += size) {
+            for (int left = 0; left < width; left += size) {
+                int w = Math.min(size, width - left);
+                int h = Math.min(size, height - top);
+                hashes.add(put(CanvasTiles.encodeTile(pixels, width, left, top, w, h)));
+            }
+        }
+        CanvasTiles canvas = new CanvasTiles(width, height, size, hashes);
+        // The manifest's row first, so its tile rows are never without one
+        String hash = put(canvas.toBytes());
+        addCanvasTiles(hash, canvas);
+        return hash;
+    }
+
+    /** Records the tiles of a stored manifest, e.g. after downloading it. */
+    public void addCanvasTiles(@NonNull String hash, @NonNull CanvasTiles canvas) {
+        Set<String> distinct = new LinkedHashSet<>(canvas.tileHashes);
+        List<CanvasTile> rows = new ArrayList<>(distinct.size());
+        for (String tile : distinct) {
+            rows.add(new CanvasTile(hash, tile));
+        }
+        noteDao.insertCanvasTiles(rows);
+    }
+
+    /**
+     * Draws a tiled canvas from the tiles on this device. Reads files
+     * only, like {@link #fileFor}.
+     *
+     * @return The pixels, ARGB row by row, or null if a tile is not here.
+     */
+    @Nullable
+    public int[] renderCanvas(@NonNull CanvasTiles canvas) throws IOException {
+        int[] pixels = new int[canvas.width * canvas.height];
+        for (int i = 0; i < canvas.tileHashes.size(); i++) {
+            File tile = fileFor(canvas.tileHashes.get(i));
+            if (!tile.exists()) {
+                return null;
+            }
+            CanvasTiles.decodeTile(readFile(tile), pixels, canvas.width,
+                    canvas.left(i), canvas.top(i), canvas.tileWidth(i), canvas.tileHeight(i));
+        }
+        return pixels;
+    }
+
+    /**
+     * Decodes a canvas blob, or the file of a canvas saved before the blob
+     * store: a manifest is drawn from its tiles, anything else is decoded
+     * as an image. Reads files only, like {@link #fileFor}.
+     *
+     * @return The drawing, or null if a tile is not on this device or the
+     *         file is not an image.
+     */
+    @Nullable
+    public Bitmap decodeCanvas(@NonNull File file) throws IOException {
+        CanvasTiles canvas = CanvasTiles.read(file);
+        if (canvas == null) {
+            return BitmapFactory.decodeFile(file.getAbsolutePath());
+        }
+        int[] pixels = renderCanvas(canvas);
+        return pixels != null
+                ? Bitmap.createBitmap(pixels, canvas.width, canvas.height, Bitmap.Config.ARGB_8888)
+                : null;
+    }
+
+    /**
+     * Opens a blob stored here, marking it as recently used.
+     *
+     * @return The file, or null if it is not on this device.
+     */
+    @Nullable
+    public File open(@NonNull String hash) {
+        File file = fileFor(hash);
+        if (noteDao.getCanvasBlob(hash) == null || !file.exists()) {
+            return null;
+        }
+        noteDao.touchCanvasBlob(hash, System.currentTimeMillis());
+        return file;
+    }
+
+    /** The blob's bookkeeping, or null if it is not on this device. */
+    @Nullable
+    public CanvasBlob get(@NonNull String hash) {
+        return noteDao.getCanvasBlob(hash);
+    }
+
+    /**
+     * A file to download into. A partial download of the same blob is
+     * kept, so it can be resumed.
+     */
+    @NonNull
+    public File partialFile(@NonNull String hash) throws IOException {
+        return new File(tempDirectory(), hash + ".part");
+    }
+
+    /**
+     * Adds a finished download to the cache, then evicts down to the budget.
+     *
+     * @param partial The file from {@link #partialFile}; moved into place.
+     * @return The stored file.
+     * @throws IOException If the bytes do not hash to the name; the file is
+     *         deleted.
+     */
+    @NonNull
+    public File addDownloaded(@NonNull String hash, @NonNull File partial) throws IOException {
+        String actual = hashOf(partial);
+        if (!hash.equals(actual)) {
+            delete(partial);
+            throw new IOException("Downloaded blob " + hash + " hashes to " + actual);
+        }
+        long size = partial.length();
+        File file = moveIntoPlace(partial, hash);
+        noteDao.upsertCanvasBlob(new CanvasBlob(hash, size, true, System.currentTimeMillis()));
+        evict();
+        return file;
+    }
+
+    /** Records upload progress, see CanvasBlob#uploadedBytes. */
+    public void setUploadedBytes(@NonNull String hash, long bytes) {
+        noteDao.setCanvasBlobUploadedBytes(hash, bytes);
+    }
+
+    /** Records that the server has the blob, which makes it evictable. */
+    public void markRemote(@NonNull String hash) {
+        noteDao.markCanvasBlobRemote(hash);
+        evict();
+    }
+
+    /** @return How far the cache is below its budget, in bytes; 0 if it is full. */
+    public long getFreeCacheBytes() {
+        return Math.max(0, cacheBytes - noteDao.getCachedCanvasBlobBytes());
+    }
+
+    /** Deletes least recently used cached blobs until the cache fits the budget. */
+    public void evict() {
+        long total = noteDao.getCachedCanvasBlobBytes();
+        while (total > cacheBytes) {
+            List<CanvasBlob> oldest = noteDao.getLeastRecentlyUsedCanvasBlobs(EVICTION_PAGE);
+            if (oldest.isEmpty()) {
+                return;
+            }
+            for (CanvasBlob blob : oldest) {
+                if (total <= cacheBytes) {
+                    return;
+                }
+                remove(blob);
+                total -= blob.size;
+            }
+        }
+    }
+
+    /**
+     * Deletes the blobs no note refers to that were last used before
+     * GARBAGE_GRACE_MILLIS ago, e.g. earlier versions of a drawing and the
+     * tiles only they used. Copies
+     * on the server are left alone; other devices may still refer to them.
+     *
+     * @return The number of blobs deleted.
+     */
+    public int collectGarbage(long now) {
+        long before = now - GARBAGE_GRACE_MILLIS;
+        List<CanvasBlob> unreferenced = noteDao.getUnreferencedCanvasBlobs(before);
+        for (CanvasBlob blob : unreferenced) {
+            remove(blob);
+        }
+        // Rows of canvases no note uses protect nothing; drop them
+        noteDao.deleteUnreferencedCanvasTiles(before);
+        return unreferenced.size();
+    }
+
+    /** Deletes every blob and its bookkeeping, e.g. on sign-out. */
+    public void clear() {
+        noteDao.deleteAllCanvasBlobs();
+        noteDao.deleteAllCanvasTiles();
+        deleteTree(root);
+    }
+
+    /** Hex SHA-256 of a file's bytes. */
+    @NonNull
+    public static String hashOf(@NonNull File file) throws IOException {
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return NoteBody.toHex(digest.digest());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    private void remove(CanvasBlob blob) {
+        noteDao.deleteCanvasBlob(blob.hash);
+        delete(fileFor(blob.hash));
+    }
+
+    private File newTempFile(String hash) throws IOException {
+        return File.createTempFile(hash, ".tmp", tempDirectory());
+    }
+
+    private File tempDirectory() throws IOException {
+        File directory = new File(root, TEMP_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return directory;
+    }
+
+    /** Renames a finished file to its hash, so readers never see a partial blob. */
+    private File moveIntoPlace(File temp, String hash) throws IOException {
+        File file = fileFor(hash);
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        if (!temp.renameTo(file)) {
+            delete(temp);
+            throw new IOException("Cannot move blob " + hash + " into place");
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        delete(file);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/**
+ * "This tiled canvas uses this tile", see {@link CanvasTiles}. A tile's
+ * references are the rows naming it whose canvas is a note's canvas_hash,
+ * so the blob store can tell which tiles are still in use without reading
+ * every manifest. A tile used twice in one canvas has one row.
+ */
+@Entity(tableName = "canvas_tiles",
+        primaryKeys = {"canvas_hash", "tile_hash"},
+        indices = {@Index("tile_hash")})
+public class CanvasTile {
+
+    /** Hash of the canvas manifest. */
+    @NonNull
+    @ColumnInfo(name = "canvas_hash")
+    public String canvasHash;
+
+    @NonNull
+    @ColumnInfo(name = "tile_hash")
+    public String tileHash;
+
+    public CanvasTile(@NonNull String canvasHash, @NonNull String tileHash) {
+        this.canvasHash = canvasHash;
+        this.tileHash = tileHash;
+    }
+}
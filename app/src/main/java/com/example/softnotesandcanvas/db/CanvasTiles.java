@@ -0,0 +1,227 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A drawing cut into a grid of TILE_SIZE squares (smaller at the right and
+ * bottom edges), each stored as its own blob in the {@link CanvasBlobStore}.
+ * The canvas itself is a small manifest blob listing the tile hashes row by
+ * row, and that is what Note.canvasHash names.
+ * <p>
+ * An edit changes the bytes of only the tiles it touches, so only those get
+ * new hashes: saving writes just them, the upload skips the tiles the
+ * server has, and another device downloads just the tiles it lacks and
+ * redraws the rest from its own copies. Empty tiles, the most common kind,
+ * all share one blob.
+ * <p>
+ * A tile's bytes are its ARGB pixels, row by row, deflated. Unlike PNG
+ * this needs no platform encoder, and the same pixels give the same bytes,
+ * so an unchanged tile keeps its hash across saves.
+ * <p>
+ * Manifest format, in UTF-8 lines:
+ * <pre>
+ * canvas-tiles 1
+ * width height tileSize
+ * hash of tile (0, 0)
+ * hash of tile (1, 0)
+ * ...
+ * </pre>
+ */
+public final class CanvasTiles {
+
+    /** Tile edge in pixels: 256 KiB of ARGB before deflating. */
+    public static final int TILE_SIZE = 256;
+    private static final String MAGIC = "canvas-tiles 1";
+
+    public final int width;
+    public final int height;
+    public final int tileSize;
+    /** Row by row, left to right; may repeat a hash. */
+    public final List<String> tileHashes;
+
+    public CanvasTiles(int width, int height, int tileSize, @NonNull List<String> tileHashes) {
+        if (tileHashes.size() != columns(width, tileSize) * columns(height, tileSize)) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " canvas does not have "
+                    + tileHashes.size() + " tiles of " + tileSize);
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tileHashes = Collections.unmodifiableList(new ArrayList<>(tileHashes));
+    }
+
+    /** Tiles per row. */
+    public int columns() {
+        return columns(width, tileSize);
+    }
+
+    /** Left edge of tile i, in pixels. */
+    public int left(int i) {
+        return i % columns() * tileSize;
+    }
+
+    /** Top edge of tile i, in pixels. */
+    public int top(int i) {
+        return i / columns() * tileSize;
+    }
+
+    /** Width of tile i; less than tileSize at the right edge. */
+    public int tileWidth(int i) {
+        return Math.min(tileSize, width - left(i));
+    }
+
+    /** Height of tile i; less than tileSize at the bottom edge. */
+    public int tileHeight(int i) {
+        return Math.min(tileSize, height - top(i));
+    }
+
+    /** The manifest's bytes, see the class doc. */
+    @NonNull
+    public byte[] toBytes() {
+        StringBuilder manifest = new StringBuilder(MAGIC.length() + 16 + tileHashes.size() * 65);
+        manifest.append(MAGIC).append('\n')
+                .append(width).append(' ').append(height).append(' ').append(tileSize).append('\n');
+        for (String hash : tileHashes) {
+            manifest.append(hash).append('\n');
+        }
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @return The canvas, or null if the bytes are not a manifest (e.g. a
+     *         PNG saved before tiling).
+     * @throws IOException If they start like a manifest but are not one.
+     */
+    @Nullable
+    public static CanvasTiles parse(@NonNull byte[] data) throws IOException {
+        if (!isManifest(data)) {
+            return null;
+        }
+        String[] lines = new String(data, StandardCharsets.UTF_8).split("\n");
+        try {
+            String[] size = lines[1].split(" ");
+            List<String> hashes = new ArrayList<>(lines.length - 2);
+            for (int i = 2; i < lines.length; i++) {
+                hashes.add(lines[i]);
+            }
+            return new CanvasTiles(Integer.parseInt(size[0]), Integer.parseInt(size[1]), Integer.parseInt(size[2]), hashes);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed canvas manifest", e);
+        }
+    }
+
+    /** Reads a manifest from a blob file, see {@link #parse}. */
+    @Nullable
+    public static CanvasTiles read(@NonNull File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] head = new byte[MAGIC.length()];
+            if (in.length() < head.length) {
+                return null;
+            }
+            in.readFully(head);
+            if (!isManifest(head)) {
+                // Most likely a large PNG; not worth reading whole
+                return null;
+            }
+            byte[] data = new byte[(int) in.length()];
+            in.seek(0);
+            in.readFully(data);
+            return parse(data);
+        }
+    }
+
+    private static boolean isManifest(byte[] data) {
+        byte[] magic = MAGIC.getBytes(StandardCharsets.UTF_8);
+        if (data.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the tile of an image at (left, top), w by h pixels.
+     *
+     * @param pixels The whole image, ARGB, row by row.
+     * @param stride Pixels per row of the image.
+     */
+    @NonNull
+    public static byte[] encodeTile(@NonNull int[] pixels, int stride, int left, int top, int w, int h) {
+        ByteBuffer raw = ByteBuffer.allocate(w * h * 4);
+        for (int y = 0; y < h; y++) {
+            raw.asIntBuffer().put(pixels, (top + y) * stride + left, w);
+            raw.position(raw.position() + w * 4);
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(raw.array());
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes a tile from {@link #encodeTile} into an image at (left, top).
+     *
+     * @throws IOException If the bytes are not a w by h tile.
+     */
+    public static void decodeTile(@NonNull byte[] data, @NonNull int[] pixels, int stride,
+                                  int left, int top, int w, int h) throws IOException {
+        byte[] raw = new byte[w * h * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, length, raw.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != raw.length || !inflater.finished()) {
+                throw new IOException("Tile is not " + w + "x" + h);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt tile", e);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer rows = ByteBuffer.wrap(raw);
+        for (int y = 0; y < h; y++) {
+            rows.asIntBuffer().get(pixels, (top + y) * stride + left, w);
+            rows.position(rows.position() + w * 4);
+        }
+    }
+
+    private static int columns(int length, int tileSize) {
+        return (length + tileSize - 1) / tileSize;
+    }
+}
@@ -5,7 +5,8 @@ import java.util.Date;
 
 /**
  * Type converters for Room to handle types it doesn't natively support,
- * like Date and our custom SyncStatus enum.
+ * like Date and our custom SyncStatus enum. Note timestamps are stored
+ * as primitive longs and do not go through the Date converters.
  */
 public class Converters {
 
@@ -34,30 +35,22 @@ public class Converters {
     // --- SyncStatus Converters ---
 
     /**
-     * Converts a String from the database back into a SyncStatus enum.
-     * @param value The String value from the database (e.g., "SYNCED").
-     * @return The corresponding SyncStatus enum, or SYNCED by default if invalid.
+     * Converts an integer code from the database back into a SyncStatus enum.
+     * @param value The code from the database (see SyncStatus.code).
+     * @return The corresponding SyncStatus enum, or SYNCED by default if null or invalid.
      */
     @TypeConverter
-    public static SyncStatus fromString(String value) {
-        if (value == null) {
-            return SyncStatus.SYNCED;
-        }
-        try {
-            return SyncStatus.valueOf(value);
-        } catch (IllegalArgumentException e) {
-            // Handle invalid data from DB, default to SYNCED
-            return SyncStatus.SYNCED;
-        }
+    public static SyncStatus fromCode(Integer value) {
+        return value == null ? SyncStatus.SYNCED : SyncStatus.fromCode(value);
     }
 
     /**
-     * Converts a SyncStatus enum into a String for database storage.
+     * Converts a SyncStatus enum into its integer code for database storage.
      * @param status The SyncStatus enum.
-     * @return A String representation (e.g., "SYNCING").
+     * @return The code (e.g., 1 for SYNCING).
      */
     @TypeConverter
-    public static String statusToString(SyncStatus status) {
-        return status == null ? null : status.name();
+    public static Integer statusToCode(SyncStatus status) {
+        return status == null ? null : status.code;
     }
-}
\ No newline at end of file
+}
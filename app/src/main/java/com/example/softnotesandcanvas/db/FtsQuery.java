@@ -0,0 +1,44 @@
+package com.example.softnotesandcanvas.db;
+
+import java.util.Locale;
+
+/**
+ * Builds FTS4 MATCH expressions from free-form user input.
+ */
+public final class FtsQuery {
+
+    private FtsQuery() {
+        // Static helpers only
+    }
+
+    /**
+     * Turns what the user typed into a safe prefix query. Every word becomes a
+     * prefix term ("note" matches "notes", "notebook") and all words must match.
+     * Operators and quotes are dropped so input can never produce a syntax error.
+     *
+     * @param input The raw search text.
+     * @return A MATCH expression, or null if the input has no searchable words.
+     */
+    public static String build(String input) {
+        if (input == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        StringBuilder token = new StringBuilder();
+        int n = input.length();
+        for (int i = 0; i <= n; i++) {
+            char c = i < n ? input.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                // Lower-casing keeps AND/OR/NOT from being read as operators
+                match.append(token.toString().toLowerCase(Locale.ROOT)).append('*');
+                token.setLength(0);
+            }
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.softnotesandcanvas.db;
+
+/**
+ * The hybrid logical clock stamps stored in {@link Note#hlc}: wall-clock
+ * milliseconds in the high 48 bits and a logical counter in the low 16.
+ * Stamps compare as plain longs, and a tie is broken by the id of the
+ * device that made the edit. That gives a deterministic total order over
+ * edits that does not depend on device clocks agreeing.
+ * Stamps are issued by sync.HybridLogicalClock.
+ */
+public final class Hlc {
+
+    /** Bits of the logical counter. */
+    public static final int COUNTER_BITS = 16;
+
+    private Hlc() {
+        // Static helpers only
+    }
+
+    /** The stamp of a wall-clock time with a zero counter, e.g. for edits made before HLCs. */
+    public static long fromMillis(long millis) {
+        return millis << COUNTER_BITS;
+    }
+
+    /** The wall-clock part of a stamp, in epoch millis. */
+    public static long toMillis(long stamp) {
+        return stamp >>> COUNTER_BITS;
+    }
+
+    /**
+     * Orders two edits.
+     *
+     * @return Negative, zero or positive as edit a comes before, is, or comes after edit b.
+     */
+    public static int compare(long stampA, String deviceA, long stampB, String deviceB) {
+        if (stampA != stampB) {
+            return Long.compare(stampA, stampB);
+        }
+        if (deviceA == null || deviceB == null) {
+            return deviceA == null ? (deviceB == null ? 0 : -1) : 1;
+        }
+        return deviceA.compareTo(deviceB);
+    }
+
+    /** True if the first note's edit comes after the second's. */
+    public static boolean isAfter(Note a, Note b) {
+        return compare(a.hlc, a.lastEditedByDeviceId, b.hlc, b.lastEditedByDeviceId) > 0;
+    }
+}
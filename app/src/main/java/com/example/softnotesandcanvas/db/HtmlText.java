@@ -0,0 +1,156 @@
+package com.example.softnotesandcanvas.db;
+
+/**
+ * Converts the HTML bodies produced by the text editor into plain text.
+ * This is a small, allocation-light stripper that runs on any thread
+ * (unlike android.text.Html) so it can be used inside DAO transactions
+ * and database migrations.
+ */
+public final class HtmlText {
+
+    private HtmlText() {
+        // Static helpers only
+    }
+
+    /**
+     * Strips tags, decodes common entities and collapses whitespace.
+     *
+     * @param html The HTML body of a note. May be null.
+     * @return The plain text, or an empty string if html was null.
+     */
+    public static String toPlainText(String html) {
+        if (html == null || html.isEmpty()) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(html.length());
+        int i = 0;
+        int n = html.length();
+        while (i < n) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int close = html.indexOf('>', i);
+                if (close < 0) {
+                    break;
+                }
+                // Block-level tags separate words, inline tags do not
+                if (isBlockTag(html, i + 1, close)) {
+                    appendSpace(out);
+                }
+                i = close + 1;
+            } else if (c == '&') {
+                int semi = html.indexOf(';', i);
+                if (semi > i && semi - i <= 10) {
+                    int decoded = decodeEntity(html, i + 1, semi);
+                    if (decoded >= 0) {
+                        if (Character.isWhitespace(decoded) || decoded == 0xA0) {
+                            appendSpace(out);
+                        } else {
+                            out.appendCodePoint(decoded);
+                        }
+                        i = semi + 1;
+                        continue;
+                    }
+                }
+                out.append(c);
+                i++;
+            } else {
+                if (Character.isWhitespace(c)) {
+                    appendSpace(out);
+                } else {
+                    out.append(c);
+                }
+                i++;
+            }
+        }
+        int end = out.length();
+        if (end > 0 && out.charAt(end - 1) == ' ') {
+            out.setLength(end - 1);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the first maxLength characters of the plain text, for list previews.
+     *
+     * @param plainText Text already passed through {@link #toPlainText(String)}.
+     * @param maxLength The maximum preview length.
+     * @return The preview, ending in an ellipsis if it was cut short.
+     */
+    public static String preview(String plainText, int maxLength) {
+        if (plainText == null || plainText.length() <= maxLength) {
+            return plainText;
+        }
+        int end = maxLength;
+        // Don't split a surrogate pair
+        if (Character.isHighSurrogate(plainText.charAt(end - 1))) {
+            end--;
+        }
+        return plainText.substring(0, end) + "…";
+    }
+
+    private static void appendSpace(StringBuilder out) {
+        int len = out.length();
+        if (len > 0 && out.charAt(len - 1) != ' ') {
+            out.append(' ');
+        }
+    }
+
+    private static boolean isBlockTag(String html, int start, int end) {
+        if (start < end && html.charAt(start) == '/') {
+            start++;
+        }
+        int nameEnd = start;
+        while (nameEnd < end && Character.isLetterOrDigit(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        String name = html.substring(start, nameEnd).toLowerCase();
+        switch (name) {
+            case "p":
+            case "br":
+            case "div":
+            case "li":
+            case "ul":
+            case "ol":
+            case "h1":
+            case "h2":
+            case "h3":
+            case "h4":
+            case "h5":
+            case "h6":
+            case "blockquote":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int decodeEntity(String html, int start, int end) {
+        String name = html.substring(start, end);
+        if (name.startsWith("#")) {
+            try {
+                if (name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')) {
+                    return Integer.parseInt(name.substring(2), 16);
+                }
+                return Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        switch (name) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return 0xA0;
+            default:
+                return -1;
+        }
+    }
+}
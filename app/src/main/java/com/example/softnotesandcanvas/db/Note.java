@@ -6,25 +6,61 @@ package com.example.softnotesandcanvas.db;
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import androidx.room.TypeConverters;
 
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.Exclude;
+import com.google.firebase.firestore.PropertyName;
 import com.google.firebase.firestore.ServerTimestamp;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
-import java.util.UUID;
 
-@Entity(tableName = "notes")
+/**
+ * A text or canvas note.
+ * <p>
+ * Locally the row is keyed by an integer rowid ({@link #localId}); the
+ * time-ordered string {@link #id} is the external id shared with Firestore
+ * and is backed by a unique index. Timestamps are stored as epoch millis and
+ * exposed to Firestore as Timestamps through the annotated accessors below,
+ * so documents keep their original shape.
+ * <p>
+ * Sync bookkeeping lives in {@link NoteSyncState}, not here.
+ */
+@Entity(tableName = "notes", indices = {
+        @Index(value = "id", unique = true),
+        // Note lists and keyset pages: equality on the flags, then ordered by (updatedAt, id)
+        @Index(value = {"userId", "is_trashed", "isDeleted", "updatedAt", "id"}),
+        // The same lists filtered by note type
+        @Index(value = {"userId", "is_trashed", "isDeleted", "type", "updatedAt", "id"}),
+        // References to canvas blobs, see CanvasBlobStore
+        @Index(value = "canvas_hash")
+})
 @TypeConverters({Converters.class})
 public class Note implements Serializable {
 
     // --- ADD THESE CONSTANTS ---
     public static final String TYPE_TEXT = "TEXT";
     public static final String TYPE_CANVAS = "CANVAS";
+    /** Integer codes stored in the type column, see NoteTypeConverter. */
+    public static final int TYPE_CODE_TEXT = 0;
+    public static final int TYPE_CODE_CANVAS = 1;
+    /** Length of the plain-text {@link #preview} shown in note lists. */
+    public static final int PREVIEW_LENGTH = 200;
+    /** Content longer than this many chars is stored in note_bodies, see {@link NoteBody}. */
+    public static final int INLINE_CONTENT_LIMIT = 16 * 1024;
     // ---------------------------
 
-    @PrimaryKey
+    /** Local rowid. Never synced; resolved from {@link #id} on every write. */
+    @Exclude
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "local_id")
+    public long localId;
+
     @NonNull
     @ColumnInfo(name = "id")
     public String id;
@@ -35,11 +71,35 @@ public class Note implements Serializable {
     @ColumnInfo(name = "title")
     public String title;
 
+    /**
+     * The HTML body. Null for CANVAS notes. Bodies over INLINE_CONTENT_LIMIT
+     * live in note_bodies; reads through NoteDao.getNoteById and
+     * NoteRepository.getNote fill this in, batch reads of rows leave it null.
+     */
     @ColumnInfo(name = "content")
-    public String content; // Will be null for CANVAS notes
+    public String content;
+
+    /** Length of {@link #content} in chars, kept even when the body is out of row. */
+    @Exclude
+    @ColumnInfo(name = "content_length", defaultValue = "0")
+    public int contentLength;
+
+    /** SHA-256 of {@link #content}; null for rows not written since it was added. */
+    @Exclude
+    @ColumnInfo(name = "content_hash")
+    public String contentHash;
+
+    /**
+     * First PREVIEW_LENGTH characters of the content as plain text.
+     * Derived locally on every write, so it is never synced.
+     */
+    @Exclude
+    @ColumnInfo(name = "preview")
+    public String preview;
 
     // --- ADD THESE NEW FIELDS ---
-    @ColumnInfo(name = "type", defaultValue = TYPE_TEXT)
+    @TypeConverters(NoteTypeConverter.class)
+    @ColumnInfo(name = "type", defaultValue = "" + TYPE_CODE_TEXT)
     @NonNull
     public String type;
 
@@ -47,26 +107,79 @@ public class Note implements Serializable {
     public String canvasImagePath; // Will be null for TEXT notes
     // --------------------------
 
-    @ServerTimestamp
+    /**
+     * SHA-256 of the drawing's PNG in the {@link CanvasBlobStore}; null for
+     * TEXT notes and for canvases saved before the blob store, which only
+     * have a canvasImagePath on the device that drew them.
+     */
+    @ColumnInfo(name = "canvas_hash")
+    public String canvasHash;
+
+    /** Creation time in epoch millis; 0 until the server timestamp is known. */
+    @Exclude
     @ColumnInfo(name = "createdAt")
-    public Date createdAt;
+    public long createdAt;
 
-    @ServerTimestamp
+    /**
+     * Last update time in epoch millis, from the editing device's clock;
+     * 0 until the server timestamp is known. For display and sorting only:
+     * sync follows {@link #syncedAt}.
+     */
+    @Exclude
     @ColumnInfo(name = "updatedAt")
-    public Date updatedAt;
+    public long updatedAt;
+
+    /**
+     * When the server stored the document's last write, in epoch micros;
+     * 0 if not read from the server, or still pending. Every write asks the
+     * server for a new one, so documents are ordered by when they reached
+     * it, whatever the writer's clock said; SyncCursor follows this order.
+     * Micros, the precision Firestore keeps, so a position is exact. Never
+     * stored here.
+     */
+    @Exclude
+    @Ignore
+    public long syncedAt;
 
     @ColumnInfo(name = "lastEditedByDeviceId")
     public String lastEditedByDeviceId;
 
+    /**
+     * Hybrid logical clock stamp of the last edit, see {@link Hlc}. Orders
+     * edits for conflict detection; updatedAt is for display and sorting.
+     */
+    @ColumnInfo(name = "hlc", defaultValue = "0")
+    public long hlc;
+
     @ColumnInfo(name = "isDeleted")
     public boolean isDeleted;
 
-    @ColumnInfo(name = "syncStatus")
-    public SyncStatus syncStatus;
-
     @ColumnInfo(name = "is_trashed", defaultValue = "0")
     public boolean isTrashed = false;
 
+    /**
+     * Stamp of the text checkpoint the content derives from, 0 if none; see
+     * NoteText. Set by NoteCodec from the document and by NoteWithBody from
+     * the local CRDT; never stored in this table.
+     */
+    @Exclude
+    @Ignore
+    public long textBase;
+
+    /** ParagraphCrdt deltas appended to the document since textBase, or null. Never stored here. */
+    @Exclude
+    @Ignore
+    public List<String> textOps;
+
+    /**
+     * The local CRDT state the content was loaded with, or null. Handed back
+     * on save, so an edit made while remote changes were merged is merged
+     * with them instead of overwriting them. Never stored here.
+     */
+    @Exclude
+    @Ignore
+    public String textState;
+
     /**
      * Default constructor for Room and Firestore deserialization.
      */
@@ -80,7 +193,7 @@ public class Note implements Serializable {
 
     /**
      * Convenience constructor for creating a new, unsaved TEXT note.
-     * Generates a new UUID, sets timestamps, and defaults states.
+     * Generates a new time-ordered id, sets timestamps, and defaults states.
      *
      * @param userId The ID of the user creating the note.
      * @param title The title of the note.
@@ -88,15 +201,14 @@ public class Note implements Serializable {
      * @param deviceId The unique ID of the device creating the note.
      */
     public Note(@NonNull String userId, String title, String content, @NonNull String deviceId) {
-        this.id = UUID.randomUUID().toString();
+        this.id = NoteIds.newId();
         this.userId = userId;
         this.title = title;
         this.content = content;
-        this.createdAt = new Date();
+        this.createdAt = System.currentTimeMillis();
         this.updatedAt = this.createdAt;
         this.lastEditedByDeviceId = deviceId;
         this.isDeleted = false;
-        this.syncStatus = SyncStatus.SYNCING;
 
         // --- ADD THESE LINES ---
         // This constructor is for TEXT notes
@@ -105,6 +217,42 @@ public class Note implements Serializable {
         // ---------------------
     }
 
+    // --- Firestore timestamp mapping ---
+
+    @ServerTimestamp
+    @PropertyName("createdAt")
+    public Date getCreatedAtTimestamp() {
+        return createdAt == 0 ? null : new Date(createdAt);
+    }
+
+    @PropertyName("createdAt")
+    public void setCreatedAtTimestamp(Date date) {
+        createdAt = date == null ? 0 : date.getTime();
+    }
+
+    @ServerTimestamp
+    @PropertyName("updatedAt")
+    public Date getUpdatedAtTimestamp() {
+        return updatedAt == 0 ? null : new Date(updatedAt);
+    }
+
+    @PropertyName("updatedAt")
+    public void setUpdatedAtTimestamp(Date date) {
+        updatedAt = date == null ? 0 : date.getTime();
+    }
+
+    /** Always null, so every write of the note gets a new server timestamp. */
+    @ServerTimestamp
+    @PropertyName("syncedAt")
+    public Timestamp getSyncedAtTimestamp() {
+        return null;
+    }
+
+    @PropertyName("syncedAt")
+    public void setSyncedAtTimestamp(Timestamp timestamp) {
+        syncedAt = NoteCodec.micros(timestamp);
+    }
+
     // --- Overriding equals and hashCode ---
 
     @Override
@@ -114,24 +262,25 @@ public class Note implements Serializable {
         Note note = (Note) o;
         return isDeleted == note.isDeleted &&
                 isTrashed == note.isTrashed && // Added isTrashed
+                createdAt == note.createdAt &&
+                updatedAt == note.updatedAt &&
+                hlc == note.hlc &&
                 id.equals(note.id) &&
                 Objects.equals(userId, note.userId) &&
                 Objects.equals(title, note.title) &&
                 Objects.equals(content, note.content) &&
-                Objects.equals(createdAt, note.createdAt) &&
-                Objects.equals(updatedAt, note.updatedAt) &&
                 Objects.equals(lastEditedByDeviceId, note.lastEditedByDeviceId) &&
-                syncStatus == note.syncStatus &&
                 // --- ADD THESE LINES ---
                 Objects.equals(type, note.type) &&
-                Objects.equals(canvasImagePath, note.canvasImagePath);
+                Objects.equals(canvasImagePath, note.canvasImagePath) &&
+                Objects.equals(canvasHash, note.canvasHash);
         // ---------------------
     }
 
     @Override
     public int hashCode() {
         // --- UPDATE THIS LINE ---
-        return Objects.hash(id, userId, title, content, type, canvasImagePath, createdAt, updatedAt, lastEditedByDeviceId, isDeleted, syncStatus, isTrashed);
+        return Objects.hash(id, userId, title, content, type, canvasImagePath, canvasHash, createdAt, updatedAt, hlc, lastEditedByDeviceId, isDeleted, isTrashed);
         // ----------------------
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The content of a note too large to keep inline, see
+ * {@link Note#INLINE_CONTENT_LIMIT}. Keeping big bodies out of the notes
+ * row keeps scans, LIKE searches and full-row reads of notes small, and
+ * keeps a single row from overflowing the CursorWindow. The notes row
+ * keeps the length, hash and preview; the body is loaded only when a
+ * full Note is read (the editors and sync).
+ */
+@Entity(tableName = "note_bodies")
+public class NoteBody {
+
+    @NonNull
+    @PrimaryKey
+    @ColumnInfo(name = "note_id")
+    public String noteId;
+
+    @ColumnInfo(name = "content")
+    public String content;
+
+    public NoteBody(@NonNull String noteId, String content) {
+        this.noteId = noteId;
+        this.content = content;
+    }
+
+    /**
+     * @return The hex SHA-256 of the content, or null for null content.
+     */
+    public static String hash(String content) {
+        if (content == null) {
+            return null;
+        }
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Lowercase hex of a digest. */
+    static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Creates the trigger that drops a note's body when its row is deleted.
+     * Called from onCreate for fresh installs and from the migrations.
+     * REPLACE does not fire it, so rewriting a note keeps its body row.
+     *
+     * @param db The database being created or migrated.
+     */
+    static void createTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS note_bodies_after_delete AFTER DELETE ON notes BEGIN "
+                + "DELETE FROM note_bodies WHERE note_id = OLD.id; END");
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.FieldValue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps a {@link Note} to and from its Firestore document without
+ * reflection. Firestore's own mapper (toObject(), set(note)) introspects
+ * Note's fields and annotations on every call; this writes and reads the
+ * same document shape field by field.
+ * <p>
+ * The shape is the one the annotations on Note define: every synced public
+ * field under its own name, and createdAt/updatedAt as timestamps, written
+ * as server timestamps while still 0. syncedAt is a server timestamp on
+ * every write, see Note#syncedAt. Keep the two in step when Note gains a
+ * synced field; NoteCodecTest compares them.
+ * <p>
+ * Text notes also carry their paragraph log (see NoteText), which Note's
+ * annotations leave out: textBase, the stamp of the checkpoint in content,
+ * and textOps, the deltas appended since. A write of the checkpoint resets
+ * the log.
+ */
+public final class NoteCodec {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_USER_ID = "userId";
+    public static final String FIELD_TITLE = "title";
+    public static final String FIELD_CONTENT = "content";
+    public static final String FIELD_TYPE = "type";
+    public static final String FIELD_CANVAS_IMAGE_PATH = "canvasImagePath";
+    public static final String FIELD_CANVAS_HASH = "canvasHash";
+    public static final String FIELD_CREATED_AT = "createdAt";
+    public static final String FIELD_UPDATED_AT = "updatedAt";
+    public static final String FIELD_SYNCED_AT = "syncedAt";
+    public static final String FIELD_HLC = "hlc";
+    public static final String FIELD_LAST_EDITED_BY_DEVICE_ID = "lastEditedByDeviceId";
+    public static final String FIELD_IS_DELETED = "isDeleted";
+    public static final String FIELD_IS_TRASHED = "isTrashed";
+    public static final String FIELD_TEXT_BASE = "textBase";
+    public static final String FIELD_TEXT_OPS = "textOps";
+
+    private static final int FIELD_COUNT = 16;
+
+    private NoteCodec() {
+        // Static helpers only
+    }
+
+    /** The document for a full set() of the note. */
+    @NonNull
+    public static Map<String, Object> encode(@NonNull Note note) {
+        // Sized so the map never rehashes
+        Map<String, Object> doc = new HashMap<>(FIELD_COUNT * 4 / 3 + 1);
+        doc.put(FIELD_ID, note.id);
+        doc.put(FIELD_USER_ID, note.userId);
+        doc.put(FIELD_TITLE, note.title);
+        doc.put(FIELD_CONTENT, note.content);
+        doc.put(FIELD_TYPE, note.type);
+        doc.put(FIELD_CANVAS_IMAGE_PATH, note.canvasImagePath);
+        doc.put(FIELD_CANVAS_HASH, note.canvasHash);
+        doc.put(FIELD_CREATED_AT, timestamp(note.createdAt));
+        doc.put(FIELD_UPDATED_AT, timestamp(note.updatedAt));
+        doc.put(FIELD_SYNCED_AT, FieldValue.serverTimestamp());
+        doc.put(FIELD_HLC, note.hlc);
+        doc.put(FIELD_LAST_EDITED_BY_DEVICE_ID, note.lastEditedByDeviceId);
+        doc.put(FIELD_IS_DELETED, note.isDeleted);
+        doc.put(FIELD_IS_TRASHED, note.isTrashed);
+        if (note.textBase != 0) {
+            putCheckpoint(doc, note);
+        }
+        return doc;
+    }
+
+    /**
+     * Reads a document, e.g. DocumentSnapshot.getData().
+     *
+     * @param documentId Used as the note id, whatever the id field says.
+     */
+    @NonNull
+    public static Note decode(@NonNull String documentId, @NonNull Map<String, Object> doc) {
+        Note note = new Note();
+        note.id = documentId;
+        note.userId = (String) doc.get(FIELD_USER_ID);
+        note.title = (String) doc.get(FIELD_TITLE);
+        note.content = (String) doc.get(FIELD_CONTENT);
+        String type = (String) doc.get(FIELD_TYPE);
+        if (type != null) {
+            // Room needs a type; old documents without one are TEXT
+            note.type = type;
+        }
+        note.canvasImagePath = (String) doc.get(FIELD_CANVAS_IMAGE_PATH);
+        note.canvasHash = (String) doc.get(FIELD_CANVAS_HASH);
+        note.createdAt = millis(doc.get(FIELD_CREATED_AT));
+        note.updatedAt = millis(doc.get(FIELD_UPDATED_AT));
+        note.syncedAt = micros(doc.get(FIELD_SYNCED_AT));
+        Object hlc = doc.get(FIELD_HLC);
+        // Documents written before HLCs are ordered by their updatedAt
+        note.hlc = hlc instanceof Number ? ((Number) hlc).longValue() : Hlc.fromMillis(note.updatedAt);
+        note.lastEditedByDeviceId = (String) doc.get(FIELD_LAST_EDITED_BY_DEVICE_ID);
+        note.isDeleted = Boolean.TRUE.equals(doc.get(FIELD_IS_DELETED));
+        note.isTrashed = Boolean.TRUE.equals(doc.get(FIELD_IS_TRASHED));
+        Object textBase = doc.get(FIELD_TEXT_BASE);
+        if (textBase instanceof Number) {
+            note.textBase = ((Number) textBase).longValue();
+            note.textOps = strings(doc.get(FIELD_TEXT_OPS));
+        }
+        return note;
+    }
+
+    /** Adds the fields that make the note's content a new checkpoint, with an empty log. */
+    static void putCheckpoint(Map<String, Object> doc, Note note) {
+        doc.put(FIELD_TEXT_BASE, note.textBase);
+        doc.put(FIELD_TEXT_OPS, new ArrayList<String>());
+    }
+
+    private static List<String> strings(Object value) {
+        List<String> strings = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                if (item instanceof String) {
+                    strings.add((String) item);
+                }
+            }
+        }
+        return strings;
+    }
+
+    /** A timestamp value as Note's @ServerTimestamp getters produce it. */
+    private static Object timestamp(long millis) {
+        return millis == 0 ? FieldValue.serverTimestamp() : new Date(millis);
+    }
+
+    /** Epoch micros of a Timestamp or Date; 0 for null (a pending server timestamp). */
+    public static long micros(Object value) {
+        if (value instanceof Timestamp) {
+            Timestamp timestamp = (Timestamp) value;
+            return timestamp.getSeconds() * 1_000_000 + timestamp.getNanoseconds() / 1_000;
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime() * 1_000;
+        }
+        return 0;
+    }
+
+    /** The Timestamp of epoch micros, e.g. to start a query after a SyncCursor. */
+    public static Timestamp timestampOfMicros(long micros) {
+        return new Timestamp(Math.floorDiv(micros, 1_000_000), (int) Math.floorMod(micros, 1_000_000) * 1_000);
+    }
+
+    /** Epoch millis of a Timestamp or Date; 0 for null (a pending server timestamp). */
+    private static long millis(Object value) {
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toDate().getTime();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return 0;
+    }
+}
@@ -5,9 +5,16 @@ import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.RawQuery;
+import androidx.room.Transaction;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Data Access Object (DAO) for the Note entity.
@@ -16,49 +23,336 @@ import java.util.List;
 @Dao
 public interface NoteDao {
 
+    /** Filter values for NoteQuery and the trigram search queries. */
+    int FILTER_ALL = 0;
+    int FILTER_TEXT = 1;
+    int FILTER_CANVAS = 2;
+
+    /**
+     * Matches the :filter argument against the indexed type column.
+     * (:filter = FILTER_CANVAS) is 1 for canvas and 0 for text, which are
+     * Note.TYPE_CODE_CANVAS and TYPE_CODE_TEXT.
+     */
+    String TYPE_FILTER = "(:filter = " + FILTER_ALL + " OR notes.type = (:filter = " + FILTER_CANVAS + "))";
+
+    /**
+     * Matches :query as a substring of the title or the body, looking in
+     * note_bodies only for notes whose body is stored out of row.
+     */
+    String CONTENT_LIKE = "(title LIKE '%' || :query || '%' OR content LIKE '%' || :query || '%' "
+            + "OR (content IS NULL AND content_length > " + Note.INLINE_CONTENT_LIMIT + " AND EXISTS ("
+            + "SELECT 1 FROM note_bodies WHERE note_bodies.note_id = notes.id "
+            + "AND note_bodies.content LIKE '%' || :query || '%')))";
+
+    /**
+     * Bytes of drawing note :noteId still has to upload: the manifest and
+     * tiles of its canvas that the server does not have yet (see
+     * CanvasBlob#remote), less what a resumed upload already sent.
+     */
+    String UNSENT_CANVAS_BYTES = "(SELECT IFNULL(SUM(canvas_blobs.size - canvas_blobs.uploaded_bytes), 0) "
+            + "FROM canvas_blobs WHERE canvas_blobs.remote = 0 AND canvas_blobs.hash IN ("
+            + "SELECT canvas_hash FROM notes WHERE notes.id = :noteId AND isDeleted = 0 "
+            + "UNION ALL SELECT canvas_tiles.tile_hash FROM notes "
+            + "JOIN canvas_tiles ON canvas_tiles.canvas_hash = notes.canvas_hash "
+            + "WHERE notes.id = :noteId AND isDeleted = 0))";
+
+    /**
+     * Matches outbox entries queued with between :minBytes and :maxBytes
+     * of drawing to upload: one upload lane, see UploadScheduler.Lane.
+     * It reads the bytes stored on the entry, not what is left to send,
+     * so an entry stays in its lane while a drain uploads it.
+     */
+    String IN_UPLOAD_LANE = "(canvas_bytes BETWEEN :minBytes AND :maxBytes)";
+
+    /** Stay well below SQLite's 999 bound-variable limit on older devices. */
+    int MAX_BATCH_VARIABLES = 500;
+
     /**
-     * Inserts a new note or replaces an existing one.
+     * Inserts a new note or replaces an existing one (matched by its external
+     * id), and re-indexes it for search in the same transaction. Content over
+     * Note.INLINE_CONTENT_LIMIT is written to note_bodies instead of the row.
      */
+    @Transaction
+    default void insertOrUpdateNote(Note note) {
+        // REPLACE deletes the old row without firing delete triggers,
+        // so drop the old index row explicitly.
+        String content = note.content;
+        String plainText = HtmlText.toPlainText(content);
+        note.preview = HtmlText.preview(plainText, Note.PREVIEW_LENGTH);
+        note.contentLength = content != null ? content.length() : 0;
+        note.contentHash = NoteBody.hash(content);
+        boolean outOfRow = note.contentLength > Note.INLINE_CONTENT_LIMIT;
+        // An unchanged big body (e.g. a title-only edit) is not rewritten
+        boolean bodyUnchanged = outOfRow && note.contentHash.equals(getOutOfRowContentHash(note.id));
+        // Reuse the existing rowid so the row (and its index entries) keep their key;
+        // remote copies and new notes arrive without one.
+        Long existing = getLocalId(note.id);
+        note.localId = existing != null ? existing : 0;
+        deleteSearchIndex(note.id);
+        long rowId;
+        if (outOfRow) {
+            note.content = null;
+            try {
+                rowId = insertNoteRow(note);
+            } finally {
+                note.content = content;
+            }
+            if (!bodyUnchanged) {
+                insertBody(new NoteBody(note.id, content));
+            }
+        } else {
+            rowId = insertNoteRow(note);
+            deleteBody(note.id);
+        }
+        insertSearchIndex(rowId, note.title, plainText);
+        updateTrigramIndex(note);
+    }
+
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insertOrUpdateNote(Note note);
+    void insertBody(NoteBody body);
+
+    @Query("DELETE FROM note_bodies WHERE note_id = :noteId")
+    void deleteBody(String noteId);
+
+    /** The content hash of a note whose body is stored out of row, else null. */
+    @Query("SELECT notes.content_hash FROM notes JOIN note_bodies ON note_bodies.note_id = notes.id "
+            + "WHERE notes.id = :noteId")
+    String getOutOfRowContentHash(String noteId);
+
+    /**
+     * Saves a local edit and marks the note as waiting for upload.
+     */
+    @Transaction
+    default void saveLocalNote(Note note) {
+        int changed = NoteFields.changed(getNoteRow(note.id), note);
+        insertOrUpdateNote(note);
+        markPending(note.id, changed);
+    }
+
+    /**
+     * Saves a local edit of a note, recording content changes of a synced
+     * text note in its CRDT (see NoteText) so the upload sends only the
+     * paragraphs that changed. If remote changes were merged since the note
+     * was loaded (its textState is stale), the edit is replayed on the state
+     * it was made on and merged in, so those changes are kept; the note's
+     * content becomes the merged text. The note's hlc is stamped last, so it
+     * covers every edit in the CRDT.
+     *
+     * @param deviceId This device.
+     * @param stamps Issues the edit's HLC stamps.
+     */
+    @Transaction
+    default void saveLocalEdit(Note note, String deviceId, ParagraphCrdt.Stamps stamps) {
+        NoteText text = Note.TYPE_TEXT.equals(note.type) ? getNoteText(note.id) : null;
+        if (text != null) {
+            ParagraphCrdt crdt = ParagraphCrdt.decode(text.state);
+            if (note.textState != null && note.textBase == text.base && !note.textState.equals(text.state)) {
+                ParagraphCrdt opened = ParagraphCrdt.decode(note.textState);
+                long loaded = opened.maxStamp();
+                opened.edit(note.content, deviceId, stamps);
+                String delta = opened.delta(deviceId, loaded);
+                if (delta != null) {
+                    crdt.merge(Collections.singletonList(delta));
+                }
+                note.content = crdt.render();
+            } else {
+                crdt.edit(note.content, deviceId, stamps);
+            }
+            text.state = crdt.encode();
+            upsertNoteText(text);
+            note.textBase = text.base;
+            note.textState = text.state;
+        }
+        note.hlc = stamps.next();
+        saveLocalNote(note);
+    }
+
+    /** The notes row alone; content is null if the body is stored out of row. */
+    @Query("SELECT * FROM notes WHERE id = :noteId")
+    Note getNoteRow(String noteId);
+
+    /**
+     * Saves a note received from the server; the stored version is then
+     * known to be on the server. Its CRDT no longer matches the content and
+     * is dropped; callers that merged one store it afterwards.
+     */
+    @Transaction
+    default void saveRemoteNote(Note note) {
+        insertOrUpdateNote(note);
+        deleteNoteText(note.id);
+        ensureSyncState(note.id);
+        markSynced(note.id, note.hlc);
+    }
+
+    /**
+     * Applies one Firestore snapshot or pulled page as a single transaction,
+     * so observers see one invalidation per batch instead of one per
+     * document. The pull cursor moves in the same transaction, so it never
+     * gets ahead of what was stored.
+     *
+     * @param accepted Remote notes to store as SYNCED.
+     * @param merged Local notes with remote text merged in; they stay pending.
+     * @param texts The CRDTs of accepted and merged text notes.
+     * @param conflictIds Ids of notes whose remote change conflicts with a local edit.
+     * @param seen The newest document in the batch, or null to leave the cursor alone.
+     */
+    @Transaction
+    default void applyRemoteChanges(List<Note> accepted, List<Note> merged, List<NoteText> texts,
+                                    List<String> conflictIds, SyncCursor seen) {
+        for (Note note : accepted) {
+            saveRemoteNote(note);
+        }
+        for (Note note : merged) {
+            insertOrUpdateNote(note);
+        }
+        for (NoteText text : texts) {
+            upsertNoteText(text);
+        }
+        for (String noteId : conflictIds) {
+            updateSyncStatus(noteId, SyncStatus.CONFLICT);
+            // Resolved by a whole-note upload, which writes a new checkpoint
+            deleteNoteText(noteId);
+        }
+        if (seen != null && seen.isAfter(getSyncCursor(seen.userId))) {
+            setSyncCursor(seen);
+        }
+    }
 
     /**
-     * Gets all non-trashed, non-deleted notes for a specific user.
-     * This is the main query for the MainActivity list.
+     * Loads the given notes in batches that stay under the bound-variable limit.
+     * Out-of-row bodies are not loaded; content is null for those notes.
      *
-     * @param userId The user's Firebase UID.
-     * @return A LiveData list of active notes for that user.
+     * @return The notes that exist locally, keyed by id.
      */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 ORDER BY updatedAt DESC")
-    LiveData<List<Note>> getActiveNotesForUser(String userId);
+    default Map<String, Note> findNotesByIds(List<String> noteIds) {
+        Map<String, Note> notes = new HashMap<>();
+        for (int i = 0; i < noteIds.size(); i += MAX_BATCH_VARIABLES) {
+            for (Note note : getNotesByIds(noteIds.subList(i, Math.min(noteIds.size(), i + MAX_BATCH_VARIABLES)))) {
+                notes.put(note.id, note);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Loads the sync status of the given notes in batches, see {@link #findNotesByIds}.
+     *
+     * @return The status of each note that has a sync state row, keyed by id.
+     */
+    default Map<String, SyncStatus> findSyncStatusesByIds(List<String> noteIds) {
+        Map<String, SyncStatus> statuses = new HashMap<>();
+        for (int i = 0; i < noteIds.size(); i += MAX_BATCH_VARIABLES) {
+            for (NoteSyncState state : getSyncStatesByIds(noteIds.subList(i, Math.min(noteIds.size(), i + MAX_BATCH_VARIABLES)))) {
+                statuses.put(state.noteId, state.status);
+            }
+        }
+        return statuses;
+    }
+
+    @Query("SELECT * FROM notes WHERE id IN (:noteIds)")
+    List<Note> getNotesByIds(List<String> noteIds);
+
+    @Query("SELECT * FROM note_sync_state WHERE note_id IN (:noteIds)")
+    List<NoteSyncState> getSyncStatesByIds(List<String> noteIds);
+
+    /**
+     * Brings the note's trigram postings up to date, touching only the
+     * trigrams that were added or removed since the last write.
+     * Trashed and deleted notes have no postings.
+     */
+    default void updateTrigramIndex(Note note) {
+        if (note.isTrashed || note.isDeleted) {
+            clearTrigrams(note.id);
+            return;
+        }
+        Set<String> wanted = Trigrams.ofNote(note.title, note.content);
+        List<String> stale = new ArrayList<>();
+        for (String gram : getTrigrams(note.id)) {
+            if (!wanted.remove(gram)) {
+                stale.add(gram);
+            }
+        }
+        for (int i = 0; i < stale.size(); i += MAX_BATCH_VARIABLES) {
+            deleteTrigrams(note.id, stale.subList(i, Math.min(stale.size(), i + MAX_BATCH_VARIABLES)));
+        }
+        if (!wanted.isEmpty()) {
+            List<NoteTrigram> postings = new ArrayList<>(wanted.size());
+            for (String gram : wanted) {
+                postings.add(new NoteTrigram(gram, note.id));
+            }
+            insertTrigrams(postings);
+        }
+    }
+
+    @Query("SELECT trigram FROM note_trigrams WHERE note_id = :noteId")
+    List<String> getTrigrams(String noteId);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertTrigrams(List<NoteTrigram> postings);
+
+    @Query("DELETE FROM note_trigrams WHERE note_id = :noteId AND trigram IN (:grams)")
+    void deleteTrigrams(String noteId, List<String> grams);
+
+    @Query("DELETE FROM note_trigrams WHERE note_id = :noteId")
+    void clearTrigrams(String noteId);
 
     /**
-     * ✅ UPDATED: Gets all trashed, non-deleted notes for a specific user.
-     * This query is for the TrashActivity.
+     * Raw row insert. Use {@link #insertOrUpdateNote(Note)} instead so the
+     * search index stays in sync.
      *
-     * @param userId The user's Firebase UID.
-     * @return A LiveData list of trashed notes for that user.
+     * @return The rowid of the inserted row.
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    long insertNoteRow(Note note);
+
+    @Query("SELECT local_id FROM notes WHERE id = :noteId")
+    Long getLocalId(String noteId);
+
+    @Query("DELETE FROM notes_fts WHERE rowid IN (SELECT local_id FROM notes WHERE id = :noteId)")
+    void deleteSearchIndex(String noteId);
+
+    @Query("INSERT INTO notes_fts (rowid, title, body) VALUES (:rowId, :title, :body)")
+    void insertSearchIndex(long rowId, String title, String body);
+
+    /**
+     * Observes a bounded note list described by a {@link NoteQuery}:
+     * <code>observeNotes(spec.toQuery())</code>. Search hits carry their
+     * ranking columns; plain lists leave them null.
+     */
+    @RawQuery(observedEntities = {Note.class, NoteFts.class})
+    LiveData<List<NoteSearchResult>> observeNotes(SupportSQLiteQuery query);
+
+    /**
+     * Loads one keyset page of a note list, see NoteKeysetPagingSource
+     * and {@link NoteQuery#toPageQuery}.
      */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 1 AND isDeleted = 0 ORDER BY updatedAt DESC")
-    LiveData<List<Note>> getTrashedNotesForUser(String userId);
+    @RawQuery
+    List<NoteListItem> getNotesPage(SupportSQLiteQuery query);
 
     /**
-     * Gets a single note by its ID. Used by the editor.
+     * Observes a single note, content included. Used by the editor through
+     * NoteRepository.getNote, which unwraps it with NoteWithBody.toNote.
      *
      * @param noteId The ID of the note to retrieve.
-     * @return A LiveData-wrapped Note object.
      */
+    @Transaction
+    @Query("SELECT * FROM notes WHERE id = :noteId")
+    LiveData<NoteWithBody> observeNoteWithBody(String noteId);
+
+    @Transaction
     @Query("SELECT * FROM notes WHERE id = :noteId")
-    LiveData<Note> getNoteByIdLiveData(String noteId);
+    NoteWithBody getNoteWithBody(String noteId);
 
     /**
-     * Gets a single note by its ID (synchronous version).
+     * Gets a single note by its ID, content included (synchronous version).
      *
      * @param noteId The ID of the note to retrieve.
-     * @return The Note object.
+     * @return The Note object, or null.
      */
-    @Query("SELECT * FROM notes WHERE id = :noteId")
-    Note getNoteById(String noteId);
+    @Transaction
+    default Note getNoteById(String noteId) {
+        return NoteWithBody.noteOf(getNoteWithBody(noteId));
+    }
 
     /**
      * ✅ NEW: Restores a note from the trash by setting 'is_trashed' flag to false.
@@ -66,10 +360,21 @@ public interface NoteDao {
      *
      * @param noteId The ID of the note to restore.
      * @param timestamp The time of the restoration.
+     * @param hlc The HLC stamp of the restoration.
      * @param deviceId The ID of the device performing the action.
      */
-    @Query("UPDATE notes SET is_trashed = 0, updatedAt = :timestamp, lastEditedByDeviceId = :deviceId, syncStatus = 'SYNCING' WHERE id = :noteId")
-    void restoreNote(String noteId, Date timestamp, String deviceId);
+    @Transaction
+    default void restoreNote(String noteId, long timestamp, long hlc, String deviceId) {
+        markRestored(noteId, timestamp, hlc, deviceId);
+        markPending(noteId, NoteFields.TRASHED, true);
+        Note note = getNoteById(noteId);
+        if (note != null) {
+            updateTrigramIndex(note);
+        }
+    }
+
+    @Query("UPDATE notes SET is_trashed = 0, updatedAt = :timestamp, hlc = :hlc, lastEditedByDeviceId = :deviceId WHERE id = :noteId")
+    void markRestored(String noteId, long timestamp, long hlc, String deviceId);
 
     /**
      * ✅ NEW: Marks a note as permanently deleted.
@@ -78,10 +383,18 @@ public interface NoteDao {
      *
      * @param noteId The ID of the note to mark as deleted.
      * @param timestamp The time of the deletion.
+     * @param hlc The HLC stamp of the deletion.
      * @param deviceId The ID of the device performing the action.
      */
-    @Query("UPDATE notes SET isDeleted = 1, updatedAt = :timestamp, lastEditedByDeviceId = :deviceId, syncStatus = 'SYNCING' WHERE id = :noteId")
-    void markAsDeleted(String noteId, Date timestamp, String deviceId);
+    @Transaction
+    default void markAsDeleted(String noteId, long timestamp, long hlc, String deviceId) {
+        markDeleted(noteId, timestamp, hlc, deviceId);
+        markPending(noteId, NoteFields.DELETED, true);
+        clearTrigrams(noteId);
+    }
+
+    @Query("UPDATE notes SET isDeleted = 1, updatedAt = :timestamp, hlc = :hlc, lastEditedByDeviceId = :deviceId WHERE id = :noteId")
+    void markDeleted(String noteId, long timestamp, long hlc, String deviceId);
 
 
     /**
@@ -90,47 +403,428 @@ public interface NoteDao {
      *
      * @param noteId The ID of the note to move to trash.
      * @param timestamp The time of the deletion.
+     * @param hlc The HLC stamp of the deletion.
      * @param deviceId The ID of the device performing the deletion.
      */
-    @Query("UPDATE notes SET is_trashed = 1, updatedAt = :timestamp, lastEditedByDeviceId = :deviceId, syncStatus = 'SYNCING' WHERE id = :noteId")
-    void trashNote(String noteId, Date timestamp, String deviceId);
+    @Transaction
+    default void trashNote(String noteId, long timestamp, long hlc, String deviceId) {
+        markTrashed(noteId, timestamp, hlc, deviceId);
+        markPending(noteId, NoteFields.TRASHED, true);
+        clearTrigrams(noteId);
+    }
+
+    @Query("UPDATE notes SET is_trashed = 1, updatedAt = :timestamp, hlc = :hlc, lastEditedByDeviceId = :deviceId WHERE id = :noteId")
+    void markTrashed(String noteId, long timestamp, long hlc, String deviceId);
+
+    /**
+     * Deletes all notes, their sync state, queued uploads and blob
+     * bookkeeping. Used for "Sign Out", with CanvasBlobStore.clear() for
+     * the blob files.
+     */
+    @Transaction
+    default void nukeTable() {
+        deleteAllNotes();
+        deleteAllSyncStates();
+        deleteAllOutboxEntries();
+        deleteAllSyncCursors();
+        deleteAllNoteTexts();
+        deleteAllCanvasBlobs();
+        deleteAllCanvasTiles();
+    }
+
+    @Query("DELETE FROM notes")
+    void deleteAllNotes();
+
+    // ------------------------------------------------------------
+    // Sync state, kept in note_sync_state so status flips don't
+    // invalidate queries on notes. See NoteSyncState.
+    // ------------------------------------------------------------
+
+    /**
+     * Marks a note as changed locally and queues it in the outbox,
+     * resetting the retry bookkeeping.
+     *
+     * @param fields The NoteFields the change touched.
+     */
+    default void markPending(String noteId, int fields) {
+        markPending(noteId, fields, false);
+    }
+
+    /**
+     * Marks a note as changed locally and queues it in the outbox.
+     *
+     * @param priority True for a user-visible action that should go up
+     *                 straight away, see SyncOutboxEntry#priority.
+     */
+    @Transaction
+    default void markPending(String noteId, int fields, boolean priority) {
+        ensureSyncState(noteId);
+        setPending(noteId);
+        enqueueUpload(noteId, System.currentTimeMillis(), fields, priority);
+    }
+
+    /** Creates a SYNCED state row for the note if it has none. */
+    @Query("INSERT OR IGNORE INTO note_sync_state (note_id, status, attempts, last_synced_version) "
+            + "VALUES (:noteId, " + SyncStatus.CODE_SYNCED + ", 0, 0)")
+    void ensureSyncState(String noteId);
+
+    @Query("UPDATE note_sync_state SET status = " + SyncStatus.CODE_SYNCING + ", attempts = 0, last_error = NULL "
+            + "WHERE note_id = :noteId")
+    void setPending(String noteId);
 
     /**
-     * Updates the sync status of a specific note.
+     * Records that the given version of the note is on the server. The note
+     * only becomes SYNCED if no newer local edit was made in the meantime.
+     *
+     * @param version The HLC stamp of the version that was uploaded or received.
      */
-    @Query("UPDATE notes SET syncStatus = :status WHERE id = :noteId")
-    void updateSyncStatus(String noteId, SyncStatus status);
+    @Query("UPDATE note_sync_state SET last_synced_version = MAX(last_synced_version, :version), "
+            + "attempts = 0, last_error = NULL, "
+            + "status = CASE WHEN :version >= IFNULL((SELECT hlc FROM notes WHERE id = :noteId), 0) "
+            + "THEN " + SyncStatus.CODE_SYNCED + " ELSE status END "
+            + "WHERE note_id = :noteId")
+    void markSynced(String noteId, long version);
 
     /**
-     * Deletes all notes from the table. Used for "Sign Out".
+     * Records a failed upload attempt.
+     *
+     * @param status SYNCING if the upload will be retried, OFFLINE if it was given up.
+     * @param error A short description of the failure.
      */
-    @Query("DELETE FROM notes")
-    void nukeTable();
+    @Query("UPDATE note_sync_state SET status = :status, attempts = attempts + 1, last_error = :error "
+            + "WHERE note_id = :noteId")
+    void recordSyncFailure(String noteId, SyncStatus status, String error);
+
+    /**
+     * Gets the sync status of a note; null means it has no local changes (SYNCED).
+     */
+    @Query("SELECT status FROM note_sync_state WHERE note_id = :noteId")
+    SyncStatus getSyncStatus(String noteId);
+
+    @Query("SELECT * FROM note_sync_state WHERE note_id = :noteId")
+    NoteSyncState getSyncState(String noteId);
+
     /**
-     * ✅ NEW: Searches for notes that match the query in title or content.
-     * Checks against userId and ensures notes are not trashed or deleted.
+     * Observes every note that is not SYNCED, for the sync badges in the lists.
+     * Only writes to note_sync_state re-run this query. SYNCED is the lowest
+     * code, so "> SYNCED" reads a range of the status index.
      */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 AND (title LIKE '%' || :query || '%' OR content LIKE '%' || :query || '%') ORDER BY updatedAt DESC")
-    LiveData<List<Note>> searchNotes(String userId, String query);
+    @Query("SELECT * FROM note_sync_state WHERE status > " + SyncStatus.CODE_SYNCED)
+    LiveData<List<NoteSyncState>> observeUnsyncedStates();
+
+    /**
+     * Gets the ids of notes in the given sync state, e.g. the notes
+     * waiting for conflict resolution.
+     */
+    @Query("SELECT note_id FROM note_sync_state WHERE status = :status")
+    List<String> getNoteIdsWithSyncStatus(SyncStatus status);
+
+    /**
+     * Updates the sync status of a specific note, e.g. to flag a CONFLICT.
+     */
+    @Transaction
+    default void updateSyncStatus(String noteId, SyncStatus status) {
+        ensureSyncState(noteId);
+        setSyncStatus(noteId, status);
+    }
+
+    @Query("UPDATE note_sync_state SET status = :status WHERE note_id = :noteId")
+    void setSyncStatus(String noteId, SyncStatus status);
+
+    @Query("DELETE FROM note_sync_state")
+    void deleteAllSyncStates();
+
+    // ------------------------------------------------------------
+    // Upload outbox, drained in batches by SyncWorker. See SyncOutboxEntry.
+    // ------------------------------------------------------------
+
+    /**
+     * Queues a note for upload, replacing (and re-sequencing) any earlier
+     * entry while keeping the fields that entry had not uploaded yet, its
+     * first enqueue time, its priority and its drawing bytes (so its lane),
+     * and counting the edit.
+     */
+    @Query("INSERT OR REPLACE INTO sync_outbox "
+            + "(note_id, enqueued_at, dirty_fields, first_enqueued_at, edits, priority, canvas_bytes) "
+            + "VALUES (:noteId, :enqueuedAt, "
+            + ":fields | IFNULL((SELECT dirty_fields FROM sync_outbox WHERE note_id = :noteId), 0), "
+            + "IFNULL((SELECT first_enqueued_at FROM sync_outbox WHERE note_id = :noteId), :enqueuedAt), "
+            + "IFNULL((SELECT edits FROM sync_outbox WHERE note_id = :noteId), 0) + 1, "
+            + ":priority | IFNULL((SELECT priority FROM sync_outbox WHERE note_id = :noteId), 0), "
+            + "IFNULL((SELECT canvas_bytes FROM sync_outbox WHERE note_id = :noteId), " + UNSENT_CANVAS_BYTES + "))")
+    void enqueueUpload(String noteId, long enqueuedAt, int fields, boolean priority);
+
+    /** The oldest queued priority uploads in the lane, first in first out. */
+    @Query("SELECT * FROM sync_outbox WHERE priority = 1 AND " + IN_UPLOAD_LANE + " ORDER BY seq LIMIT :limit")
+    List<SyncOutboxEntry> getPriorityOutboxBatch(long minBytes, long maxBytes, int limit);
+
+    /**
+     * The oldest other queued uploads in the lane that are ready: their
+     * note was last edited at or before quietBefore, or first queued at or
+     * before queuedBefore.
+     */
+    @Query("SELECT * FROM sync_outbox WHERE priority = 0 "
+            + "AND (enqueued_at <= :quietBefore OR first_enqueued_at <= :queuedBefore) "
+            + "AND " + IN_UPLOAD_LANE + " ORDER BY seq LIMIT :limit")
+    List<SyncOutboxEntry> getReadyOutboxBatch(long quietBefore, long queuedBefore, long minBytes, long maxBytes,
+                                              int limit);
+
+    /**
+     * When the next queued upload in the lane becomes ready, given the
+     * quiet period and the longest wait; null if the lane is empty.
+     */
+    @Query("SELECT MIN(MIN(enqueued_at + :quietMillis, first_enqueued_at + :maxWaitMillis)) FROM sync_outbox "
+            + "WHERE " + IN_UPLOAD_LANE)
+    Long getNextOutboxReadyTime(long quietMillis, long maxWaitMillis, long minBytes, long maxBytes);
+
+    @Query("SELECT COUNT(*) FROM sync_outbox")
+    int countOutbox();
+
+    /** Queued uploads in the lane. */
+    @Query("SELECT COUNT(*) FROM sync_outbox WHERE " + IN_UPLOAD_LANE)
+    int countOutboxLane(long minBytes, long maxBytes);
+
+    /**
+     * Gets notes with their content, for uploading.
+     *
+     * @param noteIds At most MAX_BATCH_VARIABLES ids.
+     */
+    @Transaction
+    @Query("SELECT * FROM notes WHERE id IN (:noteIds)")
+    List<NoteWithBody> getNotesWithBodiesByIds(List<String> noteIds);
+
+    /**
+     * Removes uploaded entries from the outbox and records the uploaded
+     * versions, in one transaction.
+     *
+     * @param entries The entries as read before the upload.
+     * @param versions The hlc that was uploaded, by note id. Entries
+     *                 without a version (the note no longer exists) are just removed.
+     * @param checkpoints For text notes uploaded with a new checkpoint, the CRDT
+     *                    seeded from it. Stored if the note was not edited since;
+     *                    otherwise the old CRDT is dropped, and the next upload
+     *                    writes another checkpoint.
+     * @param appendedBytes For text notes whose deltas were appended, the bytes appended.
+     */
+    @Transaction
+    default void completeUploads(List<SyncOutboxEntry> entries, Map<String, Long> versions,
+                                 Map<String, NoteText> checkpoints, Map<String, Integer> appendedBytes) {
+        List<Long> seqs = new ArrayList<>(entries.size());
+        for (SyncOutboxEntry entry : entries) {
+            seqs.add(entry.seq);
+            Long version = versions.get(entry.noteId);
+            if (version == null) {
+                continue;
+            }
+            markSynced(entry.noteId, version);
+            NoteText checkpoint = checkpoints.get(entry.noteId);
+            Integer appended = appendedBytes.get(entry.noteId);
+            if (checkpoint != null) {
+                Note row = getNoteRow(entry.noteId);
+                if (row != null && row.hlc == version) {
+                    upsertNoteText(checkpoint);
+                } else {
+                    deleteNoteText(entry.noteId);
+                }
+            } else if (appended != null) {
+                ackTextDelta(entry.noteId, version, appended);
+            }
+        }
+        for (int i = 0; i < seqs.size(); i += MAX_BATCH_VARIABLES) {
+            deleteOutboxEntries(seqs.subList(i, Math.min(seqs.size(), i + MAX_BATCH_VARIABLES)));
+        }
+    }
+
+    /**
+     * Records a failed upload for each entry. Entries given up on (OFFLINE)
+     * leave the outbox; the next local edit queues them again.
+     */
+    @Transaction
+    default void failUploads(List<SyncOutboxEntry> entries, SyncStatus status, String error) {
+        List<Long> seqs = new ArrayList<>(entries.size());
+        for (SyncOutboxEntry entry : entries) {
+            seqs.add(entry.seq);
+            recordSyncFailure(entry.noteId, status, error);
+        }
+        if (status == SyncStatus.OFFLINE) {
+            for (int i = 0; i < seqs.size(); i += MAX_BATCH_VARIABLES) {
+                deleteOutboxEntries(seqs.subList(i, Math.min(seqs.size(), i + MAX_BATCH_VARIABLES)));
+            }
+        }
+    }
+
+    @Query("DELETE FROM sync_outbox WHERE seq IN (:seqs)")
+    void deleteOutboxEntries(List<Long> seqs);
+
+    @Query("DELETE FROM sync_outbox")
+    void deleteAllOutboxEntries();
 
     // ------------------------------------------------------------
-    // ✅ NEW FILTERING QUERIES (Text-only, Canvas-only, with/without search)
+    // Text CRDTs, see NoteText
     // ------------------------------------------------------------
 
-    /** 1. Get ONLY Text Notes (canvasImagePath is empty or null) */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 AND (canvasImagePath IS NULL OR canvasImagePath = '') ORDER BY updatedAt DESC")
-    LiveData<List<Note>> getTextNotesOnly(String userId);
+    @Query("SELECT * FROM note_text WHERE note_id = :noteId")
+    NoteText getNoteText(String noteId);
 
-    /** 2. Get ONLY Canvas Notes (canvasImagePath is not empty) */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 AND (canvasImagePath IS NOT NULL AND canvasImagePath != '') ORDER BY updatedAt DESC")
-    LiveData<List<Note>> getCanvasNotesOnly(String userId);
+    /**
+     * Loads the CRDTs of the given notes in batches, see {@link #findNotesByIds}.
+     *
+     * @return The CRDT of each note that has one, keyed by id.
+     */
+    default Map<String, NoteText> findNoteTextsByIds(List<String> noteIds) {
+        Map<String, NoteText> texts = new HashMap<>();
+        for (int i = 0; i < noteIds.size(); i += MAX_BATCH_VARIABLES) {
+            for (NoteText text : getNoteTextsByIds(noteIds.subList(i, Math.min(noteIds.size(), i + MAX_BATCH_VARIABLES)))) {
+                texts.put(text.noteId, text);
+            }
+        }
+        return texts;
+    }
 
-    /** 3. SEARCH within Text Notes Only */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 AND (canvasImagePath IS NULL OR canvasImagePath = '') AND (title LIKE '%' || :query || '%' OR content LIKE '%' || :query || '%') ORDER BY updatedAt DESC")
-    LiveData<List<Note>> searchTextNotes(String userId, String query);
+    @Query("SELECT * FROM note_text WHERE note_id IN (:noteIds)")
+    List<NoteText> getNoteTextsByIds(List<String> noteIds);
 
-    /** 4. SEARCH within Canvas Notes Only */
-    @Query("SELECT * FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 AND (canvasImagePath IS NOT NULL AND canvasImagePath != '') AND (title LIKE '%' || :query || '%' OR content LIKE '%' || :query || '%') ORDER BY updatedAt DESC")
-    LiveData<List<Note>> searchCanvasNotes(String userId, String query);
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void upsertNoteText(NoteText text);
+
+    /** Records that this device's edits up to the stamp were appended to the server's log. */
+    @Query("UPDATE note_text SET acked = MAX(acked, :acked), log_bytes = log_bytes + :bytes WHERE note_id = :noteId")
+    void ackTextDelta(String noteId, long acked, int bytes);
+
+    @Query("DELETE FROM note_text WHERE note_id = :noteId")
+    void deleteNoteText(String noteId);
 
-}
\ No newline at end of file
+    @Query("DELETE FROM note_text")
+    void deleteAllNoteTexts();
+
+    // ------------------------------------------------------------
+    // Canvas blobs, see CanvasBlobStore
+    // ------------------------------------------------------------
+
+    @Query("SELECT * FROM canvas_blobs WHERE hash = :hash")
+    CanvasBlob getCanvasBlob(String hash);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void upsertCanvasBlob(CanvasBlob blob);
+
+    @Query("UPDATE canvas_blobs SET last_used = :now WHERE hash = :hash")
+    void touchCanvasBlob(String hash, long now);
+
+    /** Records the progress of an upload, see CanvasBlob#uploadedBytes. */
+    @Query("UPDATE canvas_blobs SET uploaded_bytes = :bytes WHERE hash = :hash")
+    void setCanvasBlobUploadedBytes(String hash, long bytes);
+
+    @Query("UPDATE canvas_blobs SET remote = 1, uploaded_bytes = size WHERE hash = :hash")
+    void markCanvasBlobRemote(String hash);
+
+    /** Total size of the blobs the server also has, i.e. of the cache. */
+    @Query("SELECT IFNULL(SUM(size), 0) FROM canvas_blobs WHERE remote = 1")
+    long getCachedCanvasBlobBytes();
+
+    /** Cached blobs, least recently used first: the next to evict. */
+    @Query("SELECT * FROM canvas_blobs WHERE remote = 1 ORDER BY last_used LIMIT :limit")
+    List<CanvasBlob> getLeastRecentlyUsedCanvasBlobs(int limit);
+
+    /**
+     * Blobs no note refers to, trashed notes included, either as its canvas
+     * or as a tile of its canvas, that were not used since the given time.
+     */
+    @Query("SELECT * FROM canvas_blobs WHERE last_used < :before "
+            + "AND NOT EXISTS (SELECT 1 FROM notes WHERE notes.canvas_hash = canvas_blobs.hash) "
+            + "AND NOT EXISTS (SELECT 1 FROM canvas_tiles JOIN notes ON notes.canvas_hash = canvas_tiles.canvas_hash "
+            + "WHERE canvas_tiles.tile_hash = canvas_blobs.hash)")
+    List<CanvasBlob> getUnreferencedCanvasBlobs(long before);
+
+    /**
+     * Hashes of the user's newest canvases whose blob is not on this
+     * device. May repeat a hash that several notes share.
+     */
+    @Query("SELECT canvas_hash FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 "
+            + "AND type = " + Note.TYPE_CODE_CANVAS + " AND canvas_hash IS NOT NULL "
+            + "AND NOT EXISTS (SELECT 1 FROM canvas_blobs WHERE canvas_blobs.hash = notes.canvas_hash) "
+            + "ORDER BY updatedAt DESC LIMIT :limit")
+    List<String> getMissingCanvasHashes(String userId, int limit);
+
+    @Query("DELETE FROM canvas_blobs WHERE hash = :hash")
+    void deleteCanvasBlob(String hash);
+
+    @Query("DELETE FROM canvas_blobs")
+    void deleteAllCanvasBlobs();
+
+    /** Records the tiles of a canvas; rows it already has are kept. */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertCanvasTiles(List<CanvasTile> tiles);
+
+    /**
+     * Forgets the tiles of canvases no note refers to, unless the canvas
+     * was used since the given time (it may be about to be referred to).
+     */
+    @Query("DELETE FROM canvas_tiles WHERE NOT EXISTS (SELECT 1 FROM notes WHERE notes.canvas_hash = canvas_tiles.canvas_hash) "
+            + "AND NOT EXISTS (SELECT 1 FROM canvas_blobs WHERE canvas_blobs.hash = canvas_tiles.canvas_hash "
+            + "AND canvas_blobs.last_used >= :before)")
+    int deleteUnreferencedCanvasTiles(long before);
+
+    @Query("DELETE FROM canvas_tiles")
+    void deleteAllCanvasTiles();
+
+    // ------------------------------------------------------------
+    // Pull cursor
+    // ------------------------------------------------------------
+
+    /** The user's pull cursor, or null if nothing was pulled yet. */
+    @Query("SELECT * FROM sync_cursor WHERE user_id = :userId")
+    SyncCursor getSyncCursor(String userId);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void setSyncCursor(SyncCursor cursor);
+
+    @Query("DELETE FROM sync_cursor")
+    void deleteAllSyncCursors();
+
+    // ------------------------------------------------------------
+    // Trigram (infix) search
+    // ------------------------------------------------------------
+
+    /**
+     * Infix search with exact LIKE semantics. The posting-list intersection
+     * narrows the search to notes containing every query trigram, and only
+     * those candidates are checked with LIKE.
+     *
+     * @param query The raw substring, matched as LIKE '%query%'.
+     * @param grams Trigrams.ofQuery(query); must not be empty.
+     * @param gramCount grams.size().
+     * @param filter One of FILTER_ALL, FILTER_TEXT, FILTER_CANVAS.
+     */
+    @Query("SELECT " + NoteListItem.COLUMNS + " FROM notes WHERE id IN ("
+            + "SELECT note_id FROM note_trigrams WHERE trigram IN (:grams) GROUP BY note_id HAVING COUNT(*) = :gramCount) "
+            + "AND userId = :userId AND is_trashed = 0 AND isDeleted = 0 "
+            + "AND " + TYPE_FILTER + " "
+            + "AND " + CONTENT_LIKE + " "
+            + "ORDER BY updatedAt DESC")
+    LiveData<List<NoteListItem>> searchNotesInfix(String userId, String query, List<String> grams, int gramCount, int filter);
+
+    /**
+     * Plain LIKE scan, used for infix queries too short to have a trigram.
+     */
+    @Query("SELECT " + NoteListItem.COLUMNS + " FROM notes WHERE userId = :userId AND is_trashed = 0 AND isDeleted = 0 "
+            + "AND " + TYPE_FILTER + " "
+            + "AND " + CONTENT_LIKE + " "
+            + "ORDER BY updatedAt DESC")
+    LiveData<List<NoteListItem>> searchNotesLike(String userId, String query, int filter);
+
+    /**
+     * Typo-tolerant search: ranks notes by how many query trigrams they share.
+     *
+     * @param grams Trigrams.ofQuery(query); must not be empty.
+     * @param minHits The minimum number of shared trigrams for a note to match.
+     * @param filter One of FILTER_ALL, FILTER_TEXT, FILTER_CANVAS.
+     */
+    @Query("SELECT " + NoteListItem.COLUMNS + ", t.hits AS trigramHits FROM ("
+            + "SELECT note_id, COUNT(*) AS hits FROM note_trigrams WHERE trigram IN (:grams) "
+            + "GROUP BY note_id HAVING COUNT(*) >= :minHits) AS t "
+            + "JOIN notes ON notes.id = t.note_id "
+            + "WHERE notes.userId = :userId AND notes.is_trashed = 0 AND notes.isDeleted = 0 "
+            + "AND " + TYPE_FILTER + " "
+            + "ORDER BY t.hits DESC, notes.updatedAt DESC LIMIT :limit")
+    LiveData<List<NoteTrigramMatch>> searchNotesFuzzy(String userId, List<String> grams, int minHits, int filter, int limit);
+}
@@ -0,0 +1,97 @@
+package com.example.softnotesandcanvas.db;
+
+import com.google.firebase.firestore.FieldValue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bit flags for the synced fields of a {@link Note}, used to upload only
+ * what a local change touched (see SyncOutboxEntry#dirtyFields).
+ * Flags are stored in the database; the values must never be renumbered.
+ */
+public final class NoteFields {
+
+    public static final int TITLE = 1;
+    public static final int CONTENT = 1 << 1;
+    /** type, canvasImagePath and canvasHash, which always change together. */
+    public static final int CANVAS = 1 << 2;
+    public static final int TRASHED = 1 << 3;
+    public static final int DELETED = 1 << 4;
+    /** Everything, i.e. a full document write. */
+    public static final int ALL = TITLE | CONTENT | CANVAS | TRASHED | DELETED;
+
+    private NoteFields() {
+        // Static helpers only
+    }
+
+    /**
+     * Works out which fields a save changes.
+     *
+     * @param before The stored row, or null for a new note. Its content may be
+     *               unloaded, so content is compared by hash.
+     * @param after The note being saved.
+     * @return The changed fields; ALL for a new note.
+     */
+    public static int changed(Note before, Note after) {
+        if (before == null) {
+            return ALL;
+        }
+        int fields = 0;
+        if (!Objects.equals(before.title, after.title)) {
+            fields |= TITLE;
+        }
+        if (before.contentHash == null || !before.contentHash.equals(NoteBody.hash(after.content))) {
+            fields |= CONTENT;
+        }
+        if (!Objects.equals(before.type, after.type) || !Objects.equals(before.canvasImagePath, after.canvasImagePath)
+                || !Objects.equals(before.canvasHash, after.canvasHash)) {
+            fields |= CANVAS;
+        }
+        if (before.isTrashed != after.isTrashed) {
+            fields |= TRASHED;
+        }
+        if (before.isDeleted != after.isDeleted) {
+            fields |= DELETED;
+        }
+        return fields;
+    }
+
+    /**
+     * Builds a partial document with the given fields, for a merge set().
+     * The edit metadata (updatedAt, hlc, lastEditedByDeviceId) is always included,
+     * since every change updates it, and so is a new server syncedAt, which
+     * puts the document after every sync cursor. Field names are NoteCodec's.
+     * Content of a text note with a textBase is written as a new checkpoint.
+     */
+    public static Map<String, Object> toUpdate(Note note, int fields) {
+        Map<String, Object> update = new HashMap<>();
+        if ((fields & TITLE) != 0) {
+            update.put(NoteCodec.FIELD_TITLE, note.title);
+        }
+        if ((fields & CONTENT) != 0) {
+            update.put(NoteCodec.FIELD_CONTENT, note.content);
+            if (note.textBase != 0) {
+                NoteCodec.putCheckpoint(update, note);
+            }
+        }
+        if ((fields & CANVAS) != 0) {
+            update.put(NoteCodec.FIELD_TYPE, note.type);
+            update.put(NoteCodec.FIELD_CANVAS_IMAGE_PATH, note.canvasImagePath);
+            update.put(NoteCodec.FIELD_CANVAS_HASH, note.canvasHash);
+        }
+        if ((fields & TRASHED) != 0) {
+            update.put(NoteCodec.FIELD_IS_TRASHED, note.isTrashed);
+        }
+        if ((fields & DELETED) != 0) {
+            update.put(NoteCodec.FIELD_IS_DELETED, note.isDeleted);
+        }
+        update.put(NoteCodec.FIELD_UPDATED_AT, new Date(note.updatedAt));
+        update.put(NoteCodec.FIELD_SYNCED_AT, FieldValue.serverTimestamp());
+        update.put(NoteCodec.FIELD_HLC, note.hlc);
+        update.put(NoteCodec.FIELD_LAST_EDITED_BY_DEVICE_ID, note.lastEditedByDeviceId);
+        return update;
+    }
+}
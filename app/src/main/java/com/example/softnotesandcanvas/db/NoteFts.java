@@ -0,0 +1,45 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+import androidx.room.FtsOptions;
+import androidx.room.PrimaryKey;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * Full-text search shadow table for {@link Note}.
+ * Each row shares its rowid with the matching note's local_id and holds
+ * the title and the plain-text (HTML stripped) body of the note.
+ * <p>
+ * Bodies are written by {@link NoteDao#insertOrUpdateNote(Note)}; the
+ * triggers created by {@link #createTriggers(SupportSQLiteDatabase)} keep
+ * titles in sync and remove index rows when notes are deleted.
+ */
+@Fts4(tokenizer = FtsOptions.TOKENIZER_UNICODE61, prefix = {2, 3})
+@Entity(tableName = "notes_fts")
+public class NoteFts {
+
+    @PrimaryKey
+    @ColumnInfo(name = "rowid")
+    public long rowid;
+
+    @ColumnInfo(name = "title")
+    public String title;
+
+    @ColumnInfo(name = "body")
+    public String body;
+
+    /**
+     * Creates the triggers that keep notes_fts consistent with notes.
+     * Called from onCreate for fresh installs and from the 2 -> 3 migration.
+     *
+     * @param db The database being created or migrated.
+     */
+    static void createTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS notes_fts_after_delete AFTER DELETE ON notes BEGIN "
+                + "DELETE FROM notes_fts WHERE rowid = OLD.rowid; END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS notes_fts_after_title_update AFTER UPDATE OF title ON notes BEGIN "
+                + "UPDATE notes_fts SET title = NEW.title WHERE rowid = NEW.rowid; END");
+    }
+}
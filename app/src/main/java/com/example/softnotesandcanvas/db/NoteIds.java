@@ -0,0 +1,43 @@
+package com.example.softnotesandcanvas.db;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates external note ids in the UUIDv7 layout: a 48-bit millisecond
+ * timestamp followed by random bits. Ids created later sort later, so new
+ * notes append to the end of the unique id index instead of landing at
+ * random pages of it. The string form is a normal UUID, so ids stay valid
+ * Firestore document ids and remain comparable with older random UUIDs.
+ */
+public final class NoteIds {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private NoteIds() {
+        // Static helpers only
+    }
+
+    /**
+     * @return A new, time-ordered note id.
+     */
+    public static String newId() {
+        return newId(System.currentTimeMillis());
+    }
+
+    static String newId(long timestampMillis) {
+        byte[] random = new byte[10];
+        RANDOM.nextBytes(random);
+        // 48-bit timestamp | version 7 | 12 random bits
+        long msb = (timestampMillis & 0xFFFFFFFFFFFFL) << 16;
+        msb |= 0x7000L;
+        msb |= ((random[0] & 0x0FL) << 8) | (random[1] & 0xFFL);
+        // variant 10 | 62 random bits
+        long lsb = 0;
+        for (int i = 2; i < 10; i++) {
+            lsb = (lsb << 8) | (random[i] & 0xFFL);
+        }
+        lsb = (lsb & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(msb, lsb).toString();
+    }
+}
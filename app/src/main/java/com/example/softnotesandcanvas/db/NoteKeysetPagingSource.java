@@ -0,0 +1,111 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.paging.ListenableFuturePagingSource;
+import androidx.paging.PagingState;
+import androidx.room.InvalidationTracker;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import kotlin.Unit;
+
+/**
+ * Pages a {@link NoteQuery} list with keyset pagination on (updatedAt, id).
+ * Each page is a bounded index range read, so memory and query time stay
+ * flat regardless of how many notes the account has. The source
+ * invalidates itself whenever the notes table changes.
+ */
+public class NoteKeysetPagingSource extends ListenableFuturePagingSource<NotePageKey, NoteListItem> {
+
+    private final AppDatabase db;
+    private final NoteDao noteDao;
+    private final ListeningExecutorService executor;
+    private final NoteQuery query;
+    private final AtomicBoolean observing = new AtomicBoolean(false);
+
+    private final InvalidationTracker.Observer observer = new InvalidationTracker.Observer("notes") {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            invalidate();
+        }
+    };
+
+    /**
+     * @param query The list to page. Must not be a search; its sort must be
+     *              RECENT or OLDEST.
+     */
+    public NoteKeysetPagingSource(AppDatabase db, NoteQuery query) {
+        this.db = db;
+        this.noteDao = db.noteDao();
+        this.executor = MoreExecutors.listeningDecorator(db.getQueryExecutor());
+        this.query = query;
+        registerInvalidatedCallback(() -> {
+            if (observing.get()) {
+                db.getInvalidationTracker().removeObserver(observer);
+            }
+            return Unit.INSTANCE;
+        });
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<LoadResult<NotePageKey, NoteListItem>> loadFuture(@NonNull LoadParams<NotePageKey> params) {
+        return executor.submit(() -> load(params));
+    }
+
+    private LoadResult<NotePageKey, NoteListItem> load(LoadParams<NotePageKey> params) {
+        // Register lazily so the tracker is touched from a background thread
+        if (observing.compareAndSet(false, true)) {
+            db.getInvalidationTracker().addObserver(observer);
+        }
+        try {
+            int size = params.getLoadSize();
+            NotePageKey key = params.getKey();
+            List<NoteListItem> page;
+            if (params instanceof LoadParams.Prepend) {
+                page = new ArrayList<>(noteDao.getNotesPage(query.toPageQuery(NoteQuery.Page.BEFORE, key, size)));
+                Collections.reverse(page);
+                return new LoadResult.Page<>(page, page.size() < size ? null : firstKey(page), null);
+            }
+            if (params instanceof LoadParams.Append) {
+                page = noteDao.getNotesPage(query.toPageQuery(NoteQuery.Page.AFTER, key, size));
+                return new LoadResult.Page<>(page, null, page.size() < size ? null : lastKey(page));
+            }
+            // Refresh: start at the key (inclusive), or at the top of the list
+            page = noteDao.getNotesPage(query.toPageQuery(NoteQuery.Page.FROM, key, size));
+            NotePageKey prevKey = key != null && !page.isEmpty() ? firstKey(page) : null;
+            return new LoadResult.Page<>(page, prevKey, page.size() < size ? null : lastKey(page));
+        } catch (RuntimeException e) {
+            return new LoadResult.Error<>(e);
+        }
+    }
+
+    @Nullable
+    @Override
+    public NotePageKey getRefreshKey(@NonNull PagingState<NotePageKey, NoteListItem> state) {
+        // Reload starting at the row the user is looking at; rows above it are prepended
+        Integer anchor = state.getAnchorPosition();
+        if (anchor == null) {
+            return null;
+        }
+        NoteListItem item = state.closestItemToPosition(anchor);
+        return item != null ? NotePageKey.of(item) : null;
+    }
+
+    private static NotePageKey firstKey(List<NoteListItem> page) {
+        return page.isEmpty() ? null : NotePageKey.of(page.get(0));
+    }
+
+    private static NotePageKey lastKey(List<NoteListItem> page) {
+        return page.isEmpty() ? null : NotePageKey.of(page.get(page.size() - 1));
+    }
+}
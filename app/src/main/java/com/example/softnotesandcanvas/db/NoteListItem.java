@@ -0,0 +1,45 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.TypeConverters;
+
+/**
+ * Slim projection of {@link Note} for the note lists.
+ * It carries the precomputed plain-text preview instead of the full
+ * HTML content, so list cursors stay small and binding a row needs no
+ * HTML parsing. Open the full note by id when the user taps a row.
+ */
+public class NoteListItem {
+
+    /** Columns to SELECT for this projection. */
+    public static final String COLUMNS = "notes.id, notes.title, notes.preview, notes.type, "
+            + "notes.canvasImagePath, notes.canvas_hash, notes.updatedAt";
+
+    @NonNull
+    @ColumnInfo(name = "id")
+    public String id = "";
+
+    @ColumnInfo(name = "title")
+    public String title;
+
+    @ColumnInfo(name = "preview")
+    public String preview;
+
+    @TypeConverters(NoteTypeConverter.class)
+    @ColumnInfo(name = "type")
+    public String type;
+
+    @ColumnInfo(name = "canvasImagePath")
+    public String canvasImagePath;
+
+    @ColumnInfo(name = "canvas_hash")
+    public String canvasHash;
+
+    @ColumnInfo(name = "updatedAt")
+    public long updatedAt;
+
+    public boolean isCanvas() {
+        return Note.TYPE_CANVAS.equals(type);
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Keyset position in a list ordered by (updatedAt, id), either direction.
+ * Unlike an OFFSET, a key stays valid when rows are inserted or
+ * removed above it, and the query cost does not grow with depth.
+ */
+public final class NotePageKey {
+
+    public final long updatedAt;
+    @NonNull
+    public final String id;
+
+    public NotePageKey(long updatedAt, @NonNull String id) {
+        this.updatedAt = updatedAt;
+        this.id = id;
+    }
+
+    /**
+     * Returns the key of a row in the list.
+     */
+    public static NotePageKey of(@NonNull NoteListItem item) {
+        return of(item.updatedAt, item.id);
+    }
+
+    static NotePageKey of(long updatedAt, @NonNull String id) {
+        return new NotePageKey(updatedAt, id);
+    }
+}
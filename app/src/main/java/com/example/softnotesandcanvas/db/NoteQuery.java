@@ -0,0 +1,295 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Describes one note list: whose notes, which type, an optional full-text
+ * search, an optional updatedAt range, the sort order and a row limit.
+ * It compiles to the SQL for {@link NoteDao#observeNotes} and
+ * {@link NoteDao#getNotesPage}, replacing a hand-written query per
+ * combination.
+ * <p>
+ * Values are always bound as arguments, never inlined, so every spec of
+ * the same shape produces identical SQL text. The SQL for each shape is
+ * built once, and SQLite's per-connection statement cache reuses the
+ * compiled statement across queries.
+ * <p>
+ * The type filter compares the indexed type column, so filtered lists
+ * read a range of the (userId, is_trashed, isDeleted, type, updatedAt, id)
+ * index instead of checking canvasImagePath row by row.
+ */
+public final class NoteQuery {
+
+    public enum Sort {
+        /** Most recently updated first. */
+        RECENT,
+        /** Least recently updated first. */
+        OLDEST,
+        /** BM25 relevance, ranked in memory. Only meaningful with a search. */
+        RELEVANCE
+    }
+
+    /** Where a keyset page starts relative to its key. */
+    enum Page { NONE, FROM, AFTER, BEFORE }
+
+    // Built SQL by shape, see shapeOf()
+    private static final Map<Integer, String> SQL_BY_SHAPE = new ConcurrentHashMap<>();
+
+    @NonNull
+    public final String userId;
+    public final boolean trashed;
+    /** One of NoteDao.FILTER_ALL, FILTER_TEXT, FILTER_CANVAS. */
+    public final int filter;
+    /** FTS4 MATCH expression from FtsQuery, or null for no search. */
+    @Nullable
+    public final String match;
+    @NonNull
+    public final Sort sort;
+    /** Inclusive lower bound on updatedAt, or null. */
+    @Nullable
+    public final Long updatedFrom;
+    /** Exclusive upper bound on updatedAt, or null. */
+    @Nullable
+    public final Long updatedUntil;
+    /**
+     * Maximum rows for a search; pages use the page size instead. A
+     * RELEVANCE search reads every hit and keeps this many once they are
+     * ranked, see SearchRanker.
+     */
+    public final int limit;
+
+    private NoteQuery(Builder b) {
+        this.userId = b.userId;
+        this.trashed = b.trashed;
+        this.filter = b.filter;
+        this.match = b.match;
+        // Relevance needs match scores; plain lists fall back to recency
+        this.sort = b.sort == Sort.RELEVANCE && b.match == null ? Sort.RECENT : b.sort;
+        this.updatedFrom = b.updatedFrom;
+        this.updatedUntil = b.updatedUntil;
+        this.limit = b.limit;
+    }
+
+    public static Builder forUser(@NonNull String userId) {
+        return new Builder(userId);
+    }
+
+    public Builder buildUpon() {
+        return new Builder(userId)
+                .trashed(trashed)
+                .filter(filter)
+                .match(match)
+                .sort(sort)
+                .updatedBetween(updatedFrom, updatedUntil)
+                .limit(limit);
+    }
+
+    public boolean isSearch() {
+        return match != null;
+    }
+
+    /** True for a search ranked in memory, whose SQL has no order and no limit. */
+    public boolean isRanked() {
+        return match != null && sort == Sort.RELEVANCE;
+    }
+
+    /**
+     * Compiles the spec to a list query. Search hits carry the FTS ranking
+     * and snippet columns. A RELEVANCE search returns every hit, unordered,
+     * for SearchRanker to score and cut to the limit; any other query
+     * returns at most limit rows in sort order.
+     */
+    public SupportSQLiteQuery toQuery() {
+        return compile(Page.NONE, null, limit);
+    }
+
+    /**
+     * Compiles the spec to one keyset page of a list without a search.
+     *
+     * @param page FROM the key inclusive, the rows AFTER it, or the rows BEFORE
+     *             it (nearest first, callers reverse them).
+     * @param key The page key, ignored for Page.NONE.
+     * @param size The page size.
+     */
+    SupportSQLiteQuery toPageQuery(Page page, @Nullable NotePageKey key, int size) {
+        if (match != null) {
+            throw new IllegalStateException("Search results are ranked, not paged");
+        }
+        return compile(key == null ? Page.NONE : page, key, size);
+    }
+
+    private SupportSQLiteQuery compile(Page page, @Nullable NotePageKey key, int size) {
+        List<Object> args = new ArrayList<>();
+        if (match != null) {
+            args.add(match);
+        }
+        args.add(userId);
+        args.add(trashed ? 1 : 0);
+        if (filter != NoteDao.FILTER_ALL) {
+            args.add(filter == NoteDao.FILTER_CANVAS ? Note.TYPE_CODE_CANVAS : Note.TYPE_CODE_TEXT);
+        }
+        if (updatedFrom != null) {
+            args.add(updatedFrom);
+        }
+        if (updatedUntil != null) {
+            args.add(updatedUntil);
+        }
+        if (page != Page.NONE) {
+            args.add(key.updatedAt);
+            args.add(key.id);
+        }
+        if (!isRanked()) {
+            args.add(size);
+        }
+        String sql = SQL_BY_SHAPE.computeIfAbsent(shapeOf(page), shape -> buildSql(page));
+        return new SimpleSQLiteQuery(sql, args.toArray());
+    }
+
+    /** Packs everything that changes the SQL text (not the arguments) into an int. */
+    private int shapeOf(Page page) {
+        int shape = match != null ? 1 : 0;
+        shape |= (filter != NoteDao.FILTER_ALL ? 1 : 0) << 1;
+        shape |= (updatedFrom != null ? 1 : 0) << 2;
+        shape |= (updatedUntil != null ? 1 : 0) << 3;
+        shape |= sort.ordinal() << 4;
+        shape |= page.ordinal() << 6;
+        return shape;
+    }
+
+    private String buildSql(Page page) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(NoteListItem.COLUMNS);
+        if (match != null) {
+            sql.append(", matchinfo(notes_fts, 'pcnalx') AS matchInfo, offsets(notes_fts) AS matchOffsets, ")
+                    .append("snippet(notes_fts, '").append(NoteSearchResult.MATCH_START).append("', '")
+                    .append(NoteSearchResult.MATCH_END).append("', '…', -1, 12) AS snippet ")
+                    .append("FROM notes_fts JOIN notes ON notes.local_id = notes_fts.rowid ")
+                    .append("WHERE notes_fts MATCH ? AND ");
+        } else {
+            sql.append(" FROM notes WHERE ");
+        }
+        sql.append("notes.userId = ? AND notes.is_trashed = ? AND notes.isDeleted = 0");
+        if (filter != NoteDao.FILTER_ALL) {
+            sql.append(" AND notes.type = ?");
+        }
+        if (updatedFrom != null) {
+            sql.append(" AND notes.updatedAt >= ?");
+        }
+        if (updatedUntil != null) {
+            sql.append(" AND notes.updatedAt < ?");
+        }
+        // Keyset conditions as row values, so SQLite turns them into an index range
+        boolean descending = sort != Sort.OLDEST;
+        switch (page) {
+            case FROM:
+                sql.append(descending ? " AND (notes.updatedAt, notes.id) <= (?, ?)" : " AND (notes.updatedAt, notes.id) >= (?, ?)");
+                break;
+            case AFTER:
+                sql.append(descending ? " AND (notes.updatedAt, notes.id) < (?, ?)" : " AND (notes.updatedAt, notes.id) > (?, ?)");
+                break;
+            case BEFORE:
+                sql.append(descending ? " AND (notes.updatedAt, notes.id) > (?, ?)" : " AND (notes.updatedAt, notes.id) < (?, ?)");
+                // Read back towards the key, nearest row first
+                descending = !descending;
+                break;
+            case NONE:
+            default:
+                break;
+        }
+        // Ranked hits are scored in memory, all of them, so no ORDER BY and no LIMIT
+        if (isRanked()) {
+            return sql.toString();
+        }
+        // Before the LIMIT, so a sorted search keeps the newest (or oldest) hits,
+        // not whichever the FTS index yields first
+        sql.append(descending
+                ? " ORDER BY notes.updatedAt DESC, notes.id DESC"
+                : " ORDER BY notes.updatedAt ASC, notes.id ASC");
+        return sql.append(" LIMIT ?").toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof NoteQuery)) return false;
+        NoteQuery that = (NoteQuery) o;
+        return trashed == that.trashed
+                && filter == that.filter
+                && limit == that.limit
+                && userId.equals(that.userId)
+                && Objects.equals(match, that.match)
+                && sort == that.sort
+                && Objects.equals(updatedFrom, that.updatedFrom)
+                && Objects.equals(updatedUntil, that.updatedUntil);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(userId, trashed, filter, match, sort, updatedFrom, updatedUntil, limit);
+    }
+
+    public static final class Builder {
+        private final String userId;
+        private boolean trashed;
+        private int filter = NoteDao.FILTER_ALL;
+        private String match;
+        private Sort sort = Sort.RECENT;
+        private Long updatedFrom;
+        private Long updatedUntil;
+        private int limit = 500;
+
+        private Builder(@NonNull String userId) {
+            this.userId = userId;
+        }
+
+        /** True for the trash, false (the default) for active notes. */
+        public Builder trashed(boolean trashed) {
+            this.trashed = trashed;
+            return this;
+        }
+
+        /** One of NoteDao.FILTER_ALL (the default), FILTER_TEXT, FILTER_CANVAS. */
+        public Builder filter(int filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /** An FTS4 MATCH expression built with FtsQuery, or null for no search. */
+        public Builder match(@Nullable String match) {
+            this.match = match;
+            return this;
+        }
+
+        public Builder sort(@NonNull Sort sort) {
+            this.sort = sort;
+            return this;
+        }
+
+        /**
+         * Restricts the list to notes updated in [from, until).
+         * Either bound may be null for an open range.
+         */
+        public Builder updatedBetween(@Nullable Long from, @Nullable Long until) {
+            this.updatedFrom = from;
+            this.updatedUntil = until;
+            return this;
+        }
+
+        public Builder limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        public NoteQuery build() {
+            return new NoteQuery(this);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Embedded;
+import androidx.room.Ignore;
+
+/**
+ * A note returned by a full-text search, along with the FTS4 auxiliary
+ * output needed to rank and highlight it.
+ */
+public class NoteSearchResult {
+
+    /** Start marker wrapped around matched terms in {@link #snippet}. */
+    public static final String MATCH_START = "\u0002";
+    /** End marker wrapped around matched terms in {@link #snippet}. */
+    public static final String MATCH_END = "\u0003";
+
+    @Embedded
+    @NonNull
+    public NoteListItem note;
+
+    /** Raw matchinfo(notes_fts, 'pcnalx') blob, consumed by {@link SearchRanker}. */
+    @ColumnInfo(name = "matchInfo")
+    public byte[] matchInfo;
+
+    /** offsets(notes_fts): column, term, byte offset and byte size of each match. */
+    @ColumnInfo(name = "matchOffsets")
+    public String matchOffsets;
+
+    /** Short fragment of the body with matches wrapped in MATCH_START / MATCH_END. */
+    @ColumnInfo(name = "snippet")
+    public String snippet;
+
+    /** BM25 relevance, filled in by {@link SearchRanker}. Higher is better. */
+    @Ignore
+    public double score;
+
+    public NoteSearchResult() {
+        this.note = new NoteListItem();
+    }
+}
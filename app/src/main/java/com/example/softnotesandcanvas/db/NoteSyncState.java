@@ -0,0 +1,42 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Upload bookkeeping for one note, kept out of the notes table.
+ * Status flips happen after every upload, and writing them to notes
+ * would invalidate (and re-run) every observed note list. Only queries
+ * that read note_sync_state, such as the sync badges, see these writes.
+ * <p>
+ * A note without a row here has never been edited locally and is treated
+ * as SYNCED.
+ */
+@Entity(tableName = "note_sync_state",
+        indices = {@Index(value = {"status", "note_id"})})
+public class NoteSyncState {
+
+    @NonNull
+    @PrimaryKey
+    @ColumnInfo(name = "note_id")
+    public String noteId = "";
+
+    @NonNull
+    @ColumnInfo(name = "status")
+    public SyncStatus status = SyncStatus.SYNCED;
+
+    /** Failed or retried uploads since the last success. */
+    @ColumnInfo(name = "attempts", defaultValue = "0")
+    public int attempts;
+
+    /** Message of the last failed upload, or null. */
+    @ColumnInfo(name = "last_error")
+    public String lastError;
+
+    /** HLC stamp of the newest version known to be on the server; 0 if none. */
+    @ColumnInfo(name = "last_synced_version", defaultValue = "0")
+    public long lastSyncedVersion;
+}
@@ -0,0 +1,69 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * The paragraph CRDT of a synced text note (see {@link ParagraphCrdt}).
+ * On the server a text note's document holds a checkpoint, the content
+ * as of the stamp in its textBase field, and textOps, the deltas appended
+ * since. Devices seed the CRDT from the checkpoint and merge the deltas,
+ * so concurrent edits merge instead of conflicting, and an upload carries
+ * only the paragraphs that changed.
+ * <p>
+ * The state always renders to the note's stored content. A note without
+ * a row here has no usable CRDT, and its next content upload writes a new
+ * checkpoint.
+ */
+@Entity(tableName = "note_text")
+public class NoteText {
+
+    /** Op log size past which the next content upload writes a new checkpoint instead. */
+    public static final int MAX_LOG_BYTES = 256 * 1024;
+
+    @NonNull
+    @PrimaryKey
+    @ColumnInfo(name = "note_id")
+    public String noteId = "";
+
+    /** Stamp of the checkpoint the state was seeded from. */
+    @ColumnInfo(name = "base")
+    public long base;
+
+    /** ParagraphCrdt.encode() of the note's content. */
+    @NonNull
+    @ColumnInfo(name = "state")
+    public String state = "";
+
+    /** This device's edits up to this stamp are on the server. */
+    @ColumnInfo(name = "acked", defaultValue = "0")
+    public long acked;
+
+    /** Approximate size of the server's op log since the checkpoint. */
+    @ColumnInfo(name = "log_bytes", defaultValue = "0")
+    public int logBytes;
+
+    public NoteText() {
+    }
+
+    public NoteText(@NonNull String noteId, long base, @NonNull String state) {
+        this.noteId = noteId;
+        this.base = base;
+        this.state = state;
+        this.acked = base;
+    }
+
+    /**
+     * Creates the trigger that drops a note's CRDT when its row is deleted.
+     * Called from onCreate for fresh installs and from the migration.
+     *
+     * @param db The database being created or migrated.
+     */
+    static void createTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS note_text_after_delete AFTER DELETE ON notes BEGIN "
+                + "DELETE FROM note_text WHERE note_id = OLD.id; END");
+    }
+}
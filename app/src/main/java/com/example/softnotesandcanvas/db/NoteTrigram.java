@@ -0,0 +1,43 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * One posting in the trigram index: "this note contains this trigram".
+ * The (trigram, note_id) primary key lets infix searches intersect
+ * posting lists with an index range scan instead of a LIKE table scan.
+ * Only active (not trashed, not deleted) notes are indexed.
+ */
+@Entity(tableName = "note_trigrams",
+        primaryKeys = {"trigram", "note_id"},
+        indices = {@Index("note_id")})
+public class NoteTrigram {
+
+    @NonNull
+    @ColumnInfo(name = "trigram")
+    public String trigram;
+
+    @NonNull
+    @ColumnInfo(name = "note_id")
+    public String noteId;
+
+    public NoteTrigram(@NonNull String trigram, @NonNull String noteId) {
+        this.trigram = trigram;
+        this.noteId = noteId;
+    }
+
+    /**
+     * Creates the trigger that drops postings when a note row is deleted.
+     * Called from onCreate for fresh installs and from the 3 -> 4 migration.
+     *
+     * @param db The database being created or migrated.
+     */
+    static void createTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS note_trigrams_after_delete AFTER DELETE ON notes BEGIN "
+                + "DELETE FROM note_trigrams WHERE note_id = OLD.id; END");
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Embedded;
+
+/**
+ * A note returned by the typo-tolerant trigram search, with the number
+ * of query trigrams it shares with the search text.
+ */
+public class NoteTrigramMatch {
+
+    @Embedded
+    @NonNull
+    public NoteListItem note;
+
+    @ColumnInfo(name = "trigramHits")
+    public int trigramHits;
+
+    public NoteTrigramMatch() {
+        this.note = new NoteListItem();
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.room.TypeConverter;
+
+/**
+ * Stores {@link Note#type} as an integer code while the app and the
+ * Firestore documents keep using the TYPE_TEXT / TYPE_CANVAS strings.
+ * Applied per field (not database-wide) so other String columns are untouched.
+ */
+public class NoteTypeConverter {
+
+    /**
+     * @param type A note type string. Anything other than TYPE_CANVAS is text.
+     * @return The integer code stored in the type column.
+     */
+    @TypeConverter
+    public static int toCode(String type) {
+        return Note.TYPE_CANVAS.equals(type) ? Note.TYPE_CODE_CANVAS : Note.TYPE_CODE_TEXT;
+    }
+
+    /**
+     * @param code The integer code from the type column.
+     * @return The note type string.
+     */
+    @TypeConverter
+    public static String fromCode(int code) {
+        return code == Note.TYPE_CODE_CANVAS ? Note.TYPE_CANVAS : Note.TYPE_TEXT;
+    }
+}
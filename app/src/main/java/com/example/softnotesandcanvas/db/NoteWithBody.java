@@ -0,0 +1,40 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.room.Embedded;
+import androidx.room.Relation;
+
+/**
+ * A notes row together with its out-of-row body and its text CRDT, if it
+ * has them. Use {@link #toNote()} to get the full note.
+ */
+public class NoteWithBody {
+
+    @Embedded
+    public Note note;
+
+    @Relation(parentColumn = "id", entityColumn = "note_id")
+    public NoteBody body;
+
+    @Relation(parentColumn = "id", entityColumn = "note_id")
+    public NoteText text;
+
+    /**
+     * @return The note with its content filled in from the body row and
+     *         its CRDT checkpoint and state, or null if there is no note.
+     */
+    public Note toNote() {
+        if (note != null && body != null) {
+            note.content = body.content;
+        }
+        if (note != null && text != null) {
+            note.textBase = text.base;
+            note.textState = text.state;
+        }
+        return note;
+    }
+
+    /** Null-safe {@link #toNote()}, for mapping query results. */
+    public static Note noteOf(NoteWithBody row) {
+        return row != null ? row.toNote() : null;
+    }
+}
@@ -0,0 +1,470 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A sequence CRDT over the paragraphs of a text note, in the style of RGA.
+ * Paragraphs are the lines of the note's HTML (Html.toHtml writes one per
+ * line). Each paragraph is identified by the {@link Id} of the edit that
+ * inserted it and sits after the paragraph it was inserted after; concurrent
+ * inserts at the same place are ordered by id. A paragraph's text is a
+ * last-writer-wins register ordered by {@link Hlc}, and removed paragraphs
+ * stay as tombstones so later inserts can still refer to them.
+ * <p>
+ * Replicas exchange deltas (see {@link #delta}): one record per paragraph a
+ * device inserted, rewrote or removed since a given stamp. Merging is
+ * idempotent and commutative, so deltas can be re-sent and merged in any
+ * order as long as an insert arrives after its parent's. Records whose
+ * parent is unknown are skipped.
+ * <p>
+ * Concurrent edits to different paragraphs both survive; of two concurrent
+ * edits to the same paragraph, the later one wins.
+ */
+public final class ParagraphCrdt {
+
+    /** Issues the stamps of local edits, e.g. HybridLogicalClock::now. */
+    public interface Stamps {
+        long next();
+    }
+
+    // Record layout: id, parent, text id, removal id, text; tab separated, one per line
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char RECORD_SEPARATOR = '\n';
+    private static final String NONE = "";
+    /** Parent of a paragraph inserted at the top. */
+    private static final String TOP = "^";
+    /** Device of the paragraphs of a checkpoint, see {@link #seed}. No real device id is empty. */
+    private static final String SEED_DEVICE = "";
+    /** Largest LCS table an edit builds, about 4 MB. */
+    private static final int MAX_DIFF_CELLS = 1 << 20;
+
+    /** An edit: its HLC stamp and the device that made it. */
+    public static final class Id implements Comparable<Id> {
+        public final long stamp;
+        @NonNull
+        public final String device;
+
+        public Id(long stamp, @NonNull String device) {
+            this.stamp = stamp;
+            this.device = device;
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            return Hlc.compare(stamp, device, other.stamp, other.device);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Id)) return false;
+            Id id = (Id) o;
+            return stamp == id.stamp && device.equals(id.device);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(stamp, device);
+        }
+
+        boolean isBy(String deviceId, long after) {
+            return stamp > after && device.equals(deviceId);
+        }
+    }
+
+    /** A paragraph, or in a delta the part of one that changed. */
+    private static final class Record {
+        final Id id;
+        /** True if the record carries the insert, i.e. parent is meaningful. */
+        final boolean insert;
+        /** The paragraph this one was inserted after; null for the top. */
+        final Id parent;
+        String text;
+        Id textId;
+        Id removedId;
+
+        Record(Id id, boolean insert, @Nullable Id parent, String text, Id textId, Id removedId) {
+            this.id = id;
+            this.insert = insert;
+            this.parent = parent;
+            this.text = text;
+            this.textId = textId;
+            this.removedId = removedId;
+        }
+    }
+
+    private final List<Record> paragraphs = new ArrayList<>();
+    private final Map<Id, Record> byId = new HashMap<>();
+    private long maxStamp;
+
+    private ParagraphCrdt() {
+    }
+
+    /**
+     * The state of a checkpoint: the content's paragraphs with ids derived
+     * from the checkpoint stamp alone, so every replica seeding from the
+     * same checkpoint gets the same ids.
+     *
+     * @param content The content written with the checkpoint.
+     * @param base The checkpoint's stamp; its paragraphs get stamps just below it.
+     */
+    public static ParagraphCrdt seed(@Nullable String content, long base) {
+        ParagraphCrdt crdt = new ParagraphCrdt();
+        String[] lines = split(content);
+        Id parent = null;
+        for (int i = 0; i < lines.length; i++) {
+            Id id = new Id(base - lines.length + 1 + i, SEED_DEVICE);
+            crdt.append(new Record(id, true, parent, lines[i], id, null));
+            parent = id;
+        }
+        return crdt;
+    }
+
+    /** Reads a state written by {@link #encode()}. */
+    public static ParagraphCrdt decode(@NonNull String state) {
+        ParagraphCrdt crdt = new ParagraphCrdt();
+        // Stored in sequence order, so no integration is needed
+        for (Record record : parse(state)) {
+            crdt.append(record);
+        }
+        return crdt;
+    }
+
+    /** The whole state, tombstones included, in sequence order. */
+    @NonNull
+    public String encode() {
+        StringBuilder out = new StringBuilder();
+        for (Record paragraph : paragraphs) {
+            write(out, paragraph, true, true, paragraph.removedId != null);
+        }
+        return out.toString();
+    }
+
+    /** The content: the text of every paragraph that is not removed, one per line. */
+    @NonNull
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        boolean first = true;
+        for (Record paragraph : paragraphs) {
+            if (paragraph.removedId == null) {
+                if (!first) {
+                    out.append(RECORD_SEPARATOR);
+                }
+                out.append(paragraph.text);
+                first = false;
+            }
+        }
+        return out.toString();
+    }
+
+    /** The largest stamp of any edit in the state. */
+    public long maxStamp() {
+        return maxStamp;
+    }
+
+    /**
+     * Records a local edit that turned the rendered content into the given
+     * content. Unchanged paragraphs are found with a longest common
+     * subsequence; between them, old paragraphs are rewritten pairwise
+     * and the rest are removed or inserted.
+     *
+     * @param deviceId This device.
+     * @param stamps Issues one stamp per changed paragraph.
+     */
+    public void edit(@Nullable String content, @NonNull String deviceId, @NonNull Stamps stamps) {
+        List<Record> visible = visible();
+        String[] lines = split(content);
+        int oldCount = visible.size();
+        int newCount = lines.length;
+        int prefix = 0;
+        while (prefix < oldCount && prefix < newCount && visible.get(prefix).text.equals(lines[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldCount - prefix && suffix < newCount - prefix
+                && visible.get(oldCount - 1 - suffix).text.equals(lines[newCount - 1 - suffix])) {
+            suffix++;
+        }
+        int[][] common = commonLengths(visible, lines, prefix, oldCount - suffix, newCount - suffix);
+        int i = prefix;
+        int j = prefix;
+        Record anchor = prefix > 0 ? visible.get(prefix - 1) : null;
+        while (i < oldCount - suffix || j < newCount - suffix) {
+            // Collect the run of unmatched paragraphs up to the next match
+            int oldEnd = i;
+            int newEnd = j;
+            while (common != null && oldEnd < oldCount - suffix && newEnd < newCount - suffix
+                    && !visible.get(oldEnd).text.equals(lines[newEnd])) {
+                if (common[oldEnd - prefix + 1][newEnd - prefix] >= common[oldEnd - prefix][newEnd - prefix + 1]) {
+                    oldEnd++;
+                } else {
+                    newEnd++;
+                }
+            }
+            if (common == null || oldEnd == oldCount - suffix || newEnd == newCount - suffix) {
+                oldEnd = oldCount - suffix;
+                newEnd = newCount - suffix;
+            }
+            for (; i < oldEnd && j < newEnd; i++, j++) {
+                Record paragraph = visible.get(i);
+                paragraph.text = lines[j];
+                paragraph.textId = stamp(deviceId, stamps);
+                anchor = paragraph;
+            }
+            for (; i < oldEnd; i++) {
+                visible.get(i).removedId = stamp(deviceId, stamps);
+            }
+            for (; j < newEnd; j++) {
+                Id id = stamp(deviceId, stamps);
+                anchor = integrate(new Record(id, true, anchor != null ? anchor.id : null, lines[j], id, null));
+            }
+            if (i < oldCount - suffix) {
+                // A match: keep it
+                anchor = visible.get(i);
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Suffix LCS lengths of old paragraphs [from, oldEnd) and new lines
+     * [from, newEnd): cell [a][b] is the LCS of old[from + a..] and
+     * new[from + b..].
+     *
+     * @return The table, or null if it would be over MAX_DIFF_CELLS; the
+     *         whole range is then treated as changed.
+     */
+    @Nullable
+    private static int[][] commonLengths(List<Record> old, String[] lines, int from, int oldEnd, int newEnd) {
+        int rows = oldEnd - from;
+        int columns = newEnd - from;
+        if ((long) rows * columns > MAX_DIFF_CELLS) {
+            return null;
+        }
+        int[][] common = new int[rows + 1][columns + 1];
+        for (int a = rows - 1; a >= 0; a--) {
+            for (int b = columns - 1; b >= 0; b--) {
+                common[a][b] = old.get(from + a).text.equals(lines[from + b])
+                        ? common[a + 1][b + 1] + 1
+                        : Math.max(common[a + 1][b], common[a][b + 1]);
+            }
+        }
+        return common;
+    }
+
+    /**
+     * The device's edits with stamps after the given one, as a delta for
+     * {@link #merge}.
+     *
+     * @return The encoded records, or null if there are none.
+     */
+    @Nullable
+    public String delta(@NonNull String deviceId, long after) {
+        StringBuilder out = new StringBuilder();
+        for (Record paragraph : paragraphs) {
+            boolean inserted = paragraph.id.isBy(deviceId, after);
+            boolean rewritten = paragraph.textId.isBy(deviceId, after);
+            boolean removed = paragraph.removedId != null && paragraph.removedId.isBy(deviceId, after);
+            if (inserted || rewritten || removed) {
+                write(out, paragraph, inserted, inserted || rewritten, paragraph.removedId != null && (inserted || removed));
+            }
+        }
+        return out.length() == 0 ? null : out.toString();
+    }
+
+    /**
+     * Merges deltas from other replicas.
+     *
+     * @return The number of records merged; records that change nothing count too.
+     */
+    public int merge(@Nullable List<String> deltas) {
+        if (deltas == null) {
+            return 0;
+        }
+        List<Record> pending = new ArrayList<>();
+        for (String delta : deltas) {
+            if (delta != null) {
+                pending.addAll(parse(delta));
+            }
+        }
+        int merged = 0;
+        boolean progress = true;
+        // Deltas normally arrive parents first; retry the rest until nothing more fits
+        while (!pending.isEmpty() && progress) {
+            progress = false;
+            List<Record> orphans = new ArrayList<>();
+            for (Record record : pending) {
+                if (apply(record)) {
+                    merged++;
+                    progress = true;
+                } else {
+                    orphans.add(record);
+                }
+            }
+            pending = orphans;
+        }
+        return merged;
+    }
+
+    private boolean apply(Record record) {
+        Record paragraph = byId.get(record.id);
+        if (paragraph == null) {
+            if (!record.insert || (record.parent != null && !byId.containsKey(record.parent))) {
+                return false;
+            }
+            integrate(new Record(record.id, true, record.parent, record.text, record.textId, record.removedId));
+            return true;
+        }
+        if (record.textId != null && record.textId.compareTo(paragraph.textId) > 0) {
+            paragraph.text = record.text;
+            paragraph.textId = record.textId;
+            see(record.textId);
+        }
+        if (record.removedId != null && (paragraph.removedId == null || record.removedId.compareTo(paragraph.removedId) > 0)) {
+            paragraph.removedId = record.removedId;
+            see(record.removedId);
+        }
+        return true;
+    }
+
+    /**
+     * Places a new paragraph right after its parent, past any paragraphs with
+     * larger ids there: those were inserted concurrently at the same place,
+     * or descend from one that was.
+     */
+    private Record integrate(Record paragraph) {
+        int index = paragraph.parent == null ? 0 : paragraphs.indexOf(byId.get(paragraph.parent)) + 1;
+        while (index < paragraphs.size() && paragraphs.get(index).id.compareTo(paragraph.id) > 0) {
+            index++;
+        }
+        paragraphs.add(index, paragraph);
+        index(paragraph);
+        return paragraph;
+    }
+
+    private void append(Record paragraph) {
+        paragraphs.add(paragraph);
+        index(paragraph);
+    }
+
+    private void index(Record paragraph) {
+        byId.put(paragraph.id, paragraph);
+        see(paragraph.id);
+        see(paragraph.textId);
+        see(paragraph.removedId);
+    }
+
+    private void see(@Nullable Id id) {
+        if (id != null && id.stamp > maxStamp) {
+            maxStamp = id.stamp;
+        }
+    }
+
+    private Id stamp(String deviceId, Stamps stamps) {
+        Id id = new Id(stamps.next(), deviceId);
+        see(id);
+        return id;
+    }
+
+    private List<Record> visible() {
+        List<Record> visible = new ArrayList<>(paragraphs.size());
+        for (Record paragraph : paragraphs) {
+            if (paragraph.removedId == null) {
+                visible.add(paragraph);
+            }
+        }
+        return visible;
+    }
+
+    private static String[] split(@Nullable String content) {
+        return content == null || content.isEmpty() ? new String[0] : content.split("\n", -1);
+    }
+
+    // --- Encoding ---
+
+    private static void write(StringBuilder out, Record record, boolean insert, boolean text, boolean removed) {
+        out.append(id(record.id)).append(FIELD_SEPARATOR)
+                .append(insert ? (record.parent == null ? TOP : id(record.parent)) : NONE).append(FIELD_SEPARATOR)
+                .append(text ? id(record.textId) : NONE).append(FIELD_SEPARATOR)
+                .append(removed ? id(record.removedId) : NONE).append(FIELD_SEPARATOR);
+        if (text) {
+            escape(out, record.text);
+        }
+        out.append(RECORD_SEPARATOR);
+    }
+
+    private static List<Record> parse(String encoded) {
+        List<Record> records = new ArrayList<>();
+        int start = 0;
+        while (start < encoded.length()) {
+            int end = encoded.indexOf(RECORD_SEPARATOR, start);
+            if (end < 0) {
+                end = encoded.length();
+            }
+            String[] fields = encoded.substring(start, end).split(String.valueOf(FIELD_SEPARATOR), -1);
+            if (fields.length == 5) {
+                boolean insert = !fields[1].isEmpty();
+                Id textId = parseId(fields[2]);
+                records.add(new Record(parseId(fields[0]), insert,
+                        insert && !TOP.equals(fields[1]) ? parseId(fields[1]) : null,
+                        textId != null ? unescape(fields[4]) : null, textId, parseId(fields[3])));
+            }
+            start = end + 1;
+        }
+        return records;
+    }
+
+    private static String id(Id id) {
+        return Long.toHexString(id.stamp) + ':' + escape(new StringBuilder(), id.device);
+    }
+
+    @Nullable
+    private static Id parseId(String field) {
+        if (field.isEmpty()) {
+            return null;
+        }
+        int colon = field.indexOf(':');
+        return new Id(Long.parseUnsignedLong(field.substring(0, colon), 16), unescape(field.substring(colon + 1)));
+    }
+
+    private static StringBuilder escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == FIELD_SEPARATOR) {
+                out.append("\\t");
+            } else if (c == RECORD_SEPARATOR) {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        return out;
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                out.append(next == 't' ? FIELD_SEPARATOR : next == 'n' ? RECORD_SEPARATOR : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
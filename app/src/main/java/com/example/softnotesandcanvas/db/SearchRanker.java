@@ -0,0 +1,96 @@
+package com.example.softnotesandcanvas.db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ranks full-text search results with Okapi BM25.
+ * FTS4 has no built-in ranking function, so the score is computed from
+ * the matchinfo(notes_fts, 'pcnalx') blob returned with every hit.
+ */
+public final class SearchRanker {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /** Per-column weights in notes_fts column order: title, body. */
+    private static final double[] WEIGHTS = {4.0, 1.0};
+
+    private SearchRanker() {
+        // Static helpers only
+    }
+
+    /** Most relevant first; ties go to the most recently updated. */
+    private static final Comparator<NoteSearchResult> BY_RELEVANCE = (a, b) -> {
+        int byScore = Double.compare(b.score, a.score);
+        return byScore != 0 ? byScore : Long.compare(b.note.updatedAt, a.note.updatedAt);
+    };
+
+    /**
+     * Scores every hit and keeps the limit most relevant, best first. The
+     * hits come from the database unordered and uncapped, so that the
+     * best match is never cut before it is scored.
+     *
+     * @param results All the search hits.
+     * @param limit The most hits to keep.
+     * @return The kept hits; the list may be results itself.
+     */
+    public static List<NoteSearchResult> rank(List<NoteSearchResult> results, int limit) {
+        if (results == null) {
+            return null;
+        }
+        for (NoteSearchResult r : results) {
+            r.score = bm25(r.matchInfo);
+        }
+        Collections.sort(results, BY_RELEVANCE);
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * Computes the BM25 score from a 'pcnalx' matchinfo blob.
+     *
+     * @param matchInfo The blob, as 32-bit unsigned ints in native byte order.
+     * @return The score, or 0 if the blob is missing or malformed.
+     */
+    static double bm25(byte[] matchInfo) {
+        if (matchInfo == null || matchInfo.length < 12) {
+            return 0;
+        }
+        IntBuffer ints = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = ints.get(0);
+        int columns = ints.get(1);
+        int expected = 3 + 2 * columns + 3 * phrases * columns;
+        if (ints.limit() < expected) {
+            return 0;
+        }
+        double totalDocs = ints.get(2);
+        int avgOffset = 3;
+        int lenOffset = avgOffset + columns;
+        int hitsOffset = lenOffset + columns;
+
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns; c++) {
+                int base = hitsOffset + 3 * (c + p * columns);
+                double tf = ints.get(base);
+                if (tf == 0) {
+                    continue;
+                }
+                double docsWithHits = ints.get(base + 2);
+                double idf = Math.log((totalDocs - docsWithHits + 0.5) / (docsWithHits + 0.5));
+                // Common terms would otherwise get a negative idf and lower the score
+                idf = Math.max(idf, 1e-6);
+                double avgLen = Math.max(ints.get(avgOffset + c), 1);
+                double len = ints.get(lenOffset + c);
+                double weight = c < WEIGHTS.length ? WEIGHTS[c] : 1.0;
+                score += weight * idf * (tf * (K1 + 1)) / (tf + K1 * (1 - B + B * len / avgLen));
+            }
+        }
+        return score;
+    }
+}
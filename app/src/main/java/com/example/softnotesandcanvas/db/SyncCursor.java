@@ -0,0 +1,54 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * How far a user's notes have been pulled from Firestore: the largest
+ * (syncedAt, id) seen so far, in the order Firestore sorts them. Pulls
+ * and the realtime listener start after it, so a cold start only reads
+ * what changed since the last session.
+ * <p>
+ * syncedAt is the server's time of the write (see Note#syncedAt), never
+ * the writer's clock: an edit uploaded late, or from a device whose clock
+ * is behind, still sorts after every cursor taken before it arrived.
+ */
+@Entity(tableName = "sync_cursor")
+public class SyncCursor {
+
+    @NonNull
+    @PrimaryKey
+    @ColumnInfo(name = "user_id")
+    public String userId = "";
+
+    /** Server syncedAt of the newest pulled note, in epoch micros. */
+    @ColumnInfo(name = "synced_at")
+    public long syncedAt;
+
+    /** Id of that note; breaks ties between notes written in the same commit. */
+    @NonNull
+    @ColumnInfo(name = "note_id")
+    public String noteId = "";
+
+    public SyncCursor() {
+    }
+
+    public SyncCursor(@NonNull String userId, long syncedAt, @NonNull String noteId) {
+        this.userId = userId;
+        this.syncedAt = syncedAt;
+        this.noteId = noteId;
+    }
+
+    /** True if (syncedAt, noteId) comes after the other cursor's position. */
+    public boolean isAfter(SyncCursor other) {
+        if (other == null) {
+            return true;
+        }
+        if (syncedAt != other.syncedAt) {
+            return syncedAt > other.syncedAt;
+        }
+        return noteId.compareTo(other.noteId) > 0;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A note waiting to be uploaded. Written in the same transaction as the
+ * local change (see NoteDao.markPending), so no edit can be saved without
+ * its upload being recorded.
+ * <p>
+ * There is at most one entry per note; a newer edit replaces the entry and
+ * gets a new {@link #seq}, since the drain uploads whatever the note looks
+ * like when it runs. After a successful upload only entries with the seq
+ * that was read are removed, so an edit made during the upload stays queued.
+ * <p>
+ * Replacing an entry is how writes are coalesced: the drain waits until a
+ * note has been quiet for a moment (see UploadScheduler), and all the
+ * edits folded into its entry until then go up as one write.
+ */
+@Entity(tableName = "sync_outbox",
+        indices = {@Index(value = "note_id", unique = true)})
+public class SyncOutboxEntry {
+
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "seq")
+    public long seq;
+
+    @NonNull
+    @ColumnInfo(name = "note_id")
+    public String noteId = "";
+
+    /** When the entry was written, in epoch millis. */
+    @ColumnInfo(name = "enqueued_at")
+    public long enqueuedAt;
+
+    /**
+     * NoteFields flags changed since the last upload; a replacing entry
+     * keeps the flags of the one it replaces.
+     */
+    @ColumnInfo(name = "dirty_fields", defaultValue = "" + NoteFields.ALL)
+    public int dirtyFields;
+
+    /**
+     * When the note was first queued since its last upload, in epoch
+     * millis; a replacing entry keeps it, so edits cannot hold an upload
+     * back forever.
+     */
+    @ColumnInfo(name = "first_enqueued_at", defaultValue = "0")
+    public long firstEnqueuedAt;
+
+    /** Local edits folded into this entry; all but one were coalesced away. */
+    @ColumnInfo(name = "edits", defaultValue = "1")
+    public int edits;
+
+    /**
+     * True if one of the edits is a user-visible action (trash, restore,
+     * delete), which skips the coalescing wait; a replacing entry keeps it.
+     */
+    @ColumnInfo(name = "priority", defaultValue = "0")
+    public boolean priority;
+
+    /**
+     * Bytes of drawing the note had to upload when it was queued, which
+     * decide its upload lane (see UploadScheduler.Lane). A replacing entry
+     * keeps it: were it recounted as the upload progresses, the entry
+     * would move lanes under the drain uploading it.
+     */
+    @ColumnInfo(name = "canvas_bytes", defaultValue = "0")
+    public long canvasBytes;
+}
@@ -1,8 +1,36 @@
 package com.example.softnotesandcanvas.db;
 
+/**
+ * Sync state of a note. Stored in the database as a small integer
+ * code (see {@link Converters}); the codes must never be renumbered.
+ */
 public enum SyncStatus {
-    SYNCED,
-    SYNCING,
-    OFFLINE,
-    CONFLICT
-}
\ No newline at end of file
+    SYNCED(SyncStatus.CODE_SYNCED),
+    SYNCING(SyncStatus.CODE_SYNCING),
+    OFFLINE(SyncStatus.CODE_OFFLINE),
+    CONFLICT(SyncStatus.CODE_CONFLICT);
+
+    // Constants so the codes can be used inside @Query strings
+    public static final int CODE_SYNCED = 0;
+    public static final int CODE_SYNCING = 1;
+    public static final int CODE_OFFLINE = 2;
+    public static final int CODE_CONFLICT = 3;
+
+    public final int code;
+
+    SyncStatus(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return The status for a stored code, or SYNCED if the code is unknown.
+     */
+    public static SyncStatus fromCode(int code) {
+        for (SyncStatus status : values()) {
+            if (status.code == code) {
+                return status;
+            }
+        }
+        return SYNCED;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.softnotesandcanvas.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Extracts the trigrams stored in the note_trigrams posting table.
+ * Text is lower-cased so the index is a superset of what a
+ * case-insensitive LIKE can match; candidates are always re-checked
+ * with the real LIKE before they reach the UI.
+ */
+public final class Trigrams {
+
+    /** Queries shorter than this cannot use the index. */
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    /**
+     * Upper bound on trigrams used per query. Any subset of a query's
+     * trigrams still yields a superset of the true matches, so long
+     * queries are sampled to keep the posting list intersection cheap.
+     */
+    private static final int MAX_QUERY_TRIGRAMS = 32;
+
+    private Trigrams() {
+        // Static helpers only
+    }
+
+    /**
+     * Returns the distinct trigrams of a note's title and raw body.
+     *
+     * @param title The note title. May be null.
+     * @param content The note body as stored in the notes table. May be null.
+     * @return The trigram set, in first-seen order.
+     */
+    public static Set<String> ofNote(String title, String content) {
+        Set<String> grams = new LinkedHashSet<>();
+        addAll(grams, title);
+        addAll(grams, content);
+        return grams;
+    }
+
+    /**
+     * Returns the trigrams to look up for an infix query.
+     * Trigrams containing LIKE wildcards are skipped since they never
+     * appear literally in the text.
+     *
+     * @param query The substring the user is looking for.
+     * @return The lookup trigrams; empty if the query is too short to index.
+     */
+    public static List<String> ofQuery(String query) {
+        Set<String> grams = new LinkedHashSet<>();
+        addAll(grams, query);
+        List<String> usable = new ArrayList<>(grams.size());
+        for (String gram : grams) {
+            if (gram.indexOf('%') < 0 && gram.indexOf('_') < 0) {
+                usable.add(gram);
+            }
+        }
+        if (usable.size() <= MAX_QUERY_TRIGRAMS) {
+            return usable;
+        }
+        // Spread the sample over the whole query so both ends still constrain the match
+        List<String> sample = new ArrayList<>(MAX_QUERY_TRIGRAMS);
+        double step = (double) usable.size() / MAX_QUERY_TRIGRAMS;
+        for (int i = 0; i < MAX_QUERY_TRIGRAMS; i++) {
+            sample.add(usable.get((int) (i * step)));
+        }
+        return sample;
+    }
+
+    private static void addAll(Set<String> grams, String text) {
+        if (text == null || text.length() < MIN_QUERY_LENGTH) {
+            return;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + MIN_QUERY_LENGTH <= lower.length(); i++) {
+            grams.add(lower.substring(i, i + MIN_QUERY_LENGTH));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.softnotesandcanvas.repository;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The app's executors, one lane per kind of work, so a backlog of one kind
+ * never queues in front of another. Each lane reports its queue depth,
+ * wait and run times, see {@link #getStats}.
+ * <ul>
+ *     <li>userWrites: database writes the user is waiting for (saves,
+ *     trash, restore). One thread, a step above default priority, so it
+ *     wins the CPU over the background lanes; a write waits at most for
+ *     the sync transaction in progress, not for the sync queue.</li>
+ *     <li>syncApply: remote changes stored into Room, and sync bookkeeping.
+ *     One background thread with a bounded queue: when it is full, the
+ *     submitting thread waits, so downloads go at the rate Room stores
+ *     them. Only the app's own threads submit to it; Firestore's listener
+ *     callbacks go through the network lane.</li>
+ *     <li>io: files, i.e. drawings written to and cleared from the blob
+ *     store, and in-memory work on query results.</li>
+ *     <li>network: blocking remote calls, i.e. pulls, the bootstrap and
+ *     drawing downloads, and storing the listener's changes. Its queue
+ *     has no bound, so handing it work never blocks.</li>
+ * </ul>
+ */
+public final class AppExecutors {
+
+    /** Remote changes waiting to be stored: a few pages of a pull or snapshot. */
+    private static final int SYNC_APPLY_CAPACITY = 8;
+    private static final int IO_THREADS = 2;
+    /** A pull or bootstrap, the listener's changes and drawing downloads side by side. */
+    private static final int NETWORK_THREADS = 5;
+
+    private static volatile AppExecutors INSTANCE;
+
+    private final InstrumentedExecutor userWrites;
+    private final InstrumentedExecutor syncApply;
+    private final InstrumentedExecutor io;
+    private final InstrumentedExecutor network;
+
+    private AppExecutors() {
+        userWrites = new InstrumentedExecutor("user-writes", 1,
+                Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE, 0);
+        syncApply = new InstrumentedExecutor("sync-apply", 1, Process.THREAD_PRIORITY_BACKGROUND,
+                SYNC_APPLY_CAPACITY);
+        io = new InstrumentedExecutor("io", IO_THREADS, Process.THREAD_PRIORITY_BACKGROUND, 0);
+        network = new InstrumentedExecutor("network", NETWORK_THREADS, Process.THREAD_PRIORITY_BACKGROUND, 0);
+    }
+
+    public static AppExecutors getInstance() {
+        if (INSTANCE == null) {
+            synchronized (AppExecutors.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new AppExecutors();
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    public InstrumentedExecutor userWrites() {
+        return userWrites;
+    }
+
+    public InstrumentedExecutor syncApply() {
+        return syncApply;
+    }
+
+    public InstrumentedExecutor io() {
+        return io;
+    }
+
+    public InstrumentedExecutor network() {
+        return network;
+    }
+
+    /** A snapshot of every lane's counters. */
+    public List<InstrumentedExecutor.Stats> getStats() {
+        List<InstrumentedExecutor.Stats> stats = new ArrayList<>();
+        stats.add(userWrites.getStats());
+        stats.add(syncApply.getStats());
+        stats.add(io.getStats());
+        stats.add(network.getStats());
+        return stats;
+    }
+}
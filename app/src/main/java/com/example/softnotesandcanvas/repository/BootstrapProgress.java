@@ -0,0 +1,24 @@
+package com.example.softnotesandcanvas.repository;
+
+/**
+ * State of the first full download of a user's notes (see
+ * NoteRepository#startFirestoreListener), for a progress indicator.
+ */
+public final class BootstrapProgress {
+
+    public static final BootstrapProgress IDLE = new BootstrapProgress(false, 0);
+
+    /** True while the download is running. */
+    public final boolean running;
+    /** Notes downloaded and stored so far. */
+    public final int loaded;
+
+    private BootstrapProgress(boolean running, int loaded) {
+        this.running = running;
+        this.loaded = loaded;
+    }
+
+    static BootstrapProgress running(int loaded) {
+        return new BootstrapProgress(true, loaded);
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.softnotesandcanvas.repository;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed thread pool that times its tasks: how long each waited in the
+ * queue and how long it ran, see {@link #getStats}. A task that waited
+ * longer than SLOW_WAIT_MILLIS is logged with the lane's stats, so a lane
+ * that falls behind shows up in logcat.
+ * <p>
+ * With a capacity, a full queue blocks the submitting thread until there
+ * is room, so a producer slows to the rate the lane keeps up with. A task
+ * must then never submit to its own lane.
+ */
+public class InstrumentedExecutor extends ThreadPoolExecutor {
+
+    private static final String TAG = "InstrumentedExecutor";
+    private static final long SLOW_WAIT_MILLIS = 250;
+
+    /** A snapshot of a lane's counters. */
+    public static final class Stats {
+        public final String name;
+        /** Tasks waiting to run. */
+        public final int queued;
+        /** Tasks run so far. */
+        public final long completed;
+        public final long totalWaitMillis;
+        public final long maxWaitMillis;
+        public final long totalRunMillis;
+        public final long maxRunMillis;
+
+        Stats(String name, int queued, long completed, long totalWaitMillis, long maxWaitMillis,
+              long totalRunMillis, long maxRunMillis) {
+            this.name = name;
+            this.queued = queued;
+            this.completed = completed;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.totalRunMillis = totalRunMillis;
+            this.maxRunMillis = maxRunMillis;
+        }
+
+        public long averageWaitMillis() {
+            return completed == 0 ? 0 : totalWaitMillis / completed;
+        }
+
+        public long averageRunMillis() {
+            return completed == 0 ? 0 : totalRunMillis / completed;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + queued + " queued, " + completed + " run, wait avg " + averageWaitMillis()
+                    + " ms max " + maxWaitMillis + " ms, run avg " + averageRunMillis() + " ms max "
+                    + maxRunMillis + " ms";
+        }
+    }
+
+    private final String name;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+
+    /**
+     * @param threadPriority A android.os.Process THREAD_PRIORITY_ value.
+     * @param capacity Most tasks queued at once, or 0 for no limit.
+     */
+    public InstrumentedExecutor(String name, int threads, int threadPriority, int capacity) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, queue(capacity), threadFactory(name, threadPriority),
+                capacity > 0 ? new WaitForRoom() : new AbortPolicy());
+        this.name = name;
+    }
+
+    private static BlockingQueue<Runnable> queue(int capacity) {
+        return capacity > 0 ? new ArrayBlockingQueue<>(capacity) : new LinkedBlockingQueue<>();
+    }
+
+    private static ThreadFactory threadFactory(String name, int threadPriority) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> new Thread(() -> {
+            Process.setThreadPriority(threadPriority);
+            task.run();
+        }, name + "-" + count.incrementAndGet());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long queuedAt = System.nanoTime();
+        super.execute(() -> {
+            long startedAt = System.nanoTime();
+            try {
+                command.run();
+            } finally {
+                record(startedAt - queuedAt, System.nanoTime() - startedAt);
+            }
+        });
+    }
+
+    private void record(long waited, long ran) {
+        completed.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        runNanos.addAndGet(ran);
+        maxRunNanos.accumulateAndGet(ran, Math::max);
+        if (TimeUnit.NANOSECONDS.toMillis(waited) > SLOW_WAIT_MILLIS) {
+            Log.w(TAG, "Task waited " + TimeUnit.NANOSECONDS.toMillis(waited) + " ms; " + getStats());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Stats getStats() {
+        return new Stats(name, getQueue().size(), completed.get(),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.get()), TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(runNanos.get()), TimeUnit.NANOSECONDS.toMillis(maxRunNanos.get()));
+    }
+
+    /** Blocks the submitter until the queue has room. */
+    private static final class WaitForRoom implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+}
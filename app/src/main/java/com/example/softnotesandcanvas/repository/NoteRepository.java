@@ -1,208 +1,741 @@
 package com.example.softnotesandcanvas.repository;
 
 import android.app.Application;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
+import androidx.paging.Pager;
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
 
 import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
 import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.NoteKeysetPagingSource;
+import com.example.softnotesandcanvas.db.NoteListItem;
 import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteQuery;
+import com.example.softnotesandcanvas.db.NoteSearchResult;
+import com.example.softnotesandcanvas.db.NoteSyncState;
+import com.example.softnotesandcanvas.db.NoteTrigramMatch;
+import com.example.softnotesandcanvas.db.NoteWithBody;
+import com.example.softnotesandcanvas.db.SearchRanker;
+import com.example.softnotesandcanvas.db.SyncCursor;
 import com.example.softnotesandcanvas.db.SyncStatus;
+import com.example.softnotesandcanvas.db.Trigrams;
+import com.example.softnotesandcanvas.sync.BlobTransfer;
 import com.example.softnotesandcanvas.sync.DeviceUtil;
+import com.example.softnotesandcanvas.sync.FirestoreBlobBackend;
+import com.example.softnotesandcanvas.sync.FirestoreNoteStore;
+import com.example.softnotesandcanvas.sync.HybridLogicalClock;
+import com.example.softnotesandcanvas.sync.RemoteChangeApplier;
+import com.example.softnotesandcanvas.sync.RemoteNoteStore;
+import com.example.softnotesandcanvas.sync.RemoteStoreException;
 import com.example.softnotesandcanvas.sync.SyncManager;
-import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.Query;
 
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages both local (Room) and remote (Firestore) data, acting as the Single Source of Truth.
+ * <p>
+ * There is one per process, see {@link #getInstance}, so every screen shares
+ * its executors, its SyncManager and its realtime listener.
  */
 public class NoteRepository {
     private static final String TAG = "NoteRepository";
-    private static final String COLLECTION_USERS = "users";
-    private static final String COLLECTION_NOTES = "notes";
+    // Most hits shown per search; a ranked search scores them all and keeps the best this many
+    private static final int SEARCH_LIMIT = 500;
+    // Share of query trigrams a note needs for a typo-tolerant match
+    private static final double FUZZY_MIN_OVERLAP = 0.5;
+    private static final int PAGE_SIZE = 50;
+    // Pages beyond this many rows are dropped as the user scrolls away
+    private static final int MAX_LOADED_ROWS = 300;
+    // Documents per pull round trip, and per transaction when a snapshot is stored
+    private static final int PULL_PAGE_SIZE = 200;
+    // syncedAt ranges downloaded in parallel on first sign-in, each on a thread of its own
+    private static final int BOOTSTRAP_RANGES = 4;
+    // Newest canvases whose drawings are fetched after a pull, so their previews are there
+    private static final int PREFETCH_CANVASES = 20;
+    // How long the listener outlives the last started screen, so rotations and screen changes keep it
+    private static final long LISTENER_LINGER_MILLIS = 5_000;
+
+    private static volatile NoteRepository INSTANCE;
+
+    private final AppDatabase db;
 
     private final NoteDao noteDao;
+    // Lanes of AppExecutors
+    private final ExecutorService userWrites;
+    private final ExecutorService syncApply;
     private final ExecutorService io;
-    private final FirebaseFirestore firestore;
+    private final ExecutorService network;
+    private final RemoteNoteStore remoteStore;
+    private final RemoteChangeApplier applier;
+    private final CanvasBlobStore blobStore;
+    private final BlobTransfer blobTransfer;
     private final SyncManager syncManager;
     private final String deviceId;
+    private final HybridLogicalClock clock;
     // ✅ Store application context to use in methods
     private final Application application;
 
-    private ListenerRegistration firestoreListener;
+    // Both guarded by this; the generation invalidates pulls and listeners of a stopped session
+    private RemoteNoteStore.Registration remoteListener;
+    private int listenerGeneration;
+    // All guarded by this: the user whose listener the started screens share, how many
+    // screens are started, and whether the listener runs (it lingers after the last one stops)
+    private String listenerUid;
+    private int listenerUsers;
+    private boolean listenerRunning;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable pauseListener = this::pauseListenerIfUnused;
+    private final MutableLiveData<BootstrapProgress> bootstrapProgress = new MutableLiveData<>(BootstrapProgress.IDLE);
+    // All guarded by this: listener changes not stored yet, the latest per note, the session
+    // they belong to, and whether a network thread is storing them
+    private final Map<String, Note> pendingChanges = new LinkedHashMap<>();
+    private String pendingUid;
+    private int pendingGeneration;
+    private boolean storingChanges;
+
+    public static NoteRepository getInstance(Application app) {
+        if (INSTANCE == null) {
+            synchronized (NoteRepository.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new NoteRepository(app);
+                }
+            }
+        }
+        return INSTANCE;
+    }
 
-    public NoteRepository(Application app) {
+    private NoteRepository(Application app) {
         // ✅ Assign the application context to the class field
         this.application = app;
-        AppDatabase db = AppDatabase.getInstance(app);
+        db = AppDatabase.getInstance(app);
         noteDao = db.noteDao();
-        io = Executors.newSingleThreadExecutor();
-        firestore = FirebaseFirestore.getInstance();
+        AppExecutors executors = AppExecutors.getInstance();
+        userWrites = executors.userWrites();
+        syncApply = executors.syncApply();
+        io = executors.io();
+        network = executors.network();
+        remoteStore = new FirestoreNoteStore(FirebaseFirestore.getInstance());
+        blobStore = CanvasBlobStore.getInstance(app);
+        blobTransfer = new BlobTransfer(blobStore, new FirestoreBlobBackend(FirebaseFirestore.getInstance()));
         syncManager = new SyncManager(app.getApplicationContext());
         deviceId = DeviceUtil.getDeviceId(app.getApplicationContext());
+        clock = HybridLogicalClock.getInstance(app.getApplicationContext());
+        applier = new RemoteChangeApplier(noteDao, clock);
     }
 
     /**
-     * ✅ CORRECTED: Use the renamed DAO method to get active notes.
+     * Pages through a note list, one keyset page at a time.
+     *
+     * @param query The list to page. Must not be a search.
      */
-    public LiveData<List<Note>> getNotesForUser(String uid) {
-        return noteDao.getActiveNotesForUser(uid);
+    public LiveData<PagingData<NoteListItem>> getNotesPaged(NoteQuery query) {
+        PagingConfig config = new PagingConfig(PAGE_SIZE, PAGE_SIZE / 2, false, PAGE_SIZE * 2, MAX_LOADED_ROWS);
+        return PagingLiveData.getLiveData(new Pager<>(config, () -> new NoteKeysetPagingSource(db, query)));
     }
 
     /**
-     * ✅ CORRECTED: This method is now correctly wired to the DAO.
+     * Gets the user's trashed notes, newest first, one page at a time.
      */
-    public LiveData<List<Note>> getTrashedNotes(String userId) {
-        return noteDao.getTrashedNotesForUser(userId);
+    public LiveData<PagingData<NoteListItem>> getTrashedNotesPaged(String userId) {
+        return getNotesPaged(NoteQuery.forUser(userId).trashed(true).build());
     }
 
     /**
-     * ✅ NEW: Search notes by title or content.
+     * Gets the full note, content included, for the editors.
+     * Out-of-row bodies are loaded here and nowhere else on the UI side.
      */
-    public LiveData<List<Note>> searchNotes(String userId, String query) {
-        return noteDao.searchNotes(userId, query);
+    public LiveData<Note> getNote(String noteId) {
+        return Transformations.map(noteDao.observeNoteWithBody(noteId), NoteWithBody::noteOf);
     }
 
-    /** ✅ NEW: Get ONLY text notes */
-    public LiveData<List<Note>> getTextNotesOnly(String userId) {
-        return noteDao.getTextNotesOnly(userId);
+    /**
+     * Gets a canvas note's drawing, first downloading the tiles that are
+     * not on this device. Emits null if there is no drawing or it cannot be
+     * fetched. Canvases saved before the blob store are read from their
+     * local path.
+     */
+    public LiveData<Bitmap> getCanvas(Note note) {
+        MutableLiveData<Bitmap> bitmap = new MutableLiveData<>();
+        network.execute(() -> {
+            try {
+                File file;
+                if (note.canvasHash != null) {
+                    file = blobTransfer.downloadCanvas(note.userId, note.canvasHash);
+                } else if (note.canvasImagePath != null && !note.canvasImagePath.isEmpty()) {
+                    file = new File(note.canvasImagePath);
+                } else {
+                    file = null;
+                }
+                bitmap.postValue(file != null && file.exists() ? blobStore.decodeCanvas(file) : null);
+            } catch (RemoteStoreException | IOException e) {
+                Log.w(TAG, "Could not fetch drawing of note: " + note.id, e);
+                bitmap.postValue(null);
+            }
+        });
+        return bitmap;
     }
 
-    /** ✅ NEW: Get ONLY canvas notes */
-    public LiveData<List<Note>> getCanvasNotesOnly(String userId) {
-        return noteDao.getCanvasNotesOnly(userId);
+    /**
+     * Runs a full-text search described by the query, capped at
+     * SEARCH_LIMIT hits. For RELEVANCE every hit is scored and the best
+     * SEARCH_LIMIT kept; for RECENT or OLDEST the query returns the
+     * newest or oldest SEARCH_LIMIT hits in order.
+     *
+     * @param query A search, i.e. with a match expression from FtsQuery.
+     */
+    public LiveData<List<NoteSearchResult>> searchNotes(NoteQuery query) {
+        NoteQuery bounded = query.buildUpon().limit(SEARCH_LIMIT).build();
+        return sorted(noteDao.observeNotes(bounded.toQuery()), bounded.sort);
+    }
+
+    /**
+     * Substring search with LIKE semantics, served from the trigram index.
+     * Queries shorter than a trigram fall back to a plain LIKE scan.
+     *
+     * @param filter One of NoteDao.FILTER_ALL, FILTER_TEXT, FILTER_CANVAS.
+     */
+    public LiveData<List<NoteListItem>> searchNotesInfix(String userId, String query, int filter) {
+        List<String> grams = Trigrams.ofQuery(query);
+        if (grams.isEmpty()) {
+            return noteDao.searchNotesLike(userId, query, filter);
+        }
+        return noteDao.searchNotesInfix(userId, query, grams, grams.size(), filter);
+    }
+
+    /**
+     * Typo-tolerant search, ranked by the number of trigrams shared with the query.
+     * Returns null if the query is too short to have any trigrams.
+     *
+     * @param filter One of NoteDao.FILTER_ALL, FILTER_TEXT, FILTER_CANVAS.
+     */
+    public LiveData<List<NoteTrigramMatch>> searchNotesFuzzy(String userId, String query, int filter) {
+        List<String> grams = Trigrams.ofQuery(query);
+        if (grams.isEmpty()) {
+            return null;
+        }
+        int minHits = Math.max(1, (int) Math.ceil(grams.size() * FUZZY_MIN_OVERLAP));
+        return noteDao.searchNotesFuzzy(userId, grams, minHits, filter, SEARCH_LIMIT);
     }
 
-    /** ✅ NEW: Search ONLY text notes */
-    public LiveData<List<Note>> searchTextNotes(String userId, String query) {
-        return noteDao.searchTextNotes(userId, query);
+    /**
+     * Re-emits each batch of search hits in the requested order: by BM25
+     * score for RELEVANCE, otherwise by updatedAt. Sorting runs on the io
+     * executor so it never blocks the main thread.
+     */
+    private LiveData<List<NoteSearchResult>> sorted(LiveData<List<NoteSearchResult>> source, NoteQuery.Sort sort) {
+        MediatorLiveData<List<NoteSearchResult>> result = new MediatorLiveData<>();
+        result.addSource(source, hits -> io.execute(() -> result.postValue(sort(hits, sort))));
+        return result;
     }
 
-    /** ✅ NEW: Search ONLY canvas notes */
-    public LiveData<List<Note>> searchCanvasNotes(String userId, String query) {
-        return noteDao.searchCanvasNotes(userId, query);
+    private static List<NoteSearchResult> sort(List<NoteSearchResult> hits, NoteQuery.Sort sort) {
+        if (hits == null || sort == NoteQuery.Sort.RELEVANCE) {
+            return SearchRanker.rank(hits, SEARCH_LIMIT);
+        }
+        // Sorted by the query already
+        return hits;
     }
 
 
     /**
      * ✅ CORRECTED: This method now correctly moves a note to the trash.
-     * It uses the correct executor 'io' and the 'application' context.
+     * It uses the user-writes lane and the 'application' context.
      */
-    public void trash(Note note) {
-        io.execute(() -> {
-            noteDao.trashNote(note.id, new Date(), DeviceUtil.getDeviceId(application));
+    public void trash(String noteId) {
+        userWrites.execute(() -> {
+            noteDao.trashNote(noteId, System.currentTimeMillis(), clock.now(), DeviceUtil.getDeviceId(application));
             // Also schedule a sync to update Firestore
-            syncManager.scheduleSync(note.id);
+            syncManager.requestPrioritySync();
         });
     }
 
     /**
      * ✅ NEW: Restores a note from the trash.
      */
-    public void restore(Note note) {
-        io.execute(() -> {
-            noteDao.restoreNote(note.id, new Date(), DeviceUtil.getDeviceId(application));
-            syncManager.scheduleSync(note.id);
+    public void restore(String noteId) {
+        userWrites.execute(() -> {
+            noteDao.restoreNote(noteId, System.currentTimeMillis(), clock.now(), DeviceUtil.getDeviceId(application));
+            syncManager.requestPrioritySync();
         });
     }
 
     /**
      * ✅ NEW: Marks a note for permanent deletion.
      */
-    public void deletePermanently(Note note) {
-        io.execute(() -> {
-            noteDao.markAsDeleted(note.id, new Date(), DeviceUtil.getDeviceId(application));
-            syncManager.scheduleSync(note.id);
+    public void deletePermanently(String noteId) {
+        userWrites.execute(() -> {
+            noteDao.markAsDeleted(noteId, System.currentTimeMillis(), clock.now(), DeviceUtil.getDeviceId(application));
+            syncManager.requestPrioritySync();
         });
     }
 
-    public void startFirestoreListener(String uid) {
+    /**
+     * Uploads everything queued now, on whatever network, including the
+     * large drawings that would otherwise wait for Wi-Fi or the charger.
+     */
+    public void syncNow() {
+        syncManager.requestForcedSync();
+    }
+
+    /**
+     * Keeps the user's notes in sync while the owner is started. Every screen
+     * shares one realtime listener: it starts with the first started screen
+     * and pauses LISTENER_LINGER_MILLIS after the last one stops. Coming back
+     * pulls only what changed since the pull cursor, see
+     * {@link #startFirestoreListener}. Call once per owner, e.g. in onCreate.
+     */
+    public void keepInSync(LifecycleOwner owner, String uid) {
         if (uid == null) return;
 
-        if (firestoreListener != null) {
-            firestoreListener.remove();
+        owner.getLifecycle().addObserver(new DefaultLifecycleObserver() {
+            @Override
+            public void onStart(@NonNull LifecycleOwner source) {
+                acquireListener(uid);
+            }
+
+            @Override
+            public void onStop(@NonNull LifecycleOwner source) {
+                releaseListener(uid);
+            }
+
+            @Override
+            public void onDestroy(@NonNull LifecycleOwner source) {
+                source.getLifecycle().removeObserver(this);
+            }
+        });
+    }
+
+    private synchronized void acquireListener(String uid) {
+        mainHandler.removeCallbacks(pauseListener);
+        if (!uid.equals(listenerUid)) {
+            // Another user signed in; the old user's screens no longer count
+            listenerUid = uid;
+            listenerUsers = 0;
+            listenerRunning = false;
+        }
+        listenerUsers++;
+        if (!listenerRunning) {
+            listenerRunning = true;
+            startFirestoreListener(uid);
+        }
+    }
+
+    private synchronized void releaseListener(String uid) {
+        // Screens of a user who since signed out, or of a stopped session
+        if (!uid.equals(listenerUid) || listenerUsers == 0) return;
+
+        if (--listenerUsers == 0) {
+            mainHandler.postDelayed(pauseListener, LISTENER_LINGER_MILLIS);
         }
+    }
 
-        Query query = firestore.collection(COLLECTION_USERS)
-                .document(uid)
-                .collection(COLLECTION_NOTES)
-                .orderBy("updatedAt", Query.Direction.DESCENDING);
+    private synchronized void pauseListenerIfUnused() {
+        if (listenerUsers == 0 && listenerRunning) {
+            listenerRunning = false;
+            detachListener();
+        }
+    }
 
-        firestoreListener = query.addSnapshotListener(io, (snapshots, e) -> {
-            if (e != null) {
-                Log.w(TAG, "Firestore listener failed.", e);
+    /**
+     * Brings the user's notes up to date and keeps them there. Changes since
+     * the stored pull cursor are pulled page by page first; the realtime
+     * listener is then attached for changes after the cursor only. A cold
+     * start costs reads for what changed since the last session, not for
+     * the whole collection.
+     * <p>
+     * Without a cursor (first sign-in, or after sign-out cleared the data)
+     * the collection is downloaded by {@link #bootstrap} instead.
+     * <p>
+     * Remote calls block on the network lane; remote changes are stored on
+     * the sync-apply lane, see AppExecutors.
+     */
+    private void startFirestoreListener(String uid) {
+        if (uid == null) return;
+
+        int generation = detachListener();
+        network.execute(() -> {
+            resumePendingSyncs();
+            if (noteDao.getSyncCursor(uid) == null) {
+                try {
+                    bootstrap(uid, generation);
+                } catch (RemoteStoreException | InterruptedException e) {
+                    // Pages already stored stay; a sequential pull fetches the rest
+                    Log.w(TAG, "Bootstrap failed, pulling instead.", e);
+                } finally {
+                    bootstrapProgress.postValue(BootstrapProgress.IDLE);
+                }
+            }
+            pullChanges(uid, generation);
+            attachListener(uid, generation);
+            prefetchCanvases(uid, generation);
+        });
+    }
+
+    /** Progress of the first full download, for a refresh indicator. */
+    public LiveData<BootstrapProgress> getBootstrapProgress() {
+        return bootstrapProgress;
+    }
+
+    /**
+     * Pulls the changes since the cursor in pages of PULL_PAGE_SIZE, each
+     * applied (and the cursor moved) in its own transaction. If the pull
+     * fails part way, the listener picks up from wherever the cursor got to.
+     */
+    private void pullChanges(String uid, int generation) {
+        int pulled = 0;
+        try {
+            while (isListening(generation)) {
+                List<Note> page = remoteStore.querySince(uid, noteDao.getSyncCursor(uid), PULL_PAGE_SIZE);
+                applyRemote(uid, page, true, generation);
+                pulled += page.size();
+                if (page.size() < PULL_PAGE_SIZE) {
+                    break;
+                }
+            }
+            Log.d(TAG, "Pulled " + pulled + " changed notes.");
+        } catch (RemoteStoreException e) {
+            Log.w(TAG, "Pull failed after " + pulled + " notes.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Downloads the drawings of the newest PREFETCH_CANVASES canvases that
+     * are not on this device yet, into the blob cache. If there are more,
+     * the rest are left to a backfill while the device is idle, see
+     * CanvasBackfillWorker; until then they are fetched when opened.
+     */
+    private void prefetchCanvases(String uid, int generation) {
+        List<String> newest = noteDao.getMissingCanvasHashes(uid, PREFETCH_CANVASES + 1);
+        if (newest.size() > PREFETCH_CANVASES) {
+            syncManager.requestCanvasBackfill(uid);
+            newest = newest.subList(0, PREFETCH_CANVASES);
+        }
+        Set<String> missing = new LinkedHashSet<>(newest);
+        for (String hash : missing) {
+            if (!isListening(generation)) {
                 return;
             }
-            if (snapshots == null) {
+            try {
+                blobTransfer.downloadCanvas(uid, hash);
+            } catch (RemoteStoreException e) {
+                Log.w(TAG, "Prefetching drawings stopped.", e);
                 return;
             }
+        }
+    }
 
-            for (DocumentChange dc : snapshots.getDocumentChanges()) {
-                Note remoteNote = dc.getDocument().toObject(Note.class);
-
-                if (deviceId.equals(remoteNote.lastEditedByDeviceId)) {
-                    Log.d(TAG, "Ignoring echo of our own change for note: " + remoteNote.id);
-                    continue;
+    /**
+     * Downloads the whole collection. Documents written before syncedAt
+     * existed are stamped first, so the queries below see them. The
+     * syncedAt span between the oldest and newest note is cut into
+     * BOOTSTRAP_RANGES ranges, and the ranges
+     * are paged newest first, in parallel. Each page is stored in its own
+     * transaction as it arrives. The newest page is fetched before the
+     * others start, so the list fills from the top straight away.
+     * <p>
+     * The cursor is set to the newest note once every range is stored.
+     * Notes changed during the download get a later syncedAt from the
+     * server, so they sort after it and the listener catches them.
+     */
+    private void bootstrap(String uid, int generation) throws RemoteStoreException, InterruptedException {
+        bootstrapProgress.postValue(BootstrapProgress.running(0));
+        int stamped = remoteStore.stampLegacyDocuments(uid);
+        if (stamped > 0) {
+            Log.d(TAG, "Stamped " + stamped + " documents written before syncedAt.");
+        }
+        List<Note> newest = remoteStore.queryRange(uid, Long.MIN_VALUE, Long.MAX_VALUE, null, 1);
+        if (newest.isEmpty()) {
+            return;
+        }
+        Note top = newest.get(0);
+        Note bottom = remoteStore.querySince(uid, null, 1).get(0);
+        long[] bounds = splitBySyncedAt(bottom.syncedAt, top.syncedAt);
+        AtomicInteger loaded = new AtomicInteger();
+
+        // Newest range first; its first page alone, so the top of the list arrives first
+        SyncCursor next = fetchRangePage(uid, bounds[1], bounds[0], null, generation, loaded);
+        List<Callable<Void>> ranges = new ArrayList<>();
+        if (next != null) {
+            ranges.add(() -> fetchRange(uid, bounds[1], bounds[0], next, generation, loaded));
+        }
+        for (int i = 1; i + 1 < bounds.length; i++) {
+            long from = bounds[i + 1];
+            long until = bounds[i];
+            ranges.add(() -> fetchRange(uid, from, until, null, generation, loaded));
+        }
+        // A pool of its own: waiting on the network lane for tasks queued on it could starve them
+        InstrumentedExecutor rangeLane = new InstrumentedExecutor("bootstrap", BOOTSTRAP_RANGES,
+                Process.THREAD_PRIORITY_BACKGROUND, 0);
+        try {
+            for (Future<Void> range : rangeLane.invokeAll(ranges)) {
+                try {
+                    range.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RemoteStoreException) {
+                        throw (RemoteStoreException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
                 }
+            }
+        } finally {
+            rangeLane.shutdownNow();
+            Log.d(TAG, rangeLane.getStats().toString());
+        }
+        if (isListening(generation)) {
+            SyncCursor cursor = new SyncCursor(uid, top.syncedAt, top.id);
+            submitToSyncLane(() -> applier.moveCursor(cursor));
+            Log.d(TAG, "Bootstrapped " + loaded.get() + " notes.");
+        }
+    }
+
+    /**
+     * Cuts [from, to] into BOOTSTRAP_RANGES equal syncedAt ranges.
+     *
+     * @return Range bounds, newest first: range i is [bounds[i + 1], bounds[i]).
+     */
+    private static long[] splitBySyncedAt(long from, long to) {
+        int count = (int) Math.max(1, Math.min(BOOTSTRAP_RANGES, to - from + 1));
+        long span = to - from + 1;
+        long[] bounds = new long[count + 1];
+        for (int i = 0; i <= count; i++) {
+            bounds[i] = from + span * (count - i) / count;
+        }
+        return bounds;
+    }
 
-                Note localNote = noteDao.getNoteById(remoteNote.id);
-                boolean isConflict = false;
+    /** Pages through one bootstrap range, newest first. */
+    private Void fetchRange(String uid, long from, long until, SyncCursor before, int generation,
+                            AtomicInteger loaded) throws RemoteStoreException, InterruptedException {
+        SyncCursor next = before;
+        do {
+            next = fetchRangePage(uid, from, until, next, generation, loaded);
+        } while (next != null);
+        return null;
+    }
+
+    /**
+     * Fetches and stores one page of a bootstrap range, without moving the cursor.
+     *
+     * @return Where the next page starts, or null if this was the last one.
+     */
+    private SyncCursor fetchRangePage(String uid, long from, long until, SyncCursor before, int generation,
+                                      AtomicInteger loaded) throws RemoteStoreException, InterruptedException {
+        if (!isListening(generation)) {
+            return null;
+        }
+        List<Note> page = remoteStore.queryRange(uid, from, until, before, PULL_PAGE_SIZE);
+        applyRemote(uid, page, false, generation);
+        bootstrapProgress.postValue(BootstrapProgress.running(loaded.addAndGet(page.size())));
+        if (page.size() < PULL_PAGE_SIZE) {
+            return null;
+        }
+        Note last = page.get(page.size() - 1);
+        return new SyncCursor(uid, last.syncedAt, last.id);
+    }
+
+    /**
+     * Stores remote notes on the sync-apply lane, in order with the other
+     * remote changes, and waits for it. Skipped if the session stopped
+     * meanwhile, so a sign-out's clear is not undone.
+     */
+    private void applyRemote(String uid, List<Note> notes, boolean moveCursor, int generation)
+            throws InterruptedException {
+        submitToSyncLane(() -> {
+            if (isListening(generation)) {
+                applier.apply(uid, notes, moveCursor);
+            }
+        });
+    }
+
+    @WorkerThread
+    private void submitToSyncLane(Runnable task) throws InterruptedException {
+        try {
+            syncApply.submit(task).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-                if (localNote != null && localNote.syncStatus != SyncStatus.SYNCED) {
-                    if (remoteNote.updatedAt != null && remoteNote.updatedAt.after(localNote.updatedAt)) {
-                        isConflict = true;
-                    } else {
-                        Log.w(TAG, "Conflict detected, but local is newer. Ignoring remote change for: " + remoteNote.id);
-                        continue;
+    private synchronized void attachListener(String uid, int generation) {
+        if (generation != listenerGeneration) {
+            // Stopped or restarted while pulling
+            return;
+        }
+        // The network lane never blocks the caller, so Firestore's thread hands over and returns
+        remoteListener = remoteStore.listen(uid, noteDao.getSyncCursor(uid), network, new RemoteNoteStore.ChangeListener() {
+            @Override
+            public void onChanges(List<Note> notes) {
+                if (queueChanges(uid, notes, generation)) {
+                    storeQueuedChanges();
+                }
+                for (Note note : notes) {
+                    if (note.canvasHash != null) {
+                        network.execute(() -> prefetchCanvases(uid, generation));
+                        break;
                     }
                 }
+            }
 
-                switch (dc.getType()) {
-                    case ADDED:
-                    case MODIFIED:
-                        if (isConflict) {
-                            Log.w(TAG, "CONFLICT detected! Marking note for resolution: " + remoteNote.id);
-                            noteDao.updateSyncStatus(remoteNote.id, SyncStatus.CONFLICT);
-                        } else {
-                            Log.d(TAG, "Remote change applied locally: " + remoteNote.id);
-                            remoteNote.syncStatus = SyncStatus.SYNCED;
-                            noteDao.insertOrUpdateNote(remoteNote);
-                        }
-                        break;
-                    case REMOVED:
-                        if (isConflict) {
-                            noteDao.updateSyncStatus(remoteNote.id, SyncStatus.CONFLICT);
-                        } else {
-                            remoteNote.syncStatus = SyncStatus.SYNCED;
-                            noteDao.insertOrUpdateNote(remoteNote);
-                        }
-                        break;
+            @Override
+            public void onError(RemoteStoreException e) {
+                Log.w(TAG, "Firestore listener failed.", e);
+            }
+        });
+    }
+
+    /**
+     * Adds a snapshot's notes to those waiting to be stored, replacing
+     * older versions of the same notes. Changes of an earlier session are
+     * dropped.
+     *
+     * @return True if the caller is to store them, as no thread is doing so.
+     */
+    private synchronized boolean queueChanges(String uid, List<Note> notes, int generation) {
+        if (generation != pendingGeneration) {
+            pendingChanges.clear();
+            pendingUid = uid;
+            pendingGeneration = generation;
+        }
+        for (Note note : notes) {
+            // Re-inserted, so the map keeps arrival order
+            pendingChanges.remove(note.id);
+            pendingChanges.put(note.id, note);
+        }
+        if (storingChanges) {
+            return false;
+        }
+        storingChanges = true;
+        return true;
+    }
+
+    /**
+     * Stores queued listener changes on the sync-apply lane until none are
+     * left. This thread, not Firestore's, waits when that lane is full, and
+     * snapshots arriving meanwhile are merged into one batch.
+     */
+    @WorkerThread
+    private void storeQueuedChanges() {
+        boolean drained = false;
+        try {
+            while (true) {
+                List<Note> notes;
+                String uid;
+                int generation;
+                synchronized (this) {
+                    if (pendingChanges.isEmpty()) {
+                        storingChanges = false;
+                        drained = true;
+                        return;
+                    }
+                    notes = new ArrayList<>(pendingChanges.values());
+                    pendingChanges.clear();
+                    uid = pendingUid;
+                    generation = pendingGeneration;
+                }
+                submitToSyncLane(() -> applySnapshot(uid, notes, generation));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!drained) {
+                // The next snapshot picks up what is left
+                synchronized (this) {
+                    storingChanges = false;
                 }
             }
+        }
+    }
+
+    /**
+     * Stores a snapshot in cursor order, PULL_PAGE_SIZE notes per
+     * transaction, so a large one does not hold the database against the
+     * user's writes for its whole length. Each transaction moves the
+     * cursor past its notes only, so if the process dies part way the rest
+     * is pulled again.
+     */
+    private void applySnapshot(String uid, List<Note> notes, int generation) {
+        List<Note> ordered = new ArrayList<>(notes);
+        Collections.sort(ordered, (a, b) -> {
+            int bySync = Long.compare(a.syncedAt, b.syncedAt);
+            return bySync != 0 ? bySync : a.id.compareTo(b.id);
         });
+        for (int from = 0; from < ordered.size() && isListening(generation); from += PULL_PAGE_SIZE) {
+            applier.apply(uid, ordered.subList(from, Math.min(ordered.size(), from + PULL_PAGE_SIZE)), true);
+        }
     }
 
-    public void stopFirestoreListener() {
-        if (firestoreListener != null) {
-            firestoreListener.remove();
-            firestoreListener = null;
+    /** Removes the listener and cancels a pull in progress. @return The new generation. */
+    private synchronized int detachListener() {
+        if (remoteListener != null) {
+            remoteListener.remove();
+            remoteListener = null;
         }
+        pendingChanges.clear();
+        return ++listenerGeneration;
+    }
+
+    private synchronized boolean isListening(int generation) {
+        return generation == listenerGeneration;
+    }
+
+    /**
+     * Drains uploads left in the outbox when the app last stopped, e.g.
+     * because the process was killed before WorkManager ran.
+     */
+    private void resumePendingSyncs() {
+        if (noteDao.countOutbox() > 0) {
+            syncManager.requestSync();
+        }
+    }
+
+    /** Removes the listener until a screen of a user starts again, e.g. on sign-out. */
+    public synchronized void stopFirestoreListener() {
+        mainHandler.removeCallbacks(pauseListener);
+        listenerUid = null;
+        listenerUsers = 0;
+        listenerRunning = false;
+        detachListener();
     }
 
     public void insert(String title, String content, String uid) {
-        io.execute(() -> {
+        userWrites.execute(() -> {
             Note note = new Note(uid, title, content, deviceId);
-            note.syncStatus = SyncStatus.SYNCING;
-            noteDao.insertOrUpdateNote(note);
-            syncManager.scheduleSync(note.id);
+            note.hlc = clock.now();
+            noteDao.saveLocalNote(note);
+            syncManager.requestSync();
         });
     }
 
@@ -213,38 +746,103 @@ public class NoteRepository {
      */
     public void insert(Note note) {
         // We assume the note object is already complete
-        // FIX: Changed 'executor' to 'io'
-        io.execute(() -> {
-            noteDao.insertOrUpdateNote(note);
-            syncManager.scheduleSync(note.id);
+        userWrites.execute(() -> {
+            note.hlc = clock.now();
+            noteDao.saveLocalNote(note);
+            syncManager.requestSync();
         });
     }
 
     public void update(Note note) {
+        userWrites.execute(() -> {
+            saveEdit(note);
+            syncManager.requestSync();
+        });
+    }
+
+    private void saveEdit(Note note) {
+        note.updatedAt = System.currentTimeMillis();
+        note.lastEditedByDeviceId = deviceId;
+        // Stamps the edit; text edits go through the note's CRDT
+        noteDao.saveLocalEdit(note, deviceId, clock::now);
+    }
+
+    /**
+     * Saves a canvas note with its drawing. The drawing goes into the blob
+     * store as tiles (see CanvasTiles) and the note refers to their
+     * manifest by hash, so only the tiles an edit touched are stored and
+     * uploaded again. The tiles are written on the io lane, the note on the
+     * user-writes lane.
+     *
+     * @param pixels The drawing, ARGB row by row.
+     * @param isNew True to insert the note, false to update it.
+     */
+    public void saveCanvas(Note note, int[] pixels, int width, int height, boolean isNew) {
         io.execute(() -> {
-            note.updatedAt = new Date();
-            note.lastEditedByDeviceId = deviceId;
-            note.syncStatus = SyncStatus.SYNCING;
-            noteDao.insertOrUpdateNote(note);
-            syncManager.scheduleSync(note.id);
+            try {
+                note.canvasHash = blobStore.putCanvas(pixels, width, height);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not store drawing of note: " + note.id, e);
+                return;
+            }
+            // The hash is what syncs; a path is only valid on the device that wrote it
+            note.canvasImagePath = null;
+            userWrites.execute(() -> {
+                if (isNew) {
+                    note.hlc = clock.now();
+                    noteDao.saveLocalNote(note);
+                } else {
+                    saveEdit(note);
+                }
+                syncManager.requestSync();
+            });
         });
     }
 
     /**
-     * ✅ DEPRECATED: This method is replaced by trash(Note note).
+     * ✅ DEPRECATED: This method is replaced by trash(String noteId).
      * You can now safely remove this from your repository.
      */
     // public void delete(Note note) { ... }
 
+    /**
+     * Observes the sync status of every note that is not SYNCED, keyed by
+     * note id, for the sync badges. Status changes re-run only this query,
+     * not the note lists.
+     */
+    public LiveData<Map<String, SyncStatus>> getUnsyncedStatuses() {
+        return Transformations.map(noteDao.observeUnsyncedStates(), states -> {
+            Map<String, SyncStatus> byId = new HashMap<>();
+            for (NoteSyncState state : states) {
+                byId.put(state.noteId, state.status);
+            }
+            return byId;
+        });
+    }
+
+    /** Queued with the remote changes; may wait for room on that lane. */
+    @WorkerThread
     public void updateSyncStatus(String noteId, SyncStatus status) {
-        io.execute(() -> noteDao.updateSyncStatus(noteId, status));
+        syncApply.execute(() -> noteDao.updateSyncStatus(noteId, status));
     }
 
+    /**
+     * Stops syncing and deletes the local notes and drawings, e.g. on
+     * sign-out. The notes are deleted on the sync-apply lane, after the
+     * remote changes already queued there, which the stopped session then
+     * skips.
+     */
     public void clearAll() {
-        io.execute(() -> {
-            stopFirestoreListener();
+        stopFirestoreListener();
+        userWrites.execute(() -> {
             syncManager.cancelAllSyncs();
-            noteDao.nukeTable();
+            try {
+                submitToSyncLane(noteDao::nukeTable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            io.execute(blobStore::clear);
         });
     }
 }
\ No newline at end of file
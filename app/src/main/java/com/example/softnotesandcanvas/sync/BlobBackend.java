@@ -0,0 +1,29 @@
+package com.example.softnotesandcanvas.sync;
+
+/**
+ * The server side of canvas blobs: per-user blobs keyed by the hex SHA-256
+ * of their bytes, see CanvasBlobStore. {@link FirestoreBlobBackend} is the
+ * real one; {@link DirectoryBlobBackend} stands in for it in tests.
+ * <p>
+ * A blob is written as numbered chunks of CHUNK_SIZE bytes (the last may
+ * be shorter) and becomes visible when committed. Chunks written before a
+ * failed upload stay, so the upload resumes where it stopped. Calls block
+ * until the server answers, so they must not run on the main thread.
+ */
+public interface BlobBackend {
+
+    /** Bytes per chunk; well under Firestore's 1 MiB document limit. */
+    int CHUNK_SIZE = 256 * 1024;
+
+    /** @return The size of the committed blob, or -1 if the server does not have it. */
+    long size(String userId, String hash) throws RemoteStoreException;
+
+    /** Writes chunk index, replacing any earlier attempt at it. */
+    void putChunk(String userId, String hash, int index, byte[] data, int length) throws RemoteStoreException;
+
+    /** Makes the blob visible once all its chunks are written. */
+    void commit(String userId, String hash, long size) throws RemoteStoreException;
+
+    /** Reads chunk index of a committed blob. */
+    byte[] getChunk(String userId, String hash, int index) throws RemoteStoreException;
+}
@@ -0,0 +1,178 @@
+package com.example.softnotesandcanvas.sync;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.softnotesandcanvas.db.CanvasBlob;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
+import com.example.softnotesandcanvas.db.CanvasTiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashSet;
+
+/**
+ * Moves canvas blobs between the {@link CanvasBlobStore} and a
+ * {@link BlobBackend}, in chunks of BlobBackend.CHUNK_SIZE.
+ * <p>
+ * Uploads are skipped when the server already has the hash, and resume
+ * from the last acknowledged chunk after a failure, since progress is
+ * recorded in canvas_blobs. Downloads resume from a partial file and are
+ * checked against the hash before they enter the cache. Canvases are
+ * moved tile by tile, see CanvasTiles.
+ */
+public class BlobTransfer {
+
+    private static final String TAG = "BlobTransfer";
+
+    private final CanvasBlobStore blobs;
+    private final BlobBackend backend;
+
+    public BlobTransfer(CanvasBlobStore blobs, BlobBackend backend) {
+        this.blobs = blobs;
+        this.backend = backend;
+    }
+
+    /**
+     * Makes sure the server has a blob this device refers to. Blobs not on
+     * this device are assumed to be on the server already (they were
+     * downloaded and evicted, or never downloaded).
+     *
+     * @return The number of bytes sent.
+     */
+    public long upload(String userId, String hash) throws RemoteStoreException {
+        CanvasBlob blob = blobs.get(hash);
+        if (blob == null || blob.remote) {
+            return 0;
+        }
+        if (blob.uploadedBytes == 0 && backend.size(userId, hash) == blob.size) {
+            // Uploaded by another note or another device
+            blobs.markRemote(hash);
+            return 0;
+        }
+        long offset = blob.uploadedBytes - blob.uploadedBytes % BlobBackend.CHUNK_SIZE;
+        long sent = 0;
+        byte[] chunk = new byte[BlobBackend.CHUNK_SIZE];
+        try (RandomAccessFile in = new RandomAccessFile(blobs.fileFor(hash), "r")) {
+            in.seek(offset);
+            while (offset < blob.size) {
+                int length = (int) Math.min(chunk.length, blob.size - offset);
+                in.readFully(chunk, 0, length);
+                backend.putChunk(userId, hash, (int) (offset / BlobBackend.CHUNK_SIZE), chunk, length);
+                offset += length;
+                sent += length;
+                blobs.setUploadedBytes(hash, offset);
+            }
+        } catch (IOException e) {
+            throw new RemoteStoreException("Cannot read blob " + hash, e, false);
+        }
+        backend.commit(userId, hash, blob.size);
+        blobs.markRemote(hash);
+        Log.d(TAG, "Uploaded blob " + hash + ", " + sent + " of " + blob.size + " bytes");
+        return sent;
+    }
+
+    /**
+     * Makes sure the server has a canvas: the tiles of a tiled canvas,
+     * then its manifest, so a device that finds the manifest also finds
+     * every tile. Tiles the server has from an earlier save are skipped.
+     * A canvas saved whole goes up like any blob.
+     *
+     * @return The number of bytes sent.
+     */
+    public long uploadCanvas(String userId, String hash) throws RemoteStoreException {
+        CanvasBlob blob = blobs.get(hash);
+        if (blob == null || blob.remote) {
+            // Its tiles went up before it did
+            return 0;
+        }
+        long sent = 0;
+        CanvasTiles canvas = readCanvas(hash, blobs.fileFor(hash));
+        if (canvas != null) {
+            for (String tile : new LinkedHashSet<>(canvas.tileHashes)) {
+                sent += upload(userId, tile);
+            }
+        }
+        return sent + upload(userId, hash);
+    }
+
+    /**
+     * Gets a canvas onto this device: its manifest, then the tiles that
+     * are not here yet. Tiles an earlier version shares with it are used
+     * as they are, so after an edit elsewhere only the edited tiles come
+     * down.
+     *
+     * @return The manifest, or the file of a canvas saved whole; null if
+     *         the server does not have the canvas or one of its tiles.
+     */
+    @Nullable
+    public File downloadCanvas(String userId, String hash) throws RemoteStoreException {
+        File file = download(userId, hash);
+        if (file == null) {
+            return null;
+        }
+        CanvasTiles canvas = readCanvas(hash, file);
+        if (canvas == null) {
+            return file;
+        }
+        for (String tile : new LinkedHashSet<>(canvas.tileHashes)) {
+            if (download(userId, tile) == null) {
+                return null;
+            }
+        }
+        blobs.addCanvasTiles(hash, canvas);
+        return file;
+    }
+
+    /**
+     * Gets a blob, from this device if it is here, else from the server
+     * into the cache.
+     *
+     * @return The file, or null if the server does not have the blob either.
+     */
+    @Nullable
+    public File download(String userId, String hash) throws RemoteStoreException {
+        File local = blobs.open(hash);
+        if (local != null) {
+            return local;
+        }
+        long size = backend.size(userId, hash);
+        if (size < 0) {
+            Log.w(TAG, "Blob " + hash + " is not on the server");
+            return null;
+        }
+        try {
+            File partial = blobs.partialFile(hash);
+            // Keep only the whole chunks of an earlier attempt
+            long offset = Math.min(partial.length() - partial.length() % BlobBackend.CHUNK_SIZE, size);
+            try (RandomAccessFile out = new RandomAccessFile(partial, "rw")) {
+                out.setLength(offset);
+                out.seek(offset);
+                while (offset < size) {
+                    byte[] chunk = backend.getChunk(userId, hash, (int) (offset / BlobBackend.CHUNK_SIZE));
+                    if (chunk.length == 0) {
+                        throw new RemoteStoreException("Empty chunk in blob " + hash, false);
+                    }
+                    out.write(chunk);
+                    offset += chunk.length;
+                }
+                out.getFD().sync();
+            }
+            return blobs.addDownloaded(hash, partial);
+        } catch (IOException e) {
+            throw new RemoteStoreException("Cannot store blob " + hash, e, false);
+        }
+    }
+
+    /** @return The tiled canvas in the file, or null for one saved whole. */
+    @Nullable
+    private static CanvasTiles readCanvas(String hash, File file) throws RemoteStoreException {
+        try {
+            return CanvasTiles.read(file);
+        } catch (IOException e) {
+            throw new RemoteStoreException("Cannot read canvas " + hash, e, false);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.softnotesandcanvas.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A WorkManager Worker that downloads the drawings the sign-in prefetch
+ * left out, newest first, so canvases open offline. It is bulk work with
+ * no one waiting for it, so SyncManager runs it only while the device is
+ * idle on an unmetered network. It stops once the blob cache is nearly
+ * full, since further downloads would only evict the ones before them.
+ */
+public class CanvasBackfillWorker extends Worker {
+
+    public static final String KEY_USER_ID = "KEY_USER_ID";
+    private static final String TAG = "CanvasBackfillWorker";
+    private static final int PAGE_SIZE = 20;
+    /** Left free in the cache for drawings the user opens. */
+    private static final long CACHE_HEADROOM_BYTES = CanvasBlobStore.DEFAULT_CACHE_BYTES / 4;
+
+    private final NoteDao noteDao;
+
+    public CanvasBackfillWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+        noteDao = AppDatabase.getInstance(context.getApplicationContext()).noteDao();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String uid = getInputData().getString(KEY_USER_ID);
+        if (uid == null) {
+            return Result.failure();
+        }
+        CanvasBlobStore blobStore = CanvasBlobStore.getInstance(getApplicationContext());
+        BlobTransfer transfer = new BlobTransfer(blobStore, new FirestoreBlobBackend(FirebaseFirestore.getInstance()));
+        // Includes the ones the server could not serve, so they are not asked for again
+        Set<String> tried = new HashSet<>();
+        int downloaded = 0;
+        try {
+            while (!isStopped() && blobStore.getFreeCacheBytes() > CACHE_HEADROOM_BYTES) {
+                List<String> page = new ArrayList<>();
+                for (String hash : noteDao.getMissingCanvasHashes(uid, tried.size() + PAGE_SIZE)) {
+                    if (tried.add(hash)) {
+                        page.add(hash);
+                    }
+                }
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (String hash : page) {
+                    if (isStopped() || blobStore.getFreeCacheBytes() <= CACHE_HEADROOM_BYTES) {
+                        break;
+                    }
+                    if (transfer.downloadCanvas(uid, hash) != null) {
+                        downloaded++;
+                    }
+                }
+            }
+        } catch (RemoteStoreException e) {
+            Log.w(TAG, "Backfill stopped after " + downloaded + " drawings.", e);
+            return e.isRetryable() ? Result.retry() : Result.failure();
+        }
+        Log.d(TAG, "Backfilled " + downloaded + " drawings.");
+        return isStopped() ? Result.retry() : Result.success();
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.softnotesandcanvas.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link BlobBackend} in a local directory, standing in for the server in
+ * tests: chunks are files under {user}/{hash}.chunks/, and a commit writes
+ * {user}/{hash} holding the size. Failures are IOExceptions wrapped as
+ * retryable.
+ */
+public class DirectoryBlobBackend implements BlobBackend {
+
+    private final File root;
+
+    public DirectoryBlobBackend(File root) {
+        this.root = root;
+    }
+
+    @Override
+    public long size(String userId, String hash) throws RemoteStoreException {
+        File manifest = manifest(userId, hash);
+        if (!manifest.exists()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(new String(read(manifest), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RemoteStoreException(String.valueOf(e.getMessage()), e, true);
+        }
+    }
+
+    @Override
+    public void putChunk(String userId, String hash, int index, byte[] data, int length) throws RemoteStoreException {
+        File chunk = chunk(userId, hash, index);
+        File directory = chunk.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RemoteStoreException("Cannot create " + directory, true);
+        }
+        write(chunk, data, length);
+    }
+
+    @Override
+    public void commit(String userId, String hash, long size) throws RemoteStoreException {
+        byte[] manifest = Long.toString(size).getBytes(StandardCharsets.UTF_8);
+        write(manifest(userId, hash), manifest, manifest.length);
+    }
+
+    @Override
+    public byte[] getChunk(String userId, String hash, int index) throws RemoteStoreException {
+        try {
+            return read(chunk(userId, hash, index));
+        } catch (IOException e) {
+            throw new RemoteStoreException(String.valueOf(e.getMessage()), e, true);
+        }
+    }
+
+    private File manifest(String userId, String hash) {
+        return new File(new File(root, userId), hash);
+    }
+
+    private File chunk(String userId, String hash, int index) {
+        return new File(new File(new File(root, userId), hash + ".chunks"), Integer.toString(index));
+    }
+
+    private static void write(File file, byte[] data, int length) throws RemoteStoreException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data, 0, length);
+        } catch (IOException e) {
+            throw new RemoteStoreException(String.valueOf(e.getMessage()), e, true);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+    }
+}
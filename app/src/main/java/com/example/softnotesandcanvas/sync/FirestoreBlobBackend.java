@@ -0,0 +1,69 @@
+package com.example.softnotesandcanvas.sync;
+
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * {@link BlobBackend} on Firestore, next to the notes: a committed blob is
+ * users/{uid}/blobs/{hash} holding its size, and its chunks are the
+ * documents of users/{uid}/blobs/{hash}/chunks, keyed by index, each with
+ * the bytes in a single Blob field.
+ */
+public class FirestoreBlobBackend implements BlobBackend {
+
+    private static final String COLLECTION_BLOBS = "blobs";
+    private static final String COLLECTION_CHUNKS = "chunks";
+    private static final String FIELD_SIZE = "size";
+    private static final String FIELD_DATA = "data";
+
+    private final FirebaseFirestore firestore;
+
+    public FirestoreBlobBackend(FirebaseFirestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public long size(String userId, String hash) throws RemoteStoreException {
+        DocumentSnapshot manifest = FirestoreNoteStore.await(blob(userId, hash).get());
+        Long size = manifest.exists() ? manifest.getLong(FIELD_SIZE) : null;
+        return size != null ? size : -1;
+    }
+
+    @Override
+    public void putChunk(String userId, String hash, int index, byte[] data, int length) throws RemoteStoreException {
+        Blob bytes = Blob.fromBytes(length == data.length ? data : Arrays.copyOf(data, length));
+        FirestoreNoteStore.await(chunk(userId, hash, index).set(Collections.singletonMap(FIELD_DATA, bytes)));
+    }
+
+    @Override
+    public void commit(String userId, String hash, long size) throws RemoteStoreException {
+        FirestoreNoteStore.await(blob(userId, hash).set(Collections.singletonMap(FIELD_SIZE, size)));
+    }
+
+    @Override
+    public byte[] getChunk(String userId, String hash, int index) throws RemoteStoreException {
+        DocumentSnapshot chunk = FirestoreNoteStore.await(chunk(userId, hash, index).get());
+        Blob bytes = chunk.getBlob(FIELD_DATA);
+        if (bytes == null) {
+            // Committed blobs have every chunk; this one was removed under us
+            throw new RemoteStoreException("Missing chunk " + index + " of blob " + hash, false);
+        }
+        return bytes.toBytes();
+    }
+
+    private DocumentReference blob(String userId, String hash) {
+        return firestore.collection(FirestoreNoteStore.COLLECTION_USERS)
+                .document(userId)
+                .collection(COLLECTION_BLOBS)
+                .document(hash);
+    }
+
+    private DocumentReference chunk(String userId, String hash, int index) {
+        return blob(userId, hash).collection(COLLECTION_CHUNKS).document(Integer.toString(index));
+    }
+}
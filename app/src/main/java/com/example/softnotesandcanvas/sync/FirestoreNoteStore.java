@@ -0,0 +1,243 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.annotation.Nullable;
+
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteCodec;
+import com.example.softnotesandcanvas.db.SyncCursor;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link RemoteNoteStore} on Firestore. Each user's notes are the documents
+ * of users/{uid}/notes, keyed by note id; uploads and pulls use the same
+ * collection. Documents are mapped with NoteCodec rather than Firestore's
+ * reflective mapper.
+ */
+public class FirestoreNoteStore implements RemoteNoteStore {
+
+    static final String COLLECTION_USERS = "users";
+    private static final String COLLECTION_NOTES = "notes";
+
+    private final FirebaseFirestore firestore;
+
+    public FirestoreNoteStore(FirebaseFirestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public void set(Note note) throws RemoteStoreException {
+        await(document(note.userId, note.id).set(NoteCodec.encode(note)));
+    }
+
+    @Override
+    public void update(String userId, String noteId, Map<String, Object> fields) throws RemoteStoreException {
+        // A merge set, so a document removed remotely is recreated instead of failing NOT_FOUND
+        await(document(userId, noteId).set(fields, SetOptions.merge()));
+    }
+
+    @Override
+    public void delete(String userId, String noteId) throws RemoteStoreException {
+        await(document(userId, noteId).delete());
+    }
+
+    @Override
+    public Batch batch() {
+        WriteBatch batch = firestore.batch();
+        return new Batch() {
+            @Override
+            public Batch set(Note note) {
+                batch.set(document(note.userId, note.id), NoteCodec.encode(note));
+                return this;
+            }
+
+            @Override
+            public Batch update(String userId, String noteId, Map<String, Object> fields) {
+                batch.set(document(userId, noteId), fields, SetOptions.merge());
+                return this;
+            }
+
+            @Override
+            public Batch appendTextDelta(String userId, String noteId, Map<String, Object> fields, String delta) {
+                Map<String, Object> write = new HashMap<>(fields);
+                write.put(NoteCodec.FIELD_TEXT_OPS, FieldValue.arrayUnion(delta));
+                batch.set(document(userId, noteId), write, SetOptions.merge());
+                return this;
+            }
+
+            @Override
+            public Batch delete(String userId, String noteId) {
+                batch.delete(document(userId, noteId));
+                return this;
+            }
+
+            @Override
+            public void commit() throws RemoteStoreException {
+                await(batch.commit());
+            }
+        };
+    }
+
+    @Override
+    public List<Note> querySince(String userId, @Nullable SyncCursor after, int limit) throws RemoteStoreException {
+        return toNotes(await(since(userId, after).limit(limit).get()).getDocuments());
+    }
+
+    @Override
+    public List<Note> queryRange(String userId, long from, long until, @Nullable SyncCursor before, int limit)
+            throws RemoteStoreException {
+        Query query = notesOf(userId);
+        // Open bounds are left out; Timestamps cannot hold Long.MIN/MAX_VALUE micros
+        if (from != Long.MIN_VALUE) {
+            query = query.whereGreaterThanOrEqualTo(NoteCodec.FIELD_SYNCED_AT, NoteCodec.timestampOfMicros(from));
+        }
+        if (until != Long.MAX_VALUE) {
+            query = query.whereLessThan(NoteCodec.FIELD_SYNCED_AT, NoteCodec.timestampOfMicros(until));
+        }
+        query = query.orderBy(NoteCodec.FIELD_SYNCED_AT, Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+        if (before != null) {
+            query = query.startAfter(NoteCodec.timestampOfMicros(before.syncedAt), before.noteId);
+        }
+        return toNotes(await(query.limit(limit).get()).getDocuments());
+    }
+
+    @Override
+    public int stampLegacyDocuments(String userId) throws RemoteStoreException {
+        // Two count queries, a read per thousand documents, tell whether any lack the field
+        long all = await(notesOf(userId).count().get(AggregateSource.SERVER)).getCount();
+        long stamped = await(notesOf(userId)
+                .whereGreaterThan(NoteCodec.FIELD_SYNCED_AT, new Timestamp(0, 0))
+                .count().get(AggregateSource.SERVER)).getCount();
+        if (stamped >= all) {
+            return 0;
+        }
+        int count = 0;
+        DocumentSnapshot last = null;
+        while (true) {
+            Query query = notesOf(userId).orderBy(FieldPath.documentId()).limit(MAX_BATCH_WRITES);
+            if (last != null) {
+                query = query.startAfter(last);
+            }
+            List<DocumentSnapshot> page = await(query.get()).getDocuments();
+            WriteBatch batch = firestore.batch();
+            int inBatch = 0;
+            for (DocumentSnapshot doc : page) {
+                if (!doc.contains(NoteCodec.FIELD_SYNCED_AT)) {
+                    // update(), not a merge set, so a document deleted meanwhile is not recreated
+                    batch.update(doc.getReference(), NoteCodec.FIELD_SYNCED_AT, FieldValue.serverTimestamp());
+                    inBatch++;
+                }
+            }
+            if (inBatch > 0) {
+                await(batch.commit());
+                count += inBatch;
+            }
+            if (page.size() < MAX_BATCH_WRITES) {
+                return count;
+            }
+            last = page.get(page.size() - 1);
+        }
+    }
+
+    @Override
+    public Registration listen(String userId, @Nullable SyncCursor after, Executor executor, ChangeListener listener) {
+        ListenerRegistration registration = since(userId, after).addSnapshotListener(executor, (snapshots, e) -> {
+            if (e != null) {
+                listener.onError(toRemoteStoreException(e));
+                return;
+            }
+            if (snapshots == null) {
+                return;
+            }
+            List<DocumentSnapshot> changed = new ArrayList<>();
+            for (DocumentChange dc : snapshots.getDocumentChanges()) {
+                // Removals only happen for documents deleted remotely
+                if (dc.getType() != DocumentChange.Type.REMOVED) {
+                    changed.add(dc.getDocument());
+                }
+            }
+            listener.onChanges(toNotes(changed));
+        });
+        return registration::remove;
+    }
+
+    /** The user's notes after the cursor, in cursor order. */
+    private Query since(String userId, @Nullable SyncCursor after) {
+        Query query = notesOf(userId)
+                .orderBy(NoteCodec.FIELD_SYNCED_AT, Query.Direction.ASCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING);
+        if (after != null) {
+            query = query.startAfter(NoteCodec.timestampOfMicros(after.syncedAt), after.noteId);
+        }
+        return query;
+    }
+
+    private CollectionReference notesOf(String userId) {
+        return firestore.collection(COLLECTION_USERS)
+                .document(userId)
+                .collection(COLLECTION_NOTES);
+    }
+
+    private DocumentReference document(String userId, String noteId) {
+        return notesOf(userId).document(noteId);
+    }
+
+    private static List<Note> toNotes(List<? extends DocumentSnapshot> docs) {
+        List<Note> notes = new ArrayList<>(docs.size());
+        for (DocumentSnapshot doc : docs) {
+            Map<String, Object> data = doc.getData();
+            if (data != null) {
+                // Keyed by document id, the cursor tiebreak
+                notes.add(NoteCodec.decode(doc.getId(), data));
+            }
+        }
+        return notes;
+    }
+
+    /** Blocks on a Firestore call, mapping its failure to a RemoteStoreException. */
+    static <T> T await(Task<T> task) throws RemoteStoreException {
+        try {
+            return Tasks.await(task);
+        } catch (ExecutionException e) {
+            throw toRemoteStoreException(e.getCause() != null ? e.getCause() : e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteStoreException("Interrupted", e, true);
+        }
+    }
+
+    private static RemoteStoreException toRemoteStoreException(Throwable e) {
+        boolean retryable = false;
+        if (e instanceof FirebaseFirestoreException) {
+            FirebaseFirestoreException.Code code = ((FirebaseFirestoreException) e).getCode();
+            retryable = code == FirebaseFirestoreException.Code.UNAVAILABLE
+                    || code == FirebaseFirestoreException.Code.DEADLINE_EXCEEDED
+                    || code == FirebaseFirestoreException.Code.ABORTED
+                    || code == FirebaseFirestoreException.Code.RESOURCE_EXHAUSTED;
+        }
+        return new RemoteStoreException(String.valueOf(e.getMessage()), e, retryable);
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.softnotesandcanvas.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.example.softnotesandcanvas.db.Hlc;
+
+/**
+ * This device's hybrid logical clock. Every local edit is stamped with
+ * {@link #now()}, which is never below the wall clock and always above
+ * every stamp issued or observed before. Stamps from other devices are fed
+ * in with {@link #observe(long)}, so an edit made after seeing a remote one
+ * orders after it even if this device's clock is behind.
+ * <p>
+ * The last stamp is persisted, so the clock does not go back across
+ * restarts when the wall clock does.
+ */
+public class HybridLogicalClock {
+
+    /** Source of wall-clock time, replaceable in tests and simulations. */
+    public interface WallClock {
+        long currentTimeMillis();
+    }
+
+    /** Remote stamps further ahead of the wall clock than this are not adopted. */
+    static final long MAX_FORWARD_DRIFT_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final String PREFS_FILE = "device_prefs";
+    private static final String PREF_LAST_STAMP = "hlc_last_stamp";
+    private static volatile HybridLogicalClock sInstance;
+
+    private final String deviceId;
+    private final WallClock wallClock;
+    private final SharedPreferences prefs;
+    private long last;
+
+    /**
+     * @param deviceId Breaks ties between equal stamps, see Hlc.compare.
+     * @param last The last stamp issued, or 0.
+     * @param prefs Where to persist the last stamp, or null for none.
+     */
+    public HybridLogicalClock(String deviceId, long last, WallClock wallClock, SharedPreferences prefs) {
+        this.deviceId = deviceId;
+        this.last = last;
+        this.wallClock = wallClock;
+        this.prefs = prefs;
+    }
+
+    /**
+     * Gets the device's clock, with DeviceUtil's device id as its tiebreak.
+     *
+     * @param context The application context.
+     */
+    public static HybridLogicalClock getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (HybridLogicalClock.class) {
+                if (sInstance == null) {
+                    SharedPreferences prefs = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+                    sInstance = new HybridLogicalClock(DeviceUtil.getDeviceId(context),
+                            prefs.getLong(PREF_LAST_STAMP, 0), System::currentTimeMillis, prefs);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /** Issues the stamp for a local edit. */
+    public synchronized long now() {
+        last = Math.max(last + 1, Hlc.fromMillis(wallClock.currentTimeMillis()));
+        persist();
+        return last;
+    }
+
+    /** Takes in a stamp seen on a remote edit, so later local edits order after it. */
+    public synchronized void observe(long remoteStamp) {
+        if (remoteStamp <= last) {
+            return;
+        }
+        long limit = Hlc.fromMillis(wallClock.currentTimeMillis() + MAX_FORWARD_DRIFT_MILLIS);
+        if (remoteStamp > limit) {
+            // A device with a badly wrong clock; do not drag this one along
+            return;
+        }
+        last = remoteStamp;
+        persist();
+    }
+
+    private void persist() {
+        if (prefs != null) {
+            prefs.edit().putLong(PREF_LAST_STAMP, last).apply();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.annotation.Nullable;
+
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteCodec;
+import com.example.softnotesandcanvas.db.SyncCursor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link RemoteNoteStore} held in memory, for benchmarks and load tests
+ * of the sync path without a backend. Each call can be slowed by a fixed
+ * latency and failed at random with a retryable error, and writes are held
+ * to Firestore's batch and document size limits.
+ * <p>
+ * Stored and returned notes are copies, as if they had been serialized.
+ * Each commit stamps its documents' syncedAt from the store's own clock,
+ * as Firestore does, whatever updatedAt the writer sent.
+ */
+public class InMemoryNoteStore implements RemoteNoteStore {
+
+    /** Firestore's maximum document size. */
+    public static final int DEFAULT_MAX_DOCUMENT_BYTES = 1024 * 1024;
+
+    private static final Comparator<Note> SYNC_ORDER = (a, b) -> {
+        int byTime = Long.compare(a.syncedAt, b.syncedAt);
+        return byTime != 0 ? byTime : a.id.compareTo(b.id);
+    };
+
+    private final Map<String, Collection> collections = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Random random;
+    private volatile long latencyMillis;
+    private volatile double failureRate;
+    private volatile int maxDocumentBytes = DEFAULT_MAX_DOCUMENT_BYTES;
+    private volatile int maxBatchWrites = MAX_BATCH_WRITES;
+    private volatile HybridLogicalClock.WallClock clock = System::currentTimeMillis;
+    private long commits;
+    /** syncedAt of the last commit, in epoch micros. */
+    private long lastSyncedAt;
+
+    public InMemoryNoteStore() {
+        this(new Random());
+    }
+
+    /** @param random Source for failure injection; seed it for repeatable runs. */
+    public InMemoryNoteStore(Random random) {
+        this.random = random;
+    }
+
+    /** Delays every call, as a stand-in for the network round trip. */
+    public InMemoryNoteStore setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /** Fails this share of calls (0 to 1) with a retryable error, before any write is applied. */
+    public InMemoryNoteStore setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /** Rejects writes of larger documents with a permanent error. */
+    public InMemoryNoteStore setMaxDocumentBytes(int maxDocumentBytes) {
+        this.maxDocumentBytes = maxDocumentBytes;
+        return this;
+    }
+
+    /** Rejects larger batches with a permanent error. */
+    public InMemoryNoteStore setMaxBatchWrites(int maxBatchWrites) {
+        this.maxBatchWrites = maxBatchWrites;
+        return this;
+    }
+
+    /** The server's clock, which stamps syncedAt; e.g. a simulation's virtual time. */
+    public InMemoryNoteStore setClock(HybridLogicalClock.WallClock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    /** Number of documents stored for the user. */
+    public synchronized int size(String userId) {
+        Collection collection = collections.get(userId);
+        return collection == null ? 0 : collection.byId.size();
+    }
+
+    /** A copy of the stored note, or null. */
+    @Nullable
+    public synchronized Note get(String userId, String noteId) {
+        Collection collection = collections.get(userId);
+        Note note = collection == null ? null : collection.byId.get(noteId);
+        return note == null ? null : copy(note);
+    }
+
+    /** Successful writes and batch commits so far, i.e. server round trips that wrote. */
+    public synchronized long getCommitCount() {
+        return commits;
+    }
+
+    @Override
+    public void set(Note note) throws RemoteStoreException {
+        batch().set(note).commit();
+    }
+
+    @Override
+    public void update(String userId, String noteId, Map<String, Object> fields) throws RemoteStoreException {
+        batch().update(userId, noteId, fields).commit();
+    }
+
+    @Override
+    public void delete(String userId, String noteId) throws RemoteStoreException {
+        batch().delete(userId, noteId).commit();
+    }
+
+    @Override
+    public Batch batch() {
+        List<Write> writes = new ArrayList<>();
+        return new Batch() {
+            @Override
+            public Batch set(Note note) {
+                writes.add(new Write(note.userId, note.id, copy(note), null, null));
+                return this;
+            }
+
+            @Override
+            public Batch update(String userId, String noteId, Map<String, Object> fields) {
+                writes.add(new Write(userId, noteId, null, new HashMap<>(fields), null));
+                return this;
+            }
+
+            @Override
+            public Batch appendTextDelta(String userId, String noteId, Map<String, Object> fields, String delta) {
+                writes.add(new Write(userId, noteId, null, new HashMap<>(fields), delta));
+                return this;
+            }
+
+            @Override
+            public Batch delete(String userId, String noteId) {
+                writes.add(new Write(userId, noteId, null, null, null));
+                return this;
+            }
+
+            @Override
+            public void commit() throws RemoteStoreException {
+                InMemoryNoteStore.this.commit(writes);
+            }
+        };
+    }
+
+    @Override
+    public List<Note> querySince(String userId, @Nullable SyncCursor after, int limit) throws RemoteStoreException {
+        roundTrip();
+        synchronized (this) {
+            Collection collection = collections.get(userId);
+            if (collection == null) {
+                return Collections.emptyList();
+            }
+            NavigableSet<Note> tail = after == null
+                    ? collection.byUpdate
+                    : collection.byUpdate.tailSet(probe(after), false);
+            return copies(tail.iterator(), limit, Long.MIN_VALUE);
+        }
+    }
+
+    @Override
+    public List<Note> queryRange(String userId, long from, long until, @Nullable SyncCursor before, int limit)
+            throws RemoteStoreException {
+        roundTrip();
+        synchronized (this) {
+            Collection collection = collections.get(userId);
+            if (collection == null) {
+                return Collections.emptyList();
+            }
+            // Below both the range top and the continuation point
+            Note upper = probe(new SyncCursor(userId, until, ""));
+            if (before != null && SYNC_ORDER.compare(probe(before), upper) < 0) {
+                upper = probe(before);
+            }
+            return copies(collection.byUpdate.headSet(upper, false).descendingIterator(), limit, from);
+        }
+    }
+
+    @Override
+    public int stampLegacyDocuments(String userId) {
+        // Every document here got a syncedAt when it was written
+        return 0;
+    }
+
+    @Override
+    public Registration listen(String userId, @Nullable SyncCursor after, Executor executor, ChangeListener listener) {
+        Listener registration = new Listener(userId, after, executor, listener);
+        synchronized (this) {
+            listeners.add(registration);
+            Collection collection = collections.get(userId);
+            if (collection != null) {
+                NavigableSet<Note> tail = after == null
+                        ? collection.byUpdate
+                        : collection.byUpdate.tailSet(probe(after), false);
+                registration.deliver(new ArrayList<>(tail));
+            }
+        }
+        return () -> listeners.remove(registration);
+    }
+
+    private void commit(List<Write> writes) throws RemoteStoreException {
+        roundTrip();
+        if (writes.size() > maxBatchWrites) {
+            throw new RemoteStoreException("INVALID_ARGUMENT: " + writes.size() + " writes in one batch", false);
+        }
+        Map<String, List<Note>> changed = new HashMap<>();
+        synchronized (this) {
+            // One server time per commit, later than any before it
+            long syncedAt = Math.max(clock.currentTimeMillis() * 1_000, lastSyncedAt + 1);
+            List<Note> results = new ArrayList<>(writes.size());
+            for (Write write : writes) {
+                Note result = write.applyTo(stored(write.userId, write.noteId));
+                if (result != null && sizeOf(result) > maxDocumentBytes) {
+                    throw new RemoteStoreException("INVALID_ARGUMENT: document " + write.noteId + " is too large", false);
+                }
+                if (result != null) {
+                    result.syncedAt = syncedAt;
+                }
+                results.add(result);
+            }
+            lastSyncedAt = syncedAt;
+            // Validated; apply all
+            for (int i = 0; i < writes.size(); i++) {
+                Write write = writes.get(i);
+                Collection collection = collection(write.userId);
+                Note old = collection.byId.remove(write.noteId);
+                if (old != null) {
+                    collection.byUpdate.remove(old);
+                }
+                Note result = results.get(i);
+                if (result != null) {
+                    collection.byId.put(result.id, result);
+                    collection.byUpdate.add(result);
+                    List<Note> forUser = changed.get(write.userId);
+                    if (forUser == null) {
+                        forUser = new ArrayList<>();
+                        changed.put(write.userId, forUser);
+                    }
+                    forUser.add(result);
+                }
+            }
+            commits++;
+            // Handed over under the lock, so every listener sees commits in order
+            for (Listener listener : listeners) {
+                List<Note> notes = changed.get(listener.userId);
+                if (notes != null) {
+                    listener.deliver(notes);
+                }
+            }
+        }
+    }
+
+    private void roundTrip() throws RemoteStoreException {
+        long latency = latencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteStoreException("Interrupted", e, true);
+            }
+        }
+        boolean fail;
+        synchronized (random) {
+            fail = failureRate > 0 && random.nextDouble() < failureRate;
+        }
+        if (fail) {
+            throw new RemoteStoreException("UNAVAILABLE: injected failure", true);
+        }
+    }
+
+    @Nullable
+    private Note stored(String userId, String noteId) {
+        Collection collection = collections.get(userId);
+        return collection == null ? null : collection.byId.get(noteId);
+    }
+
+    private Collection collection(String userId) {
+        Collection collection = collections.get(userId);
+        if (collection == null) {
+            collection = new Collection();
+            collections.put(userId, collection);
+        }
+        return collection;
+    }
+
+    /** Copies up to limit notes, stopping at the first one synced before floor. */
+    private static List<Note> copies(Iterator<Note> notes, int limit, long floor) {
+        List<Note> out = new ArrayList<>();
+        while (notes.hasNext() && out.size() < limit) {
+            Note note = notes.next();
+            if (note.syncedAt < floor) {
+                break;
+            }
+            out.add(copy(note));
+        }
+        return out;
+    }
+
+    /** A note sorting exactly at the cursor position. */
+    private static Note probe(SyncCursor cursor) {
+        Note probe = new Note();
+        probe.syncedAt = cursor.syncedAt;
+        probe.id = cursor.noteId;
+        return probe;
+    }
+
+    /** Approximate Firestore document size: UTF-8 field names and values plus fixed-size scalars. */
+    private static int sizeOf(Note note) {
+        int size = 32 + 8 * 8;
+        for (String value : new String[] {note.id, note.userId, note.title, note.content, note.type,
+                note.canvasImagePath, note.canvasHash, note.lastEditedByDeviceId}) {
+            if (value != null) {
+                size += value.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+        if (note.textOps != null) {
+            for (String delta : note.textOps) {
+                size += delta.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+        return size;
+    }
+
+    /** Copies the synced fields, as a round trip through a document would. */
+    static Note copy(Note note) {
+        Note copy = new Note();
+        copy.id = note.id;
+        copy.userId = note.userId;
+        copy.title = note.title;
+        copy.content = note.content;
+        copy.type = note.type;
+        copy.canvasImagePath = note.canvasImagePath;
+        copy.canvasHash = note.canvasHash;
+        copy.createdAt = note.createdAt;
+        copy.updatedAt = note.updatedAt;
+        copy.syncedAt = note.syncedAt;
+        copy.hlc = note.hlc;
+        copy.lastEditedByDeviceId = note.lastEditedByDeviceId;
+        copy.isDeleted = note.isDeleted;
+        copy.isTrashed = note.isTrashed;
+        copy.textBase = note.textBase;
+        copy.textOps = note.textOps != null ? new ArrayList<>(note.textOps) : null;
+        return copy;
+    }
+
+    private static final class Collection {
+        final Map<String, Note> byId = new HashMap<>();
+        final TreeSet<Note> byUpdate = new TreeSet<>(SYNC_ORDER);
+    }
+
+    /**
+     * One write of a batch: a set (note), a merge (fields, maybe appending a
+     * text delta) or a delete (neither).
+     */
+    private static final class Write {
+        final String userId;
+        final String noteId;
+        final Note note;
+        final Map<String, Object> fields;
+        final String textDelta;
+
+        Write(String userId, String noteId, Note note, Map<String, Object> fields, String textDelta) {
+            this.userId = userId;
+            this.noteId = noteId;
+            this.note = note;
+            this.fields = fields;
+            this.textDelta = textDelta;
+        }
+
+        /** @return The document after this write, or null if deleted. */
+        @Nullable
+        Note applyTo(@Nullable Note current) {
+            if (note != null) {
+                return copy(note);
+            }
+            if (fields == null) {
+                return null;
+            }
+            Note merged;
+            if (current != null) {
+                merged = copy(current);
+            } else {
+                merged = new Note();
+                merged.id = noteId;
+                merged.userId = userId;
+            }
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                Object value = field.getValue();
+                switch (field.getKey()) {
+                    case NoteCodec.FIELD_TITLE:
+                        merged.title = (String) value;
+                        break;
+                    case NoteCodec.FIELD_CONTENT:
+                        merged.content = (String) value;
+                        break;
+                    case NoteCodec.FIELD_TYPE:
+                        merged.type = (String) value;
+                        break;
+                    case NoteCodec.FIELD_CANVAS_IMAGE_PATH:
+                        merged.canvasImagePath = (String) value;
+                        break;
+                    case NoteCodec.FIELD_CANVAS_HASH:
+                        merged.canvasHash = (String) value;
+                        break;
+                    case NoteCodec.FIELD_IS_TRASHED:
+                        merged.isTrashed = (Boolean) value;
+                        break;
+                    case NoteCodec.FIELD_IS_DELETED:
+                        merged.isDeleted = (Boolean) value;
+                        break;
+                    case NoteCodec.FIELD_UPDATED_AT:
+                        merged.updatedAt = ((Date) value).getTime();
+                        break;
+                    case NoteCodec.FIELD_SYNCED_AT:
+                        // Stamped by the commit
+                        break;
+                    case NoteCodec.FIELD_HLC:
+                        merged.hlc = ((Number) value).longValue();
+                        break;
+                    case NoteCodec.FIELD_LAST_EDITED_BY_DEVICE_ID:
+                        merged.lastEditedByDeviceId = (String) value;
+                        break;
+                    case NoteCodec.FIELD_TEXT_BASE:
+                        merged.textBase = ((Number) value).longValue();
+                        break;
+                    case NoteCodec.FIELD_TEXT_OPS:
+                        // Only ever written empty, as a checkpoint resets the log
+                        merged.textOps = new ArrayList<>();
+                        break;
+                    default:
+                        // Unknown fields are kept by Firestore but not mapped onto Note
+                        break;
+                }
+            }
+            if (textDelta != null) {
+                if (merged.textOps == null) {
+                    merged.textOps = new ArrayList<>();
+                }
+                // arrayUnion: no duplicates
+                if (!merged.textOps.contains(textDelta)) {
+                    merged.textOps.add(textDelta);
+                }
+            }
+            return merged;
+        }
+    }
+
+    private static final class Listener {
+        final String userId;
+        final SyncCursor after;
+        final Executor executor;
+        final ChangeListener listener;
+
+        Listener(String userId, @Nullable SyncCursor after, Executor executor, ChangeListener listener) {
+            this.userId = userId;
+            this.after = after;
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        void deliver(List<Note> notes) {
+            List<Note> visible = new ArrayList<>(notes.size());
+            for (Note note : notes) {
+                if (after == null || new SyncCursor(userId, note.syncedAt, note.id).isAfter(after)) {
+                    // Each listener gets its own copies
+                    visible.add(copy(note));
+                }
+            }
+            if (!visible.isEmpty()) {
+                executor.execute(() -> listener.onChanges(visible));
+            }
+        }
+    }
+}
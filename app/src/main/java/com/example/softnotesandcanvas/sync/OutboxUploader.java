@@ -0,0 +1,270 @@
+package com.example.softnotesandcanvas.sync;
+
+import android.util.Log;
+
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.NoteFields;
+import com.example.softnotesandcanvas.db.NoteSyncState;
+import com.example.softnotesandcanvas.db.NoteText;
+import com.example.softnotesandcanvas.db.NoteWithBody;
+import com.example.softnotesandcanvas.db.ParagraphCrdt;
+import com.example.softnotesandcanvas.db.SyncOutboxEntry;
+import com.example.softnotesandcanvas.db.SyncStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drains the sync outbox (see SyncOutboxEntry) to a {@link RemoteNoteStore}.
+ * Uploads go out in batches of up to {@link RemoteNoteStore#MAX_BATCH_WRITES}
+ * writes, so hundreds of queued edits cost a handful of round trips.
+ * <p>
+ * A batch is all-or-nothing on the server. Retryable failures stop the
+ * drain so the caller can back off. A permanent failure splits the batch
+ * in halves until the offending notes are isolated; those are marked
+ * OFFLINE and the rest are uploaded.
+ * <p>
+ * Notes already on the server only get the fields their queued changes
+ * touched (a merge), so trashing a note does not re-send its body. First
+ * uploads, and entries queued before field tracking, write the whole
+ * document.
+ * <p>
+ * Content edits of text notes with a CRDT (see NoteText) append this
+ * device's new paragraph records to the document's log instead of
+ * re-sending the body. Text notes without one, or whose log has grown past
+ * NoteText.MAX_LOG_BYTES, write their content as a new checkpoint.
+ * <p>
+ * A canvas note's drawing goes up through a {@link BlobTransfer} before
+ * the first document that refers to it, so other devices never see a hash
+ * the server cannot serve.
+ * <p>
+ * Which entries go up when is up to an {@link UploadScheduler}: the drain
+ * waits for entries it holds back and ends when its lane of the outbox is
+ * empty.
+ */
+public class OutboxUploader {
+
+    private static final String TAG = "OutboxUploader";
+
+    /** Decides whether to stop between batches, and between waits. */
+    public interface StopSignal {
+        boolean isStopped();
+    }
+
+    private final NoteDao noteDao;
+    private final RemoteNoteStore store;
+    private final BlobTransfer blobs;
+    private final UploadScheduler scheduler;
+    private final String deviceId;
+
+    /** @param deviceId This device; only its own text edits are appended. */
+    public OutboxUploader(NoteDao noteDao, RemoteNoteStore store, BlobTransfer blobs, UploadScheduler scheduler,
+                          String deviceId) {
+        this.noteDao = noteDao;
+        this.store = store;
+        this.blobs = blobs;
+        this.scheduler = scheduler;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Uploads batches of the lane until it is empty or the signal says
+     * stop. Edits made while a batch was in flight are picked up too. If a
+     * drain of the lane is already running, returns straight away and
+     * leaves the entries to it.
+     * <p>
+     * SyncManager only wakes a running drain instead of scheduling
+     * another, so an edit queued between the drain finding the lane empty
+     * and giving it up would be left behind. The lane is counted again
+     * once it is given up, and drained again if anything is there.
+     *
+     * @return The number of entries processed.
+     * @throws RemoteStoreException On a retryable failure. Entries uploaded
+     *         before it stay uploaded; the rest stay queued.
+     */
+    public int drain(UploadScheduler.Lane lane, StopSignal stop) throws RemoteStoreException {
+        int processed = 0;
+        do {
+            if (!scheduler.tryStartDrain(lane)) {
+                return processed;
+            }
+            try {
+                processed += drainUntilEmpty(lane, stop);
+            } catch (InterruptedException e) {
+                // Whatever is left stays queued
+                Thread.currentThread().interrupt();
+                return processed;
+            } finally {
+                scheduler.drainFinished(lane);
+            }
+        } while (!stop.isStopped() && lane.count(noteDao) > 0);
+        return processed;
+    }
+
+    private int drainUntilEmpty(UploadScheduler.Lane lane, StopSignal stop)
+            throws RemoteStoreException, InterruptedException {
+        int processed = 0;
+        while (!stop.isStopped()) {
+            UploadScheduler.Batch batch = scheduler.nextBatch(noteDao, lane, RemoteNoteStore.MAX_BATCH_WRITES);
+            List<SyncOutboxEntry> entries = batch.entries;
+            if (entries.isEmpty()) {
+                if (batch.waitMillis < 0) {
+                    break;
+                }
+                scheduler.await(batch.waitMillis);
+                continue;
+            }
+            Map<String, Note> notes = loadNotes(entries);
+            // After the notes, so every edit a note's hlc covers is in its CRDT
+            Map<String, NoteText> texts = noteDao.findNoteTextsByIds(idsOf(entries));
+            Set<String> syncedIds = loadSyncedIds(entries);
+            upload(uploadBlobs(entries, notes, syncedIds), notes, syncedIds, texts);
+            scheduler.recordSent(entries);
+            processed += entries.size();
+        }
+        return processed;
+    }
+
+    private Map<String, Note> loadNotes(List<SyncOutboxEntry> entries) {
+        Map<String, Note> byId = new HashMap<>();
+        for (NoteWithBody row : noteDao.getNotesWithBodiesByIds(idsOf(entries))) {
+            Note note = row.toNote();
+            byId.put(note.id, note);
+        }
+        return byId;
+    }
+
+    /** Ids of the notes among the entries that have been uploaded before. */
+    private Set<String> loadSyncedIds(List<SyncOutboxEntry> entries) {
+        Set<String> synced = new HashSet<>();
+        for (NoteSyncState state : noteDao.getSyncStatesByIds(idsOf(entries))) {
+            if (state.lastSyncedVersion > 0) {
+                synced.add(state.noteId);
+            }
+        }
+        return synced;
+    }
+
+    private static List<String> idsOf(List<SyncOutboxEntry> entries) {
+        List<String> ids = new ArrayList<>(entries.size());
+        for (SyncOutboxEntry entry : entries) {
+            ids.add(entry.noteId);
+        }
+        return ids;
+    }
+
+    /**
+     * Uploads the drawings the entries' writes will refer to. A drawing
+     * that cannot be read gives up on its own note only.
+     *
+     * @return The entries ready to upload.
+     */
+    private List<SyncOutboxEntry> uploadBlobs(List<SyncOutboxEntry> entries, Map<String, Note> byId,
+                                              Set<String> syncedIds) throws RemoteStoreException {
+        List<SyncOutboxEntry> ready = new ArrayList<>(entries.size());
+        for (SyncOutboxEntry entry : entries) {
+            Note note = byId.get(entry.noteId);
+            boolean writesCanvas = note != null && !note.isDeleted && note.canvasHash != null
+                    && ((entry.dirtyFields & NoteFields.CANVAS) != 0 || !syncedIds.contains(note.id));
+            if (writesCanvas) {
+                try {
+                    blobs.uploadCanvas(note.userId, note.canvasHash);
+                } catch (RemoteStoreException e) {
+                    List<SyncOutboxEntry> failed = Collections.singletonList(entry);
+                    if (e.isRetryable()) {
+                        noteDao.failUploads(failed, SyncStatus.SYNCING, String.valueOf(e.getMessage()));
+                        throw e;
+                    }
+                    Log.e(TAG, "Giving up on note: " + note.id, e);
+                    noteDao.failUploads(failed, SyncStatus.OFFLINE, String.valueOf(e.getMessage()));
+                    continue;
+                }
+            }
+            ready.add(entry);
+        }
+        return ready;
+    }
+
+    /**
+     * Commits the entries as one batch. On a permanent failure, retries each
+     * half on its own until single bad notes are found and given up on.
+     */
+    private void upload(List<SyncOutboxEntry> entries, Map<String, Note> byId, Set<String> syncedIds,
+                        Map<String, NoteText> texts) throws RemoteStoreException {
+        RemoteNoteStore.Batch batch = store.batch();
+        Map<String, Long> versions = new HashMap<>();
+        Map<String, NoteText> checkpoints = new HashMap<>();
+        Map<String, Integer> appendedBytes = new HashMap<>();
+        for (SyncOutboxEntry entry : entries) {
+            Note note = byId.get(entry.noteId);
+            if (note == null) {
+                // Gone locally (e.g. signed out); nothing to upload
+                continue;
+            }
+            boolean text = Note.TYPE_TEXT.equals(note.type);
+            if (note.isDeleted) {
+                batch.delete(note.userId, note.id);
+            } else if (entry.dirtyFields == NoteFields.ALL || !syncedIds.contains(note.id)) {
+                // The note from Room already has all fields
+                // (including lastEditedByDeviceId) set by the Repository.
+                if (text) {
+                    checkpoint(note, checkpoints);
+                }
+                batch.set(note);
+            } else if (text && (entry.dirtyFields & NoteFields.CONTENT) != 0) {
+                NoteText noteText = texts.get(note.id);
+                String delta = noteText != null ? ParagraphCrdt.decode(noteText.state).delta(deviceId, noteText.acked) : null;
+                int fields = entry.dirtyFields & ~NoteFields.CONTENT;
+                if (noteText == null || (delta != null && noteText.logBytes + delta.length() > NoteText.MAX_LOG_BYTES)) {
+                    checkpoint(note, checkpoints);
+                    batch.update(note.userId, note.id, NoteFields.toUpdate(note, entry.dirtyFields));
+                } else if (delta != null) {
+                    batch.appendTextDelta(note.userId, note.id, NoteFields.toUpdate(note, fields), delta);
+                    appendedBytes.put(note.id, delta.length());
+                } else {
+                    // Edited back to what the server has
+                    batch.update(note.userId, note.id, NoteFields.toUpdate(note, fields));
+                }
+            } else {
+                batch.update(note.userId, note.id, NoteFields.toUpdate(note, entry.dirtyFields));
+            }
+            versions.put(note.id, note.hlc);
+        }
+
+        try {
+            if (!versions.isEmpty()) {
+                batch.commit();
+            }
+            noteDao.completeUploads(entries, versions, checkpoints, appendedBytes);
+        } catch (RemoteStoreException e) {
+            if (e.isRetryable()) {
+                // Still queued; count the attempt against these notes only
+                noteDao.failUploads(entries, SyncStatus.SYNCING, String.valueOf(e.getMessage()));
+                throw e;
+            }
+            if (entries.size() == 1) {
+                Log.e(TAG, "Giving up on note: " + entries.get(0).noteId, e);
+                noteDao.failUploads(entries, SyncStatus.OFFLINE, String.valueOf(e.getMessage()));
+                return;
+            }
+            int half = entries.size() / 2;
+            upload(entries.subList(0, half), byId, syncedIds, texts);
+            upload(entries.subList(half, entries.size()), byId, syncedIds, texts);
+        }
+    }
+
+    /**
+     * Makes the upload of a text note's content a new checkpoint at its
+     * hlc, and seeds the CRDT that goes with it.
+     */
+    private static void checkpoint(Note note, Map<String, NoteText> checkpoints) {
+        note.textBase = note.hlc;
+        checkpoints.put(note.id, new NoteText(note.id, note.hlc, ParagraphCrdt.seed(note.content, note.hlc).encode()));
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.softnotesandcanvas.sync;
+
+import android.util.Log;
+
+import com.example.softnotesandcanvas.db.Hlc;
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.NoteText;
+import com.example.softnotesandcanvas.db.ParagraphCrdt;
+import com.example.softnotesandcanvas.db.SyncCursor;
+import com.example.softnotesandcanvas.db.SyncStatus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores notes pulled or received from a {@link RemoteNoteStore}, deciding
+ * per note whether the remote version wins or conflicts with a local edit.
+ * Edits are ordered by their HLC stamps (see Hlc), not by device clocks.
+ */
+public class RemoteChangeApplier {
+
+    private static final String TAG = "RemoteChangeApplier";
+
+    private final NoteDao noteDao;
+    private final HybridLogicalClock clock;
+    private final String deviceId;
+
+    /** @param clock This device's clock; remote stamps advance it, and edits with its device id are skipped as echoes. */
+    public RemoteChangeApplier(NoteDao noteDao, HybridLogicalClock clock) {
+        this.noteDao = noteDao;
+        this.clock = clock;
+        this.deviceId = clock.getDeviceId();
+    }
+
+    /**
+     * Applies remote notes as a single unit: one batched lookup of the
+     * local copies, conflict decisions in memory, then one transaction for
+     * every write and the cursor move.
+     * <p>
+     * Text notes with a paragraph log (see NoteText) merge it into the
+     * local CRDT, so concurrent edits are combined instead of flagged.
+     * The other fields go to the later edit. Notes without a log, or whose
+     * checkpoint was replaced under unsent local edits, fall back to
+     * comparing whole versions.
+     *
+     * @param moveCursor False for pages that arrive out of order (bootstrap).
+     * @return The number of notes stored.
+     */
+    public int apply(String userId, List<Note> notes, boolean moveCursor) {
+        // Last change per note wins; LinkedHashMap keeps snapshot order
+        Map<String, Note> remoteNotes = new LinkedHashMap<>();
+        SyncCursor seen = null;
+        for (Note remoteNote : notes) {
+            // Echoes count as seen too, so the next pull starts after them. A
+            // write still pending on the server has no position; it comes again once stored.
+            SyncCursor position = new SyncCursor(userId, remoteNote.syncedAt, remoteNote.id);
+            if (remoteNote.syncedAt != 0 && position.isAfter(seen)) {
+                seen = position;
+            }
+            clock.observe(remoteNote.hlc);
+            remoteNotes.put(remoteNote.id, remoteNote);
+        }
+        if (remoteNotes.isEmpty()) {
+            return 0;
+        }
+        if (!moveCursor) {
+            seen = null;
+        }
+
+        List<String> ids = new ArrayList<>(remoteNotes.keySet());
+        Map<String, Note> localNotes = noteDao.findNotesByIds(ids);
+        Map<String, SyncStatus> localStatuses = noteDao.findSyncStatusesByIds(ids);
+        Map<String, NoteText> localTexts = noteDao.findNoteTextsByIds(ids);
+
+        List<Note> accepted = new ArrayList<>();
+        List<Note> merged = new ArrayList<>();
+        List<NoteText> texts = new ArrayList<>();
+        List<String> conflicts = new ArrayList<>();
+        for (Note remoteNote : remoteNotes.values()) {
+            Note localNote = localNotes.get(remoteNote.id);
+            SyncStatus localStatus = localStatuses.get(remoteNote.id);
+            boolean clean = localNote == null || localStatus == null || localStatus == SyncStatus.SYNCED;
+            NoteText text = hasTextLog(remoteNote) ? mergeText(remoteNote, localTexts.get(remoteNote.id), clean) : null;
+            if (text != null) {
+                // Echoes are merged too: the log may hold deltas appended before ours landed
+                texts.add(text);
+                if (clean) {
+                    accepted.add(remoteNote);
+                } else {
+                    merged.add(combine(localNote, remoteNote));
+                }
+            } else if (deviceId.equals(remoteNote.lastEditedByDeviceId)) {
+                Log.d(TAG, "Ignoring echo of our own change for note: " + remoteNote.id);
+            } else if (clean) {
+                accepted.add(remoteNote);
+            } else if (hasTextLog(remoteNote) || Hlc.isAfter(remoteNote, localNote)) {
+                // A replaced checkpoint leaves nothing to merge the local edits into
+                Log.w(TAG, "CONFLICT detected! Marking note for resolution: " + remoteNote.id);
+                conflicts.add(remoteNote.id);
+            } else {
+                Log.w(TAG, "Conflict detected, but local is newer. Ignoring remote change for: " + remoteNote.id);
+            }
+        }
+
+        noteDao.applyRemoteChanges(accepted, merged, texts, conflicts, seen);
+        Log.d(TAG, "Applied " + accepted.size() + " remote changes, " + merged.size() + " merges, "
+                + conflicts.size() + " conflicts");
+        return accepted.size() + merged.size();
+    }
+
+    private static boolean hasTextLog(Note note) {
+        return note.textBase != 0 && Note.TYPE_TEXT.equals(note.type);
+    }
+
+    /**
+     * Merges the remote log into the local CRDT, or into a fresh one seeded
+     * from the remote checkpoint when nothing local is waiting to upload.
+     * Sets the remote note's content to the merged text.
+     *
+     * @return The merged CRDT, or null if the local one is on another
+     *         checkpoint and has unsent edits.
+     */
+    private NoteText mergeText(Note remoteNote, NoteText local, boolean clean) {
+        ParagraphCrdt crdt;
+        NoteText text;
+        if (local != null && local.base == remoteNote.textBase) {
+            crdt = ParagraphCrdt.decode(local.state);
+            text = local;
+        } else if (clean) {
+            crdt = ParagraphCrdt.seed(remoteNote.content, remoteNote.textBase);
+            text = new NoteText(remoteNote.id, remoteNote.textBase, "");
+        } else {
+            return null;
+        }
+        crdt.merge(remoteNote.textOps);
+        clock.observe(crdt.maxStamp());
+        text.state = crdt.encode();
+        text.logBytes = 0;
+        if (remoteNote.textOps != null) {
+            for (String delta : remoteNote.textOps) {
+                text.logBytes += delta.length();
+            }
+        }
+        remoteNote.content = crdt.render();
+        return text;
+    }
+
+    /**
+     * A locally edited note with merged remote text: the merged content,
+     * and the other fields from whichever edit is later.
+     */
+    private static Note combine(Note localNote, Note remoteNote) {
+        Note merged = Hlc.isAfter(remoteNote, localNote) ? remoteNote : localNote;
+        merged.content = remoteNote.content;
+        merged.hlc = Math.max(localNote.hlc, remoteNote.hlc);
+        merged.updatedAt = Math.max(localNote.updatedAt, remoteNote.updatedAt);
+        merged.createdAt = localNote.createdAt != 0 ? localNote.createdAt : remoteNote.createdAt;
+        return merged;
+    }
+
+    /** Moves the cursor without storing anything, e.g. once a bootstrap completes. */
+    public void moveCursor(SyncCursor cursor) {
+        noteDao.applyRemoteChanges(new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), cursor);
+    }
+}
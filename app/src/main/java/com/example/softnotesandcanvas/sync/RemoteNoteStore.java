@@ -0,0 +1,101 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.annotation.Nullable;
+
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.SyncCursor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The server side of sync: a per-user collection of note documents.
+ * {@link FirestoreNoteStore} is the real one; {@link InMemoryNoteStore}
+ * stands in for it in benchmarks and load tests.
+ * <p>
+ * Calls block until the server answers, so they must not run on the main
+ * thread. Documents are ordered by (syncedAt, id), the order of
+ * {@link SyncCursor}. The store sets syncedAt to its own time on every
+ * write (see Note#syncedAt); updatedAt is the writer's, for display only.
+ */
+public interface RemoteNoteStore {
+
+    /** Firestore's limit on writes per batch. */
+    int MAX_BATCH_WRITES = 500;
+
+    /** Writes the whole document, replacing what was there. */
+    void set(Note note) throws RemoteStoreException;
+
+    /**
+     * Writes the given fields only, as built by NoteFields.toUpdate. A
+     * missing document is created with just those fields.
+     */
+    void update(String userId, String noteId, Map<String, Object> fields) throws RemoteStoreException;
+
+    void delete(String userId, String noteId) throws RemoteStoreException;
+
+    /** Starts an atomic batch of at most MAX_BATCH_WRITES writes. */
+    Batch batch();
+
+    /**
+     * Notes after the cursor, oldest first.
+     *
+     * @param after The cursor, or null to start at the beginning.
+     */
+    List<Note> querySince(String userId, @Nullable SyncCursor after, int limit) throws RemoteStoreException;
+
+    /**
+     * Notes with syncedAt in [from, until), in epoch micros, newest first.
+     *
+     * @param from Inclusive lower bound, or Long.MIN_VALUE for none.
+     * @param until Exclusive upper bound, or Long.MAX_VALUE for none.
+     * @param before Continue below this position, or null to start at the top.
+     */
+    List<Note> queryRange(String userId, long from, long until, @Nullable SyncCursor before, int limit)
+            throws RemoteStoreException;
+
+    /**
+     * Gives a syncedAt to documents written before it existed, which the
+     * ordered queries and listeners cannot see. Cheap when there are none.
+     *
+     * @return The number of documents stamped.
+     */
+    int stampLegacyDocuments(String userId) throws RemoteStoreException;
+
+    /**
+     * Delivers the notes after the cursor, then every note written after
+     * that, as they change. Deletions are not delivered.
+     *
+     * @param executor Runs the listener callbacks.
+     */
+    Registration listen(String userId, @Nullable SyncCursor after, Executor executor, ChangeListener listener);
+
+    /** Writes applied together or not at all, see {@link #batch()}. */
+    interface Batch {
+        Batch set(Note note);
+
+        Batch update(String userId, String noteId, Map<String, Object> fields);
+
+        /**
+         * Writes the fields as update() does and appends a ParagraphCrdt
+         * delta to the note's textOps, see NoteText.
+         */
+        Batch appendTextDelta(String userId, String noteId, Map<String, Object> fields, String delta);
+
+        Batch delete(String userId, String noteId);
+
+        void commit() throws RemoteStoreException;
+    }
+
+    interface ChangeListener {
+        /** Added or changed notes; one call per server snapshot. */
+        void onChanges(List<Note> notes);
+
+        void onError(RemoteStoreException e);
+    }
+
+    interface Registration {
+        void remove();
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.softnotesandcanvas.sync;
+
+/**
+ * A failed call to a {@link RemoteNoteStore}.
+ */
+public class RemoteStoreException extends Exception {
+
+    private final boolean retryable;
+
+    public RemoteStoreException(String message, Throwable cause, boolean retryable) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    public RemoteStoreException(String message, boolean retryable) {
+        this(message, null, retryable);
+    }
+
+    /**
+     * True if the same call may succeed later (server unreachable, timed
+     * out, contended or throttled); false if it will keep failing.
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
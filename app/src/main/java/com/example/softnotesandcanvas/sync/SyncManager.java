@@ -1,13 +1,13 @@
 package com.example.softnotesandcanvas.sync;
 
 import android.content.Context;
-import androidx.annotation.NonNull;
 import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
 import androidx.work.Data;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
 import androidx.work.WorkManager;
 
 import java.util.concurrent.TimeUnit;
@@ -16,53 +16,156 @@ import java.util.concurrent.TimeUnit;
  * Manages the enqueuing of sync jobs using WorkManager.
  * This class abstracts the WorkManager implementation details
  * from the rest of the application (e.g., the Repository).
+ * <p>
+ * Uploads are paced by one {@link UploadScheduler} per process, which
+ * coalesces repeated saves of a note and caps the write rate; its counters
+ * are available from {@link #getUploadCounters()}.
+ * <p>
+ * Work is tiered by what it costs the user:
+ * <ul>
+ *     <li>Metadata, text and small drawings (UploadScheduler.Lane.SMALL) go
+ *     up as expedited work on any network, so other devices see them
+ *     within seconds.</li>
+ *     <li>Large drawings (Lane.LARGE) wait for an unmetered network or for
+ *     the charger, whichever comes first, unless the user asks for a sync
+ *     with {@link #requestForcedSync()}. The small drain asks for them
+ *     when it leaves some behind.</li>
+ *     <li>The canvas backfill, see CanvasBackfillWorker, runs only while
+ *     the device is idle on an unmetered network.</li>
+ * </ul>
  */
 public class SyncManager {
 
     private static final String SYNC_WORK_TAG = "sync_note";
-    private static final String UNIQUE_WORK_PREFIX = "sync_";
+    private static final String UNIQUE_WORK_NAME = "sync_outbox";
+    private static final String LARGE_UNMETERED_WORK_NAME = "sync_outbox_large_unmetered";
+    private static final String LARGE_CHARGING_WORK_NAME = "sync_outbox_large_charging";
+    private static final String LARGE_FORCED_WORK_NAME = "sync_outbox_large_forced";
+    private static final String BACKFILL_WORK_NAME = "canvas_backfill";
+    private static final UploadScheduler UPLOAD_SCHEDULER = UploadScheduler.forFirestore();
     private final WorkManager workManager;
 
     public SyncManager(Context context) {
         this.workManager = WorkManager.getInstance(context.getApplicationContext());
     }
 
+    /** The process's upload scheduler, shared by every SyncWorker run. */
+    public static UploadScheduler getUploadScheduler() {
+        return UPLOAD_SCHEDULER;
+    }
+
+    /** How many writes were sent, coalesced and prioritized since the process started. */
+    public static UploadScheduler.Counters getUploadCounters() {
+        return UPLOAD_SCHEDULER.getCounters();
+    }
+
     /**
-     * Schedules a one-time sync job for a specific note.
-     *
-     * @param noteId The ID of the note to sync.
+     * Schedules a drain of the sync outbox. Local changes are queued in the
+     * outbox by the DAO, so callers only need to ask for a drain; requests
+     * made while a drain is pending or running are folded into it, and the
+     * running drain keeps going until the outbox is empty. Expedited work
+     * cannot be delayed, so the drain starts straight away and waits out
+     * the coalescing window itself.
      */
-    public void scheduleSync(@NonNull String noteId) {
-        // 1. Create constraints: Job only runs when network is connected.
-        Constraints constraints = new Constraints.Builder()
+    public void requestSync() {
+        if (UPLOAD_SCHEDULER.isDraining(UploadScheduler.Lane.SMALL)) {
+            // The running drain waits for the edit to come due, and counts the
+            // lane again after it stops, see OutboxUploader.drain
+            UPLOAD_SCHEDULER.wake();
+            return;
+        }
+        enqueue(UNIQUE_WORK_NAME, ExistingWorkPolicy.KEEP, UploadScheduler.Lane.SMALL, connected(), true);
+    }
+
+    /**
+     * Schedules a drain straight away, for a user-visible action (trash,
+     * restore, delete) queued in the outbox's priority lane. A drain
+     * waiting for coalesced edits is woken, and one waiting to retry is
+     * replaced.
+     */
+    public void requestPrioritySync() {
+        if (UPLOAD_SCHEDULER.isDraining(UploadScheduler.Lane.SMALL)) {
+            UPLOAD_SCHEDULER.wake();
+            return;
+        }
+        enqueue(UNIQUE_WORK_NAME, ExistingWorkPolicy.REPLACE, UploadScheduler.Lane.SMALL, connected(), true);
+    }
+
+    /**
+     * Schedules a drain of the large drawings, for when the device is next
+     * on an unmetered network or charging. WorkManager cannot express "or"
+     * between constraints, so there is a job for each; the lane is drained
+     * by one of them at a time, and the other finds it empty.
+     */
+    public void requestLargeSync() {
+        Constraints unmetered = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .build();
+        Constraints charging = new Constraints.Builder()
                 .setRequiredNetworkType(NetworkType.CONNECTED)
+                .setRequiresCharging(true)
                 .build();
+        enqueue(LARGE_UNMETERED_WORK_NAME, ExistingWorkPolicy.KEEP, UploadScheduler.Lane.LARGE, unmetered, false);
+        enqueue(LARGE_CHARGING_WORK_NAME, ExistingWorkPolicy.KEEP, UploadScheduler.Lane.LARGE, charging, false);
+    }
 
-        // 2. Create input data: Pass the noteId to the worker.
-        Data inputData = new Data.Builder()
-                .putString(SyncWorker.KEY_NOTE_ID, noteId)
+    /** Uploads everything now on any network, large drawings included; for "Sync now". */
+    public void requestForcedSync() {
+        requestPrioritySync();
+        enqueue(LARGE_FORCED_WORK_NAME, ExistingWorkPolicy.REPLACE, UploadScheduler.Lane.LARGE, connected(), true);
+    }
+
+    /**
+     * Schedules a download of the user's drawings that are not on this
+     * device, see CanvasBackfillWorker, for when the device is idle on an
+     * unmetered network with battery to spare.
+     */
+    public void requestCanvasBackfill(String uid) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .setRequiresDeviceIdle(true)
+                .setRequiresBatteryNotLow(true)
+                .setRequiresStorageNotLow(true)
+                .build();
+        OneTimeWorkRequest backfillRequest = new OneTimeWorkRequest.Builder(CanvasBackfillWorker.class)
+                .setConstraints(constraints)
+                .setInputData(new Data.Builder().putString(CanvasBackfillWorker.KEY_USER_ID, uid).build())
+                .addTag(SYNC_WORK_TAG)
                 .build();
+        workManager.enqueueUniqueWork(BACKFILL_WORK_NAME, ExistingWorkPolicy.KEEP, backfillRequest);
+    }
 
-        // 3. Create the work request.
-        OneTimeWorkRequest syncWorkRequest = new OneTimeWorkRequest.Builder(SyncWorker.class)
+    /** Job only runs when network is connected. */
+    private static Constraints connected() {
+        return new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+    }
+
+    private void enqueue(String uniqueName, ExistingWorkPolicy policy, UploadScheduler.Lane lane,
+                         Constraints constraints, boolean expedited) {
+        // 1. Create the work request, telling the worker which lane to drain.
+        OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(SyncWorker.class)
                 .setConstraints(constraints)
-                .setInputData(inputData)
+                .setInputData(new Data.Builder().putString(SyncWorker.KEY_LANE, lane.name()).build())
                 .addTag(SYNC_WORK_TAG)
-                // 4. Set exponential backoff for retries.
+                // 2. Set exponential backoff for retries; applies per failed batch.
                 .setBackoffCriteria(
                         BackoffPolicy.EXPONENTIAL,
                         OneTimeWorkRequest.MIN_BACKOFF_MILLIS,
                         TimeUnit.MILLISECONDS
-                )
-                .build();
+                );
+        if (expedited) {
+            // Past the app's expedited quota it still runs, as ordinary work
+            builder.setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST);
+        }
 
-        // 5. Enqueue as unique work.
-        // If a sync job for this note is already pending, REPLACE it.
-        // This ensures we only sync the *latest* version of the note.
+        // 3. Enqueue as unique work. A single drain job exists per name;
+        // KEEP leaves a pending or running drain in place, REPLACE brings it forward.
         workManager.enqueueUniqueWork(
-                UNIQUE_WORK_PREFIX + noteId,
-                ExistingWorkPolicy.REPLACE,
-                syncWorkRequest
+                uniqueName,
+                policy,
+                builder.build()
         );
     }
 
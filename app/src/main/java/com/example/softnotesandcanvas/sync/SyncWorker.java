@@ -1,30 +1,46 @@
 package com.example.softnotesandcanvas.sync;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
 import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+import androidx.work.ForegroundInfo;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.example.softnotesandcanvas.R;
 import com.example.softnotesandcanvas.db.AppDatabase;
-import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
 import com.example.softnotesandcanvas.db.NoteDao;
-import com.example.softnotesandcanvas.db.SyncStatus;
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
-import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FirebaseFirestoreException;
 
 /**
- * A WorkManager Worker responsible for syncing a single Note
- * to Firestore based on its ID.
+ * A WorkManager Worker that drains the sync outbox to Firestore with an
+ * {@link OutboxUploader}, paced by the app's {@link UploadScheduler}: it
+ * stays to upload edits as they come due, for up to MAX_RUN_MILLIS, and
+ * then hands the rest to a retry. Retryable failures retry the whole job
+ * with WorkManager's backoff. Once the outbox is empty, canvas blobs no
+ * note refers to any more are deleted.
+ * <p>
+ * Each job drains one lane (see UploadScheduler.Lane), given by KEY_LANE.
+ * A small-lane drain that leaves large drawings behind schedules their
+ * lane, see SyncManager.requestLargeSync().
  */
 public class SyncWorker extends Worker {
 
+    /** Input of the per-note jobs this worker used to run; still accepted and ignored. */
     public static final String KEY_NOTE_ID = "KEY_NOTE_ID";
+    /** Name of the UploadScheduler.Lane to drain; the small lane if absent. */
+    public static final String KEY_LANE = "KEY_LANE";
     private static final String TAG = "SyncWorker";
+    /** Well inside WorkManager's ten minutes per run. */
+    private static final long MAX_RUN_MILLIS = 5 * 60 * 1000;
+    private static final String NOTIFICATION_CHANNEL_ID = "sync";
+    private static final int NOTIFICATION_ID = 1;
 
     private final NoteDao noteDao;
 
@@ -37,75 +53,65 @@ public class SyncWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
-        // 1. Get the note ID from the input data
-        String noteId = getInputData().getString(KEY_NOTE_ID);
-        if (noteId == null) {
-            Log.e(TAG, "No noteId provided. Failing job.");
-            return Result.failure();
-        }
-
-        Log.d(TAG, "Starting sync for note: " + noteId);
-
-        // 2. Fetch the note from the local Room database
-        // This is a synchronous call, which is allowed inside doWork()
-        Note note = noteDao.getNoteById(noteId);
-
-        if (note == null) {
-            Log.w(TAG, "Note " + noteId + " not found in local DB. Assuming deleted or invalid. Success.");
-            // If the note doesn't exist, we can't sync it.
-            // Mark as success to avoid retrying a job that will never work.
-            return Result.success();
-        }
-
+        FirebaseFirestore firestore = FirebaseFirestore.getInstance();
+        CanvasBlobStore blobStore = CanvasBlobStore.getInstance(getApplicationContext());
+        UploadScheduler scheduler = SyncManager.getUploadScheduler();
+        String laneName = getInputData().getString(KEY_LANE);
+        UploadScheduler.Lane lane = laneName != null ? UploadScheduler.Lane.valueOf(laneName) : UploadScheduler.Lane.SMALL;
+        OutboxUploader uploader = new OutboxUploader(noteDao, new FirestoreNoteStore(firestore),
+                new BlobTransfer(blobStore, new FirestoreBlobBackend(firestore)),
+                scheduler, DeviceUtil.getDeviceId(getApplicationContext()));
+        long deadline = System.currentTimeMillis() + MAX_RUN_MILLIS;
         try {
-            FirebaseFirestore db = FirebaseFirestore.getInstance();
-            DocumentReference docRef = db.collection("notes").document(note.id);
-            Task<?> firestoreTask;
-
-            // 3. Decide whether to delete or set (create/update) the document
-            if (note.isDeleted) {
-                Log.d(TAG, "Note " + noteId + " is soft-deleted. Deleting from Firestore.");
-                firestoreTask = docRef.delete();
-            } else {
-                Log.d(TAG, "Note " + noteId + " is active. Setting in Firestore.");
-                // The note object from Room already has all fields
-                // (including lastEditedByDeviceId) set by the Repository.
-                firestoreTask = docRef.set(note);
+            int uploaded = uploader.drain(lane, () -> isStopped() || System.currentTimeMillis() > deadline);
+            if (!isStopped() && scheduler.isDraining(lane)) {
+                // Another run owns the lane (e.g. both large-drawing jobs started) and drains
+                // what is left; retrying would only back off for as long as it runs
+                Log.d(TAG, lane + " lane is being drained by another run.");
+                return Result.success();
             }
-
-            // 4. Block this background thread until the Firebase task completes
-            // Tasks.await() is a synchronous call.
-            Tasks.await(firestoreTask);
-
-            // 5. On success, update the note's local status to SYNCED
-            // We only do this if the task was successful.
-            Log.d(TAG, "Successfully synced note: " + noteId);
-            if (note.isDeleted) {
-                // If the note was deleted and synced, we can remove it from local DB
-                // This is optional, but good for cleanup.
-                // For now, we'll just mark it as synced.
-                // noteDao.deleteNoteById(noteId);
-            } else {
-                noteDao.updateSyncStatus(noteId, SyncStatus.SYNCED);
+            if (isStopped() || lane.count(noteDao) > 0) {
+                // Stopped by the system or out of time; whatever is left stays queued for the next run
+                return Result.retry();
+            }
+            Log.d(TAG, lane + " lane drained, " + uploaded + " uploads (" + scheduler.getCounters() + " so far).");
+            if (lane == UploadScheduler.Lane.SMALL && UploadScheduler.Lane.LARGE.count(noteDao) > 0) {
+                new SyncManager(getApplicationContext()).requestLargeSync();
+                return Result.success();
+            }
+            int collected = blobStore.collectGarbage(System.currentTimeMillis());
+            if (collected > 0) {
+                Log.d(TAG, "Deleted " + collected + " unreferenced canvas blobs.");
             }
             return Result.success();
+        } catch (RemoteStoreException e) {
+            Log.w(TAG, "Transient error, retrying the outbox later.", e);
+            return Result.retry();
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Sync failed for note: " + noteId, e);
-
-            // Check if this is a transient error (like network)
-            if (e.getCause() instanceof FirebaseFirestoreException) {
-                FirebaseFirestoreException.Code code = ((FirebaseFirestoreException) e.getCause()).getCode();
-                if (code == FirebaseFirestoreException.Code.UNAVAILABLE || code == FirebaseFirestoreException.Code.DEADLINE_EXCEEDED) {
-                    Log.w(TAG, "Transient error. Retrying sync for " + noteId);
-                    return Result.retry();
-                }
-            }
+    /**
+     * The notification of an expedited run before Android 12, where it runs
+     * as a foreground service.
+     */
+    @NonNull
+    @Override
+    public ForegroundInfo getForegroundInfo() {
+        Context context = getApplicationContext();
+        NotificationManager manager = context.getSystemService(NotificationManager.class);
+        manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                context.getString(R.string.sync_notification_channel), NotificationManager.IMPORTANCE_MIN));
+        Notification notification = new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_notify_sync)
+                .setContentTitle(context.getString(R.string.sync_notification_title))
+                .setOngoing(true)
+                .build();
+        return new ForegroundInfo(NOTIFICATION_ID, notification);
+    }
 
-            // For other errors (like PERMISSION_DENIED), don't retry.
-            // We can also flag the note as CONFLICT or OFFLINE here.
-            noteDao.updateSyncStatus(noteId, SyncStatus.OFFLINE);
-            return Result.failure();
-        }
+    @Override
+    public void onStopped() {
+        // Cut short a wait for coalesced edits
+        SyncManager.getUploadScheduler().wake();
     }
 }
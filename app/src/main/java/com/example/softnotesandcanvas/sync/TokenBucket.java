@@ -0,0 +1,69 @@
+package com.example.softnotesandcanvas.sync;
+
+/**
+ * A token bucket: holds up to a burst of tokens and refills at a steady
+ * rate, so work can go out in bursts while its average rate stays capped.
+ * Thread-safe.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerMilli;
+    private final HybridLogicalClock.WallClock clock;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Starts full.
+     *
+     * @param capacity The largest burst.
+     * @param tokensPerSecond The sustained rate.
+     */
+    public TokenBucket(int capacity, double tokensPerSecond, HybridLogicalClock.WallClock clock) {
+        this.capacity = capacity;
+        this.tokensPerMilli = tokensPerSecond / 1000;
+        this.clock = clock;
+        this.tokens = capacity;
+        this.refilledAt = clock.currentTimeMillis();
+    }
+
+    /**
+     * Takes as many whole tokens as are available, up to wanted.
+     *
+     * @return The number taken, possibly 0.
+     */
+    public synchronized int tryTake(int wanted) {
+        refill();
+        int taken = (int) Math.max(0, Math.min(wanted, Math.floor(tokens)));
+        tokens -= taken;
+        return taken;
+    }
+
+    /**
+     * Takes tokens whether or not they are there. The bucket may go into
+     * debt, which later tryTake calls pay off.
+     */
+    public synchronized void take(int count) {
+        refill();
+        tokens -= count;
+    }
+
+    /** Returns tokens taken but not used. */
+    public synchronized void giveBack(int count) {
+        tokens = Math.min(capacity, tokens + count);
+    }
+
+    /** @return How long until a token is available; 0 if one is now. */
+    public synchronized long millisUntilAvailable() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerMilli);
+    }
+
+    private void refill() {
+        long now = clock.currentTimeMillis();
+        if (now > refilledAt) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerMilli);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.annotation.Nullable;
+
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.SyncOutboxEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which outbox entries the drain uploads next, and when.
+ * <ul>
+ *     <li>Coalescing: a note goes up once it has been quiet for the
+ *     coalescing window, so a burst of saves becomes one write (see
+ *     SyncOutboxEntry). A note that keeps changing still goes up once it
+ *     has waited the longest delay.</li>
+ *     <li>Rate limiting: writes across all notes take tokens from one
+ *     {@link TokenBucket}, so a backlog goes out as a full batch and then
+ *     at a steady rate.</li>
+ *     <li>Priority lane: user-visible actions (trash, restore, delete) skip
+ *     the coalescing wait, go ahead of other entries, and are never held
+ *     back by the rate limit, though they use up its tokens.</li>
+ *     <li>Lanes: entries with a large drawing still to send go up in their
+ *     own drain, which SyncManager runs only on unmetered networks or
+ *     while charging, unless the user asks; see {@link Lane}.</li>
+ * </ul>
+ * The app shares one scheduler across sync runs, see
+ * SyncManager.getUploadScheduler(), so its counters and its bucket outlast
+ * a single drain.
+ */
+public class UploadScheduler {
+
+    /** Quiet time after a note's last edit before it is uploaded. */
+    public static final long COALESCE_WINDOW_MILLIS = 2_000;
+    /**
+     * Longest a changing note waits. Firestore sustains about one write per
+     * second to a document, so this is far from its limit.
+     */
+    public static final long MAX_COALESCE_DELAY_MILLIS = 10_000;
+    /** Writes that may go out at once: one full batch. */
+    public static final int BURST_WRITES = RemoteNoteStore.MAX_BATCH_WRITES;
+    /**
+     * Sustained writes per second: a tenth of the 500 per second Firestore
+     * suggests as the starting rate for new traffic, leaving room for the
+     * user's other devices.
+     */
+    public static final double WRITES_PER_SECOND = 50;
+    /**
+     * Most bytes of drawing an entry may have to send and still go up on
+     * any network: a few edited tiles, but not a new full-screen drawing.
+     */
+    public static final long LARGE_UPLOAD_BYTES = 256 * 1024;
+
+    /**
+     * Which outbox entries a drain takes, by the bytes of drawing they had
+     * to send when queued (see SyncOutboxEntry#canvasBytes). An entry's
+     * bytes do not change while it is queued, so it stays in one lane and
+     * two drains never upload the same entry.
+     */
+    public enum Lane {
+        /** Metadata, text and small drawings. */
+        SMALL(0, LARGE_UPLOAD_BYTES),
+        /** Drawings of more than LARGE_UPLOAD_BYTES. */
+        LARGE(LARGE_UPLOAD_BYTES + 1, Long.MAX_VALUE);
+
+        final long minBytes;
+        final long maxBytes;
+
+        Lane(long minBytes, long maxBytes) {
+            this.minBytes = minBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        /** @return The number of queued entries in the lane. */
+        public int count(NoteDao noteDao) {
+            return noteDao.countOutboxLane(minBytes, maxBytes);
+        }
+    }
+
+    /** What to upload next. */
+    public static final class Batch {
+        /** Entries to upload now, priority ones first; empty if none are due. */
+        public final List<SyncOutboxEntry> entries;
+        /** If entries is empty: how long until some are due, or -1 if the outbox is empty. */
+        public final long waitMillis;
+
+        Batch(List<SyncOutboxEntry> entries, long waitMillis) {
+            this.entries = entries;
+            this.waitMillis = waitMillis;
+        }
+    }
+
+    /** A snapshot of the counters. */
+    public static final class Counters {
+        /** Writes uploaded. */
+        public final long sentWrites;
+        /** Local edits folded into another write instead of sent on their own. */
+        public final long coalescedWrites;
+        /** Sent writes that took the priority lane. */
+        public final long priorityWrites;
+        /** Times the drain had due entries but no tokens and waited. */
+        public final long rateLimitedWaits;
+
+        Counters(long sentWrites, long coalescedWrites, long priorityWrites, long rateLimitedWaits) {
+            this.sentWrites = sentWrites;
+            this.coalescedWrites = coalescedWrites;
+            this.priorityWrites = priorityWrites;
+            this.rateLimitedWaits = rateLimitedWaits;
+        }
+
+        @Override
+        public String toString() {
+            return sentWrites + " sent, " + coalescedWrites + " coalesced, " + priorityWrites + " priority, "
+                    + rateLimitedWaits + " rate-limited waits";
+        }
+    }
+
+    private final long windowMillis;
+    private final long maxDelayMillis;
+    @Nullable
+    private final TokenBucket bucket;
+    private final HybridLogicalClock.WallClock clock;
+    private final Object wakeLock = new Object();
+    private final Set<Lane> draining = EnumSet.noneOf(Lane.class);
+    private final AtomicLong sentWrites = new AtomicLong();
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    private final AtomicLong priorityWrites = new AtomicLong();
+    private final AtomicLong rateLimitedWaits = new AtomicLong();
+    private long wakeups;
+
+    /**
+     * @param bucket Limits the write rate, or null for no limit.
+     */
+    public UploadScheduler(long windowMillis, long maxDelayMillis, @Nullable TokenBucket bucket,
+                           HybridLogicalClock.WallClock clock) {
+        this.windowMillis = windowMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.bucket = bucket;
+        this.clock = clock;
+    }
+
+    /** The app's policy, tuned to Firestore; see the constants. */
+    public static UploadScheduler forFirestore() {
+        HybridLogicalClock.WallClock clock = System::currentTimeMillis;
+        return new UploadScheduler(COALESCE_WINDOW_MILLIS, MAX_COALESCE_DELAY_MILLIS,
+                new TokenBucket(BURST_WRITES, WRITES_PER_SECOND, clock), clock);
+    }
+
+    /** Uploads every entry as soon as it is queued, with no rate limit; for tests and benchmarks. */
+    public static UploadScheduler immediate() {
+        return new UploadScheduler(0, 0, null, System::currentTimeMillis);
+    }
+
+    /**
+     * Picks the entries of the lane due now, taking a token for each.
+     *
+     * @param max The most to return.
+     */
+    public Batch nextBatch(NoteDao noteDao, Lane lane, int max) {
+        long now = clock.currentTimeMillis();
+        List<SyncOutboxEntry> entries = new ArrayList<>(noteDao.getPriorityOutboxBatch(lane.minBytes, lane.maxBytes, max));
+        if (bucket != null) {
+            bucket.take(entries.size());
+        }
+        int allowed = max - entries.size();
+        if (bucket != null && allowed > 0) {
+            allowed = bucket.tryTake(allowed);
+        }
+        if (allowed > 0) {
+            List<SyncOutboxEntry> ready = noteDao.getReadyOutboxBatch(now - windowMillis, now - maxDelayMillis,
+                    lane.minBytes, lane.maxBytes, allowed);
+            entries.addAll(ready);
+            if (bucket != null) {
+                bucket.giveBack(allowed - ready.size());
+            }
+        }
+        if (!entries.isEmpty()) {
+            return new Batch(entries, 0);
+        }
+        Long readyAt = noteDao.getNextOutboxReadyTime(windowMillis, maxDelayMillis, lane.minBytes, lane.maxBytes);
+        if (readyAt == null) {
+            return new Batch(Collections.<SyncOutboxEntry>emptyList(), -1);
+        }
+        long wait = readyAt - now;
+        if (wait <= 0 && bucket != null) {
+            // Due, but over the rate
+            rateLimitedWaits.incrementAndGet();
+            wait = bucket.millisUntilAvailable();
+        }
+        return new Batch(Collections.<SyncOutboxEntry>emptyList(), Math.max(1, wait));
+    }
+
+    /** Counts uploaded entries. */
+    public void recordSent(List<SyncOutboxEntry> entries) {
+        long coalesced = 0;
+        long priority = 0;
+        for (SyncOutboxEntry entry : entries) {
+            coalesced += Math.max(0, entry.edits - 1);
+            if (entry.priority) {
+                priority++;
+            }
+        }
+        sentWrites.addAndGet(entries.size());
+        coalescedWrites.addAndGet(coalesced);
+        priorityWrites.addAndGet(priority);
+    }
+
+    public Counters getCounters() {
+        return new Counters(sentWrites.get(), coalescedWrites.get(), priorityWrites.get(), rateLimitedWaits.get());
+    }
+
+    /**
+     * Waits for entries to come due, or for {@link #wake}.
+     *
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public void await(long millis) throws InterruptedException {
+        long until = System.nanoTime() + millis * 1_000_000;
+        synchronized (wakeLock) {
+            long seen = wakeups;
+            long left = millis;
+            while (wakeups == seen && left > 0) {
+                wakeLock.wait(left);
+                left = (until - System.nanoTime()) / 1_000_000;
+            }
+        }
+    }
+
+    /** Ends every wait in {@link #await} early, e.g. because a priority entry was queued. */
+    public void wake() {
+        synchronized (wakeLock) {
+            wakeups++;
+            wakeLock.notifyAll();
+        }
+    }
+
+    /** True while a drain of the lane is running in this process, see OutboxUploader. */
+    public synchronized boolean isDraining(Lane lane) {
+        return draining.contains(lane);
+    }
+
+    /** @return False if a drain of the lane is already running. */
+    synchronized boolean tryStartDrain(Lane lane) {
+        return draining.add(lane);
+    }
+
+    synchronized void drainFinished(Lane lane) {
+        draining.remove(lane);
+    }
+}
@@ -1,8 +1,10 @@
 package com.example.softnotesandcanvas.ui;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.text.Html;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,28 +13,65 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.paging.PagingDataAdapter;
 import androidx.recyclerview.widget.DiffUtil;
-import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.softnotesandcanvas.R;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
 import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteListItem;
+import com.example.softnotesandcanvas.db.NoteSearchResult;
+import com.example.softnotesandcanvas.db.SyncStatus;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Objects;
 
-public class NoteAdapter extends ListAdapter<Note, NoteAdapter.NoteViewHolder> {
+/**
+ * Paged list of notes. Rows are loaded a page at a time by the
+ * Paging library and diffed off the main thread.
+ */
+public class NoteAdapter extends PagingDataAdapter<NoteListItem, NoteAdapter.NoteViewHolder> {
 
     public interface OnItemClickListener {
-        void onItemClick(Note note);
+        void onItemClick(NoteListItem note);
     }
     private final OnItemClickListener listener;
+    private Map<String, String> snippets = Collections.emptyMap();
+    private Map<String, SyncStatus> syncStatuses = Collections.emptyMap();
 
     public NoteAdapter(OnItemClickListener listener) {
         super(DIFF);
         this.listener = listener;
     }
 
+    /**
+     * Sets the search snippets to show instead of the note body.
+     * @param snippets Note id to snippet, as produced by the FTS search.
+     */
+    public void setSnippets(Map<String, String> snippets) {
+        this.snippets = snippets != null ? snippets : Collections.emptyMap();
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    /**
+     * Sets the sync badges. Rebinds only the rows whose badge changed;
+     * the list itself is not re-diffed.
+     * @param statuses Note id to status for notes that are not SYNCED.
+     */
+    public void setSyncStatuses(Map<String, SyncStatus> statuses) {
+        Map<String, SyncStatus> old = this.syncStatuses;
+        this.syncStatuses = statuses != null ? statuses : Collections.emptyMap();
+        for (int i = 0; i < getItemCount(); i++) {
+            NoteListItem note = peek(i);
+            if (note != null && old.get(note.id) != this.syncStatuses.get(note.id)) {
+                notifyItemChanged(i);
+            }
+        }
+    }
+
     @NonNull
     @Override
     public NoteViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -42,7 +81,10 @@ public class NoteAdapter extends ListAdapter<Note, NoteAdapter.NoteViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull NoteViewHolder holder, int position) {
-        holder.bind(getItem(position), listener);
+        NoteListItem note = getItem(position);
+        if (note != null) {
+            holder.bind(note, snippets.get(note.id), syncStatuses.get(note.id), listener);
+        }
     }
 
     static class NoteViewHolder extends RecyclerView.ViewHolder {
@@ -57,8 +99,9 @@ public class NoteAdapter extends ListAdapter<Note, NoteAdapter.NoteViewHolder> {
             canvasPreview = itemView.findViewById(R.id.note_canvas_preview); // <-- Find this
         }
 
-        void bind(final Note note, final OnItemClickListener listener) {
+        void bind(final NoteListItem note, String snippet, SyncStatus syncStatus, final OnItemClickListener listener) {
             title.setText(note.title != null ? note.title : "");
+            title.setCompoundDrawablesRelativeWithIntrinsicBounds(0, 0, badgeFor(syncStatus), 0);
 
             // --- THIS IS THE NEW LOGIC ---
             // Check note type. Default to TEXT if type is null (for old notes)
@@ -67,9 +110,12 @@ public class NoteAdapter extends ListAdapter<Note, NoteAdapter.NoteViewHolder> {
                 content.setVisibility(View.VISIBLE);
                 canvasPreview.setVisibility(View.GONE);
 
-                if (note.content != null && !note.content.isEmpty()) {
-                    // Render the HTML
-                    content.setText(Html.fromHtml(note.content, Html.FROM_HTML_MODE_LEGACY));
+                if (snippet != null) {
+                    // Show where the search matched, with the matched terms in bold
+                    content.setText(highlight(snippet));
+                } else if (note.preview != null) {
+                    // Plain text precomputed on write, no HTML parsing per bind
+                    content.setText(note.preview);
                 } else {
                     content.setText(""); // Clear old content
                 }
@@ -82,15 +128,17 @@ public class NoteAdapter extends ListAdapter<Note, NoteAdapter.NoteViewHolder> {
                 // Set a placeholder or clear old image
                 canvasPreview.setImageResource(R.color.grey_200); // <-- Add a placeholder color in colors.xml
 
-                // Load the bitmap
-                if (note.canvasImagePath != null && !note.canvasImagePath.isEmpty()) {
+                // Load the bitmap; drawings not fetched yet keep the placeholder
+                File file = canvasFile(note);
+                if (file != null) {
                     try {
-                        File file = new File(note.canvasImagePath);
                         if (file.exists()) {
                             // This is a quick load. For smoother scrolling,
                             // you could move this to a background thread or use a library like Glide/Picasso
-                            Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
-                            canvasPreview.setImageBitmap(bitmap);
+                            Bitmap bitmap = CanvasBlobStore.getInstance(itemView.getContext()).decodeCanvas(file);
+                            if (bitmap != null) {
+                                canvasPreview.setImageBitmap(bitmap);
+                            }
                         }
                     } catch (Exception e) {
                         Log.e("NoteAdapter", "Error loading canvas preview", e);
@@ -107,24 +155,82 @@ public class NoteAdapter extends ListAdapter<Note, NoteAdapter.NoteViewHolder> {
                 }
             });
         }
+
+        /**
+         * Where the row's drawing is on this device, or null if it has none.
+         * Canvases saved before the blob store only have a local path.
+         */
+        private File canvasFile(NoteListItem note) {
+            if (note.canvasHash != null) {
+                return CanvasBlobStore.getInstance(itemView.getContext()).fileFor(note.canvasHash);
+            }
+            if (note.canvasImagePath != null && !note.canvasImagePath.isEmpty()) {
+                return new File(note.canvasImagePath);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return The badge drawable for a sync status, or 0 for none (SYNCED).
+     */
+    static int badgeFor(SyncStatus status) {
+        if (status == null) {
+            return 0;
+        }
+        switch (status) {
+            case SYNCING:
+                return android.R.drawable.stat_notify_sync_noanim;
+            case OFFLINE:
+            case CONFLICT:
+                return android.R.drawable.stat_notify_error;
+            case SYNCED:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Replaces the FTS match markers in a snippet with bold spans.
+     */
+    static CharSequence highlight(String snippet) {
+        SpannableStringBuilder out = new SpannableStringBuilder();
+        int pos = 0;
+        while (pos < snippet.length()) {
+            int start = snippet.indexOf(NoteSearchResult.MATCH_START, pos);
+            if (start < 0) {
+                break;
+            }
+            int end = snippet.indexOf(NoteSearchResult.MATCH_END, start);
+            if (end < 0) {
+                break;
+            }
+            out.append(snippet, pos, start);
+            int spanStart = out.length();
+            out.append(snippet, start + NoteSearchResult.MATCH_START.length(), end);
+            out.setSpan(new StyleSpan(Typeface.BOLD), spanStart, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            pos = end + NoteSearchResult.MATCH_END.length();
+        }
+        out.append(snippet, pos, snippet.length());
+        return out;
     }
 
     // --- UPDATE THE DIFF CALLBACK ---
-    private static final DiffUtil.ItemCallback<Note> DIFF = new DiffUtil.ItemCallback<Note>() {
+    private static final DiffUtil.ItemCallback<NoteListItem> DIFF = new DiffUtil.ItemCallback<NoteListItem>() {
         @Override
-        public boolean areItemsTheSame(@NonNull Note oldItem, @NonNull Note newItem) {
+        public boolean areItemsTheSame(@NonNull NoteListItem oldItem, @NonNull NoteListItem newItem) {
             return oldItem.id.equals(newItem.id);
         }
 
         @Override
-        public boolean areContentsTheSame(@NonNull Note oldItem, @NonNull Note newItem) {
+        public boolean areContentsTheSame(@NonNull NoteListItem oldItem, @NonNull NoteListItem newItem) {
             // Compare all fields that affect the UI
             return Objects.equals(oldItem.title, newItem.title)
-                    && Objects.equals(oldItem.content, newItem.content)
+                    && Objects.equals(oldItem.preview, newItem.preview)
                     && Objects.equals(oldItem.canvasImagePath, newItem.canvasImagePath)
+                    && Objects.equals(oldItem.canvasHash, newItem.canvasHash)
                     && Objects.equals(oldItem.type, newItem.type)
-                    && Objects.equals(oldItem.updatedAt, newItem.updatedAt)
-                    && oldItem.isDeleted == newItem.isDeleted;
+                    && Objects.equals(oldItem.updatedAt, newItem.updatedAt);
         }
     };
-}
\ No newline at end of file
+}
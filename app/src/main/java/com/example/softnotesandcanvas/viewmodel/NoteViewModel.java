@@ -1,39 +1,82 @@
 package com.example.softnotesandcanvas.viewmodel;
 
 import android.app.Application;
+import android.graphics.Bitmap;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.LiveData;
-import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
 
+import com.example.softnotesandcanvas.db.FtsQuery;
 import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.NoteListItem;
+import com.example.softnotesandcanvas.db.NoteQuery;
+import com.example.softnotesandcanvas.db.NoteSearchResult;
+import com.example.softnotesandcanvas.db.NoteTrigramMatch;
+import com.example.softnotesandcanvas.db.SyncStatus;
+import com.example.softnotesandcanvas.repository.BootstrapProgress;
 import com.example.softnotesandcanvas.repository.NoteRepository;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class NoteViewModel extends AndroidViewModel {
     // ✅ 1. Define Filter Modes
     public enum FilterMode { ALL, TEXT_ONLY, CANVAS_ONLY }
+    /**
+     * How the search text is matched: ranked whole-word/prefix search,
+     * exact substring anywhere in the text, or typo-tolerant similarity.
+     */
+    public enum SearchMode { RANKED, SUBSTRING, FUZZY }
     // ✅ Use a single, consistent name for the repository
     private final NoteRepository mRepository;
     private final MutableLiveData<String> currentUid = new MutableLiveData<>();
-    // ✅ CHANGED: Use MediatorLiveData to switch between all notes and search results
-    private final MediatorLiveData<List<Note>> notes = new MediatorLiveData<>();
-    private LiveData<List<Note>> currentSource; // Tracks the current active LiveData source
+    // What the list shows; every filter, search or sort change emits a new ListState
+    private final MutableLiveData<ListState> listState = new MutableLiveData<>();
+    private final LiveData<PagingData<NoteListItem>> notes = Transformations.switchMap(listState, this::sourceFor);
+    // Highlighted body fragments for the current search, keyed by note id
+    private final MutableLiveData<Map<String, String>> searchSnippets = new MutableLiveData<>(new HashMap<>());
+    // Sync badges; backed by note_sync_state, so status flips never re-run the list queries
+    private LiveData<Map<String, SyncStatus>> unsyncedStatuses;
 
     // ✅ 2. Track current states
     private FilterMode currentFilterMode = FilterMode.ALL;
     private String currentSearchQuery = "";
+    private SearchMode currentSearchMode = SearchMode.RANKED;
+    private NoteQuery.Sort currentSort = NoteQuery.Sort.RELEVANCE;
+    private Long updatedFrom;
+    private Long updatedUntil;
+
+    /** Snapshot of everything that decides which notes the list shows. */
+    private static final class ListState {
+        final NoteQuery query;
+        final String searchText;
+        final SearchMode searchMode;
+
+        ListState(NoteQuery query, String searchText, SearchMode searchMode) {
+            this.query = query;
+            this.searchText = searchText;
+            this.searchMode = searchMode;
+        }
+    }
+
     public NoteViewModel(@NonNull Application application) {
         super(application);
-        // ✅ Initialize the correct repository variable
-        mRepository = new NoteRepository(application);
+        // Shared with every other screen, so they share its listener too
+        mRepository = NoteRepository.getInstance(application);
     }
 
     /**
-     * Sets the user ID and initializes the data loading and sync listeners.
+     * Sets the user ID and initializes the data loading. Syncing is bound
+     * to a screen separately, see {@link #keepInSync}.
      * @param uid The Firebase user ID.
      */
     public void loadNotesForUser(String uid) {
@@ -41,7 +84,6 @@ public class NoteViewModel extends AndroidViewModel {
             return;
         }
         currentUid.setValue(uid);
-        mRepository.startFirestoreListener(uid);
         // Correctly get the active notes for the main screen
         triggerUpdate();
     }
@@ -58,61 +100,162 @@ public class NoteViewModel extends AndroidViewModel {
         triggerUpdate();
     }
 
+    /** Sets how the search text is matched and trigger update */
+    public void setSearchMode(SearchMode mode) {
+        this.currentSearchMode = mode;
+        triggerUpdate();
+    }
+
+    /**
+     * Sets the list order. RELEVANCE (the default) applies while searching;
+     * plain lists fall back to RECENT.
+     */
+    public void setSort(NoteQuery.Sort sort) {
+        this.currentSort = sort;
+        triggerUpdate();
+    }
+
+    /**
+     * Restricts the list to notes updated in [from, until), in epoch millis.
+     * Pass nulls to clear the range.
+     */
+    public void setUpdatedBetween(Long from, Long until) {
+        this.updatedFrom = from;
+        this.updatedUntil = until;
+        triggerUpdate();
+    }
+
     /** Helper to ensure UID exists before updating */
     private void triggerUpdate() {
         String uid = currentUid.getValue();
         if (uid != null) {
-            updateNotesSource(uid);
+            NoteQuery query = NoteQuery.forUser(uid)
+                    .filter(toDaoFilter(currentFilterMode))
+                    .match(FtsQuery.build(currentSearchQuery))
+                    .sort(currentSort)
+                    .updatedBetween(updatedFrom, updatedUntil)
+                    .build();
+            listState.setValue(new ListState(query, currentSearchQuery, currentSearchMode));
         }
     }
 
     /** ✅ CORE LOGIC: Decides which DB query to run based on Filter + Search state */
-    private void updateNotesSource(String uid) {
-        if (currentSource != null) notes.removeSource(currentSource);
+    private LiveData<PagingData<NoteListItem>> sourceFor(ListState state) {
+        NoteQuery query = state.query;
+        if (!state.searchText.isEmpty() && state.searchMode != SearchMode.RANKED) {
+            searchSnippets.setValue(new HashMap<>());
+            if (state.searchMode == SearchMode.FUZZY) {
+                LiveData<List<NoteTrigramMatch>> matches =
+                        mRepository.searchNotesFuzzy(query.userId, state.searchText, query.filter);
+                if (matches != null) {
+                    return Transformations.map(matches, NoteViewModel::fromTrigramMatches);
+                }
+            }
+            // SUBSTRING, or FUZZY with a query too short to have trigrams
+            return Transformations.map(mRepository.searchNotesInfix(query.userId, state.searchText, query.filter),
+                    NoteViewModel::singlePage);
+        }
 
-        boolean isSearching = !currentSearchQuery.isEmpty();
+        if (query.isSearch()) {
+            return Transformations.map(mRepository.searchNotes(query), this::fromSearchResults);
+        }
+
+        // Not searching: page through the list instead of loading it whole
+        searchSnippets.setValue(new HashMap<>());
+        return PagingLiveData.cachedIn(mRepository.getNotesPaged(query), this);
+    }
+
+    /** Publishes a bounded search result list as a single page. */
+    private static PagingData<NoteListItem> singlePage(List<NoteListItem> list) {
+        return PagingData.from(list != null ? list : new ArrayList<>());
+    }
 
-        switch (currentFilterMode) {
+    private static int toDaoFilter(FilterMode mode) {
+        switch (mode) {
             case TEXT_ONLY:
-                if (isSearching) {
-                    currentSource = mRepository.searchTextNotes(uid, currentSearchQuery);
-                } else {
-                    currentSource = mRepository.getTextNotesOnly(uid);
-                }
-                break;
+                return NoteDao.FILTER_TEXT;
             case CANVAS_ONLY:
-                if (isSearching) {
-                    currentSource = mRepository.searchCanvasNotes(uid, currentSearchQuery);
-                } else {
-                    currentSource = mRepository.getCanvasNotesOnly(uid);
-                }
-                break;
+                return NoteDao.FILTER_CANVAS;
             case ALL:
             default:
-                // This uses your existing methods for "All"
-                if (isSearching) {
-                    currentSource = mRepository.searchNotes(uid, currentSearchQuery);
-                } else {
-                    currentSource = mRepository.getNotesForUser(uid);
-                }
-                break;
+                return NoteDao.FILTER_ALL;
         }
+    }
 
-        notes.addSource(currentSource, notes::setValue);
+    /** Unwraps typo-tolerant matches, keeping their similarity order. */
+    private static PagingData<NoteListItem> fromTrigramMatches(List<NoteTrigramMatch> matches) {
+        List<NoteListItem> ranked = new ArrayList<>();
+        if (matches != null) {
+            for (NoteTrigramMatch match : matches) {
+                ranked.add(match.note);
+            }
+        }
+        return singlePage(ranked);
     }
 
-    public LiveData<List<Note>> getNotes() {
+    /** Splits ranked search hits into the note list and their highlight snippets. */
+    private PagingData<NoteListItem> fromSearchResults(List<NoteSearchResult> results) {
+        List<NoteListItem> ranked = new ArrayList<>();
+        Map<String, String> snippets = new HashMap<>();
+        if (results != null) {
+            for (NoteSearchResult result : results) {
+                ranked.add(result.note);
+                if (result.snippet != null && !result.snippet.isEmpty()) {
+                    snippets.put(result.note.id, result.snippet);
+                }
+            }
+        }
+        searchSnippets.setValue(snippets);
+        return singlePage(ranked);
+    }
+
+    public LiveData<PagingData<NoteListItem>> getNotes() {
         return notes;
     }
 
     /**
-     * ✅ NEW: Gets the list of trashed notes for the TrashActivity.
+     * Gets the highlighted body fragments for the current search results.
+     * Matched terms are wrapped in NoteSearchResult.MATCH_START / MATCH_END.
+     * @return LiveData map of note id to snippet; empty when not searching.
+     */
+    public LiveData<Map<String, String>> getSearchSnippets() {
+        return searchSnippets;
+    }
+
+    /**
+     * Progress of the first download of the user's notes; running while the
+     * list is still filling after sign-in.
+     */
+    public LiveData<BootstrapProgress> getBootstrapProgress() {
+        return mRepository.getBootstrapProgress();
+    }
+
+    /**
+     * Gets the sync status of every note with unsynced changes, keyed by note id,
+     * for the sync badges. Notes that are not in the map are SYNCED.
+     */
+    public LiveData<Map<String, SyncStatus>> getUnsyncedStatuses() {
+        if (unsyncedStatuses == null) {
+            unsyncedStatuses = mRepository.getUnsyncedStatuses();
+        }
+        return unsyncedStatuses;
+    }
+
+    /**
+     * ✅ NEW: Gets the paged list of trashed notes for the TrashActivity.
      * @param userId The current user's ID.
-     * @return LiveData list of trashed notes.
+     * @return LiveData of trashed note pages.
+     */
+    public LiveData<PagingData<NoteListItem>> getTrashedNotes(String userId) {
+        return PagingLiveData.cachedIn(mRepository.getTrashedNotesPaged(userId), this);
+    }
+
+    /**
+     * Gets a full note by id. Used by the editors, since the lists only
+     * hold NoteListItem projections.
      */
-    public LiveData<List<Note>> getTrashedNotes(String userId) {
-        // This will call the getTrashedNotesForUser method in your repository
-        return mRepository.getTrashedNotes(userId);
+    public LiveData<Note> getNote(String noteId) {
+        return mRepository.getNote(noteId);
     }
 
     /**
@@ -141,28 +284,59 @@ public class NoteViewModel extends AndroidViewModel {
         mRepository.update(note);
     }
 
+    /**
+     * Saves a canvas note and its drawing, see NoteRepository.saveCanvas.
+     */
+    public void saveCanvas(Note note, int[] pixels, int width, int height, boolean isNew) {
+        mRepository.saveCanvas(note, pixels, width, height, isNew);
+    }
+
+    /**
+     * A canvas note's drawing, with missing tiles fetched from the server;
+     * null if there is none.
+     */
+    public LiveData<Bitmap> getCanvas(Note note) {
+        return mRepository.getCanvas(note);
+    }
+
     /**
      * ✅ MODIFIED: Moves a note to the trash instead of permanently deleting it.
      * This method will be called when a user swipes a note.
-     * @param note The note to move to the trash.
+     * @param noteId The id of the note to move to the trash.
      */
-    public void trash(Note note) {
-        // This should call the 'trash' method in your repository,
-        // which in turn calls the 'trashNote' method in your DAO.
-        mRepository.trash(note);
+    public void trash(String noteId) {
+        mRepository.trash(noteId);
     }
 
     /**
      * ✅ NEW: Restores a note from the trash.
      */
-    public void restore(Note note) {
-        mRepository.restore(note);
+    public void restore(String noteId) {
+        mRepository.restore(noteId);
+    }
+
+    /**
+     * Keeps the user's notes in sync while the screen is started, see
+     * NoteRepository.keepInSync. Call once, from onCreate.
+     */
+    public void keepInSync(LifecycleOwner owner, String uid) {
+        mRepository.keepInSync(owner, uid);
+    }
+
+    /** Stops syncing and deletes the local notes and drawings, see NoteRepository.clearAll. */
+    public void clearAll() {
+        mRepository.clearAll();
+    }
+
+    /** Uploads everything now, large drawings included, see NoteRepository.syncNow. */
+    public void syncNow() {
+        mRepository.syncNow();
     }
 
     /**
      * ✅ NEW: Permanently deletes a note (marks as deleted).
      */
-    public void deletePermanently(Note note) {
-        mRepository.deletePermanently(note);
+    public void deletePermanently(String noteId) {
+        mRepository.deletePermanently(noteId);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,41 @@
+package com.example.softnotesandcanvas.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link FtsQuery} turns any input into prefix terms that
+ * FTS4 reads as plain words, never as syntax.
+ */
+public class FtsQueryTest {
+
+    @Test
+    public void everyWordBecomesAPrefixTerm() {
+        assertEquals("note*", FtsQuery.build("note"));
+        assertEquals("shopping* list*", FtsQuery.build("  Shopping   list "));
+        assertEquals("café* 2024*", FtsQuery.build("Café 2024"));
+    }
+
+    @Test
+    public void quotesAndOperatorsAreDropped() {
+        assertEquals("exact* phrase*", FtsQuery.build("\"exact phrase\""));
+        assertEquals("milk* eggs*", FtsQuery.build("milk -eggs*"));
+        assertEquals("title* x*", FtsQuery.build("title:x"));
+        assertEquals("near* a* b*", FtsQuery.build("NEAR(a b)"));
+    }
+
+    @Test
+    public void operatorWordsAreLowerCasedSoTheyStayWords() {
+        assertEquals("cats* and* dogs*", FtsQuery.build("cats AND dogs"));
+        assertEquals("or* not*", FtsQuery.build("OR NOT"));
+    }
+
+    @Test
+    public void inputWithoutWordsBuildsNothing() {
+        assertNull(FtsQuery.build(null));
+        assertNull(FtsQuery.build(""));
+        assertNull(FtsQuery.build("  \"* - ( ) :"));
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.softnotesandcanvas.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link HtmlText} reduces editor HTML to the words a search
+ * index and a list preview need.
+ */
+public class HtmlTextTest {
+
+    @Test
+    public void blockTagsSeparateWordsAndInlineTagsDoNot() {
+        assertEquals("Milk, eggs Bread", HtmlText.toPlainText("<p>Milk, <b>eggs</b></p><p>Bread</p>"));
+        assertEquals("one two", HtmlText.toPlainText("one<br>two"));
+        assertEquals("boldface", HtmlText.toPlainText("<b>bold</b><i>face</i>"));
+        assertEquals("Title item", HtmlText.toPlainText("<H1>Title</H1><ul><li>item</li></ul>"));
+    }
+
+    @Test
+    public void entitiesAreDecoded() {
+        assertEquals("salt & pepper", HtmlText.toPlainText("salt &amp; pepper"));
+        assertEquals("<tag> \"q\" 'a'", HtmlText.toPlainText("&lt;tag&gt; &quot;q&quot; &apos;a&apos;"));
+        assertEquals("AB ✓", HtmlText.toPlainText("&#65;&#x42; &#x2713;"));
+        assertEquals("no break", HtmlText.toPlainText("no&nbsp;break"));
+    }
+
+    @Test
+    public void unknownEntitiesStayAsWritten() {
+        assertEquals("&bogus; & x", HtmlText.toPlainText("&bogus; & x"));
+        assertEquals("&#zz;", HtmlText.toPlainText("&#zz;"));
+    }
+
+    @Test
+    public void whitespaceIsCollapsedAndTrimmed() {
+        assertEquals("a b c", HtmlText.toPlainText("<p>  a \n\t b </p>\n<p> c </p>"));
+        assertEquals("", HtmlText.toPlainText("<p></p>"));
+        assertEquals("", HtmlText.toPlainText(null));
+    }
+
+    @Test
+    public void previewCutsWithAnEllipsis() {
+        assertEquals("short", HtmlText.preview("short", 10));
+        assertEquals("abc…", HtmlText.preview("abcdef", 3));
+        // The cut never splits a surrogate pair
+        assertEquals("a…", HtmlText.preview("a😀b", 2));
+    }
+}
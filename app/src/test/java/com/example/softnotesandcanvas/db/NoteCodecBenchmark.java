@@ -0,0 +1,117 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.util.CustomClassMapper;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares NoteCodec with Firestore's reflective mapper, the code behind
+ * toObject(Note.class) and set(note), per note encoded and decoded.
+ * Skipped unless asked for; run it with
+ * {@code ./gradlew testDebugUnitTest -DcodecBenchmark=true}.
+ * Results are printed; there is nothing to assert.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+public class NoteCodecBenchmark {
+
+    private static final int NOTES = 1_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+
+    // Keeps results alive so the JIT cannot drop the work
+    private int sink;
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("codecBenchmark"));
+    }
+
+    @Test
+    public void decode() {
+        List<Map<String, Object>> docs = new ArrayList<>(NOTES);
+        for (Note note : notes()) {
+            docs.add(stored(NoteCodec.encode(note)));
+        }
+        report("decode", "toObject", time(() -> {
+            for (Map<String, Object> doc : docs) {
+                sink += CustomClassMapper.convertToCustomClass(doc, Note.class, null).title.length();
+            }
+        }), "NoteCodec", time(() -> {
+            for (Map<String, Object> doc : docs) {
+                sink += NoteCodec.decode("id", doc).title.length();
+            }
+        }));
+    }
+
+    @Test
+    public void encode() {
+        List<Note> notes = notes();
+        report("encode", "set(note)", time(() -> {
+            for (Note note : notes) {
+                sink += ((Map<?, ?>) CustomClassMapper.convertToPlainJavaTypes(note)).size();
+            }
+        }), "NoteCodec", time(() -> {
+            for (Note note : notes) {
+                sink += NoteCodec.encode(note).size();
+            }
+        }));
+    }
+
+    /** Best time per note over ROUNDS runs of the body, after warming up. */
+    private static double time(Runnable body) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / NOTES;
+    }
+
+    private static void report(String op, String baselineName, double baselineNanos, String name, double nanos) {
+        System.out.println(String.format(Locale.US, "%s: %s %.0f ns/note, %s %.0f ns/note (%.1fx)",
+                op, baselineName, baselineNanos, name, nanos, baselineNanos / nanos));
+    }
+
+    private static List<Note> notes() {
+        List<Note> notes = new ArrayList<>(NOTES);
+        for (int i = 0; i < NOTES; i++) {
+            Note note = new Note("user-1", "Note " + i, "<p>Body of note " + i + "</p>", "device-1");
+            if (i % 3 == 0) {
+                note.type = Note.TYPE_CANVAS;
+                note.canvasImagePath = "/data/canvas/" + i + ".png";
+            }
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    /** Dates as a snapshot returns them. */
+    private static Map<String, Object> stored(Map<String, Object> written) {
+        Map<String, Object> doc = new HashMap<>(written);
+        for (Map.Entry<String, Object> field : doc.entrySet()) {
+            if (field.getValue() instanceof Date) {
+                field.setValue(new Timestamp((Date) field.getValue()));
+            }
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.util.CustomClassMapper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks NoteCodec against Firestore's reflective mapper, which is what
+ * set(note) and toObject(Note.class) use: the same document out, the same
+ * note back in.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+public class NoteCodecTest {
+
+    @Test
+    public void encodeMatchesFirestoreMapper() {
+        for (Note note : samples()) {
+            assertEquals(CustomClassMapper.convertToPlainJavaTypes(note), NoteCodec.encode(note));
+        }
+    }
+
+    @Test
+    public void decodeMatchesFirestoreMapper() {
+        for (Note note : samples()) {
+            Map<String, Object> doc = asStored(NoteCodec.encode(note));
+            Note expected = CustomClassMapper.convertToCustomClass(doc, Note.class, null);
+            expected.id = note.id;
+            assertEquals(expected, NoteCodec.decode(note.id, doc));
+        }
+    }
+
+    @Test
+    public void roundTripKeepsSyncedFields() {
+        for (Note note : samples()) {
+            if (note.createdAt != 0 && note.updatedAt != 0) {
+                assertEquals(note, NoteCodec.decode(note.id, asStored(NoteCodec.encode(note))));
+            }
+        }
+    }
+
+    @Test
+    public void decodeUsesDocumentIdAndDefaults() {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put(NoteCodec.FIELD_ID, "stale-id");
+        doc.put(NoteCodec.FIELD_TITLE, "Only a title");
+
+        Note note = NoteCodec.decode("doc-id", doc);
+
+        assertEquals("doc-id", note.id);
+        assertEquals("Only a title", note.title);
+        assertEquals(Note.TYPE_TEXT, note.type);
+        assertNull(note.canvasImagePath);
+        assertEquals(0, note.updatedAt);
+        assertFalse(note.isTrashed);
+        assertFalse(note.isDeleted);
+    }
+
+    @Test
+    public void missingHlcFallsBackToUpdatedAt() {
+        Note note = new Note("user-1", "t", "c", "device-1");
+        Map<String, Object> doc = asStored(NoteCodec.encode(note));
+        doc.remove(NoteCodec.FIELD_HLC);
+
+        assertEquals(Hlc.fromMillis(note.updatedAt), NoteCodec.decode(note.id, doc).hlc);
+    }
+
+    @Test
+    public void pendingServerTimestampsDecodeAsZero() {
+        Note note = new Note("user-1", "t", "c", "device-1");
+        note.updatedAt = 0;
+        Map<String, Object> doc = NoteCodec.encode(note);
+        // Snapshots show pending server timestamps as null
+        doc.put(NoteCodec.FIELD_UPDATED_AT, null);
+
+        assertEquals(0, NoteCodec.decode(note.id, doc).updatedAt);
+    }
+
+    @Test
+    public void syncedAtIsServerTimeInMicros() {
+        Note note = new Note("user-1", "t", "c", "device-1");
+        Map<String, Object> doc = NoteCodec.encode(note);
+        assertEquals(FieldValue.serverTimestamp(), doc.get(NoteCodec.FIELD_SYNCED_AT));
+        assertEquals(FieldValue.serverTimestamp(),
+                NoteFields.toUpdate(note, NoteFields.TITLE).get(NoteCodec.FIELD_SYNCED_AT));
+
+        doc.put(NoteCodec.FIELD_SYNCED_AT, new Timestamp(1_700_000_000L, 123_456_789));
+        assertEquals(1_700_000_000_123_456L, NoteCodec.decode(note.id, doc).syncedAt);
+        assertEquals(new Timestamp(1_700_000_000L, 123_456_000),
+                NoteCodec.timestampOfMicros(1_700_000_000_123_456L));
+    }
+
+    private static List<Note> samples() {
+        Note text = new Note("user-1", "Groceries", "<p>Milk, <b>eggs</b></p>", "device-1");
+        text.hlc = Hlc.fromMillis(text.updatedAt) + 3;
+
+        Note canvas = new Note("user-1", "Sketch", null, "device-2");
+        canvas.type = Note.TYPE_CANVAS;
+        canvas.canvasImagePath = "/data/canvas/sketch.png";
+        canvas.isTrashed = true;
+
+        Note deleted = new Note("user-2", null, "", "device-1");
+        deleted.isDeleted = true;
+        deleted.lastEditedByDeviceId = null;
+
+        // Not yet stamped by the server
+        Note unsent = new Note("user-1", "Draft", "<p>…ünïcode ✓</p>", "device-3");
+        unsent.createdAt = 0;
+        unsent.updatedAt = 0;
+        return Arrays.asList(text, canvas, deleted, unsent);
+    }
+
+    /** The document as a snapshot returns it: dates read back as Timestamps. */
+    private static Map<String, Object> asStored(Map<String, Object> written) {
+        Map<String, Object> doc = new HashMap<>(written);
+        for (Map.Entry<String, Object> field : doc.entrySet()) {
+            if (field.getValue() instanceof Date) {
+                field.setValue(new Timestamp((Date) field.getValue()));
+            } else if (!(field.getValue() instanceof String || field.getValue() instanceof Boolean
+                    || field.getValue() instanceof Long)) {
+                // Server timestamps still pending
+                field.setValue(null);
+            }
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.softnotesandcanvas.db;
+
+import android.database.Cursor;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.room.Room;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs EXPLAIN QUERY PLAN for the SQL issued by every NoteDao query and
+ * fails when a query scans the whole notes (or note_sync_state) table or
+ * sorts in a temp B-tree.
+ * <p>
+ * The SQL is captured from Room's query callback while each DAO method runs,
+ * so the plans are for the exact statements (and bind arguments) Room executes.
+ * Adding a DAO query without an entry in {@link #invocations()} fails
+ * {@link #everyDaoQueryIsExercised()}.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class NoteDaoQueryPlanTest {
+
+    private static final Pattern FULL_SCAN = Pattern.compile("\\bSCAN (TABLE )?(notes|note_sync_state)\\b");
+    private static final Pattern TEMP_BTREE = Pattern.compile("USE TEMP B-TREE");
+    private static final String USER = "user-1";
+
+    /** Queries that may scan a table, and why. */
+    private static final Map<String, String> ALLOWED_SCANS = new HashMap<>();
+    /** Queries that may sort in a temp B-tree, and why. */
+    private static final Map<String, String> ALLOWED_TEMP_BTREES = new HashMap<>();
+    /**
+     * Full-text searches sorted by date. The MATCH drives the lookup, so the
+     * hits come in FTS rowid order and must be sorted before the LIMIT. The
+     * sort covers only the user's hits.
+     */
+    private static final Pattern SORTED_SEARCH = Pattern.compile("notes_fts MATCH .* ORDER BY notes\\.updatedAt");
+
+    static {
+        ALLOWED_SCANS.put("deleteAllNotes", "deletes every row by design");
+        ALLOWED_SCANS.put("deleteAllSyncStates", "deletes every row by design");
+        ALLOWED_TEMP_BTREES.put("searchNotesInfix", "groups posting lists; sorts only verified candidates");
+        ALLOWED_TEMP_BTREES.put("searchNotesFuzzy", "groups posting lists and orders by overlap count");
+    }
+
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final List<CapturedQuery> captured = Collections.synchronizedList(new ArrayList<>());
+    private AppDatabase db;
+    private NoteDao dao;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .setQueryExecutor(Runnable::run)
+                .setTransactionExecutor(Runnable::run)
+                .setQueryCallback((sql, args) -> captured.add(new CapturedQuery(sql, args)), Runnable::run)
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        dao = db.noteDao();
+        for (int i = 0; i < 20; i++) {
+            Note note = new Note(USER, "Title " + i, "<p>Body text number " + i + "</p>", "device-1");
+            note.type = i % 3 == 0 ? Note.TYPE_CANVAS : Note.TYPE_TEXT;
+            dao.saveLocalNote(note);
+        }
+        // One body large enough to be stored out of row
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= Note.INLINE_CONTENT_LIMIT) {
+            body.append("<p>A long pasted transcript line.</p>");
+        }
+        dao.saveLocalNote(new Note(USER, "Transcript", body.toString(), "device-1"));
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void everyDaoQueryIsExercised() {
+        Set<String> daoQueries = new TreeSet<>();
+        for (Method method : NoteDao.class.getDeclaredMethods()) {
+            if (!method.isDefault() && !Modifier.isStatic(method.getModifiers()) && !method.isSynthetic()) {
+                daoQueries.add(method.getName());
+            }
+        }
+        assertEquals("Every abstract NoteDao method needs a query plan check",
+                daoQueries, new TreeSet<>(invocations().keySet()));
+    }
+
+    @Test
+    public void noQueryScansNotesOrSortsInTempBTree() {
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, Runnable> entry : invocations().entrySet()) {
+            String method = entry.getKey();
+            captured.clear();
+            entry.getValue().run();
+            for (CapturedQuery query : snapshot()) {
+                String plan = explain(query);
+                if (FULL_SCAN.matcher(plan).find() && !ALLOWED_SCANS.containsKey(method)) {
+                    failures.add(method + " scans a table:\n  " + query.sql + "\n  " + plan);
+                }
+                if (TEMP_BTREE.matcher(plan).find() && !ALLOWED_TEMP_BTREES.containsKey(method)
+                        && !SORTED_SEARCH.matcher(query.sql).find()) {
+                    failures.add(method + " sorts in a temp B-tree:\n  " + query.sql + "\n  " + plan);
+                }
+            }
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+
+    /** One entry per abstract NoteDao method. */
+    private Map<String, Runnable> invocations() {
+        Map<String, Runnable> calls = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        List<String> grams = Trigrams.ofQuery("body text");
+        calls.put("insertNoteRow", () -> dao.insertNoteRow(new Note(USER, "t", "c", "d")));
+        calls.put("getNotesByIds", () -> dao.getNotesByIds(Arrays.asList("a", "b", "c")));
+        calls.put("getSyncStatesByIds", () -> dao.getSyncStatesByIds(Arrays.asList("a", "b", "c")));
+        calls.put("insertBody", () -> dao.insertBody(new NoteBody("missing", "body")));
+        calls.put("deleteBody", () -> dao.deleteBody("missing"));
+        calls.put("getOutOfRowContentHash", () -> dao.getOutOfRowContentHash("missing"));
+        calls.put("getLocalId", () -> dao.getLocalId("missing"));
+        calls.put("deleteSearchIndex", () -> dao.deleteSearchIndex("missing"));
+        calls.put("insertSearchIndex", () -> dao.insertSearchIndex(100_000L, "t", "b"));
+        calls.put("getTrigrams", () -> dao.getTrigrams("missing"));
+        calls.put("insertTrigrams", () -> dao.insertTrigrams(Collections.singletonList(new NoteTrigram("abc", "missing"))));
+        calls.put("deleteTrigrams", () -> dao.deleteTrigrams("missing", Arrays.asList("abc", "bcd")));
+        calls.put("clearTrigrams", () -> dao.clearTrigrams("missing"));
+        calls.put("observeNotes", () -> {
+            for (NoteQuery query : specs()) {
+                observe(dao.observeNotes(query.toQuery()));
+                observe(dao.observeNotes(query.buildUpon().match("body*").build().toQuery()));
+            }
+            observe(dao.observeNotes(NoteQuery.forUser(USER).match("body*").sort(NoteQuery.Sort.RELEVANCE)
+                    .build().toQuery()));
+        });
+        calls.put("getNotesPage", () -> {
+            NotePageKey key = new NotePageKey(now, "m");
+            for (NoteQuery query : specs()) {
+                for (NoteQuery.Page page : NoteQuery.Page.values()) {
+                    dao.getNotesPage(query.toPageQuery(page, key, 50));
+                }
+            }
+        });
+        calls.put("observeNoteWithBody", () -> observe(dao.observeNoteWithBody("missing")));
+        calls.put("getNoteWithBody", () -> dao.getNoteWithBody("missing"));
+        calls.put("getNoteRow", () -> dao.getNoteRow("missing"));
+        calls.put("markRestored", () -> dao.markRestored("missing", now, now, "d"));
+        calls.put("markDeleted", () -> dao.markDeleted("missing", now, now, "d"));
+        calls.put("markTrashed", () -> dao.markTrashed("missing", now, now, "d"));
+        calls.put("deleteAllNotes", () -> dao.deleteAllNotes());
+        calls.put("ensureSyncState", () -> dao.ensureSyncState("missing"));
+        calls.put("setPending", () -> dao.setPending("missing"));
+        calls.put("markSynced", () -> dao.markSynced("missing", now));
+        calls.put("recordSyncFailure", () -> dao.recordSyncFailure("missing", SyncStatus.OFFLINE, "error"));
+        calls.put("getSyncStatus", () -> dao.getSyncStatus("missing"));
+        calls.put("getSyncState", () -> dao.getSyncState("missing"));
+        calls.put("observeUnsyncedStates", () -> observe(dao.observeUnsyncedStates()));
+        calls.put("getNoteIdsWithSyncStatus", () -> dao.getNoteIdsWithSyncStatus(SyncStatus.SYNCING));
+        calls.put("setSyncStatus", () -> dao.setSyncStatus("missing", SyncStatus.CONFLICT));
+        calls.put("deleteAllSyncStates", () -> dao.deleteAllSyncStates());
+        calls.put("enqueueUpload", () -> dao.enqueueUpload("missing", now, NoteFields.TRASHED, true));
+        calls.put("getPriorityOutboxBatch", () -> dao.getPriorityOutboxBatch(0, Long.MAX_VALUE, 500));
+        calls.put("getReadyOutboxBatch", () -> dao.getReadyOutboxBatch(now, now, 0, Long.MAX_VALUE, 500));
+        calls.put("getNextOutboxReadyTime", () -> dao.getNextOutboxReadyTime(2000, 10000, 0, Long.MAX_VALUE));
+        calls.put("countOutbox", () -> dao.countOutbox());
+        calls.put("countOutboxLane", () -> dao.countOutboxLane(0, Long.MAX_VALUE));
+        calls.put("getNotesWithBodiesByIds", () -> dao.getNotesWithBodiesByIds(Arrays.asList("a", "b", "c")));
+        calls.put("deleteOutboxEntries", () -> dao.deleteOutboxEntries(Arrays.asList(1L, 2L, 3L)));
+        calls.put("deleteAllOutboxEntries", () -> dao.deleteAllOutboxEntries());
+        calls.put("getNoteText", () -> dao.getNoteText("missing"));
+        calls.put("getNoteTextsByIds", () -> dao.getNoteTextsByIds(Arrays.asList("a", "b", "c")));
+        calls.put("upsertNoteText", () -> dao.upsertNoteText(new NoteText("missing", now, "")));
+        calls.put("ackTextDelta", () -> dao.ackTextDelta("missing", now, 10));
+        calls.put("deleteNoteText", () -> dao.deleteNoteText("missing"));
+        calls.put("deleteAllNoteTexts", () -> dao.deleteAllNoteTexts());
+        calls.put("getCanvasBlob", () -> dao.getCanvasBlob("missing"));
+        calls.put("upsertCanvasBlob", () -> dao.upsertCanvasBlob(new CanvasBlob("missing", 10, false, now)));
+        calls.put("touchCanvasBlob", () -> dao.touchCanvasBlob("missing", now));
+        calls.put("setCanvasBlobUploadedBytes", () -> dao.setCanvasBlobUploadedBytes("missing", 10));
+        calls.put("markCanvasBlobRemote", () -> dao.markCanvasBlobRemote("missing"));
+        calls.put("getCachedCanvasBlobBytes", () -> dao.getCachedCanvasBlobBytes());
+        calls.put("getLeastRecentlyUsedCanvasBlobs", () -> dao.getLeastRecentlyUsedCanvasBlobs(16));
+        calls.put("getUnreferencedCanvasBlobs", () -> dao.getUnreferencedCanvasBlobs(now));
+        calls.put("getMissingCanvasHashes", () -> dao.getMissingCanvasHashes(USER, 20));
+        calls.put("deleteCanvasBlob", () -> dao.deleteCanvasBlob("missing"));
+        calls.put("deleteAllCanvasBlobs", () -> dao.deleteAllCanvasBlobs());
+        calls.put("insertCanvasTiles", () -> dao.insertCanvasTiles(Collections.singletonList(new CanvasTile("missing", "tile"))));
+        calls.put("deleteUnreferencedCanvasTiles", () -> dao.deleteUnreferencedCanvasTiles(now));
+        calls.put("deleteAllCanvasTiles", () -> dao.deleteAllCanvasTiles());
+        calls.put("getSyncCursor", () -> dao.getSyncCursor(USER));
+        calls.put("setSyncCursor", () -> dao.setSyncCursor(new SyncCursor(USER, now, "m")));
+        calls.put("deleteAllSyncCursors", () -> dao.deleteAllSyncCursors());
+        calls.put("searchNotesInfix", () -> observe(dao.searchNotesInfix(USER, "body text", grams, grams.size(), NoteDao.FILTER_ALL)));
+        calls.put("searchNotesLike", () -> observe(dao.searchNotesLike(USER, "bo", NoteDao.FILTER_ALL)));
+        calls.put("searchNotesFuzzy", () -> observe(dao.searchNotesFuzzy(USER, grams, 1, NoteDao.FILTER_ALL, 500)));
+        return calls;
+    }
+
+    /** Every shape of NoteQuery list: filters, sorts, date ranges, and the trash. */
+    private static List<NoteQuery> specs() {
+        List<NoteQuery> specs = new ArrayList<>();
+        for (int filter = NoteDao.FILTER_ALL; filter <= NoteDao.FILTER_CANVAS; filter++) {
+            for (NoteQuery.Sort sort : new NoteQuery.Sort[] {NoteQuery.Sort.RECENT, NoteQuery.Sort.OLDEST}) {
+                NoteQuery query = NoteQuery.forUser(USER).filter(filter).sort(sort).build();
+                specs.add(query);
+                specs.add(query.buildUpon().trashed(true).build());
+                specs.add(query.buildUpon().updatedBetween(0L, null).build());
+                specs.add(query.buildUpon().updatedBetween(0L, Long.MAX_VALUE).build());
+            }
+        }
+        return specs;
+    }
+
+    private static <T> void observe(LiveData<T> liveData) {
+        // With the instant executors this runs the query synchronously
+        Observer<T> observer = value -> { };
+        liveData.observeForever(observer);
+        liveData.removeObserver(observer);
+    }
+
+    private List<CapturedQuery> snapshot() {
+        List<CapturedQuery> queries = new ArrayList<>();
+        synchronized (captured) {
+            for (CapturedQuery query : captured) {
+                if (query.isDaoStatement()) {
+                    queries.add(query);
+                }
+            }
+        }
+        return queries;
+    }
+
+    private String explain(CapturedQuery query) {
+        StringBuilder plan = new StringBuilder();
+        SimpleSQLiteQuery explain = new SimpleSQLiteQuery("EXPLAIN QUERY PLAN " + query.sql, query.args);
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase().query(explain)) {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append(" | ");
+                }
+                plan.append(cursor.getString(detail));
+            }
+        }
+        return plan.toString();
+    }
+
+    private static final class CapturedQuery {
+        final String sql;
+        final Object[] args;
+
+        CapturedQuery(String sql, List<?> args) {
+            this.sql = sql.trim();
+            this.args = args.toArray();
+        }
+
+        /** Skips transaction control and Room's own invalidation bookkeeping. */
+        boolean isDaoStatement() {
+            String upper = sql.toUpperCase();
+            return (upper.startsWith("SELECT") || upper.startsWith("UPDATE")
+                    || upper.startsWith("DELETE") || upper.startsWith("INSERT"))
+                    && !sql.contains("room_");
+        }
+    }
+}
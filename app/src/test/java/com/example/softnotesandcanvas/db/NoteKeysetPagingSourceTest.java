@@ -0,0 +1,207 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingSource;
+import androidx.paging.PagingState;
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Walks a {@link NoteKeysetPagingSource} with direct loads over a list
+ * where notes share updatedAt in runs longer than a page, so page
+ * boundaries fall inside ties. Every walk must see each note exactly once,
+ * in list order.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class NoteKeysetPagingSourceTest {
+
+    private static final String USER = "user-1";
+    private static final long BASE = 1_700_000_000_000L;
+    private static final int NOTES = 25;
+    private static final int TIED = 5;
+    private static final int PAGE = 4;
+
+    private AppDatabase db;
+    private NoteDao dao;
+    private final List<Note> notes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .setQueryExecutor(Runnable::run)
+                .setTransactionExecutor(Runnable::run)
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        dao = db.noteDao();
+        for (int i = 0; i < NOTES; i++) {
+            Note note = new Note(USER, "Note " + i, "<p>Body " + i + "</p>", "device-1");
+            // Ids out of insertion order, so ties are broken by id and not by rowid
+            note.id = String.format(Locale.US, "note-%02d", (i * 7) % NOTES);
+            note.updatedAt = BASE + i / TIED;
+            dao.insertOrUpdateNote(note);
+            notes.add(note);
+        }
+        dao.insertOrUpdateNote(new Note("user-2", "Someone else's", "", "device-2"));
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void refreshThenAppendWalksTheListOnce() throws Exception {
+        for (NoteQuery.Sort sort : new NoteQuery.Sort[] {NoteQuery.Sort.RECENT, NoteQuery.Sort.OLDEST}) {
+            NoteKeysetPagingSource source = source(sort);
+
+            PagingSource.LoadResult.Page<NotePageKey, NoteListItem> page = refresh(source, null);
+            assertNull(page.getPrevKey());
+            List<String> seen = new ArrayList<>(ids(page));
+            while (page.getNextKey() != null) {
+                page = load(source, new PagingSource.LoadParams.Append<>(page.getNextKey(), PAGE, false));
+                seen.addAll(ids(page));
+            }
+
+            assertEquals(sort.name(), expected(sort), seen);
+        }
+    }
+
+    @Test
+    public void refreshAtAKeyThenPrependReachesTheTop() throws Exception {
+        for (NoteQuery.Sort sort : new NoteQuery.Sort[] {NoteQuery.Sort.RECENT, NoteQuery.Sort.OLDEST}) {
+            List<String> expected = expected(sort);
+            // Mid-way through a run of tied notes
+            Note anchor = byId(expected.get(11));
+            NoteKeysetPagingSource source = source(sort);
+
+            PagingSource.LoadResult.Page<NotePageKey, NoteListItem> page = refresh(source, NotePageKey.of(anchor.updatedAt, anchor.id));
+            assertEquals(anchor.id, page.getData().get(0).id);
+            List<String> seen = new ArrayList<>(ids(page));
+            NotePageKey nextKey = page.getNextKey();
+            while (page.getPrevKey() != null) {
+                page = load(source, new PagingSource.LoadParams.Prepend<>(page.getPrevKey(), PAGE, false));
+                seen.addAll(0, ids(page));
+            }
+            while (nextKey != null) {
+                page = load(source, new PagingSource.LoadParams.Append<>(nextKey, PAGE, false));
+                seen.addAll(ids(page));
+                nextKey = page.getNextKey();
+            }
+
+            assertEquals(sort.name(), expected, seen);
+        }
+    }
+
+    @Test
+    public void appendKeysSurviveWritesAboveThem() throws Exception {
+        NoteKeysetPagingSource source = source(NoteQuery.Sort.RECENT);
+        PagingSource.LoadResult.Page<NotePageKey, NoteListItem> page = refresh(source, null);
+        List<String> seen = new ArrayList<>(ids(page));
+
+        // A new note at the top and a removed one already shown shift every offset
+        Note newest = new Note(USER, "Newest", "", "device-1");
+        newest.updatedAt = BASE + NOTES;
+        dao.insertOrUpdateNote(newest);
+        dao.markAsDeleted(seen.get(0), BASE + NOTES, Hlc.fromMillis(BASE + NOTES), "device-1");
+
+        while (page.getNextKey() != null) {
+            page = load(source, new PagingSource.LoadParams.Append<>(page.getNextKey(), PAGE, false));
+            seen.addAll(ids(page));
+        }
+        assertEquals(expected(NoteQuery.Sort.RECENT), seen);
+    }
+
+    @Test
+    public void refreshKeyIsTheAnchoredRow() throws Exception {
+        NoteKeysetPagingSource source = source(NoteQuery.Sort.RECENT);
+        PagingSource.LoadResult.Page<NotePageKey, NoteListItem> first = refresh(source, null);
+        PagingSource.LoadResult.Page<NotePageKey, NoteListItem> second =
+                load(source, new PagingSource.LoadParams.Append<>(first.getNextKey(), PAGE, false));
+        List<PagingSource.LoadResult.Page<NotePageKey, NoteListItem>> pages = Arrays.asList(first, second);
+
+        assertNull(source.getRefreshKey(new PagingState<>(pages, null, new PagingConfig(PAGE), 0)));
+
+        // Position 6 is on the second page, inside the second run of ties
+        NotePageKey key = source.getRefreshKey(new PagingState<>(pages, 6, new PagingConfig(PAGE), 0));
+        assertNotNull(key);
+        Note anchored = byId(expected(NoteQuery.Sort.RECENT).get(6));
+        assertEquals(anchored.id, key.id);
+        assertEquals(anchored.updatedAt, key.updatedAt);
+
+        // A refresh from the key starts at the anchored row and can still page up to the top
+        PagingSource.LoadResult.Page<NotePageKey, NoteListItem> reloaded = refresh(source(NoteQuery.Sort.RECENT), key);
+        assertEquals(anchored.id, reloaded.getData().get(0).id);
+        assertEquals(anchored.id, reloaded.getPrevKey().id);
+    }
+
+    private NoteKeysetPagingSource source(NoteQuery.Sort sort) {
+        return new NoteKeysetPagingSource(db, NoteQuery.forUser(USER).sort(sort).build());
+    }
+
+    private static PagingSource.LoadResult.Page<NotePageKey, NoteListItem> refresh(
+            NoteKeysetPagingSource source, NotePageKey key) throws Exception {
+        return load(source, new PagingSource.LoadParams.Refresh<>(key, PAGE, false));
+    }
+
+    private static PagingSource.LoadResult.Page<NotePageKey, NoteListItem> load(
+            NoteKeysetPagingSource source, PagingSource.LoadParams<NotePageKey> params) throws Exception {
+        // The query executor runs inline, so the future is already done
+        PagingSource.LoadResult<NotePageKey, NoteListItem> result = source.loadFuture(params).get();
+        if (result instanceof PagingSource.LoadResult.Error) {
+            throw new AssertionError(((PagingSource.LoadResult.Error<NotePageKey, NoteListItem>) result).getThrowable());
+        }
+        return (PagingSource.LoadResult.Page<NotePageKey, NoteListItem>) result;
+    }
+
+    /** The note ids in list order: by (updatedAt, id), newest first for RECENT. */
+    private List<String> expected(NoteQuery.Sort sort) {
+        List<Note> sorted = new ArrayList<>(notes);
+        Comparator<Note> oldestFirst = (a, b) -> a.updatedAt != b.updatedAt
+                ? Long.compare(a.updatedAt, b.updatedAt) : a.id.compareTo(b.id);
+        Collections.sort(sorted, sort == NoteQuery.Sort.OLDEST ? oldestFirst : Collections.reverseOrder(oldestFirst));
+        List<String> ids = new ArrayList<>();
+        for (Note note : sorted) {
+            ids.add(note.id);
+        }
+        return ids;
+    }
+
+    private Note byId(String id) {
+        for (Note note : notes) {
+            if (note.id.equals(id)) {
+                return note;
+            }
+        }
+        throw new AssertionError(id);
+    }
+
+    private static List<String> ids(PagingSource.LoadResult.Page<NotePageKey, NoteListItem> page) {
+        List<String> ids = new ArrayList<>();
+        for (NoteListItem item : page.getData()) {
+            ids.add(item.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.softnotesandcanvas.db;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the note_trigrams index: that its postings follow every write to
+ * a note, that infix search over it returns exactly what a LIKE scan does,
+ * and that fuzzy search ranks notes by shared trigrams.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class NoteTrigramSearchTest {
+
+    private static final String USER = "user-1";
+    private static final String DEVICE = "device-1";
+    private static final long BASE = 1_700_000_000_000L;
+
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private AppDatabase db;
+    private NoteDao dao;
+    private long clock = BASE;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .setQueryExecutor(Runnable::run)
+                .setTransactionExecutor(Runnable::run)
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        dao = db.noteDao();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void postingsFollowEveryWrite() {
+        Note note = save(USER, "Shopping", "<p>Milk and eggs</p>");
+        assertPostings(note);
+
+        note.title = "Weekly shop";
+        note.content = "<p>Bread</p>";
+        dao.insertOrUpdateNote(note);
+        assertPostings(note);
+        assertFalse(dao.getTrigrams(note.id).contains("mil"));
+
+        dao.trashNote(note.id, tick(), Hlc.fromMillis(clock), DEVICE);
+        assertTrue(dao.getTrigrams(note.id).isEmpty());
+
+        dao.restoreNote(note.id, tick(), Hlc.fromMillis(clock), DEVICE);
+        assertPostings(note);
+
+        dao.markAsDeleted(note.id, tick(), Hlc.fromMillis(clock), DEVICE);
+        assertTrue(dao.getTrigrams(note.id).isEmpty());
+    }
+
+    @Test
+    public void postingsCoverBodiesStoredOutOfRow() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= Note.INLINE_CONTENT_LIMIT) {
+            body.append("<p>A long pasted transcript line.</p>");
+        }
+        Note note = save(USER, "Transcript", body.toString());
+        assertPostings(note);
+
+        // A title-only edit keeps the stored body and its postings
+        note.title = "Minutes";
+        dao.insertOrUpdateNote(note);
+        assertPostings(note);
+    }
+
+    @Test
+    public void infixSearchMatchesLike() {
+        save(USER, "Project notes", "<p>Remote meeting at <b>noon</b></p>");
+        save(USER, "NOTE TO SELF", "<p>Call the café</p>");
+        save(USER, "Sale", "<p>Save 50% off today</p>");
+        save(USER, "Ünïcode", "<p>CAFÉ au lait</p>");
+        save(USER, "ab", "c");
+        Note canvas = new Note(USER, "Sketch of a note", null, DEVICE);
+        canvas.type = Note.TYPE_CANVAS;
+        save(canvas);
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= Note.INLINE_CONTENT_LIMIT) {
+            body.append("<p>A long pasted transcript line.</p>");
+        }
+        save(USER, "Transcript", body.toString() + "<p>Footnote</p>");
+        Note trashed = save(USER, "Trashed note", "<p>noon</p>");
+        dao.trashNote(trashed.id, tick(), Hlc.fromMillis(clock), DEVICE);
+        save("user-2", "Someone else's note", "<p>noon</p>");
+
+        List<String> queries = Arrays.asList("note", "NOTE", "ote", "noon", "b>no", "café", "CAFÉ",
+                "ünï", "ÜNÏ", "50%_off", "transcript line", "footnote", "abc", "nothing here");
+        for (String query : queries) {
+            List<String> grams = Trigrams.ofQuery(query);
+            for (int filter = NoteDao.FILTER_ALL; filter <= NoteDao.FILTER_CANVAS; filter++) {
+                assertEquals(query + " / filter " + filter,
+                        ids(valueOf(dao.searchNotesLike(USER, query, filter))),
+                        ids(valueOf(dao.searchNotesInfix(USER, query, grams, grams.size(), filter))));
+            }
+        }
+        // Not vacuous: the index does find things
+        assertEquals(4, valueOf(dao.searchNotesInfix(USER, "ote", Trigrams.ofQuery("ote"), 1,
+                NoteDao.FILTER_ALL)).size());
+    }
+
+    @Test
+    public void fuzzySearchRanksBySharedTrigrams() {
+        Note list = save(USER, "Grocery list", null);
+        Note week = save(USER, "Groceries for the week", null);
+        Note gross = save(USER, "Gross", null);
+        Note grown = save(USER, "Grown", null);
+        save(USER, "Meeting agenda", null);
+        Note trashed = save(USER, "Grocery lists", null);
+        dao.trashNote(trashed.id, tick(), Hlc.fromMillis(clock), DEVICE);
+
+        // A typo: "lst" for "list"
+        List<String> grams = Trigrams.ofQuery("grocery lst");
+
+        List<NoteTrigramMatch> matches = valueOf(dao.searchNotesFuzzy(USER, grams, 1, NoteDao.FILTER_ALL, 10));
+        // Equal overlap goes to the most recently updated
+        assertEquals(Arrays.asList(list.id, week.id, grown.id, gross.id), matchIds(matches));
+        assertEquals(7, matches.get(0).trigramHits);
+        assertEquals(4, matches.get(1).trigramHits);
+        assertEquals(1, matches.get(2).trigramHits);
+
+        assertEquals(Arrays.asList(list.id, week.id),
+                matchIds(valueOf(dao.searchNotesFuzzy(USER, grams, 4, NoteDao.FILTER_ALL, 10))));
+        assertEquals(Collections.singletonList(list.id),
+                matchIds(valueOf(dao.searchNotesFuzzy(USER, grams, 1, NoteDao.FILTER_ALL, 1))));
+        assertTrue(valueOf(dao.searchNotesFuzzy(USER, grams, 1, NoteDao.FILTER_CANVAS, 10)).isEmpty());
+    }
+
+    private void assertPostings(Note note) {
+        assertEquals(Trigrams.ofNote(note.title, note.content), new HashSet<>(dao.getTrigrams(note.id)));
+    }
+
+    private Note save(String userId, String title, String content) {
+        return save(new Note(userId, title, content, DEVICE));
+    }
+
+    private Note save(Note note) {
+        note.updatedAt = tick();
+        note.hlc = Hlc.fromMillis(note.updatedAt);
+        dao.insertOrUpdateNote(note);
+        return note;
+    }
+
+    private long tick() {
+        return ++clock;
+    }
+
+    private static Set<String> ids(List<NoteListItem> items) {
+        Set<String> ids = new HashSet<>();
+        for (NoteListItem item : items) {
+            ids.add(item.id);
+        }
+        return ids;
+    }
+
+    private static List<String> matchIds(List<NoteTrigramMatch> matches) {
+        List<String> ids = new ArrayList<>();
+        for (NoteTrigramMatch match : matches) {
+            ids.add(match.note.id);
+        }
+        return ids;
+    }
+
+    private static <T> T valueOf(LiveData<T> liveData) {
+        // With the instant executors the query runs synchronously
+        List<T> values = new ArrayList<>();
+        Observer<T> observer = values::add;
+        liveData.observeForever(observer);
+        liveData.removeObserver(observer);
+        return values.get(values.size() - 1);
+    }
+}
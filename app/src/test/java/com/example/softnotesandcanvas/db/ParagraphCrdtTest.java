@@ -0,0 +1,133 @@
+package com.example.softnotesandcanvas.db;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that replicas of a {@link ParagraphCrdt} seeded from the same
+ * checkpoint converge whatever order they exchange deltas in, and that
+ * deltas carry only the paragraphs that changed.
+ */
+public class ParagraphCrdtTest {
+
+    private static final long BASE = Hlc.fromMillis(1_700_000_000_000L);
+    private static final String CHECKPOINT = "<p>One</p>\n<p>Two</p>\n<p>Three</p>";
+
+    private long clock = BASE;
+
+    @Test
+    public void seedRendersTheCheckpointAndRoundTrips() {
+        ParagraphCrdt crdt = ParagraphCrdt.seed(CHECKPOINT, BASE);
+
+        assertEquals(CHECKPOINT, crdt.render());
+        assertEquals(crdt.encode(), ParagraphCrdt.decode(crdt.encode()).encode());
+        assertEquals(crdt.encode(), ParagraphCrdt.seed(CHECKPOINT, BASE).encode());
+    }
+
+    @Test
+    public void editRendersTheNewContent() {
+        ParagraphCrdt crdt = ParagraphCrdt.seed(CHECKPOINT, BASE);
+        String edited = "<p>Zero</p>\n<p>One</p>\n<p>Two, revised</p>\n<p>Four</p>";
+
+        crdt.edit(edited, "device-a", this::next);
+
+        assertEquals(edited, crdt.render());
+        assertEquals(edited, ParagraphCrdt.decode(crdt.encode()).render());
+    }
+
+    @Test
+    public void concurrentEditsToDifferentParagraphsBothSurvive() {
+        ParagraphCrdt a = ParagraphCrdt.seed(CHECKPOINT, BASE);
+        ParagraphCrdt b = ParagraphCrdt.seed(CHECKPOINT, BASE);
+
+        a.edit("<p>One!</p>\n<p>Two</p>\n<p>Three</p>\n<p>From A</p>", "device-a", this::next);
+        b.edit("<p>From B</p>\n<p>One</p>\n<p>Three?</p>", "device-b", this::next);
+        String fromA = a.delta("device-a", BASE);
+        String fromB = b.delta("device-b", BASE);
+        a.merge(Collections.singletonList(fromB));
+        b.merge(Collections.singletonList(fromA));
+
+        assertEquals("<p>From B</p>\n<p>One!</p>\n<p>Three?</p>\n<p>From A</p>", a.render());
+        assertEquals(a.render(), b.render());
+        assertEquals(a.encode(), b.encode());
+    }
+
+    @Test
+    public void sameParagraphKeepsTheLaterEdit() {
+        ParagraphCrdt a = ParagraphCrdt.seed(CHECKPOINT, BASE);
+        ParagraphCrdt b = ParagraphCrdt.seed(CHECKPOINT, BASE);
+
+        a.edit("<p>One</p>\n<p>Two by A</p>\n<p>Three</p>", "device-a", this::next);
+        b.edit("<p>One</p>\n<p>Two by B</p>\n<p>Three</p>", "device-b", this::next);
+        String fromA = a.delta("device-a", BASE);
+        String fromB = b.delta("device-b", BASE);
+        a.merge(Collections.singletonList(fromB));
+        b.merge(Collections.singletonList(fromA));
+
+        assertEquals("<p>One</p>\n<p>Two by B</p>\n<p>Three</p>", a.render());
+        assertEquals(a.render(), b.render());
+    }
+
+    @Test
+    public void concurrentInsertsAtTheSamePlaceConvergeInAnyOrder() {
+        ParagraphCrdt a = ParagraphCrdt.seed(CHECKPOINT, BASE);
+        ParagraphCrdt b = ParagraphCrdt.seed(CHECKPOINT, BASE);
+        ParagraphCrdt c = ParagraphCrdt.seed(CHECKPOINT, BASE);
+
+        a.edit("<p>One</p>\n<p>A1</p>\n<p>A2</p>\n<p>Two</p>\n<p>Three</p>", "device-a", this::next);
+        b.edit("<p>One</p>\n<p>B1</p>\n<p>Two</p>\n<p>Three</p>", "device-b", this::next);
+        c.edit("<p>One</p>\n<p>Three</p>", "device-c", this::next);
+        String fromA = a.delta("device-a", BASE);
+        String fromB = b.delta("device-b", BASE);
+        String fromC = c.delta("device-c", BASE);
+        a.merge(Arrays.asList(fromC, fromB));
+        b.merge(Arrays.asList(fromA, fromC));
+        // Re-sent deltas change nothing
+        c.merge(Arrays.asList(fromB, fromA, fromB, fromC));
+
+        // The later insert goes first; A's two stay together
+        assertEquals("<p>One</p>\n<p>B1</p>\n<p>A1</p>\n<p>A2</p>\n<p>Three</p>", a.render());
+        assertEquals(a.render(), b.render());
+        assertEquals(a.render(), c.render());
+    }
+
+    @Test
+    public void deltaHoldsOnlyChangedParagraphsSinceTheStamp() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append(i > 0 ? "\n" : "").append("<p>Paragraph ").append(i).append(" of a long note</p>");
+        }
+        ParagraphCrdt crdt = ParagraphCrdt.seed(body.toString(), BASE);
+        assertNull(crdt.delta("device-a", BASE));
+
+        crdt.edit(body.toString().replace("<p>Paragraph 42 of", "<p>Paragraph forty-two of"), "device-a", this::next);
+        long acked = crdt.maxStamp();
+        String delta = crdt.delta("device-a", BASE);
+
+        assertEquals(1, delta.split("\n").length);
+        assertTrue(delta.length() < body.length() / 50);
+        assertNull(crdt.delta("device-a", acked));
+    }
+
+    @Test
+    public void textWithSeparatorsSurvivesEncoding() {
+        ParagraphCrdt crdt = ParagraphCrdt.seed("", BASE);
+        crdt.edit("<p>tab\there \\ back</p>", "device:with\\odd\tid", this::next);
+
+        ParagraphCrdt copy = ParagraphCrdt.seed("", BASE);
+        copy.merge(Collections.singletonList(crdt.delta("device:with\\odd\tid", BASE)));
+
+        assertEquals("<p>tab\there \\ back</p>", copy.render());
+        assertEquals(crdt.encode(), copy.encode());
+    }
+
+    private long next() {
+        return ++clock;
+    }
+}
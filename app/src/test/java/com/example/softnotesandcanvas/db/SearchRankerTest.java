@@ -0,0 +1,112 @@
+package com.example.softnotesandcanvas.db;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link SearchRanker} on hand-built matchinfo(notes_fts, 'pcnalx')
+ * blobs: one phrase over the title and body columns of a 10-note index.
+ */
+public class SearchRankerTest {
+
+    private static final int DOCS = 10;
+
+    @Test
+    public void bm25MatchesTheFormula() {
+        // The term twice in an average-length title, in 1 note of 10
+        byte[] blob = matchInfo(new int[] {8, 40}, new int[] {8, 40},
+                new int[] {2, 2, 1}, new int[] {0, 0, 0});
+
+        double idf = Math.log((DOCS - 1 + 0.5) / (1 + 0.5));
+        double expected = 4.0 * idf * (2 * 2.2) / (2 + 1.2);
+        assertEquals(expected, SearchRanker.bm25(blob), 1e-9);
+    }
+
+    @Test
+    public void titleHitsOutweighBodyHits() {
+        double inTitle = SearchRanker.bm25(matchInfo(new int[] {8, 40}, new int[] {8, 40},
+                new int[] {1, 1, 1}, new int[] {0, 0, 0}));
+        double inBody = SearchRanker.bm25(matchInfo(new int[] {8, 40}, new int[] {8, 40},
+                new int[] {0, 0, 0}, new int[] {1, 1, 1}));
+        assertEquals(4.0, inTitle / inBody, 1e-9);
+    }
+
+    @Test
+    public void shortColumnsAndRareTermsScoreHigher() {
+        double shortBody = SearchRanker.bm25(matchInfo(new int[] {8, 40}, new int[] {8, 10},
+                new int[] {0, 0, 0}, new int[] {1, 1, 1}));
+        double longBody = SearchRanker.bm25(matchInfo(new int[] {8, 40}, new int[] {8, 200},
+                new int[] {0, 0, 0}, new int[] {1, 1, 1}));
+        double commonTerm = SearchRanker.bm25(matchInfo(new int[] {8, 40}, new int[] {8, 10},
+                new int[] {0, 0, 0}, new int[] {1, 9, 9}));
+        assertTrue(shortBody > longBody);
+        assertTrue(shortBody > commonTerm);
+        // A term in every note still counts for a little, never against
+        assertTrue(commonTerm > 0);
+    }
+
+    @Test
+    public void missingOrMalformedBlobsScoreZero() {
+        assertEquals(0, SearchRanker.bm25(null), 0);
+        assertEquals(0, SearchRanker.bm25(new byte[8]), 0);
+        // Claims two phrases but carries hits for one
+        byte[] truncated = ints(2, 2, DOCS, 8, 40, 8, 40, 1, 1, 1, 0, 0, 0);
+        assertEquals(0, SearchRanker.bm25(truncated), 0);
+    }
+
+    @Test
+    public void rankSortsByScoreThenRecencyAndCuts() {
+        NoteSearchResult body = result("body", 300, new int[] {0, 0, 0}, new int[] {1, 1, 1});
+        NoteSearchResult olderTitle = result("older", 100, new int[] {1, 1, 1}, new int[] {0, 0, 0});
+        NoteSearchResult newerTitle = result("newer", 200, new int[] {1, 1, 1}, new int[] {0, 0, 0});
+        NoteSearchResult none = result("none", 400, null, null);
+        List<NoteSearchResult> hits = new ArrayList<>(Arrays.asList(body, olderTitle, none, newerTitle));
+
+        List<NoteSearchResult> ranked = SearchRanker.rank(hits, 3);
+
+        assertEquals(Arrays.asList(newerTitle, olderTitle, body), ranked);
+        assertEquals(0, none.score, 0);
+        assertEquals(4, SearchRanker.rank(hits, 10).size());
+        assertNull(SearchRanker.rank(null, 10));
+    }
+
+    private static NoteSearchResult result(String id, long updatedAt, int[] titleHits, int[] bodyHits) {
+        NoteSearchResult r = new NoteSearchResult();
+        r.note.id = id;
+        r.note.updatedAt = updatedAt;
+        r.matchInfo = titleHits == null ? null
+                : matchInfo(new int[] {8, 40}, new int[] {8, 40}, titleHits, bodyHits);
+        return r;
+    }
+
+    /**
+     * One phrase over two columns: p, c, n, then the average and this
+     * note's length per column, then (hits here, hits in all notes, notes
+     * with hits) per column.
+     */
+    private static byte[] matchInfo(int[] avgLengths, int[] lengths, int[] titleHits, int[] bodyHits) {
+        return ints(1, 2, DOCS,
+                avgLengths[0], avgLengths[1],
+                lengths[0], lengths[1],
+                titleHits[0], titleHits[1], titleHits[2],
+                bodyHits[0], bodyHits[1], bodyHits[2]);
+    }
+
+    /** The blob as SQLite returns it: 32-bit ints in native byte order. */
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length).order(ByteOrder.nativeOrder());
+        for (int v : values) {
+            buffer.putInt(v);
+        }
+        return buffer.array();
+    }
+}
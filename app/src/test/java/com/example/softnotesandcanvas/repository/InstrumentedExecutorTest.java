@@ -0,0 +1,89 @@
+package com.example.softnotesandcanvas.repository;
+
+import android.os.Process;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an InstrumentedExecutor times its tasks, and that a bounded
+ * one holds back the submitter instead of growing its queue.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+public class InstrumentedExecutorTest {
+
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private InstrumentedExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        gate.countDown();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void reportsQueueDepthWaitAndRunTime() throws Exception {
+        executor = new InstrumentedExecutor("test", 1, Process.THREAD_PRIORITY_DEFAULT, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            awaitGate();
+        });
+        executor.execute(() -> { });
+        executor.execute(() -> { });
+        assertEquals(2, executor.getStats().queued);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        long heldFrom = System.nanoTime();
+        // Shut a while longer, so the queued tasks wait measurably
+        assertFalse(gate.await(20, TimeUnit.MILLISECONDS));
+        long heldMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - heldFrom);
+        gate.countDown();
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+
+        InstrumentedExecutor.Stats stats = executor.getStats();
+        assertEquals(0, stats.queued);
+        assertEquals(4, stats.completed);
+        // The first task ran, and the others waited, for at least as long as it was held
+        assertTrue(stats.toString(), stats.maxRunMillis >= heldMillis);
+        assertTrue(stats.toString(), stats.maxWaitMillis >= heldMillis);
+    }
+
+    @Test
+    public void aFullQueueHoldsBackTheSubmitter() throws Exception {
+        executor = new InstrumentedExecutor("test", 1, Process.THREAD_PRIORITY_BACKGROUND, 1);
+        executor.execute(this::awaitGate);
+        executor.execute(() -> { });
+        Thread producer = new Thread(() -> executor.execute(() -> { }));
+        producer.start();
+
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(1, executor.getStats().queued);
+
+        gate.countDown();
+        producer.join(5_000);
+        assertFalse(producer.isAlive());
+    }
+
+    private void awaitGate() {
+        try {
+            gate.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
+import com.example.softnotesandcanvas.db.CanvasTiles;
+import com.example.softnotesandcanvas.db.Note;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the canvas blob store and its transfers between two devices, each
+ * with its own database and store, against a {@link DirectoryBlobBackend}:
+ * deduplication, resumed uploads, the cache budget, tiled canvases, and
+ * garbage collection.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+public class BlobTransferTest {
+
+    private static final String USER = "user-1";
+    /** Two whole chunks and a short last one. */
+    private static final int BLOB_SIZE = 2 * BlobBackend.CHUNK_SIZE + 100;
+    /** Three tiles by two. */
+    private static final int CANVAS_WIDTH = 3 * CanvasTiles.TILE_SIZE;
+    private static final int CANVAS_HEIGHT = 2 * CanvasTiles.TILE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<AppDatabase> databases = new ArrayList<>();
+    private CountingBackend backend;
+
+    @Before
+    public void setUp() throws IOException {
+        backend = new CountingBackend(folder.newFolder("server"));
+    }
+
+    @After
+    public void tearDown() {
+        for (AppDatabase db : databases) {
+            db.close();
+        }
+    }
+
+    @Test
+    public void savingTheSameDrawingStoresOneFile() throws IOException {
+        CanvasBlobStore store = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        byte[] drawing = drawing(1);
+
+        String hash = store.put(drawing);
+        assertEquals(hash, store.put(drawing.clone()));
+
+        File file = store.fileFor(hash);
+        assertEquals(hash.substring(2, 4), file.getParentFile().getName());
+        assertEquals(hash.substring(0, 2), file.getParentFile().getParentFile().getName());
+        assertArrayEquals(drawing, Files.readAllBytes(file.toPath()));
+        assertEquals(1, countBlobFiles(file.getParentFile().getParentFile().getParentFile()));
+    }
+
+    @Test
+    public void uploadIsSkippedWhenTheServerHasTheHash() throws IOException, RemoteStoreException {
+        CanvasBlobStore phone = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        CanvasBlobStore tablet = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        byte[] drawing = drawing(2);
+
+        String hash = phone.put(drawing);
+        assertEquals(BLOB_SIZE, new BlobTransfer(phone, backend).upload(USER, hash));
+        assertEquals(3, backend.chunkWrites);
+
+        // The same drawing saved on another device, and again on the first
+        assertEquals(hash, tablet.put(drawing));
+        assertEquals(0, new BlobTransfer(tablet, backend).upload(USER, hash));
+        assertEquals(0, new BlobTransfer(phone, backend).upload(USER, hash));
+        assertEquals(3, backend.chunkWrites);
+        assertTrue(tablet.get(hash).remote);
+    }
+
+    @Test
+    public void interruptedUploadResumesAtTheNextChunk() throws IOException, RemoteStoreException {
+        CanvasBlobStore phone = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        CanvasBlobStore tablet = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        byte[] drawing = drawing(3);
+        String hash = phone.put(drawing);
+
+        backend.failAfter = 2;
+        try {
+            new BlobTransfer(phone, backend).upload(USER, hash);
+            fail("The third chunk should fail");
+        } catch (RemoteStoreException e) {
+            assertTrue(e.isRetryable());
+        }
+        assertEquals(-1, backend.size(USER, hash));
+        assertEquals(2L * BlobBackend.CHUNK_SIZE, phone.get(hash).uploadedBytes);
+
+        backend.failAfter = Integer.MAX_VALUE;
+        assertEquals(100, new BlobTransfer(phone, backend).upload(USER, hash));
+
+        File downloaded = new BlobTransfer(tablet, backend).download(USER, hash);
+        assertNotNull(downloaded);
+        assertArrayEquals(drawing, Files.readAllBytes(downloaded.toPath()));
+    }
+
+    @Test
+    public void downloadsStayWithinTheCacheBudget() throws IOException, RemoteStoreException {
+        CanvasBlobStore phone = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        CanvasBlobStore tablet = openStore(BLOB_SIZE * 5L / 2);
+        BlobTransfer upload = new BlobTransfer(phone, backend);
+        List<String> hashes = new ArrayList<>();
+        for (int seed = 10; seed < 13; seed++) {
+            String hash = phone.put(drawing(seed));
+            upload.upload(USER, hash);
+            hashes.add(hash);
+        }
+        // Not uploaded yet, so never evicted
+        String unsent = tablet.put(drawing(20));
+
+        BlobTransfer download = new BlobTransfer(tablet, backend);
+        for (String hash : hashes) {
+            assertNotNull(download.download(USER, hash));
+        }
+
+        assertFalse(tablet.fileFor(hashes.get(0)).exists());
+        assertTrue(tablet.fileFor(hashes.get(1)).exists());
+        assertTrue(tablet.fileFor(hashes.get(2)).exists());
+        assertTrue(tablet.fileFor(unsent).exists());
+        // Evicted blobs come back on demand
+        assertNotNull(download.download(USER, hashes.get(0)));
+    }
+
+    @Test
+    public void garbageCollectionKeepsReferencedBlobs() throws IOException {
+        AppDatabase db = openDatabase();
+        CanvasBlobStore store = new CanvasBlobStore(folder.newFolder(), db.noteDao(), CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        String kept = store.put(drawing(30));
+        String replaced = store.put(drawing(31));
+        Note canvas = new Note(USER, "Sketch", null, "device-1");
+        canvas.type = Note.TYPE_CANVAS;
+        canvas.canvasHash = kept;
+        db.noteDao().saveLocalNote(canvas);
+
+        long now = System.currentTimeMillis();
+        assertEquals(0, store.collectGarbage(now));
+        assertEquals(1, store.collectGarbage(now + CanvasBlobStore.GARBAGE_GRACE_MILLIS + 1));
+
+        assertTrue(store.fileFor(kept).exists());
+        assertFalse(store.fileFor(replaced).exists());
+    }
+
+    @Test
+    public void editedCanvasMovesOnlyTheEditedTiles() throws IOException, RemoteStoreException {
+        CanvasBlobStore phone = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        CanvasBlobStore tablet = openStore(CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        BlobTransfer upload = new BlobTransfer(phone, backend);
+        BlobTransfer download = new BlobTransfer(tablet, backend);
+        int[] pixels = new int[CANVAS_WIDTH * CANVAS_HEIGHT];
+        dot(pixels, 10, 10, 0xff000000);
+
+        String first = phone.putCanvas(pixels, CANVAS_WIDTH, CANVAS_HEIGHT);
+        upload.uploadCanvas(USER, first);
+        // The drawn tile, one empty tile shared by the other five, and the manifest
+        assertEquals(3, backend.chunkWrites);
+        assertNotNull(download.downloadCanvas(USER, first));
+        assertEquals(3, backend.chunkReads);
+
+        dot(pixels, CanvasTiles.TILE_SIZE + 20, CanvasTiles.TILE_SIZE + 20, 0xffff0000);
+        String second = phone.putCanvas(pixels, CANVAS_WIDTH, CANVAS_HEIGHT);
+        upload.uploadCanvas(USER, second);
+        assertEquals(3 + 2, backend.chunkWrites);
+        File manifest = download.downloadCanvas(USER, second);
+        assertNotNull(manifest);
+        assertEquals(3 + 2, backend.chunkReads);
+
+        assertArrayEquals(pixels, tablet.renderCanvas(CanvasTiles.read(manifest)));
+    }
+
+    @Test
+    public void garbageCollectionKeepsTheTilesOfReferencedCanvases() throws IOException {
+        AppDatabase db = openDatabase();
+        CanvasBlobStore store = new CanvasBlobStore(folder.newFolder(), db.noteDao(), CanvasBlobStore.DEFAULT_CACHE_BYTES);
+        int[] pixels = new int[CANVAS_WIDTH * CANVAS_HEIGHT];
+        dot(pixels, 10, 10, 0xff000000);
+        String first = store.putCanvas(pixels, CANVAS_WIDTH, CANVAS_HEIGHT);
+        dot(pixels, 30, 30, 0xff000000);
+        String second = store.putCanvas(pixels, CANVAS_WIDTH, CANVAS_HEIGHT);
+        Note canvas = new Note(USER, "Sketch", null, "device-1");
+        canvas.type = Note.TYPE_CANVAS;
+        canvas.canvasHash = second;
+        db.noteDao().saveLocalNote(canvas);
+
+        // The first manifest and the tile only it used
+        long later = System.currentTimeMillis() + CanvasBlobStore.GARBAGE_GRACE_MILLIS + 1;
+        assertEquals(2, store.collectGarbage(later));
+        assertEquals(0, store.collectGarbage(later));
+
+        assertFalse(store.fileFor(first).exists());
+        assertArrayEquals(pixels, store.renderCanvas(CanvasTiles.read(store.fileFor(second))));
+    }
+
+    private CanvasBlobStore openStore(long cacheBytes) throws IOException {
+        return new CanvasBlobStore(folder.newFolder(), openDatabase().noteDao(), cacheBytes);
+    }
+
+    private AppDatabase openDatabase() {
+        AppDatabase db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        databases.add(db);
+        return db;
+    }
+
+    private static byte[] drawing(int seed) {
+        byte[] data = new byte[BLOB_SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /** A 5x5 square of one color centered on (x, y). */
+    private static void dot(int[] pixels, int x, int y, int color) {
+        for (int row = y - 2; row <= y + 2; row++) {
+            for (int column = x - 2; column <= x + 2; column++) {
+                pixels[row * CANVAS_WIDTH + column] = color;
+            }
+        }
+    }
+
+    /** Blob files under a store root, leaving out temporary files. */
+    private static int countBlobFiles(File root) {
+        File[] children = root.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                count += child.getName().equals("tmp") ? 0 : countBlobFiles(child);
+            } else {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Counts chunk transfers, and fails writes after failAfter like a dropped connection. */
+    private static final class CountingBackend extends DirectoryBlobBackend {
+        int chunkWrites;
+        int chunkReads;
+        int failAfter = Integer.MAX_VALUE;
+
+        CountingBackend(File root) {
+            super(root);
+        }
+
+        @Override
+        public void putChunk(String userId, String hash, int index, byte[] data, int length)
+                throws RemoteStoreException {
+            if (chunkWrites >= failAfter) {
+                throw new RemoteStoreException("Connection lost", true);
+            }
+            chunkWrites++;
+            super.putChunk(userId, hash, index, data, length);
+        }
+
+        @Override
+        public byte[] getChunk(String userId, String hash, int index) throws RemoteStoreException {
+            chunkReads++;
+            return super.getChunk(userId, hash, index);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
+import com.example.softnotesandcanvas.db.CanvasTiles;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the bytes a canvas edit sends and receives, saving the drawing
+ * whole against saving it as tiles (see CanvasTiles), each through a
+ * {@link BlobTransfer} from one device to another.
+ * <p>
+ * The drawing is a full-screen phone canvas with some strokes on it, and
+ * each edit adds one stroke. Both sides encode pixels the same way, by
+ * deflating them; PNG, which the app used for whole drawings, is deflate
+ * over filtered rows and comes out at a similar size for line art, and
+ * cannot be encoded on the JVM. Skipped unless asked for; run it with
+ * {@code ./gradlew testDebugUnitTest -DcanvasBenchmark=true}, adding
+ * {@code -DcanvasBenchmark.edits=200} for more edits.
+ * Results are printed; the assertion only checks that tiles send less.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+public class CanvasDeltaBenchmark {
+
+    private static final String USER = "user-1";
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2340;
+    private static final int FIRST_STROKES = 40;
+    private static final int STROKE_WIDTH = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<AppDatabase> databases = new ArrayList<>();
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("canvasBenchmark"));
+    }
+
+    @After
+    public void tearDown() {
+        for (AppDatabase db : databases) {
+            db.close();
+        }
+    }
+
+    @Test
+    public void bytesPerEdit() throws IOException, RemoteStoreException {
+        int edits = Integer.getInteger("canvasBenchmark.edits", 50);
+        Random random = new Random(42);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < FIRST_STROKES; i++) {
+            stroke(pixels, random);
+        }
+
+        Device whole = new Device();
+        Device tiled = new Device();
+        whole.sendWhole(pixels);
+        tiled.sendTiled(pixels);
+        whole.backend.reset();
+        tiled.backend.reset();
+
+        for (int i = 0; i < edits; i++) {
+            stroke(pixels, random);
+            whole.sendWhole(pixels);
+            tiled.sendTiled(pixels);
+        }
+
+        report("whole", edits, whole.backend);
+        report("tiled", edits, tiled.backend);
+        System.out.println(String.format(Locale.US, "tiles send %.1fx fewer bytes per edit",
+                (double) whole.backend.bytesWritten / tiled.backend.bytesWritten));
+        assertTrue(tiled.backend.bytesWritten < whole.backend.bytesWritten);
+    }
+
+    /** A sender and a receiver sharing one server. */
+    private final class Device {
+        final CountingBackend backend;
+        final CanvasBlobStore sender;
+        final BlobTransfer upload;
+        final BlobTransfer download;
+
+        Device() throws IOException {
+            backend = new CountingBackend(folder.newFolder());
+            sender = openStore();
+            upload = new BlobTransfer(sender, backend);
+            download = new BlobTransfer(openStore(), backend);
+        }
+
+        void sendWhole(int[] pixels) throws IOException, RemoteStoreException {
+            String hash = sender.put(CanvasTiles.encodeTile(pixels, WIDTH, 0, 0, WIDTH, HEIGHT));
+            upload.upload(USER, hash);
+            assertNotNull(download.download(USER, hash));
+        }
+
+        void sendTiled(int[] pixels) throws IOException, RemoteStoreException {
+            String hash = sender.putCanvas(pixels, WIDTH, HEIGHT);
+            upload.uploadCanvas(USER, hash);
+            assertNotNull(download.downloadCanvas(USER, hash));
+        }
+    }
+
+    private CanvasBlobStore openStore() throws IOException {
+        AppDatabase db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        databases.add(db);
+        return new CanvasBlobStore(folder.newFolder(), db.noteDao(), CanvasBlobStore.DEFAULT_CACHE_BYTES);
+    }
+
+    /** A straight stroke of up to 300 pixels in a random opaque color. */
+    private static void stroke(int[] pixels, Random random) {
+        int color = 0xff000000 | random.nextInt(0x1000000);
+        int x = random.nextInt(WIDTH);
+        int y = random.nextInt(HEIGHT);
+        int dx = random.nextInt(601) - 300;
+        int dy = random.nextInt(601) - 300;
+        int steps = Math.max(Math.abs(dx), Math.abs(dy));
+        for (int step = 0; step <= steps; step++) {
+            int cx = x + dx * step / Math.max(steps, 1);
+            int cy = y + dy * step / Math.max(steps, 1);
+            for (int py = cy; py < cy + STROKE_WIDTH; py++) {
+                for (int px = cx; px < cx + STROKE_WIDTH; px++) {
+                    if (px >= 0 && px < WIDTH && py >= 0 && py < HEIGHT) {
+                        pixels[py * WIDTH + px] = color;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void report(String name, int edits, CountingBackend backend) {
+        System.out.println(String.format(Locale.US, "%-6s %4d edits  %9.0f bytes up/edit  %9.0f bytes down/edit",
+                name, edits, (double) backend.bytesWritten / edits, (double) backend.bytesRead / edits));
+    }
+
+    /** Counts the chunk bytes that cross the network. */
+    private static final class CountingBackend extends DirectoryBlobBackend {
+        long bytesWritten;
+        long bytesRead;
+
+        CountingBackend(File root) {
+            super(root);
+        }
+
+        void reset() {
+            bytesWritten = 0;
+            bytesRead = 0;
+        }
+
+        @Override
+        public void putChunk(String userId, String hash, int index, byte[] data, int length)
+                throws RemoteStoreException {
+            bytesWritten += length;
+            super.putChunk(userId, hash, index, data, length);
+        }
+
+        @Override
+        public byte[] getChunk(String userId, String hash, int index) throws RemoteStoreException {
+            byte[] chunk = super.getChunk(userId, hash, index);
+            bytesRead += chunk.length;
+            return chunk;
+        }
+    }
+}
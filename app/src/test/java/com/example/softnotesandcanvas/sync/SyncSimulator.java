@@ -0,0 +1,610 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteCodec;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.SyncStatus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Simulates several devices syncing one account through a shared
+ * {@link InMemoryNoteStore}, so interleavings that take a handful of
+ * phones to hit (conflicts, echoes of a device's own writes, edits made
+ * offline) can be replayed on the JVM.
+ * <p>
+ * Each device has its own in-memory Room database and the parts
+ * NoteRepository wires together for sync: a HybridLogicalClock, an
+ * OutboxUploader drained a coalescing window after an edit, and a pull
+ * and listener whose changes go through a RemoteChangeApplier. Everything
+ * runs on one thread in virtual time, from a queue of events, so a seed
+ * replays a run exactly. The server stamps syncedAt from virtual time too.
+ * <ul>
+ *     <li>latency: a drain starts, and a snapshot reaches a device, after a
+ *     random delay. A device gets its snapshots in order, as from
+ *     Firestore, but uploads from different devices land in any order;</li>
+ *     <li>partitions: a device drops off the network for a while and keeps
+ *     editing. Its listener is torn down, and snapshots still in flight are
+ *     dropped. When it is back it reconnects as NoteRepository does: a pull
+ *     from its cursor, then a new listener from the cursor;</li>
+ *     <li>failures: a share of server calls fail with a retryable error.
+ *     Drains are retried after a backoff, as by WorkManager; a failed pull
+ *     leaves the rest to the listener;</li>
+ *     <li>clock skew: each device's wall clock is off by up to a bound.</li>
+ * </ul>
+ * At the end, every device is checked against the workload: no inserted
+ * paragraph may be missing, and each title, drawing and trash flag must be
+ * the one written with the highest hlc. Notes that conflicted are left
+ * out, as they wait for the user.
+ * The workload creates text and canvas notes, inserts paragraphs into text
+ * notes (opening the note a while before saving it, as the editor does),
+ * renames notes, replaces drawings, and trashes and restores notes.
+ */
+final class SyncSimulator {
+
+    static final String USER = "user-1";
+
+    private static final long START_MILLIS = 1_700_000_000_000L;
+    /** WorkManager's shortest backoff; doubled per failed attempt. */
+    private static final long MIN_BACKOFF_MILLIS = 10_000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    /** As NoteRepository's. */
+    private static final int PULL_PAGE_SIZE = 200;
+
+    /** The outcome of a run. */
+    static final class Report {
+        final int devices;
+        final int operations;
+        /** Operations on notes the device had not received yet. */
+        final int skippedOperations;
+        /** Virtual time from the end of the workload until every device agreed, or -1 if they never did. */
+        final long convergenceMillis;
+        /** Times a snapshot marked a note CONFLICT on some device. */
+        final int conflicts;
+        /** Inserted paragraphs missing at the end from notes that never conflicted. */
+        final int lostUpdates;
+        /** Inserted paragraphs missing at the end from notes that conflicted, which a whole-note upload replaces. */
+        final int overwrittenUpdates;
+        /** Fields a device shows at the end that are not the last write by hlc, on notes that never conflicted. */
+        final int staleFields;
+        final int uploads;
+        final int snapshots;
+        /** Workload operations per second of real time; the only part that differs between runs of a seed. */
+        final double operationsPerSecond;
+
+        Report(int devices, int operations, int skippedOperations, long convergenceMillis, int conflicts,
+               int lostUpdates, int overwrittenUpdates, int staleFields, int uploads, int snapshots,
+               double operationsPerSecond) {
+            this.devices = devices;
+            this.operations = operations;
+            this.skippedOperations = skippedOperations;
+            this.convergenceMillis = convergenceMillis;
+            this.conflicts = conflicts;
+            this.lostUpdates = lostUpdates;
+            this.overwrittenUpdates = overwrittenUpdates;
+            this.staleFields = staleFields;
+            this.uploads = uploads;
+            this.snapshots = snapshots;
+            this.operationsPerSecond = operationsPerSecond;
+        }
+
+        boolean converged() {
+            return convergenceMillis >= 0;
+        }
+
+        /** Everything but the throughput. */
+        String outcome() {
+            return String.format(Locale.US, "%d devices, %d ops (%d skipped), converged %s, %d conflicts, "
+                            + "%d lost updates, %d overwritten by conflicts, %d stale fields, %d uploads, %d snapshots",
+                    devices, operations, skippedOperations,
+                    converged() ? "after " + convergenceMillis + " ms" : "never", conflicts,
+                    lostUpdates, overwrittenUpdates, staleFields, uploads, snapshots);
+        }
+
+        @Override
+        public String toString() {
+            return outcome() + String.format(Locale.US, ", %.0f ops/s", operationsPerSecond);
+        }
+    }
+
+    private final Random random;
+    private final File root;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final List<Device> devices = new ArrayList<>();
+    private final List<String> noteIds = new ArrayList<>();
+    /** Paragraphs the workload inserted, by note. */
+    private final Map<String, List<String>> inserted = new HashMap<>();
+    /** Per note and field, the write with the highest hlc. */
+    private final Map<String, Map<String, Written>> lastWrites = new HashMap<>();
+    private final Set<String> conflictedNotes = new HashSet<>();
+    private long now = START_MILLIS;
+    private long sequence;
+    private int operations;
+    private int skippedOperations;
+    private int conflicts;
+    private int uploads;
+    private int snapshots;
+
+    private int deviceCount = 3;
+    private int operationCount = 500;
+    private long operationGapMillis = 300;
+    private long minLatencyMillis = 20;
+    private long maxLatencyMillis = 500;
+    private long maxEditMillis = 3_000;
+    private int partitions;
+    private long partitionMillis = 30_000;
+    private double failureRate;
+    private long maxClockSkewMillis;
+
+    /** @param root Directory for the devices' blob stores. */
+    SyncSimulator(long seed, File root) {
+        this.random = new Random(seed);
+        this.root = root;
+    }
+
+    SyncSimulator setDevices(int deviceCount) {
+        this.deviceCount = deviceCount;
+        return this;
+    }
+
+    /** Workload operations, spread over all devices, on average operationGapMillis apart. */
+    SyncSimulator setOperations(int operationCount, long operationGapMillis) {
+        this.operationCount = operationCount;
+        this.operationGapMillis = operationGapMillis;
+        return this;
+    }
+
+    SyncSimulator setLatency(long minLatencyMillis, long maxLatencyMillis) {
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        return this;
+    }
+
+    /** Cuts a random device off the network this many times during the workload. */
+    SyncSimulator setPartitions(int partitions, long partitionMillis) {
+        this.partitions = partitions;
+        this.partitionMillis = partitionMillis;
+        return this;
+    }
+
+    /** Fails this share (0 to 1) of server calls with a retryable error. */
+    SyncSimulator setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    SyncSimulator setMaxClockSkew(long maxClockSkewMillis) {
+        this.maxClockSkewMillis = maxClockSkewMillis;
+        return this;
+    }
+
+    Report run() {
+        InMemoryNoteStore server = new InMemoryNoteStore(random).setFailureRate(failureRate).setClock(() -> now);
+        try {
+            for (int i = 0; i < deviceCount; i++) {
+                devices.add(new Device(i, server));
+            }
+            long time = now;
+            for (int i = 0; i < operationCount; i++) {
+                time += 1 + (long) (random.nextDouble() * 2 * operationGapMillis);
+                at(time, this::operation);
+            }
+            // An edit opened by the last operation is saved by then
+            long settledFrom = time + maxEditMillis;
+            for (int i = 0; i < partitions; i++) {
+                Device device = devices.get(random.nextInt(deviceCount));
+                long start = now + (long) (random.nextDouble() * (time - now));
+                at(start, device::disconnect);
+                at(start + partitionMillis, device::reconnect);
+                settledFrom = Math.max(settledFrom, start + partitionMillis);
+            }
+
+            long started = System.nanoTime();
+            long convergedAt = -1;
+            while (!events.isEmpty()) {
+                Event event = events.poll();
+                now = event.time;
+                event.action.run();
+                if (now >= settledFrom) {
+                    boolean converged = converged();
+                    if (!converged) {
+                        convergedAt = -1;
+                    } else if (convergedAt < 0) {
+                        convergedAt = now;
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+            int lost = 0;
+            int overwritten = 0;
+            int stale = 0;
+            for (Device device : devices) {
+                for (Map.Entry<String, List<String>> note : inserted.entrySet()) {
+                    Note stored = device.dao.getNoteById(note.getKey());
+                    String content = stored != null && stored.content != null ? stored.content : "";
+                    for (String paragraph : note.getValue()) {
+                        if (!content.contains(paragraph)) {
+                            if (conflictedNotes.contains(note.getKey())) {
+                                overwritten++;
+                            } else {
+                                lost++;
+                            }
+                        }
+                    }
+                }
+                for (Map.Entry<String, Map<String, Written>> note : lastWrites.entrySet()) {
+                    Note stored = device.dao.getNoteById(note.getKey());
+                    if (conflictedNotes.contains(note.getKey())) {
+                        continue;
+                    }
+                    for (Map.Entry<String, Written> field : note.getValue().entrySet()) {
+                        if (stored == null || !Objects.equals(field.getValue().value, valueOf(stored, field.getKey()))) {
+                            stale++;
+                        }
+                    }
+                }
+            }
+            return new Report(deviceCount, operations, skippedOperations,
+                    convergedAt < 0 ? -1 : Math.max(0, convergedAt - settledFrom), conflicts, lost, overwritten,
+                    stale, uploads, snapshots, operations / seconds);
+        } finally {
+            for (Device device : devices) {
+                device.db.close();
+            }
+        }
+    }
+
+    /** One random workload step, on a random device. */
+    private void operation() {
+        Device device = devices.get(random.nextInt(devices.size()));
+        int kind = random.nextInt(100);
+        operations++;
+        if (kind < 10 || noteIds.isEmpty()) {
+            device.create(random.nextInt(3) == 0);
+            return;
+        }
+        Note note = device.dao.getNoteById(noteIds.get(random.nextInt(noteIds.size())));
+        if (note == null) {
+            // Not synced to this device yet
+            skippedOperations++;
+            return;
+        }
+        boolean text = Note.TYPE_TEXT.equals(note.type);
+        if (kind < 55 && text) {
+            at(now + (long) (random.nextDouble() * maxEditMillis), () -> device.insertParagraph(note));
+        } else if (kind < 55) {
+            note.canvasHash = "drawing-" + sequence++;
+            device.saveEdit(note);
+            written(note.id, NoteCodec.FIELD_CANVAS_HASH, note.canvasHash, note.hlc);
+        } else if (kind < 75) {
+            note.title = "Title " + sequence++;
+            device.saveEdit(note);
+            written(note.id, NoteCodec.FIELD_TITLE, note.title, note.hlc);
+        } else {
+            device.toggleTrash(note);
+        }
+    }
+
+    /** Keeps the write if it has the highest hlc so far for the note's field. */
+    private void written(String noteId, String field, Object value, long hlc) {
+        Map<String, Written> fields = lastWrites.get(noteId);
+        if (fields == null) {
+            fields = new HashMap<>();
+            lastWrites.put(noteId, fields);
+        }
+        Written last = fields.get(field);
+        if (last == null || hlc > last.hlc) {
+            fields.put(field, new Written(value, hlc));
+        }
+    }
+
+    private static Object valueOf(Note note, String field) {
+        switch (field) {
+            case NoteCodec.FIELD_TITLE:
+                return note.title;
+            case NoteCodec.FIELD_CANVAS_HASH:
+                return note.canvasHash;
+            case NoteCodec.FIELD_IS_TRASHED:
+                return note.isTrashed;
+            default:
+                throw new IllegalArgumentException(field);
+        }
+    }
+
+    /** True if no device has anything left to send or receive, and all of them show every note the same. */
+    private boolean converged() {
+        for (Device device : devices) {
+            if (device.drainScheduled || device.waitingForNetwork || device.registration == null
+                    || device.dao.countOutbox() > 0) {
+                return false;
+            }
+        }
+        NoteDao reference = devices.get(0).dao;
+        for (String noteId : noteIds) {
+            Note expected = reference.getNoteById(noteId);
+            for (int i = 1; i < devices.size(); i++) {
+                if (!sameState(expected, devices.get(i).dao.getNoteById(noteId))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameState(Note a, Note b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Objects.equals(a.title, b.title) && Objects.equals(a.content, b.content)
+                && Objects.equals(a.canvasHash, b.canvasHash) && a.isTrashed == b.isTrashed
+                && a.isDeleted == b.isDeleted;
+    }
+
+    private long latency() {
+        return minLatencyMillis + (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis));
+    }
+
+    private void at(long time, Runnable action) {
+        events.add(new Event(Math.max(time, now), sequence++, action));
+    }
+
+    /** One virtual phone. */
+    private final class Device {
+        final String id;
+        final AppDatabase db;
+        final NoteDao dao;
+        final long skewMillis;
+        final HybridLogicalClock clock;
+        final RemoteChangeApplier applier;
+        final OutboxUploader uploader;
+        final InMemoryNoteStore server;
+        /** The listener, or null while offline or reconnecting. */
+        RemoteNoteStore.Registration registration;
+        /** Bumped per connection, so callbacks for a torn-down listener are dropped. */
+        int connection;
+        boolean drainScheduled;
+        boolean waitingForNetwork;
+        int partitionDepth;
+        int failedDrains;
+        long lastDelivery;
+
+        Device(int index, InMemoryNoteStore server) {
+            id = "device-" + index;
+            db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                    .allowMainThreadQueries()
+                    .setQueryExecutor(Runnable::run)
+                    .setTransactionExecutor(Runnable::run)
+                    .addCallback(AppDatabase.CALLBACK)
+                    .build();
+            dao = db.noteDao();
+            skewMillis = maxClockSkewMillis == 0 ? 0
+                    : (long) ((random.nextDouble() * 2 - 1) * maxClockSkewMillis);
+            clock = new HybridLogicalClock(id, 0, this::wallClock, null);
+            applier = new RemoteChangeApplier(dao, clock);
+            // Drawings are made-up hashes with no blob behind them, so nothing is transferred
+            BlobTransfer blobs = new BlobTransfer(new CanvasBlobStore(new File(root, id), dao,
+                    CanvasBlobStore.DEFAULT_CACHE_BYTES), new DirectoryBlobBackend(new File(root, "server")));
+            uploader = new OutboxUploader(dao, server, blobs, UploadScheduler.immediate(), id);
+            this.server = server;
+            connect();
+        }
+
+        long wallClock() {
+            return now + skewMillis;
+        }
+
+        boolean online() {
+            return partitionDepth == 0;
+        }
+
+        void create(boolean canvas) {
+            Note note = new Note(USER, "Note " + noteIds.size(), canvas ? null : "<p>Note " + noteIds.size() + "</p>", id);
+            // Not NoteIds.newId(), which is random
+            note.id = String.format(Locale.US, "note-%05d", noteIds.size());
+            note.createdAt = wallClock();
+            note.updatedAt = note.createdAt;
+            if (canvas) {
+                note.type = Note.TYPE_CANVAS;
+                note.canvasHash = "drawing-" + sequence++;
+            }
+            note.hlc = clock.now();
+            dao.saveLocalNote(note);
+            noteIds.add(note.id);
+            written(note.id, NoteCodec.FIELD_TITLE, note.title, note.hlc);
+            written(note.id, NoteCodec.FIELD_CANVAS_HASH, note.canvasHash, note.hlc);
+            written(note.id, NoteCodec.FIELD_IS_TRASHED, false, note.hlc);
+            requestSync();
+        }
+
+        /** Saves a note opened earlier with one more paragraph, at a random line. */
+        void insertParagraph(Note opened) {
+            String paragraph = "<p>" + id + " #" + sequence++ + "</p>";
+            List<String> lines = new ArrayList<>(Arrays.asList((opened.content != null ? opened.content : "").split("\n")));
+            lines.add(random.nextInt(lines.size() + 1), paragraph);
+            opened.content = String.join("\n", lines);
+            saveEdit(opened);
+            List<String> paragraphs = inserted.get(opened.id);
+            if (paragraphs == null) {
+                paragraphs = new ArrayList<>();
+                inserted.put(opened.id, paragraphs);
+            }
+            paragraphs.add(paragraph);
+        }
+
+        /** As NoteRepository.update. */
+        void saveEdit(Note note) {
+            note.updatedAt = wallClock();
+            note.lastEditedByDeviceId = id;
+            dao.saveLocalEdit(note, id, clock::now);
+            requestSync();
+        }
+
+        /** As NoteRepository.trash and restore. */
+        void toggleTrash(Note note) {
+            long hlc = clock.now();
+            if (note.isTrashed) {
+                dao.restoreNote(note.id, wallClock(), hlc, id);
+            } else {
+                dao.trashNote(note.id, wallClock(), hlc, id);
+            }
+            written(note.id, NoteCodec.FIELD_IS_TRASHED, !note.isTrashed, hlc);
+            requestSync();
+        }
+
+        /** As SyncManager.requestSync: one drain at a time, after the coalescing window. */
+        void requestSync() {
+            if (!drainScheduled) {
+                drainScheduled = true;
+                at(now + UploadScheduler.COALESCE_WINDOW_MILLIS + latency(), this::drain);
+            }
+        }
+
+        void drain() {
+            drainScheduled = false;
+            if (!online()) {
+                // WorkManager holds the job until the network is back
+                waitingForNetwork = true;
+                return;
+            }
+            try {
+                uploads += uploader.drain(UploadScheduler.Lane.SMALL, () -> false);
+                failedDrains = 0;
+            } catch (RemoteStoreException e) {
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(failedDrains++, 10));
+                drainScheduled = true;
+                at(now + backoff, this::drain);
+            }
+        }
+
+        /**
+         * As NoteRepository.startFirestoreListener, a round trip later: pulls
+         * the changes since the cursor, then listens from the cursor.
+         */
+        void connect() {
+            int current = ++connection;
+            at(now + latency(), () -> {
+                if (current != connection) {
+                    // Disconnected again meanwhile
+                    return;
+                }
+                pull();
+                registration = server.listen(USER, dao.getSyncCursor(USER),
+                        snapshot -> deliver(current, snapshot), new RemoteNoteStore.ChangeListener() {
+                            @Override
+                            public void onChanges(List<Note> notes) {
+                                apply(notes);
+                                snapshots++;
+                            }
+
+                            @Override
+                            public void onError(RemoteStoreException e) {
+                                throw new AssertionError("The in-memory store does not fail listeners", e);
+                            }
+                        });
+            });
+        }
+
+        /** As NoteRepository.pullChanges; if it fails, the listener picks up from the cursor. */
+        void pull() {
+            try {
+                while (true) {
+                    List<Note> page = server.querySince(USER, dao.getSyncCursor(USER), PULL_PAGE_SIZE);
+                    apply(page);
+                    if (page.size() < PULL_PAGE_SIZE) {
+                        break;
+                    }
+                }
+            } catch (RemoteStoreException e) {
+                // Retryable; the listener's first snapshot covers the rest
+            }
+        }
+
+        void apply(List<Note> notes) {
+            Set<String> before = new HashSet<>(dao.getNoteIdsWithSyncStatus(SyncStatus.CONFLICT));
+            applier.apply(USER, notes, true);
+            for (String noteId : dao.getNoteIdsWithSyncStatus(SyncStatus.CONFLICT)) {
+                if (!before.contains(noteId)) {
+                    conflicts++;
+                    conflictedNotes.add(noteId);
+                }
+            }
+        }
+
+        /** Listener executor: hands a snapshot over after the latency, in order, unless the listener is gone by then. */
+        void deliver(int from, Runnable snapshot) {
+            lastDelivery = Math.max(lastDelivery, now + latency());
+            at(lastDelivery, () -> {
+                if (from == connection) {
+                    snapshot.run();
+                }
+            });
+        }
+
+        /** Tears the listener down, as the app does when the network goes. */
+        void disconnect() {
+            if (partitionDepth++ > 0) {
+                return;
+            }
+            connection++;
+            if (registration != null) {
+                registration.remove();
+                registration = null;
+            }
+        }
+
+        void reconnect() {
+            if (--partitionDepth > 0) {
+                return;
+            }
+            connect();
+            if (waitingForNetwork) {
+                waitingForNetwork = false;
+                requestSync();
+            }
+        }
+    }
+
+    private static final class Written {
+        final Object value;
+        final long hlc;
+
+        Written(Object value, long hlc) {
+            this.value = value;
+            this.hlc = hlc;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlobStore;
+import com.example.softnotesandcanvas.db.Hlc;
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.SyncStatus;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the sync path against an {@link InMemoryNoteStore}, so the
+ * numbers are the app's own cost (Room writes, batching, conflict checks)
+ * without a network:
+ * <ul>
+ *     <li>upload: notes per second drained from the outbox by OutboxUploader;</li>
+ *     <li>apply: remote notes per second stored by RemoteChangeApplier, in pull-sized pages;</li>
+ *     <li>conflicts: the cost per note of detecting that every incoming note conflicts with a local edit.</li>
+ * </ul>
+ * Skipped unless asked for, so the unit test run stays quick; run it with
+ * {@code ./gradlew testDebugUnitTest -DsyncBenchmark=true}. Sizes default to
+ * 1k and 10k notes; run larger ones with {@code -DsyncBenchmark.sizes=1000,10000,100000}.
+ * Results are printed; the assertions only check that the work was done.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class SyncThroughputBenchmark {
+
+    private static final String USER = "user-1";
+    private static final String LOCAL_DEVICE = "device-local";
+    private static final String REMOTE_DEVICE = "device-remote";
+    private static final int PULL_PAGE = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AppDatabase db;
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("syncBenchmark"));
+    }
+
+    @After
+    public void tearDown() {
+        if (db != null) {
+            db.close();
+        }
+    }
+
+    @Test
+    public void uploadThroughput() throws RemoteStoreException, IOException {
+        for (int size : sizes()) {
+            NoteDao dao = openDatabase();
+            db.runInTransaction(() -> {
+                for (Note note : notes(size, LOCAL_DEVICE, 1)) {
+                    dao.saveLocalNote(note);
+                }
+            });
+            InMemoryNoteStore store = new InMemoryNoteStore(new Random(size));
+
+            // Text notes only; the blob store stays empty
+            BlobTransfer blobs = new BlobTransfer(new CanvasBlobStore(folder.newFolder(), dao, CanvasBlobStore.DEFAULT_CACHE_BYTES),
+                    new DirectoryBlobBackend(folder.newFolder()));
+
+            long start = System.nanoTime();
+            int uploaded = new OutboxUploader(dao, store, blobs, UploadScheduler.immediate(), LOCAL_DEVICE)
+                    .drain(UploadScheduler.Lane.SMALL, () -> false);
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(size, uploaded);
+            assertEquals(size, store.size(USER));
+            assertEquals(0, dao.countOutbox());
+            report("upload", size, elapsed, store.getCommitCount() + " batches");
+        }
+    }
+
+    @Test
+    public void applyThroughput() {
+        for (int size : sizes()) {
+            NoteDao dao = openDatabase();
+            List<Note> remote = notes(size, REMOTE_DEVICE, 1);
+            RemoteChangeApplier applier = new RemoteChangeApplier(dao, localClock());
+
+            long start = System.nanoTime();
+            int applied = applyInPages(applier, remote);
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(size, applied);
+            report("apply", size, elapsed, "");
+        }
+    }
+
+    @Test
+    public void conflictDetectionCost() {
+        for (int size : sizes()) {
+            NoteDao dao = openDatabase();
+            List<Note> local = notes(size, LOCAL_DEVICE, 1);
+            db.runInTransaction(() -> {
+                for (Note note : local) {
+                    dao.saveLocalNote(note);
+                }
+            });
+            // Newer remote versions of every locally edited note
+            List<Note> remote = new ArrayList<>(size);
+            for (Note note : local) {
+                Note newer = InMemoryNoteStore.copy(note);
+                newer.updatedAt += 1;
+                newer.hlc += 1;
+                newer.lastEditedByDeviceId = REMOTE_DEVICE;
+                remote.add(newer);
+            }
+            RemoteChangeApplier applier = new RemoteChangeApplier(dao, localClock());
+
+            long start = System.nanoTime();
+            int applied = applyInPages(applier, remote);
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(0, applied);
+            assertEquals(size, dao.getNoteIdsWithSyncStatus(SyncStatus.CONFLICT).size());
+            report("conflicts", size, elapsed, String.format(Locale.US, "%.1f us/note", elapsed / 1000.0 / size));
+        }
+    }
+
+    private int applyInPages(RemoteChangeApplier applier, List<Note> notes) {
+        int applied = 0;
+        for (int i = 0; i < notes.size(); i += PULL_PAGE) {
+            applied += applier.apply(USER, notes.subList(i, Math.min(notes.size(), i + PULL_PAGE)), true);
+        }
+        return applied;
+    }
+
+    private static HybridLogicalClock localClock() {
+        return new HybridLogicalClock(LOCAL_DEVICE, 0, System::currentTimeMillis, null);
+    }
+
+    private NoteDao openDatabase() {
+        if (db != null) {
+            db.close();
+        }
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .setQueryExecutor(Runnable::run)
+                .setTransactionExecutor(Runnable::run)
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        return db.noteDao();
+    }
+
+    /** Notes of a few hundred bytes each, one text in three a canvas. */
+    private static List<Note> notes(int count, String deviceId, long firstUpdate) {
+        List<Note> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Note note = new Note(USER, "Note " + i, "<p>Meeting notes, item " + i
+                    + ". Follow up with the team about the quarterly plan and the open questions.</p>", deviceId);
+            note.updatedAt = firstUpdate + i;
+            note.hlc = Hlc.fromMillis(note.updatedAt);
+            if (i % 3 == 0) {
+                note.type = Note.TYPE_CANVAS;
+                note.canvasImagePath = "/data/canvas/" + note.id + ".png";
+            }
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    private static List<Integer> sizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : System.getProperty("syncBenchmark.sizes", "1000,10000").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        return sizes;
+    }
+
+    private static void report(String name, int size, long nanos, String detail) {
+        System.out.println(String.format(Locale.US, "%-9s %7d notes  %8.0f notes/s  %s",
+                name, size, size / (nanos / 1e9), detail));
+    }
+}
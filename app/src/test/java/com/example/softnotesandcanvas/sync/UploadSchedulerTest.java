@@ -0,0 +1,186 @@
+package com.example.softnotesandcanvas.sync;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.example.softnotesandcanvas.db.AppDatabase;
+import com.example.softnotesandcanvas.db.CanvasBlob;
+import com.example.softnotesandcanvas.db.Note;
+import com.example.softnotesandcanvas.db.NoteDao;
+import com.example.softnotesandcanvas.db.NoteFields;
+import com.example.softnotesandcanvas.db.SyncOutboxEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the UploadScheduler picks outbox entries, on a clock the test
+ * moves by hand: coalescing, the priority lane, the rate limit, and the
+ * lanes for small and large uploads.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = 34)
+public class UploadSchedulerTest {
+
+    private static final long WINDOW = 2_000;
+    private static final long MAX_DELAY = 10_000;
+
+    private AppDatabase db;
+    private NoteDao dao;
+    private long now = 1_000_000;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries()
+                .addCallback(AppDatabase.CALLBACK)
+                .build();
+        dao = db.noteDao();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void repeatedSavesGoUpAsOneWriteOnceQuiet() {
+        UploadScheduler scheduler = scheduler(null);
+        dao.enqueueUpload("a", now, NoteFields.TITLE, false);
+        now += 500;
+        dao.enqueueUpload("a", now, NoteFields.CONTENT, false);
+        now += 500;
+        dao.enqueueUpload("a", now, NoteFields.CONTENT, false);
+
+        UploadScheduler.Batch early = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500);
+        assertTrue(early.entries.isEmpty());
+        assertEquals(WINDOW, early.waitMillis);
+
+        now += WINDOW;
+        List<SyncOutboxEntry> due = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries;
+        assertEquals(1, due.size());
+        assertEquals(3, due.get(0).edits);
+        assertEquals(NoteFields.TITLE | NoteFields.CONTENT, due.get(0).dirtyFields);
+
+        scheduler.recordSent(due);
+        assertEquals(1, scheduler.getCounters().sentWrites);
+        assertEquals(2, scheduler.getCounters().coalescedWrites);
+    }
+
+    @Test
+    public void aNoteThatKeepsChangingGoesUpAfterTheLongestDelay() {
+        UploadScheduler scheduler = scheduler(null);
+        long first = now;
+        while (now - first < MAX_DELAY) {
+            dao.enqueueUpload("a", now, NoteFields.CONTENT, false);
+            assertTrue(scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries.isEmpty());
+            now += WINDOW / 2;
+        }
+        assertEquals(1, scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries.size());
+    }
+
+    @Test
+    public void priorityEntriesSkipTheWindowAndTheQueue() {
+        UploadScheduler scheduler = scheduler(null);
+        dao.enqueueUpload("edited", now - WINDOW, NoteFields.CONTENT, false);
+        dao.enqueueUpload("trashed", now, NoteFields.TRASHED, true);
+        // A later edit keeps the entry in the priority lane
+        dao.enqueueUpload("trashed", now, NoteFields.TITLE, false);
+
+        List<SyncOutboxEntry> due = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries;
+        assertEquals(2, due.size());
+        assertEquals("trashed", due.get(0).noteId);
+        assertEquals("edited", due.get(1).noteId);
+
+        scheduler.recordSent(due);
+        assertEquals(1, scheduler.getCounters().priorityWrites);
+    }
+
+    @Test
+    public void writesBeyondTheBurstWaitForTokens() {
+        // Two writes at once, then one per second
+        UploadScheduler scheduler = scheduler(new TokenBucket(2, 1, () -> now));
+        for (int i = 0; i < 3; i++) {
+            dao.enqueueUpload("note-" + i, now - WINDOW, NoteFields.ALL, false);
+        }
+
+        List<SyncOutboxEntry> first = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries;
+        assertEquals(2, first.size());
+        dao.deleteOutboxEntries(seqs(first));
+
+        UploadScheduler.Batch limited = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500);
+        assertTrue(limited.entries.isEmpty());
+        assertEquals(1000, limited.waitMillis);
+        assertEquals(1, scheduler.getCounters().rateLimitedWaits);
+
+        // Priority writes still go, into debt
+        dao.enqueueUpload("trashed", now, NoteFields.TRASHED, true);
+        List<SyncOutboxEntry> priority = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries;
+        assertEquals(1, priority.size());
+        dao.deleteOutboxEntries(seqs(priority));
+
+        now += 1000;
+        assertTrue(scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries.isEmpty());
+        now += 1000;
+        assertEquals(1, scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries.size());
+    }
+
+    @Test
+    public void largeDrawingsWaitForTheirOwnLane() {
+        UploadScheduler scheduler = scheduler(null);
+        dao.upsertCanvasBlob(new CanvasBlob("small", 1_000, false, now));
+        dao.upsertCanvasBlob(new CanvasBlob("large", UploadScheduler.LARGE_UPLOAD_BYTES + 1, false, now));
+        String small = saveCanvas("small");
+        String large = saveCanvas("large");
+        // Saved on the real clock
+        now = System.currentTimeMillis() + WINDOW;
+
+        List<SyncOutboxEntry> smallLane = scheduler.nextBatch(dao, UploadScheduler.Lane.SMALL, 500).entries;
+        assertEquals(1, smallLane.size());
+        assertEquals(small, smallLane.get(0).noteId);
+        List<SyncOutboxEntry> largeLane = scheduler.nextBatch(dao, UploadScheduler.Lane.LARGE, 500).entries;
+        assertEquals(1, largeLane.size());
+        assertEquals(large, largeLane.get(0).noteId);
+
+        // Upload progress does not move the entry into the small lane under the large drain
+        dao.setCanvasBlobUploadedBytes("large", UploadScheduler.LARGE_UPLOAD_BYTES);
+        dao.markCanvasBlobRemote("large");
+        assertEquals(1, UploadScheduler.Lane.LARGE.count(dao));
+        assertEquals(1, UploadScheduler.Lane.SMALL.count(dao));
+        // Nor does another edit while it is queued
+        Note edited = dao.getNoteById(large);
+        edited.title = "Renamed";
+        dao.saveLocalNote(edited);
+        assertEquals(1, UploadScheduler.Lane.LARGE.count(dao));
+    }
+
+    private String saveCanvas(String hash) {
+        Note canvas = new Note("user-1", "Sketch", null, "device-1");
+        canvas.type = Note.TYPE_CANVAS;
+        canvas.canvasHash = hash;
+        dao.saveLocalNote(canvas);
+        return canvas.id;
+    }
+
+    private UploadScheduler scheduler(TokenBucket bucket) {
+        return new UploadScheduler(WINDOW, MAX_DELAY, bucket, () -> now);
+    }
+
+    private static List<Long> seqs(List<SyncOutboxEntry> entries) {
+        List<Long> seqs = new ArrayList<>();
+        for (SyncOutboxEntry entry : entries) {
+            seqs.add(entry.seq);
+        }
+        return seqs;
+    }
+}